@@ -0,0 +1,78 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recording into the same metrics from several threads at once.  A plain AtomicLong shows what one contended
+ * cache line costs; change the thread count with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class ContentionBenchmark {
+
+	private final AtomicLong atomic = new AtomicLong();
+
+	private CustomMetricsPoster batched;
+
+	private MetricHandle handle;
+
+	private MetricsRegistry registry;
+
+	private Counter counter;
+
+	private Timer timer;
+
+	@Setup
+	public void setUp() {
+		this.batched = new DiscardingPoster().enableBatching(100000, 500, 1000, OverflowPolicy.DROP_OLDEST);
+		this.handle = this.batched.getMetricHandle(PointSerializationBenchmark.METRIC_NAME);
+		this.registry = new MetricsRegistry(new DiscardingPoster(), 3600000);
+		this.counter = this.registry.counter(PointSerializationBenchmark.METRIC_NAME);
+		this.timer = this.registry.timer(PointSerializationBenchmark.METRIC_NAME + ".latency");
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.batched.disableBatching(5000);
+		this.registry.close();
+	}
+
+	@Benchmark
+	public long atomicLongIncrement() {
+		return this.atomic.incrementAndGet();
+	}
+
+	@Benchmark
+	public void counterIncrement() {
+		this.counter.increment();
+	}
+
+	@Benchmark
+	public void timerRecord() {
+		this.timer.record(42.0);
+	}
+
+	@Benchmark
+	public void handleRecord() {
+		this.handle.record(42.0);
+	}
+}
@@ -0,0 +1,77 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of serializing whole messages, from a single point up to a full batch, built from data point objects and
+ * from point columns
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageSerializationBenchmark {
+
+	@Param({ "1", "500", "5000" })
+	public int points;
+
+	private CustomMetricsMessage objectMessage;
+
+	private CustomMetricsMessage columnarMessage;
+
+	private MetricsJsonWriter writer;
+
+	@Setup
+	public void setUp() {
+		this.objectMessage = new CustomMetricsMessage();
+		PointColumns columns = new PointColumns(new SeriesDictionary(), this.points);
+		for (int i = 0; i < this.points; i++) {
+			String name = PointSerializationBenchmark.METRIC_NAME + (i % 20);
+			String instanceId = i % 2 == 0 ? PointSerializationBenchmark.INSTANCE_ID : null;
+			long collectedAt = 1400000000000L + i * 1000L;
+			double value = i * 1.25;
+			if (instanceId == null) {
+				this.objectMessage.addDataPoint(new DataPoint(name, value, new Date(collectedAt)));
+			} else {
+				this.objectMessage.addDataPoint(new InstanceDataPoint(name, value, new Date(collectedAt), instanceId));
+			}
+			columns.add(name, instanceId, value, collectedAt);
+		}
+		this.columnarMessage = new CustomMetricsMessage(columns);
+		this.writer = new MetricsJsonWriter();
+	}
+
+	@Benchmark
+	public String messageToJson() {
+		return this.objectMessage.toJson();
+	}
+
+	@Benchmark
+	public int messageToWriter() {
+		this.writer.reset();
+		this.writer.writeMessage(this.objectMessage);
+		return this.writer.size();
+	}
+
+	@Benchmark
+	public int columnarMessageToWriter() {
+		this.writer.reset();
+		this.writer.writeMessage(this.columnarMessage);
+		return this.writer.size();
+	}
+}
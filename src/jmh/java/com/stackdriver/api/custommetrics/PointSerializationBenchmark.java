@@ -0,0 +1,68 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a single data point into JSON, against the String.format serialization it replaced
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointSerializationBenchmark {
+
+	static final String METRIC_NAME = "stackdriver.benchmark.requests";
+
+	static final String INSTANCE_ID = "i-12ab34cd";
+
+	private DataPoint point;
+
+	private InstanceDataPoint instancePoint;
+
+	private MetricsJsonWriter writer;
+
+	@Setup
+	public void setUp() {
+		Date collectedAt = new Date(1400000000000L);
+		this.point = new DataPoint(METRIC_NAME, 1234.5678, collectedAt);
+		this.instancePoint = new InstanceDataPoint(METRIC_NAME, 1234.5678, collectedAt, INSTANCE_ID);
+		this.writer = new MetricsJsonWriter();
+	}
+
+	@Benchmark
+	public String legacyFormat() {
+		return String.format("{\"name\":\"%s\",\"value\":%f,\"collected_at\":%d}", this.point.getName(), this.point.getValue(),
+				this.point.getCollectedAtEpoch());
+	}
+
+	@Benchmark
+	public String dataPointToJson() {
+		return this.point.toJson();
+	}
+
+	@Benchmark
+	public String instanceDataPointToJson() {
+		return this.instancePoint.toJson();
+	}
+
+	@Benchmark
+	public int dataPointToWriter() {
+		this.writer.reset();
+		this.point.writeJson(this.writer);
+		return this.writer.size();
+	}
+}
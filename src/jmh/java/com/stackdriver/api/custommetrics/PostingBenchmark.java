@@ -0,0 +1,117 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Posting messages end to end, serialization, HTTP and the response, against a gateway stub in the same JVM that
+ * accepts everything.  Loopback hides real network latency, so this shows the client's own overhead per post.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostingBenchmark {
+
+	@Param({ "1", "500" })
+	public int points;
+
+	@Param({ "false", "true" })
+	public boolean compression;
+
+	private HttpServer server;
+
+	private ExecutorService serverThreads;
+
+	private CustomMetricsPoster poster;
+
+	private CustomMetricsMessage message;
+
+	@Setup
+	public void setUp() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/v1/custom", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				byte[] buffer = new byte[8192];
+				while (in.read(buffer) != -1) {
+					// consume the payload
+				}
+				exchange.sendResponseHeaders(201, -1);
+				exchange.close();
+			}
+		});
+		this.serverThreads = Executors.newCachedThreadPool();
+		this.server.setExecutor(this.serverThreads);
+		this.server.start();
+
+		this.poster = new CustomMetricsPoster(DiscardingPoster.BENCHMARK_API_KEY, "http://127.0.0.1:"
+				+ this.server.getAddress().getPort() + "/v1/custom");
+		// a benchmark must not be padded with retries
+		this.poster.setRetryPolicy(RetryPolicy.NO_RETRIES);
+		if (this.compression) {
+			this.poster.enableCompression();
+		}
+
+		this.message = new CustomMetricsMessage();
+		for (int i = 0; i < this.points; i++) {
+			this.message.addDataPoint(new InstanceDataPoint(PointSerializationBenchmark.METRIC_NAME + (i % 20), i * 1.25,
+					new Date(1400000000000L + i * 1000L), PointSerializationBenchmark.INSTANCE_ID));
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.server.stop(0);
+		this.serverThreads.shutdownNow();
+	}
+
+	@Benchmark
+	public void sendMetrics() {
+		this.poster.sendMetrics(this.message);
+	}
+
+	/**
+	 * Eight messages in flight at once from one thread, waiting for all of them
+	 */
+	@Benchmark
+	public void sendMetricsAsync() throws InterruptedException, ExecutionException {
+		@SuppressWarnings("unchecked")
+		List<Future<SendResult>>[] results = new List[8];
+		for (int i = 0; i < results.length; i++) {
+			results[i] = this.poster.sendMetricsAsync(this.message);
+		}
+		for (List<Future<SendResult>> result : results) {
+			for (Future<SendResult> chunk : result) {
+				chunk.get();
+			}
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adapts a {@link MetricsBatcher}'s batch size and flush interval to how the gateway and the queue behave. <br/>
+ * After every batch the sender thread hands over the poster's {@link ClientStats} and the queue depth, and the
+ * controller adjusts its settings AIMD style, the way TCP adjusts its window:
+ * <ul>
+ * <li>when posts since the last batch were slower than the target latency, or were throttled, answered with a
+ * server error or never answered, batch size and flush interval are both doubled: fewer, bigger posts until the
+ * gateway recovers</li>
+ * <li>when the queue holds more than a batch, the batch grows by a fixed step and the interval shrinks by one</li>
+ * <li>when a batch left by its age half empty, the interval grows by a step and the batch shrinks by one, so an
+ * idle poster posts less often</li>
+ * </ul>
+ * Neither setting ever leaves its floor and ceiling. <br/>
+ * Only the sender thread adjusts the settings; they can be read from any thread.
+ *
+ * @see CustomMetricsPoster#enableAdaptiveBatching()
+ */
+public class AdaptiveFlushController {
+
+	private static final Logger LOGGER = Logger.getLogger(AdaptiveFlushController.class.getName());
+
+	public static final int DEFAULT_MIN_BATCH_POINTS = 50;
+
+	// a bigger batch would be split into several posts anyway
+	public static final int DEFAULT_MAX_BATCH_POINTS = CustomMetricsPoster.DEFAULT_MAX_MESSAGE_POINTS;
+
+	public static final long DEFAULT_MIN_FLUSH_MILLIS = 100;
+
+	public static final long DEFAULT_MAX_FLUSH_MILLIS = 10000;
+
+	public static final long DEFAULT_TARGET_LATENCY_MILLIS = 500;
+
+	private final int minBatchPoints;
+
+	private final int maxBatchPoints;
+
+	private final long minFlushMillis;
+
+	private final long maxFlushMillis;
+
+	private final long targetLatencyMillis;
+
+	// additive steps, a tenth of the way from floor to ceiling
+	private final int batchPointsStep;
+
+	private final long flushMillisStep;
+
+	private volatile int batchPoints;
+
+	private volatile long flushMillis;
+
+	private volatile double lastLatencyMillis;
+
+	private volatile long backoffs;
+
+	// stats seen at the previous batch, the sender thread's only
+	private long lastPosts;
+
+	private long lastLatencyNanos;
+
+	private long lastErrors;
+
+	/**
+	 * Creates a controller with the default floors, ceilings and target latency, starting at the batcher's
+	 * default batch size and age.
+	 */
+	public AdaptiveFlushController() {
+		this(DEFAULT_MIN_BATCH_POINTS, DEFAULT_MAX_BATCH_POINTS, DEFAULT_MIN_FLUSH_MILLIS, DEFAULT_MAX_FLUSH_MILLIS,
+				DEFAULT_TARGET_LATENCY_MILLIS);
+	}
+
+	/**
+	 * Creates a controller.  It starts at the batcher's default batch size and age, moved inside the limits.
+	 *
+	 * @param minBatchPoints
+	 *            smallest batch size
+	 * @param maxBatchPoints
+	 *            largest batch size
+	 * @param minFlushMillis
+	 *            shortest time a batch waits for more points
+	 * @param maxFlushMillis
+	 *            longest time a batch waits for more points
+	 * @param targetLatencyMillis
+	 *            posts slower than this on average make the controller back off
+	 */
+	public AdaptiveFlushController(final int minBatchPoints, final int maxBatchPoints, final long minFlushMillis,
+			final long maxFlushMillis, final long targetLatencyMillis) {
+		if (minBatchPoints <= 0 || maxBatchPoints < minBatchPoints || minFlushMillis <= 0 || maxFlushMillis < minFlushMillis
+				|| targetLatencyMillis <= 0) {
+			LOGGER.severe("invalid adaptive flush limits minBatchPoints=" + minBatchPoints + ", maxBatchPoints="
+					+ maxBatchPoints + ", minFlushMillis=" + minFlushMillis + ", maxFlushMillis=" + maxFlushMillis
+					+ ", targetLatencyMillis=" + targetLatencyMillis);
+			throw new IllegalArgumentException("limits must be positive, with each minimum at most its maximum");
+		}
+		this.minBatchPoints = minBatchPoints;
+		this.maxBatchPoints = maxBatchPoints;
+		this.minFlushMillis = minFlushMillis;
+		this.maxFlushMillis = maxFlushMillis;
+		this.targetLatencyMillis = targetLatencyMillis;
+		this.batchPointsStep = Math.max(1, (maxBatchPoints - minBatchPoints) / 10);
+		this.flushMillisStep = Math.max(1, (maxFlushMillis - minFlushMillis) / 10);
+		this.batchPoints = Math.max(minBatchPoints, Math.min(maxBatchPoints, MetricsBatcher.DEFAULT_MAX_BATCH_POINTS));
+		this.flushMillis = Math.max(minFlushMillis, Math.min(maxFlushMillis, MetricsBatcher.DEFAULT_MAX_BATCH_AGE_MILLIS));
+	}
+
+	/**
+	 * Start measuring from the stats as they are now, so posts made before batching was enabled don't count
+	 */
+	void baseline(final ClientStats stats) {
+		this.lastPosts = stats.getPosts();
+		this.lastLatencyNanos = stats.getPostLatencySumNanos();
+		this.lastErrors = stats.getGatewayErrors();
+	}
+
+	/**
+	 * Adjust the settings after a batch was handed to the poster.  Called from the sender thread only.
+	 *
+	 * @param stats
+	 *            the poster's stats
+	 * @param queueDepth
+	 *            points still queued
+	 * @param sentPoints
+	 *            points in the batch just sent
+	 */
+	void batchSent(final ClientStats stats, final int queueDepth, final int sentPoints) {
+		long posts = stats.getPosts();
+		long latencyNanos = stats.getPostLatencySumNanos();
+		long errors = stats.getGatewayErrors();
+		long newPosts = posts - this.lastPosts;
+		long newErrors = errors - this.lastErrors;
+		if (newPosts > 0) {
+			this.lastLatencyMillis = (latencyNanos - this.lastLatencyNanos) / 1e6 / newPosts;
+		}
+		boolean slow = newPosts > 0 && this.lastLatencyMillis > this.targetLatencyMillis;
+		this.lastPosts = posts;
+		this.lastLatencyNanos = latencyNanos;
+		this.lastErrors = errors;
+
+		int current = this.batchPoints;
+		if (slow || newErrors > 0) {
+			this.batchPoints = (int) Math.min(this.maxBatchPoints, 2L * current);
+			this.flushMillis = Math.min(this.maxFlushMillis, 2 * this.flushMillis);
+			this.backoffs++;
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("gateway slow or failing, batching " + this.batchPoints + " points every " + this.flushMillis + "ms");
+			}
+		} else if (queueDepth >= current) {
+			this.batchPoints = Math.min(this.maxBatchPoints, current + this.batchPointsStep);
+			this.flushMillis = Math.max(this.minFlushMillis, this.flushMillis - this.flushMillisStep);
+		} else if (sentPoints < current / 2) {
+			this.batchPoints = Math.max(this.minBatchPoints, current - this.batchPointsStep);
+			this.flushMillis = Math.min(this.maxFlushMillis, this.flushMillis + this.flushMillisStep);
+		}
+	}
+
+	/**
+	 * @return points a batch currently holds before it is sent
+	 */
+	public int getBatchPoints() {
+		return this.batchPoints;
+	}
+
+	/**
+	 * @return how long a batch currently waits for more points before it is sent
+	 */
+	public long getFlushIntervalMillis() {
+		return this.flushMillis;
+	}
+
+	/**
+	 * @return average latency of the posts answered between the last two batches
+	 */
+	public double getLastLatencyMillis() {
+		return this.lastLatencyMillis;
+	}
+
+	/**
+	 * @return how often the controller backed off a slow or failing gateway
+	 */
+	public long getBackoffs() {
+		return this.backoffs;
+	}
+
+	public int getMinBatchPoints() {
+		return this.minBatchPoints;
+	}
+
+	public int getMaxBatchPoints() {
+		return this.maxBatchPoints;
+	}
+
+	public long getMinFlushIntervalMillis() {
+		return this.minFlushMillis;
+	}
+
+	public long getMaxFlushIntervalMillis() {
+		return this.maxFlushMillis;
+	}
+
+	public long getTargetLatencyMillis() {
+		return this.targetLatencyMillis;
+	}
+}
@@ -0,0 +1,147 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * Stops posting to a gateway that keeps failing, so application threads don't each wait out the connect or read
+ * timeout while it is down. <br/>
+ * After failureThreshold failed posts in a row the breaker opens and every post is refused without touching the
+ * network.  Once openMillis have passed it lets a single trial post through; if that one succeeds the breaker
+ * closes again, if it fails the breaker stays open for another openMillis.  Only failures that say the gateway is
+ * down or overloaded count; a post that fails for its own reasons says nothing about the gateway.
+ */
+public class CircuitBreaker {
+
+	private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+	public static final long DEFAULT_OPEN_MILLIS = 30000;
+
+	public enum State {
+		/**
+		 * Posts go through
+		 */
+		CLOSED,
+		/**
+		 * Posts are refused until the open period is over
+		 */
+		OPEN,
+		/**
+		 * One trial post is in flight, the rest are refused until it is done
+		 */
+		HALF_OPEN
+	}
+
+	private final int failureThreshold;
+
+	private final long openMillis;
+
+	private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+	private volatile long openedAtMillis;
+
+	/**
+	 * Creates a breaker with the default threshold and open period.
+	 */
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+	}
+
+	/**
+	 * Creates a breaker.
+	 *
+	 * @param failureThreshold
+	 *            failed posts in a row that open the breaker
+	 * @param openMillis
+	 *            how long the breaker stays open before a trial post is let through
+	 */
+	public CircuitBreaker(final int failureThreshold, final long openMillis) {
+		if (failureThreshold <= 0 || openMillis <= 0) {
+			LOGGER.severe("invalid circuit breaker failureThreshold=" + failureThreshold + ", openMillis=" + openMillis);
+			throw new IllegalArgumentException("failureThreshold and openMillis must both be positive");
+		}
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Ask whether a post may go out now.  A caller that gets true must report how the post went through
+	 * {@link #recordSuccess()} or {@link #recordFailure()}, or {@link #releaseTrial()} if it says nothing about
+	 * the gateway.
+	 *
+	 * @return false if the breaker is open
+	 */
+	public boolean allowRequest() {
+		State current = this.state.get();
+		if (current == State.CLOSED) {
+			return true;
+		}
+		if (current == State.OPEN && this.getRemainingOpenMillis() == 0) {
+			// only the caller that wins the switch gets to send the trial post
+			return this.state.compareAndSet(State.OPEN, State.HALF_OPEN);
+		}
+		return false;
+	}
+
+	/**
+	 * The gateway answered, close the breaker
+	 */
+	public void recordSuccess() {
+		this.consecutiveFailures.set(0);
+		if (this.state.getAndSet(State.CLOSED) != State.CLOSED) {
+			LOGGER.info("Stackdriver gateway is reachable again, resuming posts");
+		}
+	}
+
+	/**
+	 * The post failed in a way that says the gateway is down or overloaded
+	 */
+	public void recordFailure() {
+		int failures = this.consecutiveFailures.incrementAndGet();
+		State current = this.state.get();
+		if (current == State.HALF_OPEN || (current == State.CLOSED && failures >= this.failureThreshold)) {
+			this.openedAtMillis = System.currentTimeMillis();
+			if (this.state.compareAndSet(current, State.OPEN)) {
+				LOGGER.warning("Stackdriver gateway failed " + failures + " times in a row, not posting for the next "
+						+ this.openMillis + "ms");
+			}
+		}
+	}
+
+	/**
+	 * The post let through failed before it told anything about the gateway.  A trial post gives its place back,
+	 * so the next caller gets to send the trial right away; otherwise nothing changes.
+	 */
+	public void releaseTrial() {
+		// the open period is already over, so the breaker is ready for another trial
+		this.state.compareAndSet(State.HALF_OPEN, State.OPEN);
+	}
+
+	/**
+	 * @return how much longer the breaker stays open, 0 if it is not open or the open period is over
+	 */
+	public long getRemainingOpenMillis() {
+		if (this.state.get() != State.OPEN) {
+			return 0;
+		}
+		long remaining = this.openedAtMillis + this.openMillis - System.currentTimeMillis();
+		return remaining > 0 ? remaining : 0;
+	}
+
+	public State getState() {
+		return this.state.get();
+	}
+
+	public int getFailureThreshold() {
+		return this.failureThreshold;
+	}
+
+	public long getOpenMillis() {
+		return this.openMillis;
+	}
+}
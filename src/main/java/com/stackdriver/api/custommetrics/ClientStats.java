@@ -0,0 +1,398 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What a poster has been doing: points recorded, posted and dropped, bytes posted, how long posts take and what
+ * the gateway answered. <br/>
+ * Everything on the send path is a single atomic add, cheap enough to be always on.  The values kept by the
+ * batcher, the sender and the spill queue are read from them when asked for, so they are current as of the call.
+ * Read the stats through {@link CustomMetricsPoster#getStats()}, over JMX after
+ * {@link CustomMetricsPoster#registerStatsMBean(String)}, or have the poster send them as custom metrics of its own
+ * with {@link CustomMetricsPoster#enableSelfMetrics(long)}.
+ */
+public class ClientStats implements ClientStatsMBean {
+
+	/**
+	 * Upper bounds of the post latency buckets, in milliseconds; the last bucket holds everything slower
+	 */
+	private static final long[] LATENCY_BUCKET_BOUNDS_MILLIS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000,
+			10000 };
+
+	// null for stats kept outside a poster
+	private final CustomMetricsPoster poster;
+
+	// bumped on every recording thread at once, so striped
+	private final StripedLongAdder pointsRecorded = new StripedLongAdder();
+
+	private final AtomicLong pointsDropped = new AtomicLong();
+
+	private final AtomicLong pointsPosted = new AtomicLong();
+
+	private final AtomicLong pointsCoalesced = new AtomicLong();
+
+	private final AtomicLong pointsRateLimited = new AtomicLong();
+
+	private final AtomicLong messagesPosted = new AtomicLong();
+
+	private final AtomicLong bytesPosted = new AtomicLong();
+
+	private final AtomicLong connectErrors = new AtomicLong();
+
+	private final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BUCKET_BOUNDS_MILLIS.length + 1);
+
+	private final AtomicLong latencySumNanos = new AtomicLong();
+
+	private final AtomicLong latencyMaxNanos = new AtomicLong();
+
+	private final ConcurrentMap<Integer, AtomicLong> responseCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	ClientStats(final CustomMetricsPoster poster) {
+		this.poster = poster;
+	}
+
+	void pointRecorded() {
+		this.pointsRecorded.increment();
+	}
+
+	void pointsRecorded(final int points) {
+		this.pointsRecorded.add(points);
+	}
+
+	void pointDropped() {
+		this.pointsDropped.incrementAndGet();
+	}
+
+	void pointsDropped(final int points) {
+		this.pointsDropped.addAndGet(points);
+	}
+
+	/**
+	 * Points of a batch were collapsed into others of the same series and second
+	 */
+	void pointsCoalesced(final int points) {
+		this.pointsCoalesced.addAndGet(points);
+	}
+
+	/**
+	 * Points over the poster's rate limits were discarded
+	 */
+	void pointsRateLimited(final int points) {
+		this.pointsRateLimited.addAndGet(points);
+	}
+
+	/**
+	 * A message, or one chunk of a split message, was handed to the sender
+	 */
+	void messagePosted(final int points) {
+		this.messagesPosted.incrementAndGet();
+		this.pointsPosted.addAndGet(points);
+	}
+
+	/**
+	 * The gateway answered a post, retries included
+	 */
+	void postCompleted(final int bodyBytes, final int responseCode, final long elapsedNanos) {
+		this.bytesPosted.addAndGet(bodyBytes);
+		this.latencyBuckets.incrementAndGet(bucketOf(elapsedNanos));
+		this.latencySumNanos.addAndGet(elapsedNanos);
+		long max = this.latencyMaxNanos.get();
+		while (elapsedNanos > max && !this.latencyMaxNanos.compareAndSet(max, elapsedNanos)) {
+			max = this.latencyMaxNanos.get();
+		}
+		AtomicLong count = this.responseCodes.get(responseCode);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = this.responseCodes.putIfAbsent(responseCode, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * A post never got an answer, the connection failed or broke
+	 */
+	void connectFailed() {
+		this.connectErrors.incrementAndGet();
+	}
+
+	private static int bucketOf(final long elapsedNanos) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+		for (int i = 0; i < LATENCY_BUCKET_BOUNDS_MILLIS.length; i++) {
+			if (millis < LATENCY_BUCKET_BOUNDS_MILLIS[i]) {
+				return i;
+			}
+		}
+		return LATENCY_BUCKET_BOUNDS_MILLIS.length;
+	}
+
+	/**
+	 * @return single data points passed to sendMetricDataPoint, sendInstanceMetricDataPoint or a metric handle;
+	 *         whole messages sent with sendMetrics only count as posted
+	 */
+	public long getPointsRecorded() {
+		return this.pointsRecorded.sum();
+	}
+
+	/**
+	 * @return data points the batcher had no room for, or recorded after the poster was closed
+	 */
+	public long getPointsDropped() {
+		return this.pointsDropped.get();
+	}
+
+	/**
+	 * @return queued data points not sent because a later one had the same series and second
+	 */
+	public long getPointsCoalesced() {
+		return this.pointsCoalesced.get();
+	}
+
+	/**
+	 * @return data points discarded for being over the poster's rate limits, see
+	 *         {@link CustomMetricsPoster#setRateLimiter(RateLimiter)}
+	 */
+	public long getPointsRateLimited() {
+		return this.pointsRateLimited.get();
+	}
+
+	/**
+	 * @return data points handed to the sender, whatever became of them
+	 */
+	public long getPointsPosted() {
+		return this.pointsPosted.get();
+	}
+
+	/**
+	 * @return messages handed to the sender, counting each chunk of a split message
+	 */
+	public long getMessagesPosted() {
+		return this.messagesPosted.get();
+	}
+
+	/**
+	 * @return messages the gateway accepted
+	 */
+	public long getMessagesSent() {
+		GatewaySender sender = this.sender();
+		return sender == null ? 0 : sender.getSentMessages();
+	}
+
+	/**
+	 * @return messages rejected by the gateway or given up on
+	 */
+	public long getMessagesFailed() {
+		GatewaySender sender = this.sender();
+		return sender == null ? 0 : sender.getFailedMessages();
+	}
+
+	public long getMessagesSpilled() {
+		GatewaySender sender = this.sender();
+		return sender == null ? 0 : sender.getSpilledMessages();
+	}
+
+	public long getMessagesReplayed() {
+		GatewaySender sender = this.sender();
+		return sender == null ? 0 : sender.getReplayedMessages();
+	}
+
+	public long getRetriedPosts() {
+		GatewaySender sender = this.sender();
+		return sender == null ? 0 : sender.getRetriedPosts();
+	}
+
+	public long getShortCircuitedPosts() {
+		GatewaySender sender = this.sender();
+		return sender == null ? 0 : sender.getShortCircuitedPosts();
+	}
+
+	/**
+	 * @return message bytes the gateway answered for, before compression
+	 */
+	public long getBytesPosted() {
+		return this.bytesPosted.get();
+	}
+
+	/**
+	 * @return request body bytes written to the gateway, after compression; the same as bytes posted for
+	 *         transports other than {@link HttpGatewayTransport}
+	 */
+	public long getBytesOnWire() {
+		GatewayTransport transport = this.poster == null ? null : this.poster.getTransport();
+		if (transport instanceof HttpGatewayTransport) {
+			return ((HttpGatewayTransport) transport).getBytesSent();
+		}
+		return this.getBytesPosted();
+	}
+
+	/**
+	 * @return posts the gateway answered
+	 */
+	public long getPosts() {
+		long posts = 0;
+		for (int i = 0; i < this.latencyBuckets.length(); i++) {
+			posts += this.latencyBuckets.get(i);
+		}
+		return posts;
+	}
+
+	public double getPostLatencyAverageMillis() {
+		long posts = this.getPosts();
+		return posts == 0 ? 0 : this.latencySumNanos.get() / 1e6 / posts;
+	}
+
+	long getPostLatencySumNanos() {
+		return this.latencySumNanos.get();
+	}
+
+	public long getPostLatencyMaxMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.latencyMaxNanos.get());
+	}
+
+	/**
+	 * Latency of the posts the gateway answered, roughly, from the histogram
+	 *
+	 * @param quantile
+	 *            between 0 and 1, 0.99 for the 99th percentile
+	 * @return upper bound of the bucket the quantile falls in, or the slowest post for the last bucket
+	 */
+	public long getPostLatencyPercentileMillis(final double quantile) {
+		return percentileMillis(this.getPostLatencyBucketCounts(), quantile, this.getPostLatencyMaxMillis());
+	}
+
+	static long percentileMillis(final long[] bucketCounts, final double quantile, final long maxMillis) {
+		long total = 0;
+		for (long count : bucketCounts) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < LATENCY_BUCKET_BOUNDS_MILLIS.length; i++) {
+			seen += bucketCounts[i];
+			if (seen >= rank) {
+				return LATENCY_BUCKET_BOUNDS_MILLIS[i];
+			}
+		}
+		return maxMillis;
+	}
+
+	/**
+	 * @return exclusive upper bound of each latency bucket but the last, which has none
+	 */
+	public long[] getPostLatencyBucketBoundsMillis() {
+		return LATENCY_BUCKET_BOUNDS_MILLIS.clone();
+	}
+
+	/**
+	 * @return posts per latency bucket, one more entry than there are bounds
+	 */
+	public long[] getPostLatencyBucketCounts() {
+		long[] counts = new long[this.latencyBuckets.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = this.latencyBuckets.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * @return posts that failed before the gateway answered
+	 */
+	public long getConnectErrors() {
+		return this.connectErrors.get();
+	}
+
+	/**
+	 * @return how often the gateway answered with each HTTP status code
+	 */
+	public Map<Integer, Long> getResponseCodeCounts() {
+		Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+		for (Map.Entry<Integer, AtomicLong> entry : this.responseCodes.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	public long getResponses2xx() {
+		return this.countResponses(200);
+	}
+
+	public long getResponses4xx() {
+		return this.countResponses(400);
+	}
+
+	public long getResponses5xx() {
+		return this.countResponses(500);
+	}
+
+	/**
+	 * @return posts worth retrying: throttled, answered with a server error, or never answered
+	 */
+	long getGatewayErrors() {
+		AtomicLong throttled = this.responseCodes.get(429);
+		return this.countResponses(500) + (throttled == null ? 0 : throttled.get()) + this.connectErrors.get();
+	}
+
+	private long countResponses(final int classStart) {
+		long count = 0;
+		for (Map.Entry<Integer, AtomicLong> entry : this.responseCodes.entrySet()) {
+			if (entry.getKey() >= classStart && entry.getKey() < classStart + 100) {
+				count += entry.getValue().get();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return points waiting in the batcher's queue, 0 without batching
+	 */
+	public int getQueueDepth() {
+		MetricsBatcher batcher = this.poster == null ? null : this.poster.getBatcher();
+		return batcher == null ? 0 : batcher.getQueueDepth();
+	}
+
+	public int getPendingRetries() {
+		GatewaySender sender = this.sender();
+		return sender == null ? 0 : sender.getPendingRetries();
+	}
+
+	public int getInFlight() {
+		GatewaySender sender = this.sender();
+		return sender == null ? 0 : sender.getInFlight();
+	}
+
+	/**
+	 * @return messages waiting on disk, 0 without spilling
+	 */
+	public int getSpilledPending() {
+		DiskSpillQueue spill = this.spillQueue();
+		return spill == null ? 0 : spill.size();
+	}
+
+	/**
+	 * @return spilled messages dropped to stay within the disk cap
+	 */
+	public long getSpillEvictions() {
+		DiskSpillQueue spill = this.spillQueue();
+		return spill == null ? 0 : spill.getEvictedMessages();
+	}
+
+	private GatewaySender sender() {
+		return this.poster == null ? null : this.poster.getSender();
+	}
+
+	private DiskSpillQueue spillQueue() {
+		GatewaySender sender = this.sender();
+		return sender == null ? null : sender.getSpillQueue();
+	}
+}
@@ -0,0 +1,64 @@
+package com.stackdriver.api.custommetrics;
+
+/**
+ * JMX view of a poster's {@link ClientStats}, registered with
+ * {@link CustomMetricsPoster#registerStatsMBean(String)}.  Counts are totals since the poster was created.
+ */
+public interface ClientStatsMBean {
+
+	long getPointsRecorded();
+
+	long getPointsDropped();
+
+	long getPointsCoalesced();
+
+	long getPointsRateLimited();
+
+	long getPointsPosted();
+
+	long getMessagesPosted();
+
+	long getMessagesSent();
+
+	long getMessagesFailed();
+
+	long getMessagesSpilled();
+
+	long getMessagesReplayed();
+
+	long getRetriedPosts();
+
+	long getShortCircuitedPosts();
+
+	long getBytesPosted();
+
+	long getBytesOnWire();
+
+	long getPosts();
+
+	double getPostLatencyAverageMillis();
+
+	long getPostLatencyMaxMillis();
+
+	long[] getPostLatencyBucketBoundsMillis();
+
+	long[] getPostLatencyBucketCounts();
+
+	long getConnectErrors();
+
+	long getResponses2xx();
+
+	long getResponses4xx();
+
+	long getResponses5xx();
+
+	int getQueueDepth();
+
+	int getPendingRetries();
+
+	int getInFlight();
+
+	int getSpilledPending();
+
+	long getSpillEvictions();
+}
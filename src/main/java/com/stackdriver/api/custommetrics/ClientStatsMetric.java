@@ -0,0 +1,77 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Date;
+
+/**
+ * Reports a poster's own {@link ClientStats} as custom metrics, see
+ * {@link CustomMetricsPoster#enableSelfMetrics(long)}. <br/>
+ * Counts are reported as what happened during the interval, so they can be graphed as rates; queue depths as
+ * their value at the end of it.  Every interval reports, so a flat line at zero means an idle client, not a dead
+ * one.
+ */
+class ClientStatsMetric extends Metric {
+
+	public static final String DEFAULT_NAME_PREFIX = "stackdriver.client";
+
+	private static final String[] COUNTER_SUFFIXES = { ".points_recorded", ".points_posted", ".points_dropped",
+			".messages_sent", ".messages_failed", ".messages_spilled", ".retried_posts", ".connect_errors",
+			".responses_2xx", ".responses_4xx", ".responses_5xx", ".bytes_posted", ".bytes_on_wire",
+			".points_coalesced", ".points_rate_limited" };
+
+	private final ClientStats stats;
+
+	// counter totals at the end of the last interval, in COUNTER_SUFFIXES order
+	private final long[] lastCounters = new long[COUNTER_SUFFIXES.length];
+
+	private long[] lastLatencyBuckets;
+
+	ClientStatsMetric(final ClientStats stats, final String namePrefix, final String instanceId) {
+		super(namePrefix, instanceId);
+		this.stats = stats;
+		this.snapshot(this.lastCounters);
+		this.lastLatencyBuckets = stats.getPostLatencyBucketCounts();
+	}
+
+	private void snapshot(final long[] counters) {
+		counters[0] = this.stats.getPointsRecorded();
+		counters[1] = this.stats.getPointsPosted();
+		counters[2] = this.stats.getPointsDropped();
+		counters[3] = this.stats.getMessagesSent();
+		counters[4] = this.stats.getMessagesFailed();
+		counters[5] = this.stats.getMessagesSpilled();
+		counters[6] = this.stats.getRetriedPosts();
+		counters[7] = this.stats.getConnectErrors();
+		counters[8] = this.stats.getResponses2xx();
+		counters[9] = this.stats.getResponses4xx();
+		counters[10] = this.stats.getResponses5xx();
+		counters[11] = this.stats.getBytesPosted();
+		counters[12] = this.stats.getBytesOnWire();
+		counters[13] = this.stats.getPointsCoalesced();
+		counters[14] = this.stats.getPointsRateLimited();
+	}
+
+	@Override
+	synchronized void report(final CustomMetricsMessage message, final Date collectedAt) {
+		long[] counters = new long[COUNTER_SUFFIXES.length];
+		this.snapshot(counters);
+		for (int i = 0; i < counters.length; i++) {
+			this.addPoint(message, COUNTER_SUFFIXES[i], counters[i] - this.lastCounters[i], collectedAt);
+			this.lastCounters[i] = counters[i];
+		}
+
+		long[] buckets = this.stats.getPostLatencyBucketCounts();
+		long[] interval = new long[buckets.length];
+		for (int i = 0; i < buckets.length; i++) {
+			interval[i] = buckets[i] - this.lastLatencyBuckets[i];
+		}
+		this.lastLatencyBuckets = buckets;
+		long maxMillis = this.stats.getPostLatencyMaxMillis();
+		this.addPoint(message, ".post_latency_p50_ms", ClientStats.percentileMillis(interval, 0.5, maxMillis), collectedAt);
+		this.addPoint(message, ".post_latency_p99_ms", ClientStats.percentileMillis(interval, 0.99, maxMillis), collectedAt);
+
+		this.addPoint(message, ".queue_depth", this.stats.getQueueDepth(), collectedAt);
+		this.addPoint(message, ".pending_retries", this.stats.getPendingRetries(), collectedAt);
+		this.addPoint(message, ".in_flight", this.stats.getInFlight(), collectedAt);
+		this.addPoint(message, ".spilled_pending", this.stats.getSpilledPending(), collectedAt);
+	}
+}
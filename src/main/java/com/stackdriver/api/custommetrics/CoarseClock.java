@@ -0,0 +1,48 @@
+package com.stackdriver.api.custommetrics;
+
+/**
+ * Wall clock time to the second, the resolution the gateway keeps, read from a field instead of the system
+ * clock. <br/>
+ * A daemon thread, started the first time the clock is read, updates the field right after every second
+ * boundary and sleeps in between, so recording a point collected now costs a volatile read.  The time read can
+ * be a few milliseconds behind just after a boundary, or longer if the thread is kept from running.
+ */
+final class CoarseClock {
+
+	private static final String CLOCK_THREAD_NAME = "stackdriver-metrics-clock";
+
+	private static volatile long currentSecondMillis = truncate(System.currentTimeMillis());
+
+	static {
+		Thread ticker = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					long now = System.currentTimeMillis();
+					currentSecondMillis = truncate(now);
+					try {
+						// wake up just past the next boundary
+						Thread.sleep(1000 - now % 1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, CLOCK_THREAD_NAME);
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	private CoarseClock() {
+	}
+
+	/**
+	 * @return the start of the current second, in epoch milliseconds
+	 */
+	static long currentTimeMillis() {
+		return currentSecondMillis;
+	}
+
+	private static long truncate(final long millis) {
+		return millis - millis % 1000;
+	}
+}
@@ -0,0 +1,40 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Date;
+
+/**
+ * Counts events.  Reports one point per interval with the number of events counted in that interval, and
+ * nothing for an interval with no events.  Safe to increment from any number of threads at once; increments are
+ * striped so they don't contend.
+ */
+public class Counter extends Metric {
+
+	private final StripedLongAdder count = new StripedLongAdder();
+
+	Counter(final String name, final String instanceId) {
+		super(name, instanceId);
+	}
+
+	public void increment() {
+		this.count.increment();
+	}
+
+	public void increment(final long delta) {
+		this.count.add(delta);
+	}
+
+	/**
+	 * @return the count so far in the current interval
+	 */
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	@Override
+	void report(final CustomMetricsMessage message, final Date collectedAt) {
+		long delta = this.count.sumThenReset();
+		if (delta != 0) {
+			this.addPoint(message, null, delta, collectedAt);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.stackdriver.api.custommetrics;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -7,6 +8,10 @@ import java.util.logging.Logger;
 /**
  * Contains the information needed for a Stackdriver gateway message.  Included
  * are one or more data points, a protocol version, and a timestamp.
+ * <br/>
+ * Points are normally kept as a list of DataPoint objects.  For large batches, a message can instead be backed by
+ * {@link PointColumns}, which holds the points in primitive arrays; {@link #getDataPoints()} is then a read-only
+ * view that builds DataPoint objects on demand.
  * 
  * @see DataPoint for the contents of the data point
  */
@@ -21,16 +26,39 @@ public class CustomMetricsMessage {
 	
 	// one or more data points
 	private List<DataPoint> dataPoints;
+
+	// set instead of dataPoints for a message backed by primitive columns
+	private PointColumns columns;
+
+	// holds values a rate limiter aggregated, see markAggregated
+	private boolean aggregated;
 	
 	/**
 	 * Constructor for a full message.
 	 */
 	public CustomMetricsMessage() {
 		LOGGER.fine("creating CustomMetricsMessage");
-		this.timestamp = (System.currentTimeMillis() / 1000);
+		this.timestamp = (CoarseClock.currentTimeMillis() / 1000);
 		this.dataPoints = new ArrayList<DataPoint>();
 	}
 
+	/**
+	 * Constructor for a message backed by primitive columns, for large batches.  Points added to the columns
+	 * after this call are part of the message.
+	 * 
+	 * @param columns the points of this message
+	 */
+	public CustomMetricsMessage(final PointColumns columns) {
+		LOGGER.fine("creating columnar CustomMetricsMessage");
+		if (columns == null) {
+			LOGGER.severe("columns not passed, cannot proceed");
+			throw new IllegalArgumentException("columns are required for a columnar CustomMetricsMessage");
+		}
+		this.timestamp = (CoarseClock.currentTimeMillis() / 1000);
+		this.columns = columns;
+		this.dataPoints = new ColumnView(columns);
+	}
+
 	/**
 	 * Return the timestamp from when this message was created.  Included for protocol compatability
 	 * 
@@ -52,7 +80,10 @@ public class CustomMetricsMessage {
 	}
 	
 	/**
-	 * Get the current data points for this message
+	 * Get the current data points for this message.  For a message backed by columns this is a read-only view
+	 * that creates a new DataPoint each time an element is read: changing the list throws
+	 * UnsupportedOperationException, and changing a point read from it doesn't change the message.  Add points
+	 * with {@link #addDataPoint(DataPoint)}, or copy the list into a new one to edit it.
 	 * 
 	 * @return List of DataPoint objects
 	 */
@@ -67,6 +98,38 @@ public class CustomMetricsMessage {
 	 */
 	public void setDataPoints(final List<DataPoint> dataPoints) {
 		this.dataPoints = dataPoints;
+		this.columns = null;
+	}
+
+	/**
+	 * @return the primitive columns backing this message, or null if it holds DataPoint objects
+	 */
+	public PointColumns getColumns() {
+		return this.columns;
+	}
+
+	/**
+	 * Mark this message as holding values a {@link RateLimiter} aggregated.  The token for its first post was
+	 * taken before they were drained, and values of it turned away are held again without being counted twice.
+	 */
+	void markAggregated() {
+		this.aggregated = true;
+	}
+
+	boolean isAggregated() {
+		return this.aggregated;
+	}
+
+	/**
+	 * Get the number of data points without building any DataPoint objects
+	 * 
+	 * @return the number of data points in this message
+	 */
+	public int getPointCount() {
+		if (this.columns != null) {
+			return this.columns.size();
+		}
+		return this.dataPoints == null ? 0 : this.dataPoints.size();
 	}
 	
 	/**
@@ -75,32 +138,49 @@ public class CustomMetricsMessage {
 	 * @param dataPoint DataPoint object to add
 	 */
 	public void addDataPoint(final DataPoint dataPoint) {
-		this.dataPoints.add(dataPoint);
+		if (this.columns != null) {
+			String instanceId = dataPoint instanceof InstanceDataPoint ? ((InstanceDataPoint) dataPoint).getInstanceId() : null;
+			this.columns.add(dataPoint.getName(), instanceId, dataPoint.getValue(), dataPoint.getCollectedAt().getTime());
+		} else {
+			this.dataPoints.add(dataPoint);
+		}
 	}
 	
 	/**
 	 * Serialize this object to JSON string, so we don't need a Jackson dependency in the project
 	 * <br/>
-	 * Not super robust about special characters, so please don't use them in your names/values
-	 * (quotes/brackets/braces etc) or the gateway will give you a 400 for invalid JSON.
+	 * Quotes, backslashes and control characters in names and instance IDs are escaped.
+	 * 
+	 * @see MetricsJsonWriter to serialize straight to UTF-8 bytes without building a String; it writes a
+	 *      subclass that overrides this method as the override returns it
 	 * 
 	 * @return a String in JSON format representing this object and nested data points
 	 */
 	public String toJson() {
-		StringBuilder jsonBuilder = new StringBuilder();
-		jsonBuilder.append("{");
-		jsonBuilder.append(String.format("\"timestamp\":%d,", this.getTimestamp()));
-		jsonBuilder.append(String.format("\"proto_version\":%d,", this.getProtocolVersion()));
-		jsonBuilder.append("\"data\":[");
-		int pointsCount = 0;
-		for (DataPoint point: this.getDataPoints()) {
-			if (pointsCount++ > 0) {
-				jsonBuilder.append(',');
-			}
-			jsonBuilder.append(point.toJson());
+		MetricsJsonWriter writer = new MetricsJsonWriter();
+		writer.writeBuiltInMessage(this, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		return writer.toString();
+	}
+
+	/**
+	 * Read-only list view over columns, materializing a DataPoint per get
+	 */
+	private static final class ColumnView extends AbstractList<DataPoint> {
+
+		private final PointColumns columns;
+
+		ColumnView(final PointColumns columns) {
+			this.columns = columns;
+		}
+
+		@Override
+		public DataPoint get(final int index) {
+			return this.columns.toDataPoint(index);
+		}
+
+		@Override
+		public int size() {
+			return this.columns.size();
 		}
-		jsonBuilder.append("]");
-		jsonBuilder.append("}");
-		return jsonBuilder.toString();
 	}
 }
@@ -1,16 +1,37 @@
 package com.stackdriver.api.custommetrics;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 /**
  * As the name suggests, this class is used to post custom metrics about your infrastructure, services, or application
  * to Stackdriver over HTTP. <br/>
@@ -18,24 +39,103 @@ import java.util.logging.Logger;
  * for more information on Stackdriver custom metrics.
  * 
  */
-public class CustomMetricsPoster {
+public class CustomMetricsPoster implements Closeable {
 	
 	private static final Logger LOGGER = Logger.getLogger(CustomMetricsPoster.class.getName());
 
+	private static final LogThrottle RATE_LIMIT_LOG = new LogThrottle();
+
+	private static final LogThrottle AGGREGATE_FLUSH_ERROR_LOG = new LogThrottle();
+
+	private static final String RATE_LIMIT_THREAD_NAME = "stackdriver-metrics-rate-limiter";
+
+	private static final LogThrottle CLOSED_LOG = new LogThrottle();
+
+	private static final String SHUTDOWN_HOOK_THREAD_NAME = "stackdriver-metrics-shutdown";
+
+	// one serialization buffer per sending thread, reused for every message
+	private static final ThreadLocal<MetricsJsonWriter> JSON_WRITERS = new ThreadLocal<MetricsJsonWriter>() {
+		@Override
+		protected MetricsJsonWriter initialValue() {
+			return new MetricsJsonWriter();
+		}
+	};
+
 	public static final String DEFAULT_ENDPOINT_URL = "https://custom-gateway.stackdriver.com/v1/custom";
 
 	public static final String POST_CONTENT_TYPE = "application/json";
 
 	public static final int GATEWAY_TIMEOUT_MILLIS = 3000;
 
+	public static final int DEFAULT_MAX_MESSAGE_POINTS = 1000;
+
+	public static final int DEFAULT_MAX_MESSAGE_BYTES = 512 * 1024;
+
+	public static final String STATS_MBEAN_DOMAIN = "com.stackdriver.api.custommetrics";
+
+	public static final long DEFAULT_CLOSE_TIMEOUT_MILLIS = 5000;
+
 	private String apiKey;
 
 	private URL endpointUrl;
 
 	private Proxy proxy;
+
+	// shared by every post from this object so gateway connections are kept alive and reused
+	private GatewayTransport transport;
+
+	// retries and circuit breaking around the transport
+	private GatewaySender sender;
 	
 	private boolean localMode = false;
 
+	// when set, single data points are queued here and sent in batches from a background thread
+	private volatile MetricsBatcher batcher;
+
+	// messages bigger than either limit are split into several posts
+	private volatile int maxMessagePoints = DEFAULT_MAX_MESSAGE_POINTS;
+
+	private volatile int maxMessageBytes = DEFAULT_MAX_MESSAGE_BYTES;
+
+	// when set, the batcher keeps only the latest point per series and second of each batch
+	private volatile boolean coalescing = false;
+
+	// recorded points are stamped with the start of their bucket, 0 to keep their own time
+	private volatile long timeBucketMillis = 0;
+
+	// runs submitMetrics, null to run it on the caller's thread
+	private volatile Executor dispatchExecutor;
+
+	// series IDs for metric handles and queued points
+	private final SeriesDictionary seriesDictionary = new SeriesDictionary();
+
+	// what this poster has been doing, always counted
+	private final ClientStats stats = new ClientStats(this);
+
+	// set while the stats are registered with the platform MBean server
+	private ObjectName statsMBeanName;
+
+	// set while the stats are sent as custom metrics
+	private MetricsRegistry selfMetricsRegistry;
+
+	// every registry reporting through this poster, the stats' included, flushed when it is closed
+	private final Set<MetricsRegistry> registries = Collections.newSetFromMap(new ConcurrentHashMap<MetricsRegistry, Boolean>());
+
+	// checked before points are queued and before each post is serialized, null for no limits
+	private volatile RateLimiter rateLimiter;
+
+	// sends the values the limiter aggregated, under RateLimitPolicy.AGGREGATE
+	private ScheduledExecutorService aggregateFlusher;
+
+	// once set, points recorded are dropped
+	private volatile boolean closed = false;
+
+	// once set, messages sent are dropped too; set when close has handed over everything the poster held
+	private volatile boolean sendingStopped = false;
+
+	// registered with the runtime while enabled, closes this poster when the JVM exits
+	private Thread shutdownHook;
+
 	/**
 	 * Basic constructor, most applications will use this. Posts to the Stackdriver default custom metrics endpoint
 	 * without an HTTP proxy in between.
@@ -129,6 +229,365 @@ public class CustomMetricsPoster {
 			LOGGER.severe("Invalid endpoint URL supplied " + endpointUrl);
 			throw new IllegalArgumentException("Endpoint URL passed to a StackdriverCustomMetricsPoster must be a valid URL, pass null to use the default");
 		}
+
+		this.transport = new HttpGatewayTransport(this.endpointUrl, this.proxy, GATEWAY_TIMEOUT_MILLIS);
+		this.sender = new GatewaySender(this.transport, this.apiKey, this.stats);
+	}
+
+	/**
+	 * Turn on background batching with the default queue size and batch thresholds. <br/>
+	 * After this call, the sendMetricDataPoint and sendInstanceMetricDataPoint methods only queue the point and
+	 * return immediately; a background thread coalesces queued points into multi-point messages and sends them.
+	 * sendMetrics still sends the message it is given right away.
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster enableBatching() {
+		return this.enableBatching(MetricsBatcher.DEFAULT_QUEUE_CAPACITY, MetricsBatcher.DEFAULT_MAX_BATCH_POINTS,
+				MetricsBatcher.DEFAULT_MAX_BATCH_AGE_MILLIS, MetricsBatcher.DEFAULT_OVERFLOW_POLICY);
+	}
+
+	/**
+	 * Turn on background batching with your own limits.
+	 * 
+	 * @param queueCapacity maximum number of points waiting to be sent
+	 * @param maxBatchPoints a message is sent as soon as it holds this many points
+	 * @param maxBatchAgeMillis a message is sent at the latest this long after its first point was dequeued
+	 * @param overflowPolicy what to do with new points when the queue is full
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public synchronized CustomMetricsPoster enableBatching(final int queueCapacity, final int maxBatchPoints,
+			final long maxBatchAgeMillis, final OverflowPolicy overflowPolicy) {
+		if (this.batcher != null) {
+			LOGGER.severe("batching is already enabled for this poster");
+			throw new IllegalStateException("batching is already enabled, call disableBatching first");
+		}
+		this.batcher = new MetricsBatcher(this, queueCapacity, maxBatchPoints, maxBatchAgeMillis, overflowPolicy);
+		return this;
+	}
+
+	/**
+	 * Turn on background batching with batch size and age adapted to the gateway, with the default queue size,
+	 * limits and overflow policy. <br/>
+	 * Batches grow while points queue up faster than they are sent, posts slow down and grow when the gateway is
+	 * slow or failing, and an idle poster posts less often.
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 * @see AdaptiveFlushController
+	 */
+	public CustomMetricsPoster enableAdaptiveBatching() {
+		return this.enableAdaptiveBatching(MetricsBatcher.DEFAULT_QUEUE_CAPACITY, new AdaptiveFlushController(),
+				MetricsBatcher.DEFAULT_OVERFLOW_POLICY);
+	}
+
+	/**
+	 * Turn on background batching with batch size and age set by your own controller.
+	 * 
+	 * @param queueCapacity maximum number of points waiting to be sent
+	 * @param flushController sets batch size and age within its floors and ceilings
+	 * @param overflowPolicy what to do with new points when the queue is full
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public synchronized CustomMetricsPoster enableAdaptiveBatching(final int queueCapacity,
+			final AdaptiveFlushController flushController, final OverflowPolicy overflowPolicy) {
+		if (this.batcher != null) {
+			LOGGER.severe("batching is already enabled for this poster");
+			throw new IllegalStateException("batching is already enabled, call disableBatching first");
+		}
+		this.batcher = new MetricsBatcher(this, queueCapacity, flushController, overflowPolicy);
+		return this;
+	}
+
+	/**
+	 * Turn background batching off again, sending whatever is still queued first.
+	 * 
+	 * @param timeoutMillis how long to wait for the queued points to be sent
+	 * @return true if everything queued was sent within the timeout
+	 */
+	public boolean disableBatching(final long timeoutMillis) {
+		MetricsBatcher current;
+		synchronized (this) {
+			current = this.batcher;
+			this.batcher = null;
+		}
+		// close outside the lock, the sender thread may need this object while draining
+		return current == null || current.close(timeoutMillis);
+	}
+
+	/**
+	 * Keep only the latest of the batched points that share a metric name, instance and collected_at second. <br/>
+	 * The gateway stores one value per series and second, so for gauges sampled more often than that, queue
+	 * depths or heap sizes say, the earlier samples are wasted on the wire.  Only affects batched points; the
+	 * points of one batch are collapsed before it is sent, without allocating.
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster enableCoalescing() {
+		this.coalescing = true;
+		return this;
+	}
+
+	/**
+	 * Go back to sending every batched point
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster disableCoalescing() {
+		this.coalescing = false;
+		return this;
+	}
+
+	public boolean isCoalescing() {
+		return this.coalescing;
+	}
+
+	/**
+	 * Stamp recorded points with the start of the interval they were collected in, counting intervals from the
+	 * epoch, so points of a series within one interval share a timestamp.  With coalescing enabled (see
+	 * {@link #enableCoalescing()}) a batch then sends one point per series and interval, the latest, instead of
+	 * one per series and second.  Messages passed to sendMetrics are sent as they are.
+	 * 
+	 * @param bucketMillis length of the intervals, a whole number of seconds
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster enableTimeBucketing(final long bucketMillis) {
+		if (bucketMillis < 1000 || bucketMillis % 1000 != 0) {
+			LOGGER.severe("invalid time bucket " + bucketMillis);
+			throw new IllegalArgumentException("bucketMillis must be a positive whole number of seconds");
+		}
+		this.timeBucketMillis = bucketMillis;
+		return this;
+	}
+
+	/**
+	 * Go back to stamping recorded points with the time they were collected
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster disableTimeBucketing() {
+		this.timeBucketMillis = 0;
+		return this;
+	}
+
+	/**
+	 * @return length of the intervals recorded points are aligned to, or 0 if they are not
+	 */
+	public long getTimeBucketMillis() {
+		return this.timeBucketMillis;
+	}
+
+	private long alignToTimeBucket(final long collectedAtMillis) {
+		long bucketMillis = this.timeBucketMillis;
+		return bucketMillis == 0 ? collectedAtMillis : collectedAtMillis - collectedAtMillis % bucketMillis;
+	}
+
+	/**
+	 * @return the batcher queueing points for this poster, or null if batching is not enabled
+	 */
+	public MetricsBatcher getBatcher() {
+		return this.batcher;
+	}
+
+	/**
+	 * Cap how fast this poster sends, in data points and posts per second, see {@link RateLimiter}.  Under
+	 * {@link RateLimitPolicy#AGGREGATE} a background thread sends the values held back every second, as far as
+	 * the limits allow.  Values still held back by a limiter being replaced are discarded.
+	 * 
+	 * @param limiter the limits and what to do with points over them, or null to send as fast as asked
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster setRateLimiter(final RateLimiter limiter) {
+		ScheduledExecutorService previous;
+		synchronized (this) {
+			previous = this.aggregateFlusher;
+			this.aggregateFlusher = null;
+			this.rateLimiter = limiter;
+			if (limiter != null && limiter.getPolicy() == RateLimitPolicy.AGGREGATE) {
+				this.aggregateFlusher = this.startAggregateFlusher(limiter);
+			}
+		}
+		if (previous != null) {
+			previous.shutdown();
+		}
+		return this;
+	}
+
+	/**
+	 * @return the limits this poster sends under, or null if there are none
+	 */
+	public RateLimiter getRateLimiter() {
+		return this.rateLimiter;
+	}
+
+	private ScheduledExecutorService startAggregateFlusher(final RateLimiter limiter) {
+		ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable, RATE_LIMIT_THREAD_NAME);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flushAggregated(limiter);
+				} catch (RuntimeException e) {
+					long suppressed = AGGREGATE_FLUSH_ERROR_LOG.acquire(LOGGER, Level.SEVERE);
+					if (suppressed >= 0) {
+						LOGGER.severe("Error sending rate limited values " + e.toString()
+								+ LogThrottle.suppressedNote(suppressed));
+					}
+				}
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+		return flusher;
+	}
+
+	/**
+	 * Send as many of the values the limiter aggregated as it allows now, in one message
+	 */
+	void flushAggregated(final RateLimiter limiter) {
+		int pending = limiter.getAggregatedSeries();
+		// the post's token is taken first, so point tokens are only spent on values that will be posted
+		if (pending == 0 || !limiter.acquireRequest()) {
+			return;
+		}
+		PointColumns columns = new PointColumns(this.seriesDictionary, Math.min(pending, this.maxMessagePoints));
+		if (limiter.drainAggregated(columns, this.maxMessagePoints) > 0) {
+			CustomMetricsMessage message = new CustomMetricsMessage(columns);
+			message.markAggregated();
+			this.sendMetrics(message);
+		}
+	}
+
+	/**
+	 * A recorded point was over the points limit and not sampled
+	 */
+	private void pointRateLimited(final RateLimiter limiter, final String metricName, final String instanceId,
+			final double value, final long collectedAtMillis) {
+		if (limiter.getPolicy() == RateLimitPolicy.AGGREGATE) {
+			limiter.aggregate(this.seriesDictionary.intern(metricName, instanceId), value, collectedAtMillis);
+		} else {
+			this.stats.pointsRateLimited(1);
+		}
+		logRateLimited(limiter);
+	}
+
+	/**
+	 * The post for a message, from the given point on, was over the posts limit; the rest of the message goes
+	 * with it
+	 */
+	private void messageRateLimited(final RateLimiter limiter, final CustomMetricsMessage message, final int first) {
+		int count = message.getPointCount() - first;
+		if (limiter.getPolicy() != RateLimitPolicy.AGGREGATE) {
+			limiter.pointsDropped(count);
+			this.stats.pointsRateLimited(count);
+		} else {
+			PointColumns columns = message.getColumns();
+			if (message.isAggregated()) {
+				for (int i = first; i < columns.size(); i++) {
+					limiter.reaggregate(columns.getSeriesId(i), columns.getValue(i), columns.getCollectedAtMillis(i));
+				}
+			} else if (columns != null && columns.getDictionary() == this.seriesDictionary) {
+				for (int i = first; i < columns.size(); i++) {
+					limiter.aggregate(columns.getSeriesId(i), columns.getValue(i), columns.getCollectedAtMillis(i));
+				}
+			} else {
+				List<DataPoint> points = message.getDataPoints();
+				for (int i = first; i < points.size(); i++) {
+					DataPoint point = points.get(i);
+					String instanceId = point instanceof InstanceDataPoint ? ((InstanceDataPoint) point).getInstanceId() : null;
+					limiter.aggregate(this.seriesDictionary.intern(point.getName(), instanceId), point.getValue(),
+							point.getCollectedAt().getTime());
+				}
+			}
+		}
+		logRateLimited(limiter);
+	}
+
+	private static void logRateLimited(final RateLimiter limiter) {
+		long suppressed = RATE_LIMIT_LOG.acquire(LOGGER, Level.WARNING);
+		if (suppressed >= 0) {
+			LOGGER.warning("Sending faster than the rate limits of " + limiter.getPointsPerSecond() + " points and "
+					+ limiter.getRequestsPerSecond() + " posts per second, points are "
+					+ (limiter.getPolicy() == RateLimitPolicy.AGGREGATE ? "aggregated" : "discarded")
+					+ LogThrottle.suppressedNote(suppressed));
+		}
+	}
+
+	/**
+	 * Get a handle for recording values of a metric not tied to an instance.  Keep it and reuse it: with batching
+	 * enabled, recording through a handle allocates nothing.
+	 * 
+	 * @param metricName name of your custom metric
+	 * 
+	 * @return a handle for recording values
+	 */
+	public MetricHandle getMetricHandle(final String metricName) {
+		return this.getMetricHandle(metricName, null);
+	}
+
+	/**
+	 * Get a handle for recording values of a metric tied to an instance.
+	 * 
+	 * @param metricName name of your custom metric
+	 * @param instanceId String with the ID of the instance the values will be bound to, or null for none
+	 * 
+	 * @return a handle for recording values
+	 */
+	public MetricHandle getMetricHandle(final String metricName, final String instanceId) {
+		if (metricName == null || metricName.length() == 0) {
+			LOGGER.severe("metric name not passed, cannot proceed");
+			throw new IllegalArgumentException("metricName is required for getMetricHandle");
+		}
+		int seriesId = this.seriesDictionary.intern(metricName, instanceId);
+		return new MetricHandle(this, seriesId, this.seriesDictionary.getKey(seriesId), metricName, instanceId);
+	}
+
+	/**
+	 * Forget the series of an instance that is gone, so a fleet whose instances come and go doesn't grow this
+	 * poster's series lookups forever.  Call it when an instance is terminated; points of it already recorded are
+	 * still sent, and if it reports again its series are simply interned anew.  The retired series IDs are reused
+	 * once no queued point refers to them any more.
+	 * 
+	 * @param instanceId String with the ID of the retired instance
+	 * 
+	 * @return the number of series forgotten
+	 */
+	public int retireInstance(final String instanceId) {
+		if (instanceId == null || instanceId.length() == 0) {
+			LOGGER.severe("instance ID not passed, cannot proceed");
+			throw new IllegalArgumentException("instanceId is required for retireInstance");
+		}
+		int retired = this.seriesDictionary.retireInstance(instanceId);
+		if (this.batcher == null) {
+			// nothing queues series IDs, the batcher's sender thread would otherwise do this when it is idle
+			this.reclaimRetiredSeries();
+		}
+		return retired;
+	}
+
+	/**
+	 * Called where nothing queued before the previous call still refers to a series ID, see
+	 * {@link SeriesDictionary#reclaimRetired()}.  Skipped while the rate limiter holds aggregated values, which
+	 * are kept by series ID.
+	 */
+	void reclaimRetiredSeries() {
+		RateLimiter limiter = this.rateLimiter;
+		if (limiter == null || limiter.getAggregatedSeries() == 0) {
+			this.seriesDictionary.reclaimRetired();
+		}
+	}
+
+	/**
+	 * @return the dictionary interning the series this poster has queued or handed out handles for
+	 */
+	SeriesDictionary getSeriesDictionary() {
+		return this.seriesDictionary;
 	}
 
 	/**
@@ -140,7 +599,7 @@ public class CustomMetricsPoster {
 	 * @return this object so these calls can be chained for sending more than one at a time
 	 */
 	public CustomMetricsPoster sendMetricDataPoint(final String metricName, final double value) {
-		return this.sendMetricDataPointInternal(metricName, value, new Date(System.currentTimeMillis()), null);
+		return this.sendMetricDataPointInternal(metricName, value, CoarseClock.currentTimeMillis(), null);
 	}
 	
 	/**
@@ -153,7 +612,7 @@ public class CustomMetricsPoster {
 	 * @return this object so these calls can be chained for sending more than one at a time
 	 */
 	public CustomMetricsPoster sendInstanceMetricDataPoint(final String metricName, final double value, final String instanceId) {
-		return this.sendMetricDataPointInternal(metricName, value, new Date(System.currentTimeMillis()), instanceId);
+		return this.sendMetricDataPointInternal(metricName, value, CoarseClock.currentTimeMillis(), instanceId);
 	}
 	
 	/**
@@ -183,10 +642,178 @@ public class CustomMetricsPoster {
 		return this.sendMetricDataPointInternal(metricName, value, collectedAt, instanceId);
 	}
 	
+	/**
+	 * Send one metric for many instances at once, all collected now.  See
+	 * {@link #sendInstanceMetricDataPoints(String, String[], double[], Date)}.
+	 *
+	 * @param metricName name of your custom metric
+	 * @param instanceIds IDs of the instances, one per value
+	 * @param values metric values, values[i] is bound to instanceIds[i]
+	 * 
+	 * @return this object so these calls can be chained for sending more than one at a time
+	 */
+	public CustomMetricsPoster sendInstanceMetricDataPoints(final String metricName, final String[] instanceIds,
+			final double[] values) {
+		return this.sendInstanceMetricDataPoints(metricName, instanceIds, values, new Date(CoarseClock.currentTimeMillis()));
+	}
+
+	/**
+	 * Send one metric for many instances at once, the way an agent reporting for a fleet does every cycle. <br/>
+	 * The points are written straight into columns, no data point object is created for any of them.  Without
+	 * batching they go out in one message, split only if it is over the size limits (see
+	 * {@link #setMessageLimits(int, int)}), instead of one post per instance; with batching they are queued
+	 * together.
+	 *
+	 * @param metricName name of your custom metric
+	 * @param instanceIds IDs of the instances, one per value
+	 * @param values metric values, values[i] is bound to instanceIds[i]
+	 * @param collectedAt when all the values were observed
+	 * 
+	 * @return this object so these calls can be chained for sending more than one at a time
+	 */
+	public CustomMetricsPoster sendInstanceMetricDataPoints(final String metricName, final String[] instanceIds,
+			final double[] values, final Date collectedAt) {
+		if (instanceIds == null || values == null || instanceIds.length != values.length) {
+			LOGGER.severe("instance IDs and values not passed, or not as many of each");
+			throw new IllegalArgumentException("instanceIds and values are required, with one value per instance");
+		}
+		checkBulkPoints(metricName, collectedAt);
+		for (String instanceId : instanceIds) {
+			if (instanceId == null) {
+				LOGGER.severe("can't send metric " + metricName + " for a missing instance ID");
+				throw new IllegalArgumentException("instanceIds must not contain null");
+			}
+		}
+		if (instanceIds.length == 0) {
+			return this;
+		}
+		this.stats.pointsRecorded(instanceIds.length);
+		if (this.droppedAfterClose(instanceIds.length)) {
+			return this;
+		}
+		long collectedAtMillis = this.alignToTimeBucket(collectedAt.getTime());
+		RateLimiter limiter = this.rateLimiter;
+		int admitted = limiter == null ? instanceIds.length : limiter.acquirePoints(instanceIds.length);
+		MetricsBatcher currentBatcher = this.batcher;
+		// a one-off message interns in a dictionary of its own, the poster's only holds series that are queued
+		PointColumns columns = currentBatcher != null ? null : new PointColumns(new SeriesDictionary(), admitted);
+		for (int i = 0; i < instanceIds.length; i++) {
+			if (i >= admitted && !limiter.admitExcessPoint()) {
+				this.pointRateLimited(limiter, metricName, instanceIds[i], values[i], collectedAtMillis);
+			} else if (currentBatcher != null) {
+				currentBatcher.offer(this.seriesDictionary.intern(metricName, instanceIds[i]), values[i], collectedAtMillis);
+			} else {
+				columns.add(metricName, instanceIds[i], values[i], collectedAtMillis);
+			}
+		}
+		if (columns != null && columns.size() > 0) {
+			this.sendMetrics(new CustomMetricsMessage(columns));
+		}
+		return this;
+	}
+
+	/**
+	 * Send one metric for many instances at once, all collected now.  See
+	 * {@link #sendInstanceMetricDataPoints(String, String[], double[], Date)}.
+	 *
+	 * @param metricName name of your custom metric
+	 * @param valuesByInstance metric value for each instance ID
+	 * 
+	 * @return this object so these calls can be chained for sending more than one at a time
+	 */
+	public CustomMetricsPoster sendInstanceMetricDataPoints(final String metricName,
+			final Map<String, ? extends Number> valuesByInstance) {
+		return this.sendInstanceMetricDataPoints(metricName, valuesByInstance, new Date(CoarseClock.currentTimeMillis()));
+	}
+
+	/**
+	 * Send one metric for many instances at once.  See
+	 * {@link #sendInstanceMetricDataPoints(String, String[], double[], Date)}.
+	 *
+	 * @param metricName name of your custom metric
+	 * @param valuesByInstance metric value for each instance ID
+	 * @param collectedAt when all the values were observed
+	 * 
+	 * @return this object so these calls can be chained for sending more than one at a time
+	 */
+	public CustomMetricsPoster sendInstanceMetricDataPoints(final String metricName,
+			final Map<String, ? extends Number> valuesByInstance, final Date collectedAt) {
+		if (valuesByInstance == null) {
+			LOGGER.severe("values by instance not passed, cannot proceed");
+			throw new IllegalArgumentException("valuesByInstance is required for sendInstanceMetricDataPoints");
+		}
+		String[] instanceIds = new String[valuesByInstance.size()];
+		double[] values = new double[instanceIds.length];
+		int i = 0;
+		for (Map.Entry<String, ? extends Number> entry : valuesByInstance.entrySet()) {
+			if (entry.getValue() == null) {
+				LOGGER.severe("can't send metric " + metricName + " without a value for instance " + entry.getKey());
+				throw new IllegalArgumentException("valuesByInstance must not contain null values");
+			}
+			instanceIds[i] = entry.getKey();
+			values[i] = entry.getValue().doubleValue();
+			i++;
+		}
+		return this.sendInstanceMetricDataPoints(metricName, instanceIds, values, collectedAt);
+	}
+
+	private static void checkBulkPoints(final String metricName, final Date collectedAt) {
+		if (metricName == null || metricName.length() == 0) {
+			LOGGER.severe("metric name not passed, cannot proceed");
+			throw new IllegalArgumentException("metricName is required for sendInstanceMetricDataPoints");
+		}
+		if (collectedAt == null) {
+			LOGGER.severe("collectedAt not passed, cannot proceed");
+			throw new IllegalArgumentException("collectedAt is required for sendInstanceMetricDataPoints");
+		}
+	}
+
 	/**
 	 * Internal method to actually wrap up and send the custom metrics
 	 */
 	CustomMetricsPoster sendMetricDataPointInternal(final String metricName, final double value, final Date collectedAt, final String instanceId) {
+		if (collectedAt == null) {
+			// nothing to queue, the data point is sent as it is
+			this.stats.pointRecorded();
+			if (this.droppedAfterClose(1)) {
+				return this;
+			}
+			this.sendDataPoint(metricName, value, collectedAt, instanceId);
+			return this;
+		}
+		return this.sendMetricDataPointInternal(metricName, value, collectedAt.getTime(), instanceId);
+	}
+
+	/**
+	 * Record path for a point collected at a time in epoch milliseconds, no Date is created unless the point is
+	 * sent on its own
+	 */
+	CustomMetricsPoster sendMetricDataPointInternal(final String metricName, final double value, final long collectedAtMillis, final String instanceId) {
+		this.stats.pointRecorded();
+		if (this.droppedAfterClose(1)) {
+			return this;
+		}
+		if (metricName == null) {
+			this.sendDataPoint(metricName, value, new Date(collectedAtMillis), instanceId);
+			return this;
+		}
+		long bucketMillis = this.alignToTimeBucket(collectedAtMillis);
+		RateLimiter limiter = this.rateLimiter;
+		if (limiter != null && !limiter.admitPoint()) {
+			this.pointRateLimited(limiter, metricName, instanceId, value, bucketMillis);
+			return this;
+		}
+		MetricsBatcher currentBatcher = this.batcher;
+		if (currentBatcher != null) {
+			// queue as primitives, the data point is only built when the batch is sent
+			currentBatcher.offer(this.seriesDictionary.intern(metricName, instanceId), value, bucketMillis);
+			return this;
+		}
+		this.sendDataPoint(metricName, value, new Date(bucketMillis), instanceId);
+		return this;
+	}
+
+	private void sendDataPoint(final String metricName, final double value, final Date collectedAt, final String instanceId) {
 		DataPoint point = null;
 		
 		if (instanceId == null) {
@@ -194,101 +821,774 @@ public class CustomMetricsPoster {
 		} else {
 			point = new InstanceDataPoint(metricName, value, collectedAt, instanceId);
 		}
+
 		CustomMetricsMessage message = new CustomMetricsMessage();
 		message.addDataPoint(point);
 		this.sendMetrics(message);
-		return this;
 	}
 	
+	/**
+	 * Record path for metric handles, allocation free when batching is enabled
+	 */
+	void recordPoint(final MetricHandle handle, final double value, final long collectedAtMillis) {
+		MetricsBatcher currentBatcher = this.batcher;
+		if (currentBatcher != null) {
+			this.stats.pointRecorded();
+			if (this.droppedAfterClose(1)) {
+				return;
+			}
+			long bucketMillis = this.alignToTimeBucket(collectedAtMillis);
+			RateLimiter limiter = this.rateLimiter;
+			if (limiter != null && !limiter.admitPoint()) {
+				this.pointRateLimited(limiter, handle.getName(), handle.getInstanceId(), value, bucketMillis);
+				return;
+			}
+			currentBatcher.offer(handle.resolveSeriesId(this.seriesDictionary), value, bucketMillis);
+		} else {
+			this.sendMetricDataPointInternal(handle.getName(), value, collectedAtMillis, handle.getInstanceId());
+		}
+	}
+
 	/**
 	 * This is the method that does the posting. It serializes your message to JSON and posts it to the Stackdriver
-	 * endpoint or to logger, depending on how this.localMode has been set
+	 * endpoint or to logger, depending on how this.localMode has been set.  Messages over the size limits are
+	 * split and posted one chunk after the other, see {@link #setMessageLimits(int, int)}.  A chunk over the
+	 * posts limit of the rate limiter isn't serialized, see {@link #setRateLimiter(RateLimiter)}.
 	 * 
 	 */
 	public void sendMetrics(final CustomMetricsMessage message) {
-		// check the message
-		if (message == null) {
-			LOGGER.severe("can't send metrics, message is missing");
-			throw new IllegalArgumentException("message is required for postMetricsToGateway");
-		} else if (message.getDataPoints() == null || message.getDataPoints().size() == 0) {
-			LOGGER.severe("can't send metrics, no data points are present in the message");
-			throw new IllegalArgumentException("message for postMetricsToGateway must contain one or more data points");
+		checkMessage(message);
+		if (this.sendingStopped && this.droppedAfterClose(message.getPointCount())) {
+			return;
 		}
+		int maxPoints = this.maxMessagePoints;
+		int maxBytes = this.maxMessageBytes;
+		RateLimiter limiter = this.rateLimiter;
+
+		// serialize message to JSON, straight to UTF-8 bytes in this thread's reusable buffer, one chunk at a time
+		MetricsJsonWriter writer = JSON_WRITERS.get();
+		// aggregated values come with the token for their first post
+		boolean prepaid = message.isAggregated();
+		int next = 0;
+		while (next < message.getPointCount()) {
+			if (limiter != null && !prepaid && !limiter.acquireRequest()) {
+				this.messageRateLimited(limiter, message, next);
+				return;
+			}
+			prepaid = false;
+			writer.reset();
+			int first = next;
+			next = writer.writeMessage(message, next, maxPoints, maxBytes);
 
-		// serialize message to JSON
-		String messageJson = message.toJson();
+			if (this.isLocalMode()) {
+				// the JSON is only turned into a String for messages that are actually logged
+				if (LOGGER.isLoggable(Level.INFO) && DiagnosticLogging.samplePayload()) {
+					LOGGER.info("sendMetrics called in local mode, received message:");
+					LOGGER.info(writer.toString());
+				}
+			} else {
+				// post message to HTTP
+				if (LOGGER.isLoggable(Level.FINE) && DiagnosticLogging.samplePayload()) {
+					LOGGER.fine("sendMetrics called in remote mode, message ready for gateway:");
+					LOGGER.fine(writer.toString());
+				}
 
-		if (this.isLocalMode()) {
-			LOGGER.info("sendMetrics called in local mode, received message:");
-			LOGGER.info(messageJson);
-		} else {
-			// post message to HTTP
-			LOGGER.fine("sendMetrics called in remote mode, message ready for gateway:");
-			LOGGER.fine(messageJson);
-			
-			this.postMetricMessageToGateway(messageJson);
+				this.stats.messagePosted(next - first);
+				this.postMetricMessageToGateway(writer.getBuffer(), 0, writer.size());
+			}
 		}
 	}
 
 	/**
-	 * Posts the message to the Stackdriver gateway endpoint 
+	 * Send a message without waiting for the gateway.  The message is serialized on the calling thread, then posted
+	 * from background I/O threads, so one thread can keep several messages in flight at once.  A message over the
+	 * size limits (see {@link #setMessageLimits(int, int)}) is split into chunks that are posted in parallel.  When
+	 * the maximum number of posts is already in flight (see {@link #setMaxInFlight(int)}) this waits for one of
+	 * them to finish.
+	 * <br/>
+	 * Async posts go straight to the transport, they don't pass through postMetricMessageToGateway.  In local mode
+	 * the message is logged, or handed to sendMetrics if a subclass overrides it, before this returns.
+	 * 
+	 * @param message the message to send, free to be changed or reused once this returns
+	 * 
+	 * @return one future per chunk, in point order, telling what became of it once its post is done, retries aside;
+	 *         a single already completed future in local mode; none for the chunks over the posts limit of the
+	 *         rate limiter
+	 */
+	public List<Future<SendResult>> sendMetricsAsync(final CustomMetricsMessage message) {
+		if (this.isLocalMode() || this.sender == null) {
+			this.sendMetrics(message);
+			FutureTask<SendResult> done = new FutureTask<SendResult>(new Runnable() {
+				public void run() {
+				}
+			}, SendResult.LOGGED);
+			done.run();
+			return Collections.<Future<SendResult>> singletonList(done);
+		}
+		checkMessage(message);
+		if (this.sendingStopped && this.droppedAfterClose(message.getPointCount())) {
+			return Collections.emptyList();
+		}
+		int maxPoints = this.maxMessagePoints;
+		int maxBytes = this.maxMessageBytes;
+
+		RateLimiter limiter = this.rateLimiter;
+
+		List<Future<SendResult>> results = new ArrayList<Future<SendResult>>(1);
+		MetricsJsonWriter writer = JSON_WRITERS.get();
+		boolean prepaid = message.isAggregated();
+		int next = 0;
+		while (next < message.getPointCount()) {
+			if (limiter != null && !prepaid && !limiter.acquireRequest()) {
+				this.messageRateLimited(limiter, message, next);
+				break;
+			}
+			prepaid = false;
+			writer.reset();
+			int first = next;
+			next = writer.writeMessage(message, next, maxPoints, maxBytes);
+			this.stats.messagePosted(next - first);
+			// the thread's buffer is reused for the next chunk, the post needs its own copy
+			results.add(this.sender.sendAsync(writer.toByteArray()));
+		}
+		return results;
+	}
+
+	/**
+	 * Serialize and post a message on the dispatch executor, see {@link #setDispatchExecutor(Executor)}, instead of
+	 * the calling thread.  This is sendMetrics, subclass overrides and postMetricMessageToGateway included, moved
+	 * to another thread; without a dispatch executor it runs before this returns.
+	 * 
+	 * @param message the message to send, must not be changed until the future is done
+	 * 
+	 * @return done once every chunk of the message has been posted or handed over for retry
+	 */
+	public Future<Void> submitMetrics(final CustomMetricsMessage message) {
+		checkMessage(message);
+		FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+			public Void call() {
+				sendMetrics(message);
+				return null;
+			}
+		});
+		Executor executor = this.dispatchExecutor;
+		if (executor == null) {
+			task.run();
+			return task;
+		}
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// a shut down or saturated executor doesn't lose the message, the caller sends it
+			task.run();
+		}
+		return task;
+	}
+
+	/**
+	 * Run {@link #submitMetrics(CustomMetricsMessage)} on the given executor.  With
+	 * {@link DispatchExecutors#newVirtualThreadPerTaskExecutor()}, thousands of low-rate reporters can each have a
+	 * post waiting on the gateway without a platform thread blocked on every one.  The poster doesn't shut the
+	 * executor down.
+	 * 
+	 * @param executor where messages are serialized and posted, or null for the calling thread
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster setDispatchExecutor(final Executor executor) {
+		this.dispatchExecutor = executor;
+		return this;
+	}
+
+	/**
+	 * @return where submitMetrics runs, or null for the calling thread
+	 */
+	public Executor getDispatchExecutor() {
+		return this.dispatchExecutor;
+	}
+
+	/**
+	 * Wait for the async posts already submitted to finish
+	 * 
+	 * @return true if they all finished within the timeout
+	 */
+	boolean awaitAsyncSends(final long timeoutMillis) throws InterruptedException {
+		return this.sender == null || this.sender.awaitAsyncSends(timeoutMillis);
+	}
+
+	private static void checkMessage(final CustomMetricsMessage message) {
+		if (message == null) {
+			LOGGER.severe("can't send metrics, message is missing");
+			throw new IllegalArgumentException("message is required for postMetricsToGateway");
+		} else if (message.getPointCount() == 0) {
+			LOGGER.severe("can't send metrics, no data points are present in the message");
+			throw new IllegalArgumentException("message for postMetricsToGateway must contain one or more data points");
+		}
+	}
+
+	/**
+	 * Cap the size of each message posted to the gateway.  Bigger messages are split into several posts, each
+	 * with as many points as fit within both limits; a single point bigger than maxBytes is still posted, alone.
+	 * By default a post holds at most 1000 points and 512KB.
+	 * 
+	 * @param maxPoints most data points in one post
+	 * @param maxBytes most bytes of JSON in one post, before compression
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster setMessageLimits(final int maxPoints, final int maxBytes) {
+		if (maxPoints <= 0 || maxBytes <= 0) {
+			LOGGER.severe("invalid message limits maxPoints=" + maxPoints + ", maxBytes=" + maxBytes);
+			throw new IllegalArgumentException("maxPoints and maxBytes must both be positive");
+		}
+		this.maxMessagePoints = maxPoints;
+		this.maxMessageBytes = maxBytes;
+		return this;
+	}
+
+	public int getMaxMessagePoints() {
+		return this.maxMessagePoints;
+	}
+
+	public int getMaxMessageBytes() {
+		return this.maxMessageBytes;
+	}
+
+	/**
+	 * Posts the message to the Stackdriver gateway endpoint.  sendMetrics no longer goes through this String
+	 * version, it is kept for subclasses and callers that already have the JSON in hand.
 	 * 
 	 * @param messageJson String containing JSON message payload
 	 */
 	protected void postMetricMessageToGateway(final String messageJson) {
-		HttpURLConnection urlConnection = null;
 		try {
-			LOGGER.fine("sending data to the Stackdriver gateway");
-			if (this.proxy == null) {
-				urlConnection = (HttpURLConnection) this.endpointUrl.openConnection();
-			} else {
-				urlConnection = (HttpURLConnection) this.endpointUrl.openConnection(this.proxy);
+			byte[] body = messageJson.getBytes("UTF-8");
+			this.postMetricMessageToGateway(body, 0, body.length);
+		} catch (UnsupportedEncodingException e) {
+			// every JVM is required to support UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Posts an already serialized message to the Stackdriver gateway endpoint.  Failures that are worth retrying
+	 * are retried in the background according to the retry policy, see {@link #setRetryPolicy(RetryPolicy)}.
+	 * 
+	 * @param body buffer holding the UTF-8 JSON payload
+	 * @param offset where the payload starts in the buffer
+	 * @param length payload length in bytes
+	 */
+	protected void postMetricMessageToGateway(final byte[] body, final int offset, final int length) {
+		this.sender.send(body, offset, length);
+	}
+
+	/**
+	 * Change how failed posts are retried.  By default a message is retried up to 3 times, backing off from about
+	 * half a second; pass {@link RetryPolicy#NO_RETRIES} to drop messages on the first failure instead.
+	 * 
+	 * @param retryPolicy how often and how far apart to retry
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster setRetryPolicy(final RetryPolicy retryPolicy) {
+		if (retryPolicy == null) {
+			LOGGER.severe("retry policy not passed, cannot proceed");
+			throw new IllegalArgumentException("retryPolicy is required, use RetryPolicy.NO_RETRIES to turn retries off");
+		}
+		if (this.sender != null) {
+			this.sender.setRetryPolicy(retryPolicy);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the retry policy for failed posts, or null in local mode
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return this.sender == null ? null : this.sender.getRetryPolicy();
+	}
+
+	/**
+	 * Replace the circuit breaker that stops posting while the gateway is down.  By default it opens after 5 failed
+	 * posts in a row and lets a trial post through every 30 seconds.
+	 * 
+	 * @param circuitBreaker breaker to use from now on
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+		if (circuitBreaker == null) {
+			LOGGER.severe("circuit breaker not passed, cannot proceed");
+			throw new IllegalArgumentException("circuitBreaker is required for setCircuitBreaker");
+		}
+		if (this.sender != null) {
+			this.sender.setCircuitBreaker(circuitBreaker);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the circuit breaker in front of the gateway, or null in local mode
+	 */
+	public CircuitBreaker getCircuitBreaker() {
+		return this.sender == null ? null : this.sender.getCircuitBreaker();
+	}
+
+	/**
+	 * Keep messages that can't be posted in memory-mapped files under the given directory instead of dropping them,
+	 * and replay them once the gateway is back.  Messages an earlier run left in the directory are replayed too.
+	 * 
+	 * @param directory where spilled messages are kept, one directory per poster
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster enableSpilling(final File directory) {
+		return this.enableSpilling(directory, DiskSpillQueue.DEFAULT_MAX_DISK_BYTES);
+	}
+
+	/**
+	 * Keep messages that can't be posted on disk, using at most the given space.
+	 * 
+	 * @param directory where spilled messages are kept, one directory per poster
+	 * @param maxDiskBytes most disk space to use, the oldest messages are dropped past it
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public synchronized CustomMetricsPoster enableSpilling(final File directory, final long maxDiskBytes) {
+		if (this.sender == null) {
+			LOGGER.severe("spilling requested for a poster in local mode");
+			throw new IllegalStateException("spilling needs a poster that sends to the gateway");
+		}
+		if (this.sender.getSpillQueue() != null) {
+			LOGGER.severe("spilling is already enabled for this poster");
+			throw new IllegalStateException("spilling is already enabled for this poster");
+		}
+		try {
+			this.sender.setSpillQueue(new DiskSpillQueue(directory, DiskSpillQueue.DEFAULT_SEGMENT_BYTES, maxDiskBytes));
+		} catch (IOException e) {
+			LOGGER.severe("Cannot spill to " + directory + " " + e.toString());
+			throw new IllegalArgumentException("spill directory " + directory + " is not usable", e);
+		}
+		return this;
+	}
+
+	/**
+	 * @return the queue holding messages that could not be posted, or null if spilling is not enabled
+	 */
+	public DiskSpillQueue getSpillQueue() {
+		return this.sender == null ? null : this.sender.getSpillQueue();
+	}
+
+	/**
+	 * @return what this poster has been doing since it was created: points recorded, posted and dropped, post
+	 *         latencies, gateway responses and queue depths
+	 */
+	public ClientStats getStats() {
+		return this.stats;
+	}
+
+	/**
+	 * Register this poster's stats with the platform MBean server, under
+	 * com.stackdriver.api.custommetrics:type=ClientStats,name=<i>name</i>, so they can be watched from JConsole or
+	 * any JMX agent.
+	 * 
+	 * @param name tells this poster apart from others in the same JVM
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public synchronized CustomMetricsPoster registerStatsMBean(final String name) {
+		if (name == null || name.length() == 0) {
+			LOGGER.severe("MBean name not passed, cannot proceed");
+			throw new IllegalArgumentException("name is required for registerStatsMBean");
+		}
+		if (this.statsMBeanName != null) {
+			LOGGER.severe("stats MBean is already registered as " + this.statsMBeanName);
+			throw new IllegalStateException("stats MBean is already registered, call unregisterStatsMBean first");
+		}
+		try {
+			ObjectName objectName = new ObjectName(STATS_MBEAN_DOMAIN + ":type=ClientStats,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this.stats, objectName);
+			this.statsMBeanName = objectName;
+		} catch (JMException e) {
+			LOGGER.severe("Cannot register the stats MBean as " + name + " " + e.toString());
+			throw new IllegalArgumentException("stats MBean can't be registered as " + name, e);
+		}
+		return this;
+	}
+
+	/**
+	 * Remove this poster's stats from the platform MBean server, if they were registered
+	 */
+	public synchronized void unregisterStatsMBean() {
+		if (this.statsMBeanName == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(this.statsMBeanName)) {
+				server.unregisterMBean(this.statsMBeanName);
+			}
+		} catch (JMException e) {
+			LOGGER.warning("Cannot unregister the stats MBean " + this.statsMBeanName + " " + e.toString());
+		}
+		this.statsMBeanName = null;
+	}
+
+	/**
+	 * @return the name the stats are registered under, or null if they are not
+	 */
+	public synchronized ObjectName getStatsMBeanName() {
+		return this.statsMBeanName;
+	}
+
+	/**
+	 * Send this poster's stats through itself as custom metrics named stackdriver.client.*, not tied to an
+	 * instance.  Counts are sent as what happened during each interval.
+	 * 
+	 * @param intervalMillis how often to send them
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster enableSelfMetrics(final long intervalMillis) {
+		return this.enableSelfMetrics(intervalMillis, null);
+	}
+
+	/**
+	 * Send this poster's stats through itself as custom metrics named stackdriver.client.*.
+	 * 
+	 * @param intervalMillis how often to send them
+	 * @param instanceId String with the ID of the instance the stats will be bound to, or null for none
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public synchronized CustomMetricsPoster enableSelfMetrics(final long intervalMillis, final String instanceId) {
+		if (this.selfMetricsRegistry != null) {
+			LOGGER.severe("self metrics are already enabled for this poster");
+			throw new IllegalStateException("self metrics are already enabled, call disableSelfMetrics first");
+		}
+		MetricsRegistry registry = new MetricsRegistry(this, intervalMillis);
+		registry.register(new ClientStatsMetric(this.stats, ClientStatsMetric.DEFAULT_NAME_PREFIX, instanceId));
+		this.selfMetricsRegistry = registry;
+		return this;
+	}
+
+	/**
+	 * Stop sending this poster's stats, after sending what they counted in the last, partial interval
+	 */
+	public void disableSelfMetrics() {
+		MetricsRegistry current;
+		synchronized (this) {
+			current = this.selfMetricsRegistry;
+			this.selfMetricsRegistry = null;
+		}
+		if (current != null) {
+			current.close();
+		}
+	}
+
+	/**
+	 * @return retries and circuit breaking around the transport, or null in local mode
+	 */
+	GatewaySender getSender() {
+		return this.sender;
+	}
+
+	/**
+	 * Gzip message bodies of 1KB or more before posting them.  Batched messages repeat the same keys and metric
+	 * names over and over and typically shrink several times over.
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster enableCompression() {
+		return this.enableCompression(HttpGatewayTransport.DEFAULT_COMPRESSION_THRESHOLD_BYTES);
+	}
+
+	/**
+	 * Gzip message bodies of at least the given size before posting them.
+	 * 
+	 * @param thresholdBytes smallest body, in bytes, worth compressing
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster enableCompression(final int thresholdBytes) {
+		if (!(this.transport instanceof HttpGatewayTransport)) {
+			LOGGER.severe("compression requested for a poster in local mode or with a custom transport");
+			throw new IllegalStateException("compression needs a poster that sends to the gateway over the default transport");
+		}
+		((HttpGatewayTransport) this.transport).enableCompression(thresholdBytes);
+		return this;
+	}
+
+	/**
+	 * Go back to posting message bodies uncompressed
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster disableCompression() {
+		if (this.transport instanceof HttpGatewayTransport) {
+			((HttpGatewayTransport) this.transport).disableCompression();
+		}
+		return this;
+	}
+
+	/**
+	 * @return the transport posting to the gateway, or null in local mode
+	 */
+	public GatewayTransport getTransport() {
+		return this.transport;
+	}
+
+	/**
+	 * Post through your own transport instead of the default {@link HttpGatewayTransport}.  Retries, the circuit
+	 * breaker and spilling still apply.
+	 * 
+	 * @param transport the transport to post through from now on
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster setTransport(final GatewayTransport transport) {
+		if (transport == null) {
+			LOGGER.severe("transport not passed, cannot proceed");
+			throw new IllegalArgumentException("transport is required for setTransport");
+		}
+		if (this.sender == null) {
+			LOGGER.severe("transport set for a poster in local mode");
+			throw new IllegalStateException("a transport needs a poster that sends to the gateway");
+		}
+		this.transport = transport;
+		this.sender.setTransport(transport);
+		return this;
+	}
+
+	/**
+	 * Change how many messages sendMetricsAsync keeps in flight at once, 5 by default to match the connection
+	 * pool of the default transport.  Going higher only helps with a transport that allows more connections.
+	 * 
+	 * @param maxInFlight most async posts running at the same time
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster setMaxInFlight(final int maxInFlight) {
+		if (this.sender != null) {
+			this.sender.setMaxInFlight(maxInFlight);
+		}
+		return this;
+	}
+
+	/**
+	 * @return most async posts running at the same time, 0 in local mode
+	 */
+	public int getMaxInFlight() {
+		return this.sender == null ? 0 : this.sender.getMaxInFlight();
+	}
+
+	/**
+	 * Close with the default timeout, see {@link #close(long)}
+	 */
+	public void close() {
+		this.close(DEFAULT_CLOSE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Send everything this poster still holds and let go of its threads, so the last interval's metrics aren't
+	 * lost when the application stops. <br/>
+	 * Points recorded from now on are dropped and counted as such.  Within the timeout, every {@link MetricsRegistry}
+	 * reporting through this poster sends its last, partial interval, the stats' too if they are sent as custom
+	 * metrics, values held back by a rate limiter are sent whatever its limits, and the batcher's queue is drained,
+	 * its batches posted in parallel up to the {@link #setMaxInFlight(int)} limit.  Messages sent after that are
+	 * dropped and counted as well.  Messages still waiting for a retry at the deadline are spilled to disk if
+	 * spilling is enabled (see {@link #enableSpilling(File)}) and dropped otherwise, then the spill queue is
+	 * closed; posts still in flight are abandoned and dropped if they fail.  The stats MBean is unregistered.
+	 * Closing again does nothing.
+	 * 
+	 * @param timeoutMillis how long to wait for what is queued to be posted
+	 * 
+	 * @return true if everything was posted within the timeout
+	 */
+	public boolean close(final long timeoutMillis) {
+		synchronized (this) {
+			if (this.closed) {
+				return true;
+			}
+			this.closed = true;
+		}
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		this.removeShutdownHook();
+		synchronized (this) {
+			this.selfMetricsRegistry = null;
+		}
+		boolean registriesClosed = this.closeRegistries(deadline);
+
+		RateLimiter limiter = this.rateLimiter;
+		this.setRateLimiter(null);
+		if (limiter != null && limiter.getAggregatedSeries() > 0) {
+			PointColumns columns = new PointColumns(this.seriesDictionary, limiter.getAggregatedSeries());
+			limiter.drainAllAggregated(columns);
+			MetricsBatcher currentBatcher = this.batcher;
+			if (currentBatcher != null) {
+				for (int i = 0; i < columns.size(); i++) {
+					currentBatcher.offer(columns.getSeriesId(i), columns.getValue(i), columns.getCollectedAtMillis(i));
+				}
+			} else if (columns.size() > 0) {
+				this.sendMetricsAsync(new CustomMetricsMessage(columns));
+			}
+		}
+
+		boolean drained = this.disableBatching(Math.max(1, deadline - System.currentTimeMillis())) && registriesClosed;
+		try {
+			drained = this.awaitAsyncSends(Math.max(1, deadline - System.currentTimeMillis())) && drained;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			drained = false;
+		}
+		this.sendingStopped = true;
+		if (this.sender != null) {
+			int abandoned = this.sender.close();
+			if (abandoned > 0) {
+				LOGGER.warning("Closed with " + abandoned + " messages still waiting for a retry, "
+						+ (this.sender.getSpillQueue() != null ? "spilled them to disk" : "dropped them"));
+				drained = false;
 			}
-			
-			LOGGER.fine("http connection established to Stackdriver gateway");
-
-			urlConnection.setRequestMethod("POST");
-			urlConnection.setDoInput(true);
-			urlConnection.setDoOutput(true);
-			urlConnection.setUseCaches(false);
-			urlConnection.setReadTimeout(GATEWAY_TIMEOUT_MILLIS);
-			urlConnection.setRequestProperty("content-type", "application/json; charset=utf-8");
-			urlConnection.setRequestProperty("x-stackdriver-apikey", this.apiKey);
-
-			LOGGER.fine("writing message body ");
-			
-			// send JSON to the output stream
-			OutputStream os = urlConnection.getOutputStream();
-			os.write(messageJson.getBytes());
-			os.flush();
-			os.close();
-
-			LOGGER.fine("awaiting gateway response");
-			
-			int responseCode = urlConnection.getResponseCode();
-			if (responseCode >= 300) {
-				LOGGER.warning("Stackdriver gateway returned a non-200 response: " + responseCode);
-				BufferedReader in = new BufferedReader(new InputStreamReader(urlConnection.getErrorStream(), "UTF-8"));
-			    String errorMessage = in.readLine();
-			    in.close();
-			    LOGGER.warning(errorMessage);
+			// posts still in flight at the deadline are abandoned: one that fails after this is dropped and counted
+			// instead of spilled
+			DiskSpillQueue spill = this.sender.getSpillQueue();
+			if (spill != null) {
+				spill.close();
 			}
-		} catch (Exception e) {
-			LOGGER.severe("Error connecting to the Stackdriver gateway " + e.toString());
-			// TODO: exception for exceptions going to HTTP
-		} finally {
-			if (urlConnection != null) {
-				LOGGER.fine("disconnecting from Stackdriver gateway");
-				urlConnection.disconnect();
+		}
+		this.unregisterStatsMBean();
+		return drained;
+	}
+
+	/**
+	 * Stop the registries reporting through this poster within the close deadline, and send what they collected in
+	 * their last interval without waiting for the gateway, so the posts count against the same deadline
+	 *
+	 * @return false if a registry was still sending a report at the deadline
+	 */
+	private boolean closeRegistries(final long deadline) {
+		boolean stopped = true;
+		for (MetricsRegistry registry : this.registries) {
+			stopped = registry.stopReporting(Math.max(1, deadline - System.currentTimeMillis())) && stopped;
+			CustomMetricsMessage last = registry.collect();
+			if (last == null) {
+				continue;
+			}
+			try {
+				this.sendMetricsAsync(last);
+			} catch (RuntimeException e) {
+				LOGGER.severe("Error sending the last aggregated metrics " + e.toString());
+			}
+		}
+		return stopped;
+	}
+
+	/**
+	 * A registry reports through this poster, see {@link #close(long)}
+	 */
+	void attach(final MetricsRegistry registry) {
+		this.registries.add(registry);
+	}
+
+	void detach(final MetricsRegistry registry) {
+		this.registries.remove(registry);
+	}
+
+	/**
+	 * @return true once {@link #close(long)} has been called
+	 */
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * Close this poster when the JVM shuts down, with the default timeout.  See {@link #enableShutdownHook(long)}.
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public CustomMetricsPoster enableShutdownHook() {
+		return this.enableShutdownHook(DEFAULT_CLOSE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Close this poster when the JVM shuts down, so a restart or deploy doesn't lose the metrics still queued.
+	 * Keep the timeout well under the time your platform waits before killing the process.
+	 * 
+	 * @param timeoutMillis how long the hook waits for what is queued to be posted
+	 * 
+	 * @return this object so it can be chained with the send methods
+	 */
+	public synchronized CustomMetricsPoster enableShutdownHook(final long timeoutMillis) {
+		if (timeoutMillis <= 0) {
+			LOGGER.severe("invalid shutdown timeout " + timeoutMillis);
+			throw new IllegalArgumentException("timeoutMillis must be positive");
+		}
+		if (this.shutdownHook != null) {
+			LOGGER.severe("shutdown hook is already enabled for this poster");
+			throw new IllegalStateException("shutdown hook is already enabled, call disableShutdownHook first");
+		}
+		Thread hook = new Thread(new Runnable() {
+			public void run() {
+				close(timeoutMillis);
 			}
+		}, SHUTDOWN_HOOK_THREAD_NAME);
+		Runtime.getRuntime().addShutdownHook(hook);
+		this.shutdownHook = hook;
+		return this;
+	}
+
+	/**
+	 * Stop closing this poster when the JVM shuts down
+	 */
+	public void disableShutdownHook() {
+		this.removeShutdownHook();
+	}
+
+	private void removeShutdownHook() {
+		Thread hook;
+		synchronized (this) {
+			hook = this.shutdownHook;
+			this.shutdownHook = null;
+		}
+		if (hook == null || hook == Thread.currentThread()) {
+			return;
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(hook);
+		} catch (IllegalStateException e) {
+			// the JVM is already shutting down, the hook is running or about to
 		}
 	}
 
+	/**
+	 * @return true, after counting the points as dropped, if this poster is closed
+	 */
+	private boolean droppedAfterClose(final int points) {
+		if (!this.closed) {
+			return false;
+		}
+		this.stats.pointsDropped(points);
+		long suppressed = CLOSED_LOG.acquire(LOGGER, Level.WARNING);
+		if (suppressed >= 0) {
+			LOGGER.warning("Points recorded after the poster was closed are dropped" + LogThrottle.suppressedNote(suppressed));
+		}
+		return true;
+	}
+
 	public boolean isLocalMode() {
 		return localMode;
 	}
 
+	/**
+	 * Switch between logging messages and posting them.  Posting needs a poster built with an API key.
+	 * 
+	 * @param localMode true to only log messages
+	 */
 	public void setLocalMode(boolean localMode) {
+		if (!localMode && this.sender == null) {
+			LOGGER.severe("can't post from a poster built without an API key, staying in local mode");
+			throw new IllegalStateException("posting needs a poster built with an API key");
+		}
 		this.localMode = localMode;
 	}
 }
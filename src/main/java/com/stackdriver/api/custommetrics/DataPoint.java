@@ -1,6 +1,7 @@
 package com.stackdriver.api.custommetrics;
 
 import java.util.Date;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -24,7 +25,10 @@ public class DataPoint {
 	private Date collectedAt;
 
 	public DataPoint(String name, double value, Date collectedAt) {
-		LOGGER.fine(String.format("creating DataPoint name=%s value=%s collectedAt=%s", name, value, collectedAt));
+		// one line per point would swamp the log, so these are sampled like payloads
+		if (LOGGER.isLoggable(Level.FINE) && DiagnosticLogging.samplePayload()) {
+			LOGGER.fine("creating DataPoint name=" + name + " value=" + value + " collectedAt=" + collectedAt);
+		}
 		this.name = name;
 		this.value = value;
 		this.collectedAt = collectedAt;
@@ -82,12 +86,35 @@ public class DataPoint {
 	/**
 	 * Serialize this object to JSON string, so we don't need a Jackson dependency in the project
 	 * <br/>
-	 * Not super robust about special characters, so please don't use them in your names/values
-	 * (quotes/brackets/braces etc) or the gateway will give you a 400 for invalid JSON.
+	 * Quotes, backslashes and control characters in the name are escaped.  A subclass may override this, messages
+	 * are then sent with what the override returns for the point.
 	 * 
 	 * @return a String in JSON format representing this object
 	 */
 	public String toJson() {
-		return String.format("{\"name\":\"%s\",\"value\":%f,\"collected_at\":%d}", this.getName(), this.getValue(), this.getCollectedAtEpoch());
+		MetricsJsonWriter writer = new MetricsJsonWriter(128);
+		this.writeBuiltInJson(writer);
+		return writer.toString();
+	}
+
+	/**
+	 * Stream this object as JSON into a writer shared by the whole message, through toJson if a subclass
+	 * overrides it
+	 * 
+	 * @param writer the writer to append to
+	 */
+	final void writeJson(final MetricsJsonWriter writer) {
+		if (MetricsJsonWriter.hasOwnToJson(this.getClass())) {
+			writer.writeRaw(this.toJson());
+		} else {
+			this.writeBuiltInJson(writer);
+		}
+	}
+
+	/**
+	 * What toJson writes unless it is overridden
+	 */
+	void writeBuiltInJson(final MetricsJsonWriter writer) {
+		writer.writeDataPoint(this.getName(), this.getValue(), this.getCollectedAtEpoch());
 	}
 }
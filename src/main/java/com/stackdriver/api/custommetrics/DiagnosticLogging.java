@@ -0,0 +1,105 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * How much the library logs about what it sends and what goes wrong, for every poster in the JVM. <br/>
+ * All logging on the send path is guarded by the logger's level, so with the package logger at its default level
+ * no message or payload is ever formatted.  Above that:
+ * <ul>
+ * <li>payloads, logged at fine when posting and at info in local mode, and per point debug lines, can be sampled
+ * down to one in N</li>
+ * <li>errors that repeat for every message, a gateway that can't be reached or keeps rejecting posts, are logged
+ * at most a few times per interval at each place they happen; the next message logged says how many were
+ * suppressed</li>
+ * </ul>
+ * A gateway outage then costs a handful of log lines a minute rather than one per post and retry.
+ */
+public final class DiagnosticLogging {
+
+	private static final Logger LOGGER = Logger.getLogger(DiagnosticLogging.class.getName());
+
+	public static final int DEFAULT_PAYLOAD_SAMPLE_RATE = 1;
+
+	public static final int DEFAULT_MAX_ERRORS_PER_INTERVAL = 10;
+
+	public static final long DEFAULT_ERROR_INTERVAL_MILLIS = 60000;
+
+	private static volatile int payloadSampleRate = DEFAULT_PAYLOAD_SAMPLE_RATE;
+
+	private static volatile int maxErrorsPerInterval = DEFAULT_MAX_ERRORS_PER_INTERVAL;
+
+	private static volatile long errorIntervalMillis = DEFAULT_ERROR_INTERVAL_MILLIS;
+
+	// only counted while payloads are actually being logged
+	private static final AtomicLong payloads = new AtomicLong();
+
+	private DiagnosticLogging() {
+	}
+
+	/**
+	 * Log one payload in N, when the level lets payloads be logged at all
+	 *
+	 * @param oneInN
+	 *            1 to log every payload, 0 to log none
+	 */
+	public static void setPayloadSampleRate(final int oneInN) {
+		if (oneInN < 0) {
+			LOGGER.severe("invalid payload sample rate " + oneInN);
+			throw new IllegalArgumentException("oneInN must not be negative");
+		}
+		payloadSampleRate = oneInN;
+	}
+
+	public static int getPayloadSampleRate() {
+		return payloadSampleRate;
+	}
+
+	/**
+	 * Limit how often each kind of repeated error is logged
+	 *
+	 * @param maxPerInterval
+	 *            messages logged per interval at each place, 0 to log none
+	 * @param intervalMillis
+	 *            length of the interval
+	 */
+	public static void setErrorRateLimit(final int maxPerInterval, final long intervalMillis) {
+		if (maxPerInterval < 0 || intervalMillis <= 0) {
+			LOGGER.severe("invalid error rate limit maxPerInterval=" + maxPerInterval + ", intervalMillis=" + intervalMillis);
+			throw new IllegalArgumentException("maxPerInterval must not be negative and intervalMillis must be positive");
+		}
+		maxErrorsPerInterval = maxPerInterval;
+		errorIntervalMillis = intervalMillis;
+	}
+
+	public static int getMaxErrorsPerInterval() {
+		return maxErrorsPerInterval;
+	}
+
+	public static long getErrorIntervalMillis() {
+		return errorIntervalMillis;
+	}
+
+	/**
+	 * Put the default sampling and rate limits back
+	 */
+	public static void reset() {
+		payloadSampleRate = DEFAULT_PAYLOAD_SAMPLE_RATE;
+		maxErrorsPerInterval = DEFAULT_MAX_ERRORS_PER_INTERVAL;
+		errorIntervalMillis = DEFAULT_ERROR_INTERVAL_MILLIS;
+	}
+
+	/**
+	 * Call only once the logger level allows the payload to be logged
+	 *
+	 * @return true if this payload is one of the sampled ones
+	 */
+	static boolean samplePayload() {
+		int rate = payloadSampleRate;
+		if (rate <= 1) {
+			return rate == 1;
+		}
+		return payloads.getAndIncrement() % rate == 0;
+	}
+}
@@ -0,0 +1,434 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable FIFO of serialized messages that could not be posted, kept in fixed-size memory-mapped segment files so
+ * they survive a gateway outage and a restart of the application. <br/>
+ * Each record is a 4 byte length, a 4 byte CRC32 of the payload and the payload itself.  A record is written
+ * payload first and length last, followed by a zero length that marks the end of the segment's data, and once it
+ * has been replayed its length is negated in place, so on startup a scan of the segments finds exactly the records
+ * still waiting; a record torn by a crash fails its checksum and the scan stops there.  Writes go to the page
+ * cache, which survives the application dying; segments are forced to disk when they are rotated and on close.
+ * <br/>
+ * When a new segment would take the directory over its disk cap, the oldest segment is deleted along with the
+ * messages still in it.
+ */
+public class DiskSpillQueue {
+
+	private static final Logger LOGGER = Logger.getLogger(DiskSpillQueue.class.getName());
+
+	private static final LogThrottle SPILL_ERROR_LOG = new LogThrottle();
+
+	private static final LogThrottle REPLAY_ERROR_LOG = new LogThrottle();
+
+	private static final LogThrottle CLOSED_LOG = new LogThrottle();
+
+	private static final LogThrottle OVERSIZED_LOG = new LogThrottle();
+
+	public static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+	public static final long DEFAULT_MAX_DISK_BYTES = 64L * 1024 * 1024;
+
+	private static final String SEGMENT_PREFIX = "spill-";
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	// length and checksum
+	private static final int RECORD_HEADER_BYTES = 8;
+
+	private static final int END_MARKER_BYTES = 4;
+
+	private final File directory;
+
+	private final int segmentBytes;
+
+	private final int maxSegments;
+
+	// oldest first, the last one is being written to
+	private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+	private final CRC32 crc = new CRC32();
+
+	private long nextSequence;
+
+	private int pendingMessages;
+
+	private long evictedMessages;
+
+	// once set, nothing is written, a late append would otherwise map new segments
+	private boolean closed;
+
+	/**
+	 * Opens a spill queue with the default segment size and disk cap, recovering whatever an earlier run left in
+	 * the directory.
+	 *
+	 * @param directory
+	 *            where segment files are kept, created if missing; use one directory per poster
+	 */
+	public DiskSpillQueue(final File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_DISK_BYTES);
+	}
+
+	/**
+	 * Opens a spill queue, recovering whatever an earlier run left in the directory.
+	 *
+	 * @param directory
+	 *            where segment files are kept, created if missing; use one directory per poster
+	 * @param segmentBytes
+	 *            size of each segment file, and so the largest message that can be spilled
+	 * @param maxDiskBytes
+	 *            most disk space used by all segments together; at least two segments are always kept
+	 */
+	public DiskSpillQueue(final File directory, final int segmentBytes, final long maxDiskBytes) throws IOException {
+		if (directory == null) {
+			LOGGER.severe("spill directory not passed, cannot proceed");
+			throw new IllegalArgumentException("directory is required for constructing a DiskSpillQueue");
+		}
+		if (segmentBytes <= RECORD_HEADER_BYTES + END_MARKER_BYTES || maxDiskBytes <= 0) {
+			LOGGER.severe("invalid spill limits segmentBytes=" + segmentBytes + ", maxDiskBytes=" + maxDiskBytes);
+			throw new IllegalArgumentException("segmentBytes must leave room for a record and maxDiskBytes must be positive");
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create spill directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxDiskBytes / segmentBytes));
+		this.recover();
+	}
+
+	/**
+	 * Append a message.  The payload is copied straight from the given buffer into the mapped segment.
+	 *
+	 * @return false if the message is too big for a segment, could not be written, or the queue is closed
+	 */
+	public synchronized boolean append(final byte[] body, final int offset, final int length) {
+		if (this.closed) {
+			long suppressed = CLOSED_LOG.acquire(LOGGER, Level.WARNING);
+			if (suppressed >= 0) {
+				LOGGER.warning("Messages spilled to " + this.directory + " after it was closed are dropped"
+						+ LogThrottle.suppressedNote(suppressed));
+			}
+			return false;
+		}
+		if (length <= 0 || length > this.segmentBytes - RECORD_HEADER_BYTES - END_MARKER_BYTES) {
+			// every message of a poster with a too small segment size fails, during an outage that is every post
+			long suppressed = OVERSIZED_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("cannot spill a message of " + length + " bytes with " + this.segmentBytes + " byte segments"
+						+ LogThrottle.suppressedNote(suppressed));
+			}
+			return false;
+		}
+		try {
+			Segment segment = this.segments.peekLast();
+			if (segment == null || segment.writePosition + RECORD_HEADER_BYTES + length + END_MARKER_BYTES > segment.capacity) {
+				segment = this.rotate();
+			}
+			MappedByteBuffer buffer = segment.map();
+			int position = segment.writePosition;
+			this.crc.reset();
+			this.crc.update(body, offset, length);
+
+			buffer.position(position + RECORD_HEADER_BYTES);
+			buffer.put(body, offset, length);
+			buffer.putInt(position + RECORD_HEADER_BYTES + length, 0);
+			buffer.putInt(position + 4, (int) this.crc.getValue());
+			// the length goes in last, before it is set the record reads as the end of the data
+			buffer.putInt(position, length);
+
+			segment.writePosition = position + RECORD_HEADER_BYTES + length;
+			segment.pending++;
+			this.pendingMessages++;
+			return true;
+		} catch (IOException e) {
+			// a full disk fails every message spilled after it
+			long suppressed = SPILL_ERROR_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("Error spilling a message to " + this.directory + " " + e.toString()
+						+ LogThrottle.suppressedNote(suppressed));
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @return a copy of the oldest message, or null if there is none
+	 */
+	public synchronized byte[] peek() {
+		Segment segment = this.firstPending();
+		if (segment == null) {
+			return null;
+		}
+		try {
+			MappedByteBuffer buffer = segment.map();
+			byte[] body = new byte[buffer.getInt(segment.readPosition)];
+			buffer.position(segment.readPosition + RECORD_HEADER_BYTES);
+			buffer.get(body);
+			return body;
+		} catch (IOException e) {
+			long suppressed = REPLAY_ERROR_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("Error reading a spilled message from " + segment.file + " " + e.toString()
+						+ LogThrottle.suppressedNote(suppressed));
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Mark the oldest message as sent so it isn't replayed again, not even after a restart
+	 */
+	public synchronized void remove() {
+		Segment segment = this.firstPending();
+		if (segment == null) {
+			return;
+		}
+		try {
+			MappedByteBuffer buffer = segment.map();
+			int length = buffer.getInt(segment.readPosition);
+			buffer.putInt(segment.readPosition, -length);
+			segment.readPosition += RECORD_HEADER_BYTES + length;
+			segment.pending--;
+			this.pendingMessages--;
+			this.deleteConsumed();
+		} catch (IOException e) {
+			long suppressed = REPLAY_ERROR_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("Error updating spilled message in " + segment.file + " " + e.toString()
+						+ LogThrottle.suppressedNote(suppressed));
+			}
+		}
+	}
+
+	/**
+	 * @return messages waiting to be replayed
+	 */
+	public synchronized int size() {
+		return this.pendingMessages;
+	}
+
+	/**
+	 * @return messages lost because the disk cap was reached, since this queue was opened
+	 */
+	public synchronized long getEvictedMessages() {
+		return this.evictedMessages;
+	}
+
+	/**
+	 * @return disk space taken by segment files
+	 */
+	public synchronized long getDiskBytes() {
+		long bytes = 0;
+		for (Segment segment : this.segments) {
+			bytes += segment.capacity;
+		}
+		return bytes;
+	}
+
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	public int getSegmentBytes() {
+		return this.segmentBytes;
+	}
+
+	/**
+	 * Force everything written so far to disk and let go of the mapped segments.  Messages still queued are
+	 * replayed by the next queue opened on this directory; nothing is appended to this one any more.
+	 */
+	public synchronized void close() {
+		this.closed = true;
+		for (Segment segment : this.segments) {
+			segment.release();
+		}
+		this.segments.clear();
+		this.pendingMessages = 0;
+	}
+
+	private Segment firstPending() {
+		for (Segment segment : this.segments) {
+			if (segment.pending > 0) {
+				return segment;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Delete segments that have been fully replayed and are no longer written to
+	 */
+	private void deleteConsumed() {
+		while (this.segments.size() > 1 && this.segments.peekFirst().pending == 0) {
+			this.segments.pollFirst().delete();
+		}
+	}
+
+	/**
+	 * Start a new segment to write to, evicting the oldest one if the disk cap would be exceeded
+	 */
+	private Segment rotate() throws IOException {
+		Segment current = this.segments.peekLast();
+		if (current != null) {
+			current.release();
+		}
+		this.deleteConsumed();
+		while (this.segments.size() >= this.maxSegments) {
+			Segment oldest = this.segments.pollFirst();
+			if (oldest.pending > 0) {
+				LOGGER.warning("Spill directory " + this.directory + " is full, dropping " + oldest.pending + " oldest messages");
+				this.evictedMessages += oldest.pending;
+				this.pendingMessages -= oldest.pending;
+			}
+			oldest.delete();
+		}
+		File file = new File(this.directory, String.format("%s%019d%s", SEGMENT_PREFIX, this.nextSequence++, SEGMENT_SUFFIX));
+		Segment segment = new Segment(file, this.segmentBytes);
+		this.segments.addLast(segment);
+		return segment;
+	}
+
+	/**
+	 * Scan the segments an earlier run left behind, oldest first, for records that were never replayed
+	 */
+	private void recover() throws IOException {
+		File[] files = this.directory.listFiles(new FilenameFilter() {
+			public boolean accept(final File dir, final String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null) {
+			throw new IOException("cannot list spill directory " + this.directory);
+		}
+		// zero padded sequence numbers sort by name
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			try {
+				long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+				this.nextSequence = Math.max(this.nextSequence, sequence + 1);
+			} catch (NumberFormatException e) {
+				LOGGER.warning("Ignoring unexpected file in spill directory " + file);
+				continue;
+			}
+			if (file.length() <= RECORD_HEADER_BYTES + END_MARKER_BYTES) {
+				file.delete();
+				continue;
+			}
+			Segment segment = new Segment(file, (int) Math.min(file.length(), Integer.MAX_VALUE));
+			this.scan(segment);
+			this.segments.addLast(segment);
+			this.pendingMessages += segment.pending;
+		}
+		this.deleteConsumed();
+		if (this.pendingMessages > 0) {
+			LOGGER.info("Recovered " + this.pendingMessages + " spilled messages from " + this.directory);
+		}
+	}
+
+	private void scan(final Segment segment) throws IOException {
+		MappedByteBuffer buffer = segment.map();
+		int position = 0;
+		byte[] payload = new byte[0];
+		while (position + RECORD_HEADER_BYTES + END_MARKER_BYTES <= segment.capacity) {
+			int length = buffer.getInt(position);
+			if (length == 0) {
+				break;
+			}
+			int size = length < 0 ? -length : length;
+			if (size < 0 || size > segment.capacity - position - RECORD_HEADER_BYTES - END_MARKER_BYTES) {
+				LOGGER.warning("Truncating spill segment " + segment.file + " at a torn record");
+				break;
+			}
+			if (length > 0) {
+				if (payload.length < size) {
+					payload = new byte[size];
+				}
+				buffer.position(position + RECORD_HEADER_BYTES);
+				buffer.get(payload, 0, size);
+				this.crc.reset();
+				this.crc.update(payload, 0, size);
+				if ((int) this.crc.getValue() != buffer.getInt(position + 4)) {
+					LOGGER.warning("Truncating spill segment " + segment.file + " at a torn record");
+					break;
+				}
+				segment.pending++;
+			} else if (segment.pending == 0) {
+				segment.readPosition = position + RECORD_HEADER_BYTES + size;
+			}
+			position += RECORD_HEADER_BYTES + size;
+		}
+		// anything after the last good record is overwritten by the next append
+		if (position + END_MARKER_BYTES <= segment.capacity) {
+			buffer.putInt(position, 0);
+		}
+		segment.writePosition = position;
+		segment.release();
+	}
+
+	/**
+	 * One segment file and its read and write offsets
+	 */
+	private static final class Segment {
+
+		private final File file;
+
+		private final int capacity;
+
+		// null while the segment is not being read or written, to keep the number of live mappings small
+		private MappedByteBuffer buffer;
+
+		private int readPosition;
+
+		private int writePosition;
+
+		private int pending;
+
+		Segment(final File file, final int capacity) {
+			this.file = file;
+			this.capacity = capacity;
+		}
+
+		MappedByteBuffer map() throws IOException {
+			if (this.buffer == null) {
+				RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+				try {
+					raf.setLength(this.capacity);
+					// the mapping stays valid after the file is closed
+					this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+				} finally {
+					raf.close();
+				}
+			}
+			return this.buffer;
+		}
+
+		void release() {
+			if (this.buffer != null) {
+				this.buffer.force();
+				// the JDK has no way to unmap, the mapping goes away once the buffer is garbage collected
+				this.buffer = null;
+			}
+		}
+
+		void delete() {
+			this.buffer = null;
+			if (!this.file.delete()) {
+				LOGGER.warning("Could not delete spill segment " + this.file);
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.stackdriver.api.custommetrics;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Executors for {@link CustomMetricsPoster#setDispatchExecutor(java.util.concurrent.Executor)}. <br/>
+ * The library is built for Java 6, so virtual threads are looked up by reflection: on Java 21 and later
+ * {@link #newVirtualThreadPerTaskExecutor()} gives one virtual thread per message, and a post waiting on the gateway
+ * holds no platform thread.  On older runtimes it falls back to a pool of daemon platform threads.
+ */
+public final class DispatchExecutors {
+
+	private static final Logger LOGGER = Logger.getLogger(DispatchExecutors.class.getName());
+
+	private static final String DISPATCH_THREAD_NAME = "stackdriver-metrics-dispatch";
+
+	// fallback pool threads go away after this long without work
+	private static final long DISPATCH_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+	// null on runtimes without virtual threads
+	private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreadFactoryMethod();
+
+	private DispatchExecutors() {
+	}
+
+	private static Method findVirtualThreadFactoryMethod() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (SecurityException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if this JVM has virtual threads
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+	}
+
+	/**
+	 * A virtual thread per task where the JVM has them, {@link #newDispatchThreadPool(int)} with room for 64
+	 * threads otherwise.  Shut it down once the poster is no longer used.
+	 *
+	 * @return a new executor
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+		if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+			try {
+				return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+			} catch (IllegalAccessException e) {
+				LOGGER.warning("Cannot create a virtual thread executor, using platform threads " + e.toString());
+			} catch (InvocationTargetException e) {
+				LOGGER.warning("Cannot create a virtual thread executor, using platform threads " + e.getCause());
+			}
+		}
+		return newDispatchThreadPool(64);
+	}
+
+	/**
+	 * A pool of daemon platform threads that grows up to maxThreads and shrinks back when idle.  A task submitted
+	 * while all of them are busy, or after shutdown, runs on the submitting thread, which slows the submitter down
+	 * instead of queueing without bound.
+	 *
+	 * @param maxThreads
+	 *            most threads posting at once
+	 * @return a new executor
+	 */
+	public static ExecutorService newDispatchThreadPool(final int maxThreads) {
+		if (maxThreads <= 0) {
+			LOGGER.severe("invalid dispatch pool size " + maxThreads);
+			throw new IllegalArgumentException("maxThreads must be positive");
+		}
+		return new ThreadPoolExecutor(0, maxThreads, DISPATCH_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(final Runnable runnable) {
+						Thread thread = new Thread(runnable, DISPATCH_THREAD_NAME);
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new RejectedExecutionHandler() {
+					public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+						// unlike CallerRunsPolicy this runs the task even after shutdown, so no future is left hanging
+						runnable.run();
+					}
+				});
+	}
+}
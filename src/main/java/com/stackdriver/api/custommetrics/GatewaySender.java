@@ -0,0 +1,607 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Posts serialized messages through a {@link GatewayTransport}, retrying the failures worth retrying. <br/>
+ * The first post of a message happens on the caller's thread.  If it fails with a connect error, a 429 or a 5xx,
+ * a copy of the message is handed to a background thread that retries it according to the {@link RetryPolicy}.
+ * Other error responses are logged and the message is dropped, sending it again would fail the same way.
+ * <br/>
+ * Every post goes through a {@link CircuitBreaker} first.  While the breaker is open the caller returns right away
+ * and the message waits for a retry instead of for a timeout.
+ * <br/>
+ * With a {@link DiskSpillQueue} set, messages that run out of retries, or arrive while the breaker is open, are
+ * written to disk instead of being dropped, and replayed in order on the retry thread after the next successful post.
+ * <br/>
+ * {@link #sendAsync(byte[])} runs the same logic on I/O threads, with a cap on the number of posts in flight.
+ * <br/>
+ * {@link #send(String, CircuitBreaker, RetryBudget, byte[], int, int)} posts with another API key, breaker and
+ * retry budget, which is how one sender, and its one retry thread, serves every tenant of a
+ * {@link MultiTenantMetricsPoster}.  Those messages are never spilled, the spill file doesn't record whose they are.
+ * <br/>
+ * Once closed, nothing more is posted: messages waiting for a retry and any sent afterwards are spilled, or
+ * dropped if spilling is not enabled.
+ */
+class GatewaySender {
+
+	private static final Logger LOGGER = Logger.getLogger(GatewaySender.class.getName());
+
+	/**
+	 * Messages waiting to be retried are kept in memory, past this many new failures are dropped
+	 */
+	public static final int DEFAULT_MAX_PENDING_RETRIES = 1000;
+
+	// each error below repeats for every post while the gateway is down, so none of them is logged every time
+	private static final LogThrottle CONNECT_ERROR_LOG = new LogThrottle();
+
+	private static final LogThrottle SEND_ERROR_LOG = new LogThrottle();
+
+	private static final LogThrottle REJECTED_LOG = new LogThrottle();
+
+	private static final LogThrottle GIVE_UP_LOG = new LogThrottle();
+
+	private static final LogThrottle RETRY_OVERFLOW_LOG = new LogThrottle();
+
+	private static final LogThrottle RETRY_REJECTED_LOG = new LogThrottle();
+
+	private static final String RETRY_THREAD_NAME = "stackdriver-metrics-retry";
+
+	// the retry thread goes away after this long without work, so idle posters don't keep a thread around
+	private static final long RETRY_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+	private volatile GatewayTransport transport;
+
+	// null for a sender shared by several API keys
+	private final String apiKey;
+
+	// posts, latencies and response codes are counted here
+	private final ClientStats stats;
+
+	private final int maxPendingRetries;
+
+	private final ScheduledThreadPoolExecutor retryExecutor;
+
+	private volatile RetryPolicy retryPolicy = new RetryPolicy();
+
+	// created on the first async send
+	private volatile InFlightExecutor asyncExecutor;
+
+	private volatile int maxInFlight = HttpGatewayTransport.DEFAULT_MAX_CONNECTIONS;
+
+	private volatile CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+	// null unless spilling to disk is enabled
+	private volatile DiskSpillQueue spillQueue;
+
+	private final AtomicBoolean replaying = new AtomicBoolean();
+
+	private final AtomicInteger pendingRetries = new AtomicInteger();
+
+	// the messages pendingRetries counts, so closing can spill them
+	private final Set<PendingRetry> retries = Collections.newSetFromMap(new ConcurrentHashMap<PendingRetry, Boolean>());
+
+	private volatile boolean closed;
+
+	private final AtomicLong sentMessages = new AtomicLong();
+
+	private final AtomicLong retriedPosts = new AtomicLong();
+
+	private final AtomicLong shortCircuitedPosts = new AtomicLong();
+
+	private final AtomicLong failedMessages = new AtomicLong();
+
+	private final AtomicLong spilledMessages = new AtomicLong();
+
+	private final AtomicLong replayedMessages = new AtomicLong();
+
+	GatewaySender(final GatewayTransport transport, final String apiKey) {
+		this(transport, apiKey, new ClientStats(null));
+	}
+
+	GatewaySender(final GatewayTransport transport, final String apiKey, final ClientStats stats) {
+		this(transport, apiKey, stats, DEFAULT_MAX_PENDING_RETRIES);
+	}
+
+	GatewaySender(final GatewayTransport transport, final String apiKey, final ClientStats stats,
+			final int maxPendingRetries) {
+		this.transport = transport;
+		this.apiKey = apiKey;
+		this.stats = stats;
+		this.maxPendingRetries = maxPendingRetries;
+
+		this.retryExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable, RETRY_THREAD_NAME);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.retryExecutor.setKeepAliveTime(RETRY_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+		this.retryExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Post a message, never throws.  The body is copied if the message has to be retried, so the caller can reuse
+	 * the buffer once this returns.
+	 *
+	 * @return what became of the message
+	 */
+	SendResult send(final byte[] body, final int offset, final int length) {
+		return this.send(this.apiKey, null, null, body, offset, length);
+	}
+
+	/**
+	 * Post a message on behalf of another API key, never throws.
+	 *
+	 * @param tenantBreaker
+	 *            breaker for this key alone, or null for the sender's own
+	 * @param tenantBudget
+	 *            caps this key's messages waiting for a retry, or null for the sender's cap alone
+	 * @return what became of the message
+	 */
+	SendResult send(final String postApiKey, final CircuitBreaker tenantBreaker, final RetryBudget tenantBudget,
+			final byte[] body, final int offset, final int length) {
+		if (this.closed) {
+			return this.abandon(postApiKey, body, offset, length);
+		}
+		CircuitBreaker breaker = this.breakerFor(tenantBreaker);
+		if (!breaker.allowRequest()) {
+			this.shortCircuitedPosts.incrementAndGet();
+			// straight from the caller's buffer to disk, no copy on the heap
+			if (this.spill(postApiKey, body, offset, length)) {
+				return SendResult.SPILLED;
+			}
+			LOGGER.fine("Stackdriver gateway circuit is open, queueing the message for retry");
+			return this.scheduleRetry(postApiKey, tenantBreaker, tenantBudget, copy(body, offset, length), 1,
+					breaker.getRemainingOpenMillis());
+		}
+		SendResult result = this.attempt(postApiKey, breaker, body, offset, length);
+		if (result != null) {
+			return result;
+		}
+		return this.scheduleRetry(postApiKey, tenantBreaker, tenantBudget, copy(body, offset, length), 1, 0);
+	}
+
+	private CircuitBreaker breakerFor(final CircuitBreaker tenantBreaker) {
+		return tenantBreaker != null ? tenantBreaker : this.circuitBreaker;
+	}
+
+	/**
+	 * Post a message from one of the I/O threads.  Returns right away unless the maximum number of posts is
+	 * already in flight, in which case it waits for one of them to finish.
+	 *
+	 * @param body
+	 *            the whole buffer is the payload, it must not be changed until the future is done
+	 * @return what became of the message
+	 */
+	Future<SendResult> sendAsync(final byte[] body) {
+		InFlightExecutor executor = this.asyncExecutor;
+		if (executor == null) {
+			synchronized (this) {
+				if (this.asyncExecutor == null) {
+					this.asyncExecutor = new InFlightExecutor(this.maxInFlight);
+				}
+				executor = this.asyncExecutor;
+			}
+		}
+		return executor.submit(new Callable<SendResult>() {
+			public SendResult call() {
+				return send(body, 0, body.length);
+			}
+		});
+	}
+
+	/**
+	 * Post once and report the outcome to the breaker
+	 *
+	 * @return null if the post failed and is worth retrying
+	 */
+	private SendResult attempt(final String postApiKey, final CircuitBreaker breaker, final byte[] body, final int offset,
+			final int length) {
+		int responseCode;
+		long startNanos = System.nanoTime();
+		try {
+			LOGGER.fine("sending data to the Stackdriver gateway");
+			responseCode = this.transport.post(postApiKey, body, offset, length);
+		} catch (IOException e) {
+			long suppressed = CONNECT_ERROR_LOG.acquire(LOGGER, Level.WARNING);
+			if (suppressed >= 0) {
+				LOGGER.warning("Error connecting to the Stackdriver gateway " + e.toString() + LogThrottle.suppressedNote(suppressed));
+			}
+			this.stats.connectFailed();
+			breaker.recordFailure();
+			return null;
+		} catch (RuntimeException e) {
+			long suppressed = SEND_ERROR_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("Error sending to the Stackdriver gateway, dropping the message " + e.toString()
+						+ LogThrottle.suppressedNote(suppressed));
+			}
+			this.failedMessages.incrementAndGet();
+			// says nothing about the gateway, but a trial post must not leave the breaker half open for good
+			breaker.releaseTrial();
+			return SendResult.DROPPED;
+		}
+		this.stats.postCompleted(length, responseCode, System.nanoTime() - startNanos);
+		if (RetryPolicy.isRetryable(responseCode)) {
+			breaker.recordFailure();
+			return null;
+		}
+		// the gateway answered, so it is up even if it didn't like this message
+		breaker.recordSuccess();
+		if (responseCode >= 300) {
+			long suppressed = REJECTED_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("Stackdriver gateway rejected the message with " + responseCode + ", not retrying"
+						+ LogThrottle.suppressedNote(suppressed));
+			}
+			this.failedMessages.incrementAndGet();
+			return SendResult.REJECTED;
+		}
+		this.sentMessages.incrementAndGet();
+		DiskSpillQueue spill = this.spillQueue;
+		if (spill != null && spill.size() > 0) {
+			this.scheduleReplay();
+		}
+		return SendResult.SENT;
+	}
+
+	/**
+	 * Hand a failed message to the retry thread
+	 *
+	 * @param retry
+	 *            which retry this will be, starting at 1
+	 * @param minDelayMillis
+	 *            wait at least this long, on top of the policy's backoff
+	 * @return what became of the message
+	 */
+	private SendResult scheduleRetry(final String postApiKey, final CircuitBreaker tenantBreaker,
+			final RetryBudget tenantBudget, final byte[] body, final int retry, final long minDelayMillis) {
+		if (this.closed) {
+			return this.abandon(postApiKey, body, 0, body.length);
+		}
+		RetryPolicy policy = this.retryPolicy;
+		if (retry > policy.getMaxRetries()) {
+			if (this.spill(postApiKey, body, 0, body.length)) {
+				return SendResult.SPILLED;
+			}
+			long suppressed = GIVE_UP_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("Giving up on a message to the Stackdriver gateway after " + policy.getMaxRetries() + " retries"
+						+ LogThrottle.suppressedNote(suppressed));
+			}
+			this.failedMessages.incrementAndGet();
+			return SendResult.DROPPED;
+		}
+		boolean room = this.pendingRetries.incrementAndGet() <= this.maxPendingRetries;
+		if (room && tenantBudget != null && !tenantBudget.acquire()) {
+			room = false;
+		}
+		if (!room) {
+			this.pendingRetries.decrementAndGet();
+			if (this.spill(postApiKey, body, 0, body.length)) {
+				return SendResult.SPILLED;
+			}
+			long suppressed = RETRY_OVERFLOW_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("Too many messages waiting to be retried, dropping one" + LogThrottle.suppressedNote(suppressed));
+			}
+			this.failedMessages.incrementAndGet();
+			return SendResult.DROPPED;
+		}
+		long delayMillis = Math.max(policy.backoffMillis(retry), minDelayMillis);
+		PendingRetry pending = new PendingRetry(postApiKey, tenantBreaker, tenantBudget, body, retry);
+		this.retries.add(pending);
+		try {
+			this.retryExecutor.schedule(pending, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			if (!this.retries.remove(pending)) {
+				// closing got to it first
+				return SendResult.DROPPED;
+			}
+			pending.released();
+			if (this.closed) {
+				return this.abandon(postApiKey, body, 0, body.length);
+			}
+			long suppressed = RETRY_REJECTED_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("Retry thread is not accepting work, dropping the message " + e.toString()
+						+ LogThrottle.suppressedNote(suppressed));
+			}
+			this.failedMessages.incrementAndGet();
+			return SendResult.DROPPED;
+		}
+		return SendResult.QUEUED_FOR_RETRY;
+	}
+
+	/**
+	 * A message waiting on the retry thread
+	 */
+	private final class PendingRetry implements Runnable {
+
+		private final String postApiKey;
+
+		private final CircuitBreaker tenantBreaker;
+
+		private final RetryBudget tenantBudget;
+
+		private final byte[] body;
+
+		private final int retry;
+
+		PendingRetry(final String postApiKey, final CircuitBreaker tenantBreaker, final RetryBudget tenantBudget,
+				final byte[] body, final int retry) {
+			this.postApiKey = postApiKey;
+			this.tenantBreaker = tenantBreaker;
+			this.tenantBudget = tenantBudget;
+			this.body = body;
+			this.retry = retry;
+		}
+
+		public void run() {
+			if (retries.remove(this)) {
+				this.released();
+				retry(this.postApiKey, this.tenantBreaker, this.tenantBudget, this.body, this.retry);
+			}
+		}
+
+		/**
+		 * Give back the room this message took, once it is no longer waiting
+		 */
+		void released() {
+			pendingRetries.decrementAndGet();
+			if (this.tenantBudget != null) {
+				this.tenantBudget.release();
+			}
+		}
+	}
+
+	/**
+	 * Runs on the retry thread
+	 */
+	private void retry(final String postApiKey, final CircuitBreaker tenantBreaker, final RetryBudget tenantBudget,
+			final byte[] body, final int retry) {
+		this.retriedPosts.incrementAndGet();
+		CircuitBreaker breaker = this.breakerFor(tenantBreaker);
+		if (!breaker.allowRequest()) {
+			this.shortCircuitedPosts.incrementAndGet();
+			// nothing was posted, so the retry isn't used up; it waits for the breaker to let posts through
+			this.scheduleRetry(postApiKey, tenantBreaker, tenantBudget, body, retry, breaker.getRemainingOpenMillis());
+			return;
+		}
+		if (this.attempt(postApiKey, breaker, body, 0, body.length) == null) {
+			this.scheduleRetry(postApiKey, tenantBreaker, tenantBudget, body, retry + 1, 0);
+		}
+	}
+
+	/**
+	 * Give up on posting a message, keeping it on disk if possible
+	 */
+	private SendResult abandon(final String postApiKey, final byte[] body, final int offset, final int length) {
+		if (this.spill(postApiKey, body, offset, length)) {
+			return SendResult.SPILLED;
+		}
+		this.failedMessages.incrementAndGet();
+		return SendResult.DROPPED;
+	}
+
+	/**
+	 * Stop posting.  Messages waiting for a retry, and any sent from now on, are spilled if spilling is enabled
+	 * and dropped otherwise; posts already in flight finish.
+	 *
+	 * @return how many messages were waiting for a retry
+	 */
+	int close() {
+		this.closed = true;
+		this.retryExecutor.shutdownNow();
+		int abandoned = 0;
+		for (PendingRetry pending : this.retries) {
+			if (this.retries.remove(pending)) {
+				pending.released();
+				this.abandon(pending.postApiKey, pending.body, 0, pending.body.length);
+				abandoned++;
+			}
+		}
+		InFlightExecutor executor = this.asyncExecutor;
+		if (executor != null) {
+			executor.shutdown();
+		}
+		return abandoned;
+	}
+
+	/**
+	 * @return true if the message was written to the spill queue, only ever the case for this sender's own key
+	 */
+	private boolean spill(final String postApiKey, final byte[] body, final int offset, final int length) {
+		DiskSpillQueue spill = this.spillQueue;
+		if (spill != null && this.apiKey != null && this.apiKey.equals(postApiKey) && spill.append(body, offset, length)) {
+			this.spilledMessages.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Start replaying spilled messages on the retry thread, unless that is already happening
+	 */
+	private void scheduleReplay() {
+		if (!this.replaying.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			this.retryExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						replaySpilled();
+					} finally {
+						replaying.set(false);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.replaying.set(false);
+		}
+	}
+
+	/**
+	 * Post spilled messages oldest first until they run out or a post fails; the next successful post starts
+	 * over where this one stopped
+	 */
+	private void replaySpilled() {
+		DiskSpillQueue spill = this.spillQueue;
+		if (spill == null) {
+			return;
+		}
+		byte[] body;
+		while ((body = spill.peek()) != null) {
+			CircuitBreaker breaker = this.circuitBreaker;
+			if (!breaker.allowRequest() || this.attempt(this.apiKey, breaker, body, 0, body.length) == null) {
+				return;
+			}
+			spill.remove();
+			this.replayedMessages.incrementAndGet();
+		}
+	}
+
+	private static byte[] copy(final byte[] body, final int offset, final int length) {
+		byte[] copy = new byte[length];
+		System.arraycopy(body, offset, copy, 0, length);
+		return copy;
+	}
+
+	GatewayTransport getTransport() {
+		return this.transport;
+	}
+
+	void setTransport(final GatewayTransport transport) {
+		this.transport = transport;
+	}
+
+	int getMaxInFlight() {
+		return this.maxInFlight;
+	}
+
+	/**
+	 * Change how many async posts may be in flight at once.  Posts already submitted finish on the old I/O threads.
+	 */
+	synchronized void setMaxInFlight(final int maxInFlight) {
+		InFlightExecutor replaced = this.asyncExecutor;
+		this.asyncExecutor = new InFlightExecutor(maxInFlight);
+		this.maxInFlight = maxInFlight;
+		if (replaced != null) {
+			replaced.shutdown();
+		}
+	}
+
+	/**
+	 * Wait for the async posts already submitted to finish
+	 *
+	 * @return true if they all finished within the timeout
+	 */
+	boolean awaitAsyncSends(final long timeoutMillis) throws InterruptedException {
+		InFlightExecutor executor = this.asyncExecutor;
+		return executor == null || executor.awaitIdle(timeoutMillis);
+	}
+
+	/**
+	 * @return async posts submitted and not finished yet
+	 */
+	int getInFlight() {
+		InFlightExecutor executor = this.asyncExecutor;
+		return executor == null ? 0 : executor.getInFlight();
+	}
+
+	RetryPolicy getRetryPolicy() {
+		return this.retryPolicy;
+	}
+
+	void setRetryPolicy(final RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	DiskSpillQueue getSpillQueue() {
+		return this.spillQueue;
+	}
+
+	/**
+	 * Spill messages that can't be posted to the given queue, and start replaying what it already holds
+	 */
+	void setSpillQueue(final DiskSpillQueue spillQueue) {
+		this.spillQueue = spillQueue;
+		if (spillQueue != null && spillQueue.size() > 0) {
+			this.scheduleReplay();
+		}
+	}
+
+	/**
+	 * @return messages waiting on the retry thread
+	 */
+	int getPendingRetries() {
+		return this.pendingRetries.get();
+	}
+
+	/**
+	 * @return messages the gateway accepted
+	 */
+	long getSentMessages() {
+		return this.sentMessages.get();
+	}
+
+	/**
+	 * @return posts made, or skipped by the breaker, on the retry thread
+	 */
+	long getRetriedPosts() {
+		return this.retriedPosts.get();
+	}
+
+	/**
+	 * @return posts refused by the open breaker
+	 */
+	long getShortCircuitedPosts() {
+		return this.shortCircuitedPosts.get();
+	}
+
+	/**
+	 * @return messages given up on
+	 */
+	long getFailedMessages() {
+		return this.failedMessages.get();
+	}
+
+	/**
+	 * @return messages written to the spill queue
+	 */
+	long getSpilledMessages() {
+		return this.spilledMessages.get();
+	}
+
+	/**
+	 * @return spilled messages posted successfully, or rejected for good, on replay
+	 */
+	long getReplayedMessages() {
+		return this.replayedMessages.get();
+	}
+}
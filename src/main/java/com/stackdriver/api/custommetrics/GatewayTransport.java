@@ -0,0 +1,29 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.IOException;
+
+/**
+ * Moves a serialized message to the Stackdriver gateway.  {@link HttpGatewayTransport} is the one used by default;
+ * plug in your own with {@link CustomMetricsPoster#setTransport(GatewayTransport)}. <br/>
+ * Implementations are called from several threads at once, the caller's, the retry thread and the async I/O
+ * threads, and must be thread safe.
+ */
+public interface GatewayTransport {
+
+	/**
+	 * Post one message and wait for the answer.
+	 *
+	 * @param apiKey
+	 *            API key to authenticate with
+	 * @param body
+	 *            buffer holding the UTF-8 JSON payload, only valid for the duration of the call
+	 * @param offset
+	 *            where the payload starts in the buffer
+	 * @param length
+	 *            payload length in bytes
+	 * @return the HTTP status code the gateway answered with
+	 * @throws IOException
+	 *             if the gateway could not be reached or the connection broke
+	 */
+	int post(String apiKey, byte[] body, int offset, int length) throws IOException;
+}
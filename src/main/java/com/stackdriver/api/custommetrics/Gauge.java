@@ -0,0 +1,46 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the latest value of something sampled, like a queue depth.  Reports one point per interval with the last
+ * value set, and nothing for an interval in which it was not set.
+ */
+public class Gauge extends Metric {
+
+	// a signalling NaN, which set never stores as every NaN is collapsed to the canonical one
+	private static final long NOT_SET = 0x7ff0000000000001L;
+
+	// raw bits of the value set since the last report, or NOT_SET; the value and whether there is one change
+	// together, so a report takes both with a single swap and a value set meanwhile is left for the next one
+	private final AtomicLong pendingBits = new AtomicLong(NOT_SET);
+
+	// bits of the last value set, kept once it is reported
+	private volatile long lastBits;
+
+	Gauge(final String name, final String instanceId) {
+		super(name, instanceId);
+	}
+
+	public void set(final double value) {
+		long bits = Double.doubleToLongBits(value);
+		this.lastBits = bits;
+		this.pendingBits.set(bits);
+	}
+
+	/**
+	 * @return the last value set
+	 */
+	public double getValue() {
+		return Double.longBitsToDouble(this.lastBits);
+	}
+
+	@Override
+	void report(final CustomMetricsMessage message, final Date collectedAt) {
+		long bits = this.pendingBits.getAndSet(NOT_SET);
+		if (bits != NOT_SET) {
+			this.addPoint(message, null, Double.longBitsToDouble(bits), collectedAt);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compresses request bodies with pooled Deflater instances. <br/>
+ * GZIPOutputStream creates a Deflater, and its native zlib state, for every stream it wraps.  Here each pooled
+ * {@link Context} keeps a Deflater, a CRC32 and an output buffer, all reset and reused for the next request, and the
+ * gzip header and trailer are written by hand around raw deflate output.
+ */
+final class GzipCompressor {
+
+	// fixed gzip header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private static final int TRAILER_LENGTH = 8;
+
+	private static final int INITIAL_BUFFER = 1024;
+
+	// an output buffer that grew past this for one big request is dropped when the context goes back to the pool
+	private static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+	private final int level;
+
+	private final BlockingQueue<Context> idle;
+
+	/**
+	 * @param level
+	 *            deflate level, see {@link Deflater}
+	 * @param maxIdle
+	 *            most contexts kept for reuse; more can be in use at once, extras are released when returned
+	 */
+	GzipCompressor(final int level, final int maxIdle) {
+		this.level = level;
+		this.idle = new ArrayBlockingQueue<Context>(maxIdle);
+	}
+
+	/**
+	 * Take a context from the pool, or create one if none is idle
+	 */
+	Context borrow() {
+		Context context = this.idle.poll();
+		return context != null ? context : new Context(this.level);
+	}
+
+	/**
+	 * Give a context back for reuse
+	 */
+	void release(final Context context) {
+		if (context.buffer.length > MAX_RETAINED_BUFFER) {
+			context.buffer = new byte[INITIAL_BUFFER];
+		}
+		if (!this.idle.offer(context)) {
+			context.deflater.end();
+		}
+	}
+
+	/**
+	 * One Deflater with its checksum and output buffer, used by one thread at a time
+	 */
+	static final class Context {
+
+		private final Deflater deflater;
+
+		private final CRC32 crc = new CRC32();
+
+		private byte[] buffer = new byte[INITIAL_BUFFER];
+
+		Context(final int level) {
+			this.deflater = new Deflater(level, true);
+		}
+
+		/**
+		 * Compress a body into this context's buffer
+		 *
+		 * @return the length of the gzip data at the start of {@link #getBuffer()}
+		 */
+		int compress(final byte[] body, final int offset, final int length) {
+			this.deflater.reset();
+			this.crc.reset();
+			this.crc.update(body, offset, length);
+			this.deflater.setInput(body, offset, length);
+			this.deflater.finish();
+
+			// deflate rarely grows incompressible input by more than a few bytes per 16K block
+			this.ensureCapacity(HEADER.length + length + length / 1000 + 64 + TRAILER_LENGTH);
+			System.arraycopy(HEADER, 0, this.buffer, 0, HEADER.length);
+			int count = HEADER.length;
+			while (!this.deflater.finished()) {
+				if (count + TRAILER_LENGTH >= this.buffer.length) {
+					this.ensureCapacity(this.buffer.length * 2);
+				}
+				count += this.deflater.deflate(this.buffer, count, this.buffer.length - count - TRAILER_LENGTH);
+			}
+			count = writeIntLE(this.buffer, count, (int) this.crc.getValue());
+			return writeIntLE(this.buffer, count, length);
+		}
+
+		/**
+		 * @return the buffer holding the last compressed body; valid until the context is reused
+		 */
+		byte[] getBuffer() {
+			return this.buffer;
+		}
+
+		private void ensureCapacity(final int capacity) {
+			if (capacity > this.buffer.length) {
+				byte[] grown = new byte[capacity];
+				System.arraycopy(this.buffer, 0, grown, 0, this.buffer.length);
+				this.buffer = grown;
+			}
+		}
+
+		private static int writeIntLE(final byte[] buffer, final int offset, final int value) {
+			buffer[offset] = (byte) value;
+			buffer[offset + 1] = (byte) (value >>> 8);
+			buffer[offset + 2] = (byte) (value >>> 16);
+			buffer[offset + 3] = (byte) (value >>> 24);
+			return offset + 4;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Posts serialized messages to the Stackdriver gateway over persistent HTTP connections. <br/>
+ * Connection reuse is done by the JDK keep-alive cache, which keeps idle sockets per destination (and proxy) and
+ * evicts them once the keep-alive timeout advertised by the server, or 5 seconds by default, runs out.  A socket
+ * only goes back into that cache if the connection is not disconnected and both the response and error streams
+ * have been read to the end, which is what this class takes care of.  The number of posts in flight is capped at
+ * the pool size so we never open more sockets than the cache will keep; extras would be closed after one use and
+ * pay a new TCP and TLS handshake every time.
+ * <br/>
+ * Optionally, bodies above a size threshold are gzip compressed with pooled Deflaters, see
+ * {@link #enableCompression(int)}.
+ */
+public class HttpGatewayTransport implements GatewayTransport {
+
+	private static final Logger LOGGER = Logger.getLogger(HttpGatewayTransport.class.getName());
+
+	private static final LogThrottle ERROR_RESPONSE_LOG = new LogThrottle();
+
+	/**
+	 * Matches the JDK default for the http.maxConnections system property, which caps idle sockets kept per
+	 * destination.  Raise both together.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 5;
+
+	/**
+	 * Bodies smaller than this are not worth compressing once compression is enabled
+	 */
+	public static final int DEFAULT_COMPRESSION_THRESHOLD_BYTES = 1024;
+
+	private static final int COMPRESSION_DISABLED = -1;
+
+	private static final int DRAIN_BUFFER_SIZE = 512;
+
+	private final URL endpointUrl;
+
+	// may be null for a direct connection
+	private final Proxy proxy;
+
+	private final int timeoutMillis;
+
+	private final int maxConnections;
+
+	// one permit per pooled connection
+	private final Semaphore connectionPermits;
+
+	// one Deflater per connection is enough since compression happens while holding a permit
+	private final GzipCompressor compressor;
+
+	private volatile int compressionThresholdBytes = COMPRESSION_DISABLED;
+
+	// request body bytes written to the socket, after compression
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	/**
+	 * Creates a transport with the default pool size.
+	 *
+	 * @param endpointUrl
+	 *            where the messages will be posted to
+	 * @param proxy
+	 *            HTTP proxy to go through, or null to connect directly
+	 * @param timeoutMillis
+	 *            connect and read timeout for each post
+	 */
+	public HttpGatewayTransport(final URL endpointUrl, final Proxy proxy, final int timeoutMillis) {
+		this(endpointUrl, proxy, timeoutMillis, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * Creates a transport.
+	 *
+	 * @param endpointUrl
+	 *            where the messages will be posted to
+	 * @param proxy
+	 *            HTTP proxy to go through, or null to connect directly
+	 * @param timeoutMillis
+	 *            connect and read timeout for each post
+	 * @param maxConnections
+	 *            most posts in flight at once, and so most sockets kept open
+	 */
+	public HttpGatewayTransport(final URL endpointUrl, final Proxy proxy, final int timeoutMillis, final int maxConnections) {
+		if (endpointUrl == null) {
+			LOGGER.severe("endpoint URL not passed, cannot proceed");
+			throw new IllegalArgumentException("endpointUrl is required for constructing an HttpGatewayTransport");
+		}
+		if (maxConnections <= 0) {
+			LOGGER.severe("invalid maxConnections " + maxConnections);
+			throw new IllegalArgumentException("maxConnections must be positive");
+		}
+		this.endpointUrl = endpointUrl;
+		this.proxy = proxy;
+		this.timeoutMillis = timeoutMillis;
+		this.maxConnections = maxConnections;
+		this.connectionPermits = new Semaphore(maxConnections, true);
+		this.compressor = new GzipCompressor(Deflater.DEFAULT_COMPRESSION, maxConnections);
+	}
+
+	/**
+	 * Gzip request bodies of at least the given size and send them with content-encoding gzip.  Bodies that
+	 * don't get smaller are sent as they are.
+	 *
+	 * @param thresholdBytes
+	 *            smallest body, in bytes, worth compressing
+	 */
+	public void enableCompression(final int thresholdBytes) {
+		if (thresholdBytes < 0) {
+			LOGGER.severe("invalid compression threshold " + thresholdBytes);
+			throw new IllegalArgumentException("thresholdBytes must not be negative");
+		}
+		this.compressionThresholdBytes = thresholdBytes;
+	}
+
+	public void disableCompression() {
+		this.compressionThresholdBytes = COMPRESSION_DISABLED;
+	}
+
+	public boolean isCompressionEnabled() {
+		return this.compressionThresholdBytes != COMPRESSION_DISABLED;
+	}
+
+	/**
+	 * @return smallest body that gets compressed, or -1 if compression is off
+	 */
+	public int getCompressionThresholdBytes() {
+		return this.compressionThresholdBytes;
+	}
+
+	/**
+	 * Post a message body to the gateway, blocking until the response has been read.
+	 *
+	 * @param apiKey
+	 *            API key sent in the x-stackdriver-apikey header
+	 * @param body
+	 *            buffer holding the UTF-8 JSON payload
+	 * @param offset
+	 *            where the payload starts in the buffer
+	 * @param length
+	 *            payload length in bytes
+	 * @return the HTTP response code
+	 * @throws IOException
+	 *             if the gateway could not be reached or the connection broke
+	 */
+	public int post(final String apiKey, final byte[] body, final int offset, final int length) throws IOException {
+		try {
+			this.connectionPermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted waiting for a gateway connection");
+		}
+		try {
+			int threshold = this.compressionThresholdBytes;
+			if (threshold == COMPRESSION_DISABLED || length < threshold) {
+				return this.postOnPooledConnection(apiKey, body, offset, length, false);
+			}
+			GzipCompressor.Context gzip = this.compressor.borrow();
+			try {
+				int compressedLength = gzip.compress(body, offset, length);
+				if (compressedLength >= length) {
+					return this.postOnPooledConnection(apiKey, body, offset, length, false);
+				}
+				return this.postOnPooledConnection(apiKey, gzip.getBuffer(), 0, compressedLength, true);
+			} finally {
+				this.compressor.release(gzip);
+			}
+		} finally {
+			this.connectionPermits.release();
+		}
+	}
+
+	private int postOnPooledConnection(final String apiKey, final byte[] body, final int offset, final int length,
+			final boolean gzipped) throws IOException {
+		HttpURLConnection urlConnection = null;
+		boolean reusable = false;
+		try {
+			if (this.proxy == null) {
+				urlConnection = (HttpURLConnection) this.endpointUrl.openConnection();
+			} else {
+				urlConnection = (HttpURLConnection) this.endpointUrl.openConnection(this.proxy);
+			}
+
+			urlConnection.setRequestMethod("POST");
+			urlConnection.setDoInput(true);
+			urlConnection.setDoOutput(true);
+			urlConnection.setUseCaches(false);
+			urlConnection.setConnectTimeout(this.timeoutMillis);
+			urlConnection.setReadTimeout(this.timeoutMillis);
+			// stream the body instead of letting the connection buffer a copy of it
+			urlConnection.setFixedLengthStreamingMode(length);
+			urlConnection.setRequestProperty("connection", "keep-alive");
+			urlConnection.setRequestProperty("content-type", "application/json; charset=utf-8");
+			urlConnection.setRequestProperty("x-stackdriver-apikey", apiKey);
+			if (gzipped) {
+				urlConnection.setRequestProperty("content-encoding", "gzip");
+			}
+
+			OutputStream os = urlConnection.getOutputStream();
+			os.write(body, offset, length);
+			os.flush();
+			os.close();
+			this.bytesSent.addAndGet(length);
+
+			int responseCode = urlConnection.getResponseCode();
+			if (responseCode >= 300) {
+				// only keep the error text when it is going to be logged
+				long suppressed = ERROR_RESPONSE_LOG.acquire(LOGGER, Level.WARNING);
+				String errorMessage = drain(urlConnection.getErrorStream(), suppressed >= 0);
+				if (suppressed >= 0) {
+					LOGGER.warning("Stackdriver gateway returned a non-200 response: " + responseCode
+							+ (errorMessage != null ? " " + errorMessage : "") + LogThrottle.suppressedNote(suppressed));
+				}
+			} else {
+				drain(urlConnection.getInputStream(), false);
+			}
+			reusable = true;
+			return responseCode;
+		} finally {
+			// only throw the socket away if something went wrong, otherwise it goes back to the keep-alive cache
+			if (!reusable && urlConnection != null) {
+				LOGGER.fine("disconnecting broken connection to Stackdriver gateway");
+				urlConnection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Read a response stream to the end so the socket can be reused, optionally keeping the first line
+	 *
+	 * @return the first line of the stream if asked for, otherwise null
+	 */
+	private static String drain(final InputStream stream, final boolean keepFirstLine) throws IOException {
+		if (stream == null) {
+			return null;
+		}
+		ByteArrayOutputStream firstLine = keepFirstLine ? new ByteArrayOutputStream() : null;
+		boolean lineDone = !keepFirstLine;
+		byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+		try {
+			int read;
+			while ((read = stream.read(buffer)) != -1) {
+				for (int i = 0; i < read && !lineDone; i++) {
+					if (buffer[i] == '\n' || buffer[i] == '\r') {
+						lineDone = true;
+					} else {
+						firstLine.write(buffer[i]);
+					}
+				}
+			}
+		} finally {
+			stream.close();
+		}
+		return firstLine == null ? null : firstLine.toString("UTF-8");
+	}
+
+	/**
+	 * @return request body bytes written to the gateway so far, compressed size for compressed bodies
+	 */
+	public long getBytesSent() {
+		return this.bytesSent.get();
+	}
+
+	public URL getEndpointUrl() {
+		return this.endpointUrl;
+	}
+
+	public Proxy getProxy() {
+		return this.proxy;
+	}
+
+	public int getMaxConnections() {
+		return this.maxConnections;
+	}
+}
@@ -0,0 +1,128 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Runs posts on background I/O threads, at most maxInFlight at a time. <br/>
+ * Submitting returns a future right away while there is room; once maxInFlight posts are in flight the submitting
+ * thread waits for one of them to finish, so a fast producer is slowed down to what the link can take instead of
+ * piling up messages in memory.
+ */
+final class InFlightExecutor {
+
+	private static final Logger LOGGER = Logger.getLogger(InFlightExecutor.class.getName());
+
+	private static final String IO_THREAD_NAME = "stackdriver-metrics-io";
+
+	// I/O threads go away after this long without work
+	private static final long IO_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+	private final int maxInFlight;
+
+	private final Semaphore permits;
+
+	private final ThreadPoolExecutor pool;
+
+	InFlightExecutor(final int maxInFlight) {
+		if (maxInFlight <= 0) {
+			LOGGER.severe("invalid max in flight " + maxInFlight);
+			throw new IllegalArgumentException("maxInFlight must be positive");
+		}
+		this.maxInFlight = maxInFlight;
+		this.permits = new Semaphore(maxInFlight);
+		this.pool = new ThreadPoolExecutor(maxInFlight, maxInFlight, IO_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(final Runnable runnable) {
+						Thread thread = new Thread(runnable, IO_THREAD_NAME);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Run a task on an I/O thread, waiting first if maxInFlight tasks are already running.  If the wait is
+	 * interrupted, or this executor has been shut down, the task runs on the calling thread instead so nothing
+	 * handed in is lost.
+	 */
+	<T> Future<T> submit(final Callable<T> task) {
+		try {
+			this.permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			FutureTask<T> inline = new FutureTask<T>(task);
+			inline.run();
+			return inline;
+		}
+		return this.execute(task);
+	}
+
+	/**
+	 * Run a task on an I/O thread if fewer than maxInFlight tasks are running, without waiting
+	 *
+	 * @return the task's future, or null if maxInFlight tasks are running and the task was not taken
+	 */
+	<T> Future<T> trySubmit(final Callable<T> task) {
+		if (!this.permits.tryAcquire()) {
+			return null;
+		}
+		return this.execute(task);
+	}
+
+	// the caller holds a permit, released when the task is done
+	private <T> Future<T> execute(final Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task) {
+			@Override
+			protected void done() {
+				permits.release();
+			}
+		};
+		try {
+			this.pool.execute(future);
+		} catch (RejectedExecutionException e) {
+			future.run();
+		}
+		return future;
+	}
+
+	/**
+	 * Let the tasks already submitted finish and stop the I/O threads
+	 */
+	void shutdown() {
+		this.pool.shutdown();
+	}
+
+	/**
+	 * Wait for the tasks already submitted to finish
+	 *
+	 * @return true if they all finished within the timeout
+	 */
+	boolean awaitIdle(final long timeoutMillis) throws InterruptedException {
+		if (this.permits.tryAcquire(this.maxInFlight, timeoutMillis, TimeUnit.MILLISECONDS)) {
+			this.permits.release(this.maxInFlight);
+			return true;
+		}
+		return false;
+	}
+
+	int getMaxInFlight() {
+		return this.maxInFlight;
+	}
+
+	/**
+	 * @return tasks submitted and not finished yet
+	 */
+	int getInFlight() {
+		return this.maxInFlight - this.permits.availablePermits();
+	}
+}
@@ -22,15 +22,11 @@ public class InstanceDataPoint extends DataPoint {
 	}
 
 	/**
-	 * Serialize this object to JSON string, so we don't need a Jackson dependency in the project
-	 * <br/>
-	 * Not super robust about special characters, so please don't use them in your names/values
-	 * (quotes/brackets/braces etc) or the gateway will give you a 400 for invalid JSON.
-	 * 
-	 * @return a String in JSON format representing this object
+	 * Adds the instance ID to the JSON written for a plain data point.
+	 * An unset instance ID is written as "null" in quotes, as it always has been.
 	 */
 	@Override
-	public String toJson() {
-		return String.format("{\"name\":\"%s\",\"value\":%f,\"collected_at\":%d, \"instance\": \"%s\"}", this.getName(), this.getValue(), this.getCollectedAtEpoch(), this.getInstanceId());
+	void writeBuiltInJson(final MetricsJsonWriter writer) {
+		writer.writeInstanceDataPoint(this.getName(), this.getValue(), this.getCollectedAtEpoch(), this.getInstanceId());
 	}
 }
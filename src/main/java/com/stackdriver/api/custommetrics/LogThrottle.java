@@ -0,0 +1,56 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rate limit for one place in the code that logs an error, at most {@link DiagnosticLogging#getMaxErrorsPerInterval()}
+ * messages per interval. <br/>
+ * Used as
+ * <pre>
+ * long suppressed = THROTTLE.acquire(LOGGER, Level.WARNING);
+ * if (suppressed &gt;= 0) {
+ *     LOGGER.warning("something failed " + e + LogThrottle.suppressedNote(suppressed));
+ * }
+ * </pre>
+ * so the message is only built when it is actually logged.  Lock free, and nothing is counted while the level is
+ * off.
+ */
+final class LogThrottle {
+
+	private final AtomicLong windowStartMillis = new AtomicLong();
+
+	private final AtomicInteger loggedInWindow = new AtomicInteger();
+
+	private final AtomicLong suppressed = new AtomicLong();
+
+	/**
+	 * Take a slot for one message
+	 *
+	 * @return -1 if the message must not be logged, otherwise how many were suppressed since the last one logged
+	 */
+	long acquire(final Logger logger, final Level level) {
+		if (!logger.isLoggable(level)) {
+			return -1;
+		}
+		long now = System.currentTimeMillis();
+		long start = this.windowStartMillis.get();
+		if (now - start >= DiagnosticLogging.getErrorIntervalMillis() && this.windowStartMillis.compareAndSet(start, now)) {
+			this.loggedInWindow.set(0);
+		}
+		if (this.loggedInWindow.incrementAndGet() > DiagnosticLogging.getMaxErrorsPerInterval()) {
+			this.suppressed.incrementAndGet();
+			return -1;
+		}
+		return this.suppressed.getAndSet(0);
+	}
+
+	/**
+	 * @return text to append to a message logged after others were suppressed
+	 */
+	static String suppressedNote(final long suppressed) {
+		return suppressed == 0 ? "" : " (" + suppressed + " similar messages suppressed)";
+	}
+}
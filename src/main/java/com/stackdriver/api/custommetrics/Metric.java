@@ -0,0 +1,50 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Date;
+
+/**
+ * Base class for the aggregating metrics kept by a {@link MetricsRegistry}.  Each one accumulates observations
+ * for a single series in memory and turns them into one or a few data points per reporting interval.
+ */
+public abstract class Metric {
+
+	private final String name;
+
+	// null when the metric is not tied to an instance
+	private final String instanceId;
+
+	Metric(final String name, final String instanceId) {
+		this.name = name;
+		this.instanceId = instanceId;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public String getInstanceId() {
+		return this.instanceId;
+	}
+
+	/**
+	 * Add the points for everything observed since the last report to a message, and start a new interval
+	 *
+	 * @param message
+	 *            message the points are added to
+	 * @param collectedAt
+	 *            timestamp for the points, the end of the interval
+	 */
+	abstract void report(CustomMetricsMessage message, Date collectedAt);
+
+	/**
+	 * Add a point for this metric's series, or a sub-series with a name suffix
+	 */
+	void addPoint(final CustomMetricsMessage message, final String suffix, final double value, final Date collectedAt) {
+		String pointName = suffix == null ? this.name : this.name + suffix;
+		if (this.instanceId == null) {
+			message.addDataPoint(new DataPoint(pointName, value, collectedAt));
+		} else {
+			message.addDataPoint(new InstanceDataPoint(pointName, value, collectedAt, this.instanceId));
+		}
+	}
+}
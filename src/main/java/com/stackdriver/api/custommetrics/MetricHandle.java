@@ -0,0 +1,82 @@
+package com.stackdriver.api.custommetrics;
+
+/**
+ * A pre-registered metric series to record values against, obtained once from
+ * {@link CustomMetricsPoster#getMetricHandle(String, String)} and kept for reuse. <br/>
+ * The name and instance ID are resolved to a series ID when the handle is created, so recording does no name
+ * hashing.  With batching enabled, recording allocates nothing: the value and a primitive timestamp are queued and
+ * data point objects are only built when the batch is sent.  Without batching every call is sent right away, like
+ * sendMetricDataPoint.  A handle outlives {@link CustomMetricsPoster#retireInstance(String)}: recording after
+ * its instance was retired interns the series anew.
+ */
+public final class MetricHandle {
+
+	private final CustomMetricsPoster poster;
+
+	// written ID first, read key first, so a key that is current always comes with its ID
+	private volatile int seriesId;
+
+	private volatile SeriesKey seriesKey;
+
+	private final String name;
+
+	// null when the series is not tied to an instance
+	private final String instanceId;
+
+	MetricHandle(final CustomMetricsPoster poster, final int seriesId, final SeriesKey seriesKey, final String name,
+			final String instanceId) {
+		this.poster = poster;
+		this.seriesId = seriesId;
+		this.seriesKey = seriesKey;
+		this.name = name;
+		this.instanceId = instanceId;
+	}
+
+	/**
+	 * Record a value collected now, to the second
+	 *
+	 * @param value
+	 *            metric value to report
+	 */
+	public void record(final double value) {
+		this.poster.recordPoint(this, value, CoarseClock.currentTimeMillis());
+	}
+
+	/**
+	 * Record a value collected at some other time
+	 *
+	 * @param value
+	 *            metric value to report
+	 * @param collectedAtMillis
+	 *            when the value was observed, in epoch milliseconds
+	 */
+	public void record(final double value, final long collectedAtMillis) {
+		this.poster.recordPoint(this, value, collectedAtMillis);
+	}
+
+	/**
+	 * @return the ID of this handle's series in the given dictionary, interned again if its instance was retired
+	 */
+	int resolveSeriesId(final SeriesDictionary dictionary) {
+		SeriesKey key = this.seriesKey;
+		int id = this.seriesId;
+		if (dictionary.isCurrent(id, key)) {
+			return id;
+		}
+		id = dictionary.intern(this.name, this.instanceId);
+		this.seriesId = id;
+		this.seriesKey = dictionary.getKey(id);
+		return id;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return the instance this series is bound to, or null for none
+	 */
+	public String getInstanceId() {
+		return this.instanceId;
+	}
+}
@@ -0,0 +1,373 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sits in front of {@link CustomMetricsPoster#sendMetrics(CustomMetricsMessage)} so that recording a data point
+ * never touches the network. <br/>
+ * Points are put on a bounded in-memory queue and a dedicated sender thread coalesces them into multi-point
+ * messages, flushing whenever a batch reaches its size limit or its oldest point reaches its age limit.
+ * When the queue is full the configured {@link OverflowPolicy} decides what happens to the new point.
+ * <br/>
+ * Queued points are kept as primitives, a series ID from the poster's {@link SeriesDictionary}, a value and an
+ * epoch millisecond timestamp, so queueing one allocates nothing.  The sender thread drains them into
+ * {@link PointColumns} and sends column-backed messages, so no data point objects are created at all.
+ * <br/>
+ * The batch limits are either fixed or set by an {@link AdaptiveFlushController}, which the sender thread
+ * consults after every batch.
+ *
+ * @see CustomMetricsPoster#enableBatching()
+ */
+public class MetricsBatcher {
+
+	private static final Logger LOGGER = Logger.getLogger(MetricsBatcher.class.getName());
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+	public static final int DEFAULT_MAX_BATCH_POINTS = 500;
+
+	public static final long DEFAULT_MAX_BATCH_AGE_MILLIS = 1000;
+
+	public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+
+	private static final LogThrottle SEND_ERROR_LOG = new LogThrottle();
+
+	private static final String SENDER_THREAD_NAME = "stackdriver-metrics-sender";
+
+	// longest the sender thread waits on the queue before re-checking whether it has been closed
+	private static final long CLOSE_CHECK_MILLIS = 100;
+
+	// the poster that does the actual sending, called from the sender thread only
+	private final CustomMetricsPoster poster;
+
+	private final SeriesDictionary dictionary;
+
+	private final PointRingBuffer queue;
+
+	private final int maxBatchPoints;
+
+	private final long maxBatchAgeMillis;
+
+	private final OverflowPolicy overflowPolicy;
+
+	// null for fixed batch limits
+	private final AdaptiveFlushController flushController;
+
+	private final AtomicLong droppedPoints = new AtomicLong();
+
+	// the sender thread's, collapses each batch when the poster coalesces
+	private final PointCoalescer coalescer = new PointCoalescer(DEFAULT_MAX_BATCH_POINTS);
+
+	// the poster's stats, which outlive this batcher
+	private final ClientStats stats;
+
+	private final Thread senderThread;
+
+	private volatile boolean running = true;
+
+	// offers past their check of running and not done queueing, the sender thread doesn't stop while there are any
+	private final AtomicInteger offering = new AtomicInteger();
+
+	/**
+	 * Creates a batcher with the default queue size, batch thresholds and overflow policy, and starts its sender
+	 * thread.
+	 *
+	 * @param poster
+	 *            the poster batches will be sent through
+	 */
+	public MetricsBatcher(final CustomMetricsPoster poster) {
+		this(poster, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_POINTS, DEFAULT_MAX_BATCH_AGE_MILLIS, DEFAULT_OVERFLOW_POLICY);
+	}
+
+	/**
+	 * Creates a batcher and starts its sender thread.
+	 *
+	 * @param poster
+	 *            the poster batches will be sent through
+	 * @param queueCapacity
+	 *            maximum number of points waiting to be sent
+	 * @param maxBatchPoints
+	 *            a batch is sent as soon as it holds this many points
+	 * @param maxBatchAgeMillis
+	 *            a batch is sent at the latest this long after its first point was taken off the queue
+	 * @param overflowPolicy
+	 *            what to do with new points when the queue is full
+	 */
+	public MetricsBatcher(final CustomMetricsPoster poster, final int queueCapacity, final int maxBatchPoints,
+			final long maxBatchAgeMillis, final OverflowPolicy overflowPolicy) {
+		this(poster, queueCapacity, maxBatchPoints, maxBatchAgeMillis, overflowPolicy, null);
+	}
+
+	/**
+	 * Creates a batcher whose batch size and age follow an adaptive controller, and starts its sender thread.
+	 *
+	 * @param poster
+	 *            the poster batches will be sent through
+	 * @param queueCapacity
+	 *            maximum number of points waiting to be sent
+	 * @param flushController
+	 *            sets the batch limits from the gateway's latency and errors and the queue depth
+	 * @param overflowPolicy
+	 *            what to do with new points when the queue is full
+	 */
+	public MetricsBatcher(final CustomMetricsPoster poster, final int queueCapacity,
+			final AdaptiveFlushController flushController, final OverflowPolicy overflowPolicy) {
+		this(poster, queueCapacity, DEFAULT_MAX_BATCH_POINTS, DEFAULT_MAX_BATCH_AGE_MILLIS, overflowPolicy,
+				checkController(flushController));
+	}
+
+	private static AdaptiveFlushController checkController(final AdaptiveFlushController flushController) {
+		if (flushController == null) {
+			LOGGER.severe("flush controller not passed, cannot proceed");
+			throw new IllegalArgumentException("flushController is required for an adaptive MetricsBatcher");
+		}
+		return flushController;
+	}
+
+	private MetricsBatcher(final CustomMetricsPoster poster, final int queueCapacity, final int maxBatchPoints,
+			final long maxBatchAgeMillis, final OverflowPolicy overflowPolicy, final AdaptiveFlushController flushController) {
+		if (poster == null) {
+			LOGGER.severe("poster not passed, cannot proceed");
+			throw new IllegalArgumentException("poster is required for constructing a MetricsBatcher");
+		}
+		if (queueCapacity <= 0 || maxBatchPoints <= 0 || maxBatchAgeMillis <= 0) {
+			LOGGER.severe("invalid batching limits queueCapacity=" + queueCapacity + ", maxBatchPoints=" + maxBatchPoints
+					+ ", maxBatchAgeMillis=" + maxBatchAgeMillis);
+			throw new IllegalArgumentException("queueCapacity, maxBatchPoints and maxBatchAgeMillis must all be positive");
+		}
+		if (overflowPolicy == null) {
+			LOGGER.severe("overflow policy not passed, cannot proceed");
+			throw new IllegalArgumentException("overflowPolicy is required for constructing a MetricsBatcher");
+		}
+		this.poster = poster;
+		this.dictionary = poster.getSeriesDictionary();
+		this.stats = poster.getStats();
+		this.queue = new PointRingBuffer(queueCapacity);
+		this.maxBatchPoints = maxBatchPoints;
+		this.maxBatchAgeMillis = maxBatchAgeMillis;
+		this.overflowPolicy = overflowPolicy;
+		this.flushController = flushController;
+		if (flushController != null) {
+			flushController.baseline(this.stats);
+		}
+
+		this.senderThread = new Thread(new Runnable() {
+			public void run() {
+				sendLoop();
+			}
+		}, SENDER_THREAD_NAME);
+		this.senderThread.setDaemon(true);
+		this.senderThread.start();
+	}
+
+	/**
+	 * Queue a data point for sending.  Never blocks unless the overflow policy is {@link OverflowPolicy#BLOCK}.
+	 *
+	 * @param point
+	 *            the data point to send
+	 * @return true if the point was queued, false if it was dropped, as it is once the batcher is closed
+	 */
+	public boolean offer(final DataPoint point) {
+		if (point == null) {
+			LOGGER.severe("can't queue a missing data point");
+			throw new IllegalArgumentException("point is required for MetricsBatcher.offer");
+		}
+		if (point.getCollectedAt() == null) {
+			LOGGER.severe("can't queue data point without a collectedAt date");
+			throw new IllegalArgumentException("collectedAt is required for MetricsBatcher.offer");
+		}
+		String instanceId = point instanceof InstanceDataPoint ? ((InstanceDataPoint) point).getInstanceId() : null;
+		return this.offer(this.dictionary.intern(point.getName(), instanceId), point.getValue(), point.getCollectedAt().getTime());
+	}
+
+	/**
+	 * Queue a point for an interned series.  This is the allocation free path used by {@link MetricHandle}.
+	 *
+	 * @param seriesId
+	 *            ID of the series in the poster's dictionary
+	 * @param value
+	 *            metric value
+	 * @param collectedAtMillis
+	 *            when the value was observed, in epoch milliseconds
+	 * @return true if the point was queued, false if it was dropped, as it is once the batcher is closed
+	 */
+	public boolean offer(final int seriesId, final double value, final long collectedAtMillis) {
+		this.offering.incrementAndGet();
+		try {
+			if (!this.running) {
+				// a recording thread racing a close, count the point like any other dropped one
+				this.pointDropped();
+				return false;
+			}
+			return this.enqueue(seriesId, value, collectedAtMillis);
+		} finally {
+			this.offering.decrementAndGet();
+		}
+	}
+
+	private boolean enqueue(final int seriesId, final double value, final long collectedAtMillis) {
+		switch (this.overflowPolicy) {
+		case DROP_NEWEST:
+			if (this.queue.offer(seriesId, value, collectedAtMillis)) {
+				return true;
+			}
+			this.pointDropped();
+			return false;
+		case DROP_OLDEST:
+			if (this.queue.offerEvictingOldest(seriesId, value, collectedAtMillis)) {
+				this.pointDropped();
+			}
+			return true;
+		default:
+			try {
+				this.queue.put(seriesId, value, collectedAtMillis);
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				this.pointDropped();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting points and wait for the sender thread to send everything already queued.
+	 *
+	 * @param timeoutMillis
+	 *            how long to wait for the queue to drain
+	 * @return true if everything queued was posted within the timeout
+	 */
+	public boolean close(final long timeoutMillis) {
+		this.running = false;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		try {
+			this.senderThread.join(timeoutMillis);
+			if (this.senderThread.isAlive()) {
+				return false;
+			}
+			// the last batches may still be on their way to the gateway
+			return this.poster.awaitAsyncSends(Math.max(1, deadline - System.currentTimeMillis()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void pointDropped() {
+		this.droppedPoints.incrementAndGet();
+		this.stats.pointDropped();
+	}
+
+	/**
+	 * @return the number of points discarded because the queue was full or the batcher closed
+	 */
+	public long getDroppedPoints() {
+		return this.droppedPoints.get();
+	}
+
+	/**
+	 * @return the number of points waiting for the sender thread
+	 */
+	public int getQueueDepth() {
+		return this.queue.size();
+	}
+
+	public boolean isRunning() {
+		return this.running;
+	}
+
+	/**
+	 * @return points a batch holds before it is sent, the controller's current setting when adaptive
+	 */
+	public int getMaxBatchPoints() {
+		return this.flushController == null ? this.maxBatchPoints : this.flushController.getBatchPoints();
+	}
+
+	/**
+	 * @return how long a batch waits for more points, the controller's current setting when adaptive
+	 */
+	public long getMaxBatchAgeMillis() {
+		return this.flushController == null ? this.maxBatchAgeMillis : this.flushController.getFlushIntervalMillis();
+	}
+
+	/**
+	 * @return the controller setting the batch limits, or null if they are fixed
+	 */
+	public AdaptiveFlushController getFlushController() {
+		return this.flushController;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return this.overflowPolicy;
+	}
+
+	/**
+	 * Body of the sender thread.  Keeps going after close until the queue is empty and no offer is under way.
+	 */
+	void sendLoop() {
+		// an offer that saw the batcher running is counted in offering until its point is queued, so it is read
+		// after running and before the queue
+		while (this.running || this.offering.get() > 0 || this.queue.size() > 0) {
+			// read once per batch, an adaptive controller changes them between batches
+			int batchPoints = this.getMaxBatchPoints();
+			long batchAgeMillis = this.getMaxBatchAgeMillis();
+			PointColumns batch = null;
+			try {
+				if (!this.queue.awaitNotEmpty(Math.min(batchAgeMillis, CLOSE_CHECK_MILLIS))) {
+					if (this.offering.get() == 0) {
+						// every point queued so far has been sent, their series IDs with them
+						this.poster.reclaimRetiredSeries();
+					}
+					continue;
+				}
+				batch = new PointColumns(this.dictionary, batchPoints);
+				this.queue.drainTo(batch, batchPoints);
+				long deadline = System.currentTimeMillis() + batchAgeMillis;
+				// top the batch up until it is full, the deadline passes, or the batcher is closed
+				while (batch.size() < batchPoints && this.running) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						break;
+					}
+					this.queue.awaitNotEmpty(Math.min(remaining, CLOSE_CHECK_MILLIS));
+					this.queue.drainTo(batch, batchPoints - batch.size());
+				}
+			} catch (InterruptedException e) {
+				LOGGER.warning("metrics sender thread interrupted, sending what is queued");
+				this.running = false;
+				if (batch == null) {
+					batch = new PointColumns(this.dictionary, batchPoints);
+				}
+			}
+			this.queue.drainTo(batch, batchPoints - batch.size());
+			if (batch.size() > 0 && this.poster.isCoalescing()) {
+				int coalesced = this.coalescer.coalesce(batch);
+				if (coalesced > 0) {
+					this.stats.pointsCoalesced(coalesced);
+				}
+			}
+			if (batch.size() > 0) {
+				this.sendBatch(batch);
+				if (this.flushController != null) {
+					this.flushController.batchSent(this.stats, this.queue.size(), batch.size());
+				}
+			}
+		}
+	}
+
+	private void sendBatch(final PointColumns batch) {
+		try {
+			// only waits on the network once the poster's maximum of posts is in flight
+			this.poster.sendMetricsAsync(new CustomMetricsMessage(batch));
+		} catch (RuntimeException e) {
+			long suppressed = SEND_ERROR_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("Error sending batch of " + batch.size() + " points " + e.toString()
+						+ LogThrottle.suppressedNote(suppressed));
+			}
+		}
+	}
+}
@@ -0,0 +1,462 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Streams gateway messages as UTF-8 JSON into a reusable byte buffer, without going through String.format or
+ * building intermediate Strings. <br/>
+ * The output is byte for byte what the original String.format based toJson methods produced for valid names and
+ * values: doubles are written like "%f" (six decimals, half-up rounding) and longs like "%d".  Unlike the old
+ * serializer, quotes, backslashes and control characters in names and instance IDs are escaped.
+ * <br/>
+ * A message or data point whose class overrides toJson is written as its toJson returns it, so subclasses
+ * written against the String based serializer keep working.
+ * <br/>
+ * Not thread safe; keep one per thread and call {@link #reset()} between messages.
+ */
+public class MetricsJsonWriter {
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	// a buffer that grew past this for one big message is dropped on reset instead of being kept forever
+	private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+
+	// values below this can be scaled to micros with an error far smaller than the half-way guard below
+	private static final double FAST_PATH_LIMIT = 1e7;
+
+	// how close to a rounding tie the fast path is allowed to get before deferring to exact decimal rounding
+	private static final double HALF_WAY_GUARD = 0.01;
+
+	private static final int MICROS_PER_UNIT = 1000000;
+
+	private static final byte[] HEX_DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	// whether a subclass overrides toJson, weakly keyed so an application's classes can still be unloaded
+	private static final Map<Class<?>, Boolean> OWN_TO_JSON = Collections.synchronizedMap(new WeakHashMap<Class<?>, Boolean>());
+
+	private final int initialCapacity;
+
+	private byte[] buffer;
+
+	private int count;
+
+	public MetricsJsonWriter() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public MetricsJsonWriter(final int initialCapacity) {
+		this.initialCapacity = initialCapacity;
+		this.buffer = new byte[initialCapacity];
+	}
+
+	/**
+	 * Empty the buffer so the writer can be used for the next message
+	 */
+	public void reset() {
+		if (this.buffer.length > MAX_RETAINED_CAPACITY) {
+			this.buffer = new byte[this.initialCapacity];
+		}
+		this.count = 0;
+	}
+
+	/**
+	 * @return number of bytes written since the last reset
+	 */
+	public int size() {
+		return this.count;
+	}
+
+	/**
+	 * The backing buffer, valid from 0 to {@link #size()}.  Only good until the next write or reset.
+	 *
+	 * @return the backing buffer
+	 */
+	public byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	/**
+	 * @return a copy of what has been written, for keeping past the next reset
+	 */
+	public byte[] toByteArray() {
+		byte[] copy = new byte[this.count];
+		System.arraycopy(this.buffer, 0, copy, 0, this.count);
+		return copy;
+	}
+
+	/**
+	 * Copy what has been written to a stream, such as the HTTP connection's
+	 *
+	 * @param out
+	 *            stream to write to
+	 * @throws IOException
+	 *             if the stream does
+	 */
+	public void writeTo(final OutputStream out) throws IOException {
+		out.write(this.buffer, 0, this.count);
+	}
+
+	/**
+	 * @return what has been written, decoded back to a String
+	 */
+	@Override
+	public String toString() {
+		try {
+			return new String(this.buffer, 0, this.count, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// every JVM is required to support UTF-8
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Write a whole message with all its data points
+	 *
+	 * @param message
+	 *            the message to serialize
+	 */
+	public void writeMessage(final CustomMetricsMessage message) {
+		this.writeMessage(message, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Write a message holding a run of the given message's data points, as many as fit within both limits.  The
+	 * size is checked as each point is written and a point that would go over is taken back out, so the message is
+	 * serialized once.  A single point bigger than maxBytes on its own is still written, alone.  A message whose
+	 * class overrides {@link CustomMetricsMessage#toJson()} is written whole, as that returns it.
+	 *
+	 * @param message
+	 *            the message to serialize
+	 * @param fromPoint
+	 *            index of the first data point to write
+	 * @param maxPoints
+	 *            most data points to write
+	 * @param maxBytes
+	 *            most bytes to write, the message's own framing included
+	 * @return index of the first data point not written, the point count if all were
+	 */
+	public int writeMessage(final CustomMetricsMessage message, final int fromPoint, final int maxPoints, final int maxBytes) {
+		if (hasOwnToJson(message.getClass())) {
+			this.writeRaw(message.toJson());
+			return message.getPointCount();
+		}
+		return this.writeBuiltInMessage(message, fromPoint, maxPoints, maxBytes);
+	}
+
+	/**
+	 * What {@link #writeMessage(CustomMetricsMessage, int, int, int)} writes for a message without a toJson of
+	 * its own
+	 */
+	int writeBuiltInMessage(final CustomMetricsMessage message, final int fromPoint, final int maxPoints, final int maxBytes) {
+		int start = this.count;
+		this.writeAscii("{\"timestamp\":");
+		this.writeLong(message.getTimestamp());
+		this.writeAscii(",\"proto_version\":");
+		this.writeLong(message.getProtocolVersion());
+		this.writeAscii(",\"data\":[");
+		// what the closing bracket and brace will take
+		int limit = maxBytes - 2;
+		int written = 0;
+		int next = fromPoint;
+		PointColumns columns = message.getColumns();
+		if (columns != null) {
+			// straight from the arrays, no DataPoint objects
+			for (; next < columns.size() && written < maxPoints; next++) {
+				int mark = this.count;
+				if (written > 0) {
+					this.writeByte(',');
+				}
+				columns.writeJson(next, this);
+				if (written > 0 && this.count - start > limit) {
+					this.count = mark;
+					break;
+				}
+				written++;
+			}
+		} else {
+			Iterator<DataPoint> points = message.getDataPoints().listIterator(fromPoint);
+			while (points.hasNext() && written < maxPoints) {
+				int mark = this.count;
+				if (written > 0) {
+					this.writeByte(',');
+				}
+				points.next().writeJson(this);
+				if (written > 0 && this.count - start > limit) {
+					this.count = mark;
+					break;
+				}
+				written++;
+				next++;
+			}
+		}
+		this.writeAscii("]}");
+		return next;
+	}
+
+	/**
+	 * Write one data point object not tied to an instance
+	 *
+	 * @param name
+	 *            metric name
+	 * @param value
+	 *            metric value
+	 * @param collectedAtEpoch
+	 *            Unix timestamp in seconds
+	 */
+	public void writeDataPoint(final String name, final double value, final long collectedAtEpoch) {
+		this.writePointFields(name, value, collectedAtEpoch);
+		this.writeByte('}');
+	}
+
+	/**
+	 * Write one data point object bound to an instance
+	 *
+	 * @param name
+	 *            metric name
+	 * @param value
+	 *            metric value
+	 * @param collectedAtEpoch
+	 *            Unix timestamp in seconds
+	 * @param instanceId
+	 *            instance the point is bound to
+	 */
+	public void writeInstanceDataPoint(final String name, final double value, final long collectedAtEpoch, final String instanceId) {
+		this.writePointFields(name, value, collectedAtEpoch);
+		// the spaces match what the gateway has always been sent for instance points
+		this.writeAscii(", \"instance\": ");
+		this.writeString(instanceId);
+		this.writeByte('}');
+	}
+
+	private void writePointFields(final String name, final double value, final long collectedAtEpoch) {
+		this.writeAscii("{\"name\":");
+		this.writeString(name);
+		this.writeAscii(",\"value\":");
+		this.writeDouble(value);
+		this.writeAscii(",\"collected_at\":");
+		this.writeLong(collectedAtEpoch);
+	}
+
+	/**
+	 * Write a quoted, escaped JSON string.  A null is written as "null" in quotes, like String.format did.
+	 *
+	 * @param value
+	 *            the string to write
+	 */
+	public void writeString(final String value) {
+		String text = value == null ? "null" : value;
+		int length = text.length();
+		// worst case is six bytes per char for a \\u escape, plus the quotes
+		this.ensureCapacity(length * 6 + 2);
+		byte[] buf = this.buffer;
+		int pos = this.count;
+		buf[pos++] = '"';
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+				buf[pos++] = (byte) c;
+			} else if (c == '"' || c == '\\') {
+				buf[pos++] = '\\';
+				buf[pos++] = (byte) c;
+			} else if (c < 0x20) {
+				pos = escapeControl(buf, pos, c);
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xc0 | (c >> 6));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				buf[pos++] = (byte) (0xf0 | (codePoint >> 18));
+				buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				// unpaired surrogate, replaced the same way String.getBytes("UTF-8") does
+				buf[pos++] = '?';
+			} else {
+				buf[pos++] = (byte) (0xe0 | (c >> 12));
+				buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		buf[pos++] = '"';
+		this.count = pos;
+	}
+
+	private static int escapeControl(final byte[] buf, final int start, final char c) {
+		int pos = start;
+		buf[pos++] = '\\';
+		switch (c) {
+		case '\n':
+			buf[pos++] = 'n';
+			break;
+		case '\r':
+			buf[pos++] = 'r';
+			break;
+		case '\t':
+			buf[pos++] = 't';
+			break;
+		case '\b':
+			buf[pos++] = 'b';
+			break;
+		case '\f':
+			buf[pos++] = 'f';
+			break;
+		default:
+			buf[pos++] = 'u';
+			buf[pos++] = '0';
+			buf[pos++] = '0';
+			buf[pos++] = HEX_DIGITS[c >> 4];
+			buf[pos++] = HEX_DIGITS[c & 0xf];
+		}
+		return pos;
+	}
+
+	/**
+	 * Write a long the way "%d" would
+	 *
+	 * @param value
+	 *            the number to write
+	 */
+	public void writeLong(final long value) {
+		if (value == Long.MIN_VALUE) {
+			this.writeAscii("-9223372036854775808");
+			return;
+		}
+		this.ensureCapacity(20);
+		long remaining = value;
+		if (remaining < 0) {
+			this.buffer[this.count++] = '-';
+			remaining = -remaining;
+		}
+		int digits = 1;
+		for (long limit = 10; digits < 19 && remaining >= limit; limit *= 10) {
+			digits++;
+		}
+		int pos = this.count + digits;
+		this.count = pos;
+		do {
+			this.buffer[--pos] = (byte) ('0' + (remaining % 10));
+			remaining /= 10;
+		} while (remaining > 0);
+	}
+
+	/**
+	 * Write a double the way "%f" would: six decimals, rounded half-up from the shortest decimal representation.
+	 *
+	 * @param value
+	 *            the number to write
+	 */
+	public void writeDouble(final double value) {
+		if (Double.isNaN(value)) {
+			this.writeAscii("NaN");
+			return;
+		}
+		if (Double.isInfinite(value)) {
+			this.writeAscii(value > 0 ? "Infinity" : "-Infinity");
+			return;
+		}
+		double magnitude = Math.abs(value);
+		if (Double.doubleToRawLongBits(value) < 0) {
+			// includes -0.0, which "%f" also writes with a sign
+			this.writeByte('-');
+		}
+
+		if (magnitude < FAST_PATH_LIMIT) {
+			double scaled = magnitude * MICROS_PER_UNIT;
+			long whole = (long) scaled;
+			double fraction = scaled - whole;
+			if (Math.abs(fraction - 0.5) > HALF_WAY_GUARD) {
+				long micros = fraction > 0.5 ? whole + 1 : whole;
+				this.writeLong(micros / MICROS_PER_UNIT);
+				this.writeFraction((int) (micros % MICROS_PER_UNIT));
+				return;
+			}
+		}
+		// huge values, or too close to a rounding tie to trust binary arithmetic
+		this.writeAscii(new BigDecimal(Double.toString(magnitude)).setScale(6, RoundingMode.HALF_UP).toPlainString());
+	}
+
+	private void writeFraction(final int micros) {
+		this.ensureCapacity(7);
+		byte[] buf = this.buffer;
+		int pos = this.count;
+		buf[pos] = '.';
+		int remaining = micros;
+		for (int i = 6; i > 0; i--) {
+			buf[pos + i] = (byte) ('0' + (remaining % 10));
+			remaining /= 10;
+		}
+		this.count = pos + 7;
+	}
+
+	/**
+	 * Write JSON produced elsewhere, a subclass's toJson, as UTF-8 without quoting or escaping
+	 */
+	void writeRaw(final String json) {
+		byte[] bytes;
+		try {
+			bytes = json.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// every JVM is required to support UTF-8
+			throw new IllegalStateException(e);
+		}
+		this.ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, this.buffer, this.count, bytes.length);
+		this.count += bytes.length;
+	}
+
+	/**
+	 * @return true if the given DataPoint or CustomMetricsMessage class has a toJson other than this library's
+	 */
+	static boolean hasOwnToJson(final Class<?> type) {
+		if (type == CustomMetricsMessage.class || type == DataPoint.class || type == InstanceDataPoint.class) {
+			return false;
+		}
+		Boolean own = OWN_TO_JSON.get(type);
+		if (own == null) {
+			Class<?> declaring;
+			try {
+				declaring = type.getMethod("toJson").getDeclaringClass();
+			} catch (NoSuchMethodException e) {
+				// both base classes declare it
+				throw new IllegalStateException(e);
+			}
+			own = Boolean.valueOf(declaring != CustomMetricsMessage.class && declaring != DataPoint.class);
+			OWN_TO_JSON.put(type, own);
+		}
+		return own.booleanValue();
+	}
+
+	/**
+	 * Write a string known to be plain ASCII, without quoting or escaping
+	 */
+	void writeAscii(final String text) {
+		int length = text.length();
+		this.ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			this.buffer[this.count++] = (byte) text.charAt(i);
+		}
+	}
+
+	void writeByte(final char c) {
+		this.ensureCapacity(1);
+		this.buffer[this.count++] = (byte) c;
+	}
+
+	private void ensureCapacity(final int extra) {
+		int needed = this.count + extra;
+		if (needed > this.buffer.length) {
+			byte[] grown = new byte[Math.max(needed, this.buffer.length * 2)];
+			System.arraycopy(this.buffer, 0, grown, 0, this.count);
+			this.buffer = grown;
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Pre-aggregates metrics in memory so a hot metric costs one data point per reporting interval instead of one per
+ * observation. <br/>
+ * Counters, gauges and timers are created on first use and keyed by metric name and optional instance ID.  At the
+ * end of each interval a background thread collects what every metric saw during the interval into a single
+ * message and sends it through {@link CustomMetricsPoster#sendMetrics(CustomMetricsMessage)}.
+ */
+public class MetricsRegistry {
+
+	private static final Logger LOGGER = Logger.getLogger(MetricsRegistry.class.getName());
+
+	public static final long DEFAULT_REPORTING_INTERVAL_MILLIS = 60000;
+
+	private static final String REPORTER_THREAD_NAME = "stackdriver-metrics-reporter";
+
+	private final CustomMetricsPoster poster;
+
+	private final long reportingIntervalMillis;
+
+	private final ConcurrentMap<SeriesKey, Metric> metrics = new ConcurrentHashMap<SeriesKey, Metric>();
+
+	private final ScheduledExecutorService reporter;
+
+	/**
+	 * Creates a registry that reports once a minute.
+	 *
+	 * @param poster
+	 *            the poster reports are sent through
+	 */
+	public MetricsRegistry(final CustomMetricsPoster poster) {
+		this(poster, DEFAULT_REPORTING_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Creates a registry and starts its reporting thread.
+	 *
+	 * @param poster
+	 *            the poster reports are sent through
+	 * @param reportingIntervalMillis
+	 *            how often aggregated values are sent
+	 */
+	public MetricsRegistry(final CustomMetricsPoster poster, final long reportingIntervalMillis) {
+		if (poster == null) {
+			LOGGER.severe("poster not passed, cannot proceed");
+			throw new IllegalArgumentException("poster is required for constructing a MetricsRegistry");
+		}
+		if (reportingIntervalMillis <= 0) {
+			LOGGER.severe("invalid reporting interval " + reportingIntervalMillis);
+			throw new IllegalArgumentException("reportingIntervalMillis must be positive");
+		}
+		this.poster = poster;
+		this.reportingIntervalMillis = reportingIntervalMillis;
+
+		this.reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable, REPORTER_THREAD_NAME);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				report();
+			}
+		}, reportingIntervalMillis, reportingIntervalMillis, TimeUnit.MILLISECONDS);
+		poster.attach(this);
+	}
+
+	public Counter counter(final String name) {
+		return this.counter(name, null);
+	}
+
+	/**
+	 * Get the counter for a series, creating it on first use
+	 *
+	 * @param name
+	 *            metric name
+	 * @param instanceId
+	 *            instance the metric is bound to, or null for none
+	 * @return the counter, shared by everyone asking for the same series
+	 */
+	public Counter counter(final String name, final String instanceId) {
+		return this.getOrCreate(Counter.class, name, instanceId);
+	}
+
+	public Gauge gauge(final String name) {
+		return this.gauge(name, null);
+	}
+
+	/**
+	 * Get the gauge for a series, creating it on first use
+	 *
+	 * @param name
+	 *            metric name
+	 * @param instanceId
+	 *            instance the metric is bound to, or null for none
+	 * @return the gauge, shared by everyone asking for the same series
+	 */
+	public Gauge gauge(final String name, final String instanceId) {
+		return this.getOrCreate(Gauge.class, name, instanceId);
+	}
+
+	public Timer timer(final String name) {
+		return this.timer(name, null);
+	}
+
+	/**
+	 * Get the timer for a series, creating it on first use
+	 *
+	 * @param name
+	 *            metric name
+	 * @param instanceId
+	 *            instance the metric is bound to, or null for none
+	 * @return the timer, shared by everyone asking for the same series
+	 */
+	public Timer timer(final String name, final String instanceId) {
+		return this.getOrCreate(Timer.class, name, instanceId);
+	}
+
+	/**
+	 * Send what every metric has collected since the last report now, instead of waiting for the interval to end.
+	 * Called by the reporting thread at the end of every interval.
+	 */
+	public void report() {
+		CustomMetricsMessage message = this.collect();
+		if (message == null) {
+			return;
+		}
+		try {
+			this.poster.sendMetrics(message);
+		} catch (RuntimeException e) {
+			LOGGER.severe("Error sending aggregated metrics " + e.toString());
+		}
+	}
+
+	/**
+	 * @return what every metric collected since the last report, or null if nothing
+	 */
+	CustomMetricsMessage collect() {
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		Date collectedAt = new Date(System.currentTimeMillis());
+		for (Metric metric : this.metrics.values()) {
+			metric.report(message, collectedAt);
+		}
+		return message.getDataPoints().isEmpty() ? null : message;
+	}
+
+	/**
+	 * Stop the reporting thread and send what was collected in the last, partial interval.  Waits up to a
+	 * reporting interval for a report already being sent.
+	 */
+	public void close() {
+		this.close(this.reportingIntervalMillis);
+	}
+
+	/**
+	 * Stop the reporting thread and send what was collected in the last, partial interval.  The poster closes
+	 * the registries reporting through it the same way, see {@link CustomMetricsPoster#close(long)}.
+	 *
+	 * @param timeoutMillis
+	 *            how long to wait for a report already being sent
+	 * @return true if the reporting thread stopped within the timeout
+	 */
+	public boolean close(final long timeoutMillis) {
+		boolean stopped = this.stopReporting(timeoutMillis);
+		this.report();
+		return stopped;
+	}
+
+	/**
+	 * Stop the reporting thread and let go of the poster, which no longer closes this registry
+	 *
+	 * @return true if the thread stopped within the timeout
+	 */
+	boolean stopReporting(final long timeoutMillis) {
+		this.reporter.shutdown();
+		this.poster.detach(this);
+		try {
+			return this.reporter.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @return every metric created so far
+	 */
+	public Collection<Metric> getMetrics() {
+		return this.metrics.values();
+	}
+
+	public long getReportingIntervalMillis() {
+		return this.reportingIntervalMillis;
+	}
+
+	/**
+	 * Add a metric built outside the registry, reported along with the others
+	 */
+	void register(final Metric metric) {
+		SeriesKey key = new SeriesKey(metric.getName(), metric.getInstanceId());
+		Metric existing = this.metrics.putIfAbsent(key, metric);
+		if (existing != null) {
+			LOGGER.severe("metric " + key + " is already registered as a " + existing.getClass().getSimpleName());
+			throw new IllegalArgumentException("metric " + key + " is already registered as a " + existing.getClass().getSimpleName());
+		}
+	}
+
+	private <T extends Metric> T getOrCreate(final Class<T> type, final String name, final String instanceId) {
+		if (name == null || name.length() == 0) {
+			LOGGER.severe("metric name not passed, cannot proceed");
+			throw new IllegalArgumentException("name is required for a registry metric");
+		}
+		SeriesKey key = new SeriesKey(name, instanceId);
+		Metric metric = this.metrics.get(key);
+		if (metric == null) {
+			Metric created = newMetric(type, name, instanceId);
+			metric = this.metrics.putIfAbsent(key, created);
+			if (metric == null) {
+				metric = created;
+			}
+		}
+		if (!type.isInstance(metric)) {
+			LOGGER.severe("metric " + key + " is already registered as a " + metric.getClass().getSimpleName());
+			throw new IllegalArgumentException("metric " + key + " is already registered as a " + metric.getClass().getSimpleName());
+		}
+		return type.cast(metric);
+	}
+
+	private static Metric newMetric(final Class<? extends Metric> type, final String name, final String instanceId) {
+		if (type == Counter.class) {
+			return new Counter(name, instanceId);
+		} else if (type == Gauge.class) {
+			return new Gauge(name, instanceId);
+		}
+		return new Timer(name, instanceId);
+	}
+}
@@ -0,0 +1,620 @@
+package com.stackdriver.api.custommetrics;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Posts data points for many Stackdriver accounts, each with its own API key, through one shared pipeline. <br/>
+ * A {@link CustomMetricsPoster} per account means a connection pool, a retry thread and a batcher thread per
+ * account.  Here every point is tagged with the API key it belongs to and queued per key, and a single dispatcher
+ * thread turns the queues into batches and posts them over one {@link GatewayTransport}, with one set of I/O
+ * threads and one retry thread.  The key only decides the x-stackdriver-apikey header, so all accounts share the
+ * same kept-alive connections.
+ * <br/>
+ * Keys are served round robin, one batch per key per turn, so a key with a deep backlog can't hold up the
+ * others.  Each key has its own limits: a bounded queue with an {@link OverflowPolicy}, a cap on its posts in
+ * flight, a cap on its messages waiting for a retry and its own {@link CircuitBreaker}, so one throttled account
+ * doesn't open the circuit, or fill the retry thread, for everybody.
+ * <br/>
+ * Messages that run out of retries are dropped; spilling to disk is only available on a single key poster.
+ */
+public class MultiTenantMetricsPoster {
+
+	private static final Logger LOGGER = Logger.getLogger(MultiTenantMetricsPoster.class.getName());
+
+	/**
+	 * Queued points per API key; kept small as there may be thousands of keys, each with its queue allocated up front
+	 */
+	public static final int DEFAULT_TENANT_QUEUE_CAPACITY = 1000;
+
+	public static final int DEFAULT_MAX_IN_FLIGHT_PER_TENANT = 1;
+
+	public static final int DEFAULT_MAX_PENDING_RETRIES_PER_TENANT = 100;
+
+	private static final LogThrottle SEND_ERROR_LOG = new LogThrottle();
+
+	private static final LogThrottle CLOSED_LOG = new LogThrottle();
+
+	private static final String DISPATCHER_THREAD_NAME = "stackdriver-metrics-tenants";
+
+	// longest the dispatcher sleeps before looking for batches that reached their age
+	private static final long IDLE_CHECK_MILLIS = 100;
+
+	// while closing, how long to wait for a key that is at its limit of posts in flight
+	private static final long CLOSE_RETRY_MILLIS = 1;
+
+	private final GatewayTransport transport;
+
+	// posts for every key, with the key passed along
+	private final GatewaySender sender;
+
+	private final ClientStats stats = new ClientStats(null);
+
+	private final InFlightExecutor ioExecutor;
+
+	private final int tenantQueueCapacity;
+
+	private final int maxBatchPoints;
+
+	private final long maxBatchAgeMillis;
+
+	private final OverflowPolicy overflowPolicy;
+
+	// queue depth at which the dispatcher is woken rather than left to find the batch on its next check
+	private final int wakeupDepth;
+
+	private volatile int maxInFlightPerTenant = DEFAULT_MAX_IN_FLIGHT_PER_TENANT;
+
+	private volatile int maxPendingRetriesPerTenant = DEFAULT_MAX_PENDING_RETRIES_PER_TENANT;
+
+	private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<String, Tenant>();
+
+	// keys that got their first queued point since the dispatcher last looked
+	private final ConcurrentLinkedQueue<Tenant> newlyScheduled = new ConcurrentLinkedQueue<Tenant>();
+
+	private final Thread dispatcherThread;
+
+	private volatile boolean running = true;
+
+	// records past their check of running and not done queueing, the dispatcher doesn't stop while there are any
+	private final AtomicInteger recording = new AtomicInteger();
+
+	/**
+	 * Per key state
+	 */
+	private static final class Tenant {
+
+		final String apiKey;
+
+		// names are interned per key, so one account's series don't grow every other account's dictionary
+		final SeriesDictionary dictionary = new SeriesDictionary();
+
+		final PointRingBuffer queue;
+
+		final CircuitBreaker breaker = new CircuitBreaker();
+
+		final RetryBudget retries;
+
+		// set while the dispatcher has this key in its rotation
+		final AtomicBoolean scheduled = new AtomicBoolean();
+
+		final AtomicInteger inFlight = new AtomicInteger();
+
+		final AtomicLong droppedPoints = new AtomicLong();
+
+		// serialized chunks of a batch still waiting for an I/O thread, the dispatcher's only
+		final ArrayDeque<byte[]> unposted = new ArrayDeque<byte[]>();
+
+		// when the dispatcher sends a partial batch for this key, written before the key is put in rotation
+		volatile long dueMillis;
+
+		volatile boolean removed;
+
+		Tenant(final String apiKey, final int queueCapacity, final int maxPendingRetries) {
+			this.apiKey = apiKey;
+			this.queue = new PointRingBuffer(queueCapacity);
+			this.retries = new RetryBudget(maxPendingRetries);
+		}
+	}
+
+	/**
+	 * Creates a poster for the default Stackdriver endpoint with the default limits.
+	 */
+	public MultiTenantMetricsPoster() {
+		this(CustomMetricsPoster.DEFAULT_ENDPOINT_URL);
+	}
+
+	/**
+	 * Creates a poster for another endpoint with the default limits.
+	 *
+	 * @param endpointUrl
+	 *            where the messages will be posted to
+	 */
+	public MultiTenantMetricsPoster(final String endpointUrl) {
+		this(newTransport(endpointUrl));
+	}
+
+	/**
+	 * Creates a poster with the default limits.
+	 *
+	 * @param transport
+	 *            shared by every API key
+	 */
+	public MultiTenantMetricsPoster(final GatewayTransport transport) {
+		this(transport, DEFAULT_TENANT_QUEUE_CAPACITY, MetricsBatcher.DEFAULT_MAX_BATCH_POINTS,
+				MetricsBatcher.DEFAULT_MAX_BATCH_AGE_MILLIS, MetricsBatcher.DEFAULT_OVERFLOW_POLICY);
+	}
+
+	/**
+	 * Creates a poster and starts its dispatcher thread.
+	 *
+	 * @param transport
+	 *            shared by every API key
+	 * @param tenantQueueCapacity
+	 *            maximum number of points waiting to be sent, per API key
+	 * @param maxBatchPoints
+	 *            a key's batch is sent as soon as it holds this many points
+	 * @param maxBatchAgeMillis
+	 *            a key's batch is sent at the latest about this long after its first point was queued
+	 * @param overflowPolicy
+	 *            what to do with new points when a key's queue is full
+	 */
+	public MultiTenantMetricsPoster(final GatewayTransport transport, final int tenantQueueCapacity,
+			final int maxBatchPoints, final long maxBatchAgeMillis, final OverflowPolicy overflowPolicy) {
+		if (transport == null) {
+			LOGGER.severe("transport not passed, cannot proceed");
+			throw new IllegalArgumentException("transport is required for constructing a MultiTenantMetricsPoster");
+		}
+		if (tenantQueueCapacity <= 0 || maxBatchPoints <= 0 || maxBatchAgeMillis <= 0) {
+			LOGGER.severe("invalid batching limits tenantQueueCapacity=" + tenantQueueCapacity + ", maxBatchPoints="
+					+ maxBatchPoints + ", maxBatchAgeMillis=" + maxBatchAgeMillis);
+			throw new IllegalArgumentException("tenantQueueCapacity, maxBatchPoints and maxBatchAgeMillis must all be positive");
+		}
+		if (overflowPolicy == null) {
+			LOGGER.severe("overflow policy not passed, cannot proceed");
+			throw new IllegalArgumentException("overflowPolicy is required for constructing a MultiTenantMetricsPoster");
+		}
+		this.transport = transport;
+		// each key has its own cap on retries, see setMaxPendingRetriesPerTenant
+		this.sender = new GatewaySender(transport, null, this.stats, Integer.MAX_VALUE);
+		this.ioExecutor = new InFlightExecutor(transport instanceof HttpGatewayTransport ? ((HttpGatewayTransport) transport)
+				.getMaxConnections() : HttpGatewayTransport.DEFAULT_MAX_CONNECTIONS);
+		this.tenantQueueCapacity = tenantQueueCapacity;
+		this.maxBatchPoints = maxBatchPoints;
+		this.maxBatchAgeMillis = maxBatchAgeMillis;
+		this.overflowPolicy = overflowPolicy;
+		this.wakeupDepth = Math.min(maxBatchPoints, tenantQueueCapacity);
+
+		this.dispatcherThread = new Thread(new Runnable() {
+			public void run() {
+				dispatchLoop();
+			}
+		}, DISPATCHER_THREAD_NAME);
+		this.dispatcherThread.setDaemon(true);
+		this.dispatcherThread.start();
+	}
+
+	private static GatewayTransport newTransport(final String endpointUrl) {
+		try {
+			return new HttpGatewayTransport(new URL(endpointUrl), null, CustomMetricsPoster.GATEWAY_TIMEOUT_MILLIS);
+		} catch (MalformedURLException e) {
+			LOGGER.severe("Invalid endpoint URL supplied " + endpointUrl);
+			throw new IllegalArgumentException("Endpoint URL passed to a MultiTenantMetricsPoster must be a valid URL");
+		}
+	}
+
+	/**
+	 * Queue a data point, not tied to an instance and collected now, for an account
+	 *
+	 * @param apiKey
+	 *            API key of the account the point belongs to
+	 * @param metricName
+	 *            metric name
+	 * @param value
+	 *            metric value
+	 * @return true if the point was queued, false if it was dropped, as it is once the poster is closed
+	 */
+	public boolean record(final String apiKey, final String metricName, final double value) {
+		return this.record(apiKey, metricName, value, null, CoarseClock.currentTimeMillis());
+	}
+
+	/**
+	 * Queue a data point for an account.  Never blocks unless the overflow policy is {@link OverflowPolicy#BLOCK}.
+	 *
+	 * @param apiKey
+	 *            API key of the account the point belongs to
+	 * @param metricName
+	 *            metric name
+	 * @param value
+	 *            metric value
+	 * @param instanceId
+	 *            instance the point is bound to, or null for none
+	 * @param collectedAtMillis
+	 *            when the value was observed, in epoch milliseconds
+	 * @return true if the point was queued, false if it was dropped, as it is once the poster is closed
+	 */
+	public boolean record(final String apiKey, final String metricName, final double value, final String instanceId,
+			final long collectedAtMillis) {
+		if (apiKey == null || apiKey.length() == 0) {
+			LOGGER.severe("API key not passed, can't queue data point");
+			throw new IllegalArgumentException("apiKey is required for MultiTenantMetricsPoster.record");
+		}
+		if (metricName == null) {
+			LOGGER.severe("metric name not passed, can't queue data point");
+			throw new IllegalArgumentException("metricName is required for MultiTenantMetricsPoster.record");
+		}
+		this.stats.pointRecorded();
+		this.recording.incrementAndGet();
+		try {
+			if (!this.running) {
+				this.stats.pointDropped();
+				long suppressed = CLOSED_LOG.acquire(LOGGER, Level.WARNING);
+				if (suppressed >= 0) {
+					LOGGER.warning("Points recorded after the poster was closed are dropped"
+							+ LogThrottle.suppressedNote(suppressed));
+				}
+				return false;
+			}
+			Tenant tenant = this.tenantFor(apiKey);
+			if (!this.offer(tenant, tenant.dictionary.intern(metricName, instanceId), value, collectedAtMillis)) {
+				return false;
+			}
+			if (!tenant.scheduled.get() && tenant.scheduled.compareAndSet(false, true)) {
+				tenant.dueMillis = System.currentTimeMillis() + this.maxBatchAgeMillis;
+				this.newlyScheduled.add(tenant);
+			}
+			if (tenant.queue.size() >= this.wakeupDepth) {
+				LockSupport.unpark(this.dispatcherThread);
+			}
+			return true;
+		} finally {
+			this.recording.decrementAndGet();
+		}
+	}
+
+	private Tenant tenantFor(final String apiKey) {
+		Tenant tenant = this.tenants.get(apiKey);
+		if (tenant == null) {
+			Tenant created = new Tenant(apiKey, this.tenantQueueCapacity, this.maxPendingRetriesPerTenant);
+			tenant = this.tenants.putIfAbsent(apiKey, created);
+			if (tenant == null) {
+				tenant = created;
+			}
+		}
+		return tenant;
+	}
+
+	private boolean offer(final Tenant tenant, final int seriesId, final double value, final long collectedAtMillis) {
+		switch (this.overflowPolicy) {
+		case DROP_NEWEST:
+			if (tenant.queue.offer(seriesId, value, collectedAtMillis)) {
+				return true;
+			}
+			this.pointDropped(tenant);
+			return false;
+		case DROP_OLDEST:
+			if (tenant.queue.offerEvictingOldest(seriesId, value, collectedAtMillis)) {
+				this.pointDropped(tenant);
+			}
+			return true;
+		default:
+			try {
+				tenant.queue.put(seriesId, value, collectedAtMillis);
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				this.pointDropped(tenant);
+				return false;
+			}
+		}
+	}
+
+	private void pointDropped(final Tenant tenant) {
+		tenant.droppedPoints.incrementAndGet();
+		this.stats.pointDropped();
+	}
+
+	/**
+	 * Stop serving an API key.  Points already queued for it are still sent; points recorded for it afterwards
+	 * start a new queue.
+	 *
+	 * @param apiKey
+	 *            API key of the account
+	 * @return true if the key was known
+	 */
+	public boolean removeTenant(final String apiKey) {
+		Tenant tenant = apiKey == null ? null : this.tenants.remove(apiKey);
+		if (tenant == null) {
+			return false;
+		}
+		tenant.removed = true;
+		LockSupport.unpark(this.dispatcherThread);
+		return true;
+	}
+
+	/**
+	 * Stop accepting points and wait for everything already queued to be posted.  Messages still waiting for a
+	 * retry once the posts are done are dropped, and the retry thread stops.
+	 *
+	 * @param timeoutMillis
+	 *            how long to wait for the queues to drain
+	 * @return true if everything queued was posted within the timeout and nothing was left waiting for a retry
+	 */
+	public boolean close(final long timeoutMillis) {
+		this.running = false;
+		LockSupport.unpark(this.dispatcherThread);
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		boolean drained;
+		try {
+			this.dispatcherThread.join(timeoutMillis);
+			drained = !this.dispatcherThread.isAlive()
+					&& this.ioExecutor.awaitIdle(Math.max(1, deadline - System.currentTimeMillis()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			drained = false;
+		}
+		this.ioExecutor.shutdown();
+		int abandoned = this.sender.close();
+		if (abandoned > 0) {
+			LOGGER.warning("Closed with " + abandoned + " messages still waiting for a retry, dropped them");
+			drained = false;
+		}
+		return drained;
+	}
+
+	/**
+	 * Body of the dispatcher thread.  Keeps going after close until every queue is empty and no record is under way.
+	 */
+	void dispatchLoop() {
+		// the keys in rotation, the dispatcher's only
+		ArrayDeque<Tenant> rotation = new ArrayDeque<Tenant>();
+		MetricsJsonWriter writer = new MetricsJsonWriter();
+		while (true) {
+			boolean closing = !this.running;
+			// read after running and before looking for new keys: a record that saw the poster running is
+			// counted here, or has already scheduled its key
+			boolean recording = this.recording.get() > 0;
+			Tenant scheduled;
+			while ((scheduled = this.newlyScheduled.poll()) != null) {
+				rotation.add(scheduled);
+			}
+			if (closing && !recording && rotation.isEmpty() && this.newlyScheduled.isEmpty()) {
+				return;
+			}
+
+			boolean moreToSend = false;
+			// set when every I/O thread is busy, a finished post unparks the dispatcher
+			boolean ioBusy = false;
+			long now = System.currentTimeMillis();
+			int maxInFlight = this.maxInFlightPerTenant;
+			// one turn: at most one batch per key
+			for (int i = rotation.size(); i > 0; i--) {
+				Tenant tenant = rotation.poll();
+				int depth = tenant.queue.size();
+				boolean due = closing || tenant.removed || depth >= this.maxBatchPoints || now >= tenant.dueMillis;
+				if (tenant.inFlight.get() < maxInFlight && (!tenant.unposted.isEmpty() || (due && depth > 0))) {
+					// only the dispatcher submits, so a free I/O thread seen here is still free when the batch is posted
+					if (!tenant.unposted.isEmpty() || this.ioExecutor.getInFlight() < this.ioExecutor.getMaxInFlight()) {
+						if (tenant.unposted.isEmpty()) {
+							this.sendBatch(tenant, writer);
+							tenant.dueMillis = now + this.maxBatchAgeMillis;
+							depth = tenant.queue.size();
+						}
+						ioBusy = !this.postUnposted(tenant);
+					} else {
+						ioBusy = true;
+					}
+					if (ioBusy) {
+						// the key keeps its place, first in line for the next free I/O thread
+						rotation.addFirst(tenant);
+						break;
+					}
+				}
+				if (depth == 0 && tenant.unposted.isEmpty()) {
+					tenant.scheduled.set(false);
+					// a point queued since the size check saw the key still scheduled, so it is ours to keep
+					if (tenant.queue.size() == 0 || !tenant.scheduled.compareAndSet(false, true)) {
+						continue;
+					}
+				}
+				if ((depth >= this.maxBatchPoints || closing) && tenant.inFlight.get() < maxInFlight) {
+					moreToSend = true;
+				}
+				rotation.add(tenant);
+			}
+			if (!moreToSend || ioBusy) {
+				long sleepMillis = closing ? CLOSE_RETRY_MILLIS : Math.min(this.maxBatchAgeMillis, IDLE_CHECK_MILLIS);
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(sleepMillis));
+			}
+		}
+	}
+
+	private void sendBatch(final Tenant tenant, final MetricsJsonWriter writer) {
+		try {
+			PointColumns batch = new PointColumns(tenant.dictionary, Math.min(tenant.queue.size(), this.maxBatchPoints));
+			tenant.queue.drainTo(batch, this.maxBatchPoints);
+			CustomMetricsMessage message = new CustomMetricsMessage(batch);
+			int next = 0;
+			while (next < batch.size()) {
+				writer.reset();
+				int first = next;
+				next = writer.writeMessage(message, next, CustomMetricsPoster.DEFAULT_MAX_MESSAGE_POINTS,
+						CustomMetricsPoster.DEFAULT_MAX_MESSAGE_BYTES);
+				this.stats.messagePosted(next - first);
+				tenant.unposted.add(writer.toByteArray());
+			}
+		} catch (RuntimeException e) {
+			long suppressed = SEND_ERROR_LOG.acquire(LOGGER, Level.SEVERE);
+			if (suppressed >= 0) {
+				LOGGER.severe("Error sending batch for an API key " + e.toString() + LogThrottle.suppressedNote(suppressed));
+			}
+		}
+	}
+
+	/**
+	 * Hand the key's serialized chunks to the I/O threads, as many as there are free ones
+	 *
+	 * @return true if none is left waiting
+	 */
+	private boolean postUnposted(final Tenant tenant) {
+		byte[] body;
+		while ((body = tenant.unposted.peek()) != null) {
+			if (!this.post(tenant, body)) {
+				return false;
+			}
+			tenant.unposted.poll();
+		}
+		return true;
+	}
+
+	/**
+	 * @return false if the shared maximum of posts is in flight, the dispatcher never waits for an I/O thread
+	 */
+	private boolean post(final Tenant tenant, final byte[] body) {
+		tenant.inFlight.incrementAndGet();
+		Future<SendResult> future = this.ioExecutor.trySubmit(new Callable<SendResult>() {
+			public SendResult call() {
+				try {
+					return sender.send(tenant.apiKey, tenant.breaker, tenant.retries, body, 0, body.length);
+				} finally {
+					tenant.inFlight.decrementAndGet();
+					// the key may have a full batch waiting on this post
+					LockSupport.unpark(dispatcherThread);
+				}
+			}
+		});
+		if (future == null) {
+			tenant.inFlight.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Change how many posts a single API key may have in flight at once.  The total is capped by the transport's
+	 * connection pool.
+	 *
+	 * @param maxInFlightPerTenant
+	 *            at least 1
+	 * @return this object so it can be chained with the record methods
+	 */
+	public MultiTenantMetricsPoster setMaxInFlightPerTenant(final int maxInFlightPerTenant) {
+		if (maxInFlightPerTenant <= 0) {
+			LOGGER.severe("invalid max in flight per tenant " + maxInFlightPerTenant);
+			throw new IllegalArgumentException("maxInFlightPerTenant must be positive");
+		}
+		this.maxInFlightPerTenant = maxInFlightPerTenant;
+		return this;
+	}
+
+	public int getMaxInFlightPerTenant() {
+		return this.maxInFlightPerTenant;
+	}
+
+	/**
+	 * Change how many messages a single API key may have waiting for a retry.  Past that, its failed messages are
+	 * dropped, so a key that is throttled or whose gateway circuit is open can't crowd out the retries of the others.
+	 *
+	 * @param maxPendingRetriesPerTenant
+	 *            at least 1
+	 * @return this object so it can be chained with the record methods
+	 */
+	public MultiTenantMetricsPoster setMaxPendingRetriesPerTenant(final int maxPendingRetriesPerTenant) {
+		if (maxPendingRetriesPerTenant <= 0) {
+			LOGGER.severe("invalid max pending retries per tenant " + maxPendingRetriesPerTenant);
+			throw new IllegalArgumentException("maxPendingRetriesPerTenant must be positive");
+		}
+		this.maxPendingRetriesPerTenant = maxPendingRetriesPerTenant;
+		for (Tenant tenant : this.tenants.values()) {
+			tenant.retries.setMaxPending(maxPendingRetriesPerTenant);
+		}
+		return this;
+	}
+
+	public int getMaxPendingRetriesPerTenant() {
+		return this.maxPendingRetriesPerTenant;
+	}
+
+	/**
+	 * Change how failed posts are retried, for every API key
+	 *
+	 * @return this object so it can be chained with the record methods
+	 */
+	public MultiTenantMetricsPoster setRetryPolicy(final RetryPolicy retryPolicy) {
+		if (retryPolicy == null) {
+			LOGGER.severe("retry policy not passed, cannot proceed");
+			throw new IllegalArgumentException("retryPolicy is required, use RetryPolicy.NO_RETRIES to disable retries");
+		}
+		this.sender.setRetryPolicy(retryPolicy);
+		return this;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return this.sender.getRetryPolicy();
+	}
+
+	public GatewayTransport getTransport() {
+		return this.transport;
+	}
+
+	/**
+	 * @return API keys with a queue
+	 */
+	public int getTenantCount() {
+		return this.tenants.size();
+	}
+
+	/**
+	 * @return points waiting to be sent for an API key, 0 for an unknown key
+	 */
+	public int getTenantQueueDepth(final String apiKey) {
+		Tenant tenant = this.tenants.get(apiKey);
+		return tenant == null ? 0 : tenant.queue.size();
+	}
+
+	/**
+	 * @return points dropped for an API key because its queue was full, 0 for an unknown key
+	 */
+	public long getTenantDroppedPoints(final String apiKey) {
+		Tenant tenant = this.tenants.get(apiKey);
+		return tenant == null ? 0 : tenant.droppedPoints.get();
+	}
+
+	/**
+	 * @return points, posts, latencies and response codes summed over every API key
+	 */
+	public ClientStats getStats() {
+		return this.stats;
+	}
+
+	/**
+	 * @return messages the gateway accepted, for every API key
+	 */
+	public long getMessagesSent() {
+		return this.sender.getSentMessages();
+	}
+
+	/**
+	 * @return messages given up on, for every API key
+	 */
+	public long getMessagesFailed() {
+		return this.sender.getFailedMessages();
+	}
+
+	public boolean isRunning() {
+		return this.running;
+	}
+}
@@ -0,0 +1,24 @@
+package com.stackdriver.api.custommetrics;
+
+/**
+ * What a {@link MetricsBatcher} does with a new data point when its queue is already full.
+ */
+public enum OverflowPolicy {
+
+	/**
+	 * Discard the oldest queued point to make room for the new one.  Keeps the most recent data, which is
+	 * usually what you want on a dashboard.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discard the new point and keep what is already queued.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Block the recording thread until the sender thread makes room.  Never loses data, but lets a slow
+	 * gateway push back on your application threads.
+	 */
+	BLOCK
+}
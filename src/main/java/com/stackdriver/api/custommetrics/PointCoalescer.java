@@ -0,0 +1,99 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Arrays;
+
+/**
+ * Collapses the points of a batch that would go on the wire with the same series and the same collected_at
+ * second, keeping only the latest value of each. <br/>
+ * Keys are looked up in an open-addressed, linearly probed table of primitive arrays, so each point costs O(1)
+ * and no objects.  Slots are marked with the generation of the batch that filled them, which empties the table
+ * for the next batch without touching it.  The arrays are only replaced when a batch outgrows them.
+ * <br/>
+ * Not thread safe; the batcher's sender thread is its only user.
+ */
+final class PointCoalescer {
+
+	// table at most half full, so probe runs stay short
+	private static final int LOAD_FACTOR_INVERSE = 2;
+
+	private int[] generations;
+
+	private int[] seriesIds;
+
+	private long[] seconds;
+
+	// row of the columns holding the point for the key
+	private int[] rows;
+
+	private int mask;
+
+	private int generation;
+
+	PointCoalescer(final int expectedPoints) {
+		this.allocate(expectedPoints);
+	}
+
+	private void allocate(final int points) {
+		int capacity = Integer.highestOneBit(Math.max(points * LOAD_FACTOR_INVERSE - 1, 1)) << 1;
+		this.generations = new int[capacity];
+		this.seriesIds = new int[capacity];
+		this.seconds = new long[capacity];
+		this.rows = new int[capacity];
+		this.mask = capacity - 1;
+		this.generation = 0;
+	}
+
+	/**
+	 * Collapse the columns in place.  The first point of each key keeps its place; it ends up with the value and
+	 * timestamp of the latest point of the key, later in the batch on a tie.
+	 *
+	 * @return how many points were removed
+	 */
+	int coalesce(final PointColumns columns) {
+		int size = columns.size();
+		if (size * LOAD_FACTOR_INVERSE > this.generations.length) {
+			this.allocate(size);
+		}
+		this.generation++;
+		if (this.generation == 0) {
+			// wrapped around after four billion batches, stale stamps could match again
+			Arrays.fill(this.generations, 0);
+			this.generation = 1;
+		}
+
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			int seriesId = columns.getSeriesId(i);
+			long collectedAtMillis = columns.getCollectedAtMillis(i);
+			long second = columns.getCollectedAtEpoch(i);
+			int slot = hash(seriesId, second) & this.mask;
+			while (this.generations[slot] == this.generation
+					&& (this.seriesIds[slot] != seriesId || this.seconds[slot] != second)) {
+				slot = (slot + 1) & this.mask;
+			}
+			if (this.generations[slot] == this.generation) {
+				int row = this.rows[slot];
+				if (collectedAtMillis >= columns.getCollectedAtMillis(row)) {
+					columns.set(row, seriesId, columns.getValue(i), collectedAtMillis);
+				}
+				continue;
+			}
+			this.generations[slot] = this.generation;
+			this.seriesIds[slot] = seriesId;
+			this.seconds[slot] = second;
+			this.rows[slot] = kept;
+			if (kept != i) {
+				columns.set(kept, seriesId, columns.getValue(i), collectedAtMillis);
+			}
+			kept++;
+		}
+		columns.truncate(kept);
+		return size - kept;
+	}
+
+	private static int hash(final int seriesId, final long second) {
+		int h = seriesId * 0x9E3779B9 + (int) (second ^ (second >>> 32));
+		// spread the high bits down, the mask only keeps the low ones
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,183 @@
+package com.stackdriver.api.custommetrics;
+
+/**
+ * Column-oriented storage for the data points of a large message: parallel primitive arrays of series IDs, values
+ * and timestamps, with names and instance IDs kept once each in a {@link SeriesDictionary}. <br/>
+ * Adding a point never creates an object, and a message backed by columns is serialized straight from the arrays,
+ * so building and sending a batch of any size costs a handful of arrays instead of one object graph per point.
+ *
+ * @see CustomMetricsMessage#CustomMetricsMessage(PointColumns)
+ */
+public class PointColumns {
+
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final SeriesDictionary dictionary;
+
+	private int[] seriesIds;
+
+	private double[] values;
+
+	private long[] collectedAtMillis;
+
+	private int size;
+
+	/**
+	 * Creates empty columns with their own dictionary
+	 */
+	public PointColumns() {
+		this(new SeriesDictionary(), DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates empty columns
+	 *
+	 * @param dictionary
+	 *            the dictionary series IDs refer to
+	 * @param initialCapacity
+	 *            number of points to make room for up front
+	 */
+	public PointColumns(final SeriesDictionary dictionary, final int initialCapacity) {
+		if (dictionary == null) {
+			throw new IllegalArgumentException("dictionary is required for constructing PointColumns");
+		}
+		int capacity = Math.max(initialCapacity, 1);
+		this.dictionary = dictionary;
+		this.seriesIds = new int[capacity];
+		this.values = new double[capacity];
+		this.collectedAtMillis = new long[capacity];
+	}
+
+	/**
+	 * Add a point, interning its series
+	 *
+	 * @param name
+	 *            metric name
+	 * @param instanceId
+	 *            instance the point is bound to, or null for none
+	 * @param value
+	 *            metric value
+	 * @param collectedAtMillis
+	 *            when the value was observed, in epoch milliseconds
+	 */
+	public void add(final String name, final String instanceId, final double value, final long collectedAtMillis) {
+		this.add(this.dictionary.intern(name, instanceId), value, collectedAtMillis);
+	}
+
+	/**
+	 * Add a point for a series already interned in this object's dictionary
+	 *
+	 * @param seriesId
+	 *            series ID from the dictionary
+	 * @param value
+	 *            metric value
+	 * @param collectedAtMillis
+	 *            when the value was observed, in epoch milliseconds
+	 */
+	public void add(final int seriesId, final double value, final long collectedAtMillis) {
+		if (this.size == this.seriesIds.length) {
+			this.grow(this.size * 2);
+		}
+		this.seriesIds[this.size] = seriesId;
+		this.values[this.size] = value;
+		this.collectedAtMillis[this.size] = collectedAtMillis;
+		this.size++;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public int getSeriesId(final int index) {
+		this.checkIndex(index);
+		return this.seriesIds[index];
+	}
+
+	public double getValue(final int index) {
+		this.checkIndex(index);
+		return this.values[index];
+	}
+
+	public long getCollectedAtMillis(final int index) {
+		this.checkIndex(index);
+		return this.collectedAtMillis[index];
+	}
+
+	/**
+	 * @return the collection time of a point as a Unix timestamp in seconds, as sent to the gateway
+	 */
+	public long getCollectedAtEpoch(final int index) {
+		return this.getCollectedAtMillis(index) / 1000;
+	}
+
+	public SeriesDictionary getDictionary() {
+		return this.dictionary;
+	}
+
+	/**
+	 * Overwrite a row, used when coalescing a batch in place
+	 */
+	void set(final int index, final int seriesId, final double value, final long collectedAtMillis) {
+		this.checkIndex(index);
+		this.seriesIds[index] = seriesId;
+		this.values[index] = value;
+		this.collectedAtMillis[index] = collectedAtMillis;
+	}
+
+	/**
+	 * Drop every row from the given index on
+	 */
+	void truncate(final int size) {
+		if (size < 0 || size > this.size) {
+			throw new IndexOutOfBoundsException("size " + size + ", current size " + this.size);
+		}
+		this.size = size;
+	}
+
+	/**
+	 * Remove every point, keeping the arrays for reuse
+	 */
+	public void clear() {
+		this.size = 0;
+	}
+
+	/**
+	 * Build a data point object for one row, for code that needs the object form
+	 */
+	DataPoint toDataPoint(final int index) {
+		this.checkIndex(index);
+		return this.dictionary.newDataPoint(this.seriesIds[index], this.values[index], this.collectedAtMillis[index]);
+	}
+
+	/**
+	 * Write one row as a JSON data point
+	 */
+	void writeJson(final int index, final MetricsJsonWriter writer) {
+		int seriesId = this.seriesIds[index];
+		String instanceId = this.dictionary.getInstanceId(seriesId);
+		long collectedAtEpoch = this.collectedAtMillis[index] / 1000;
+		if (instanceId == null) {
+			writer.writeDataPoint(this.dictionary.getName(seriesId), this.values[index], collectedAtEpoch);
+		} else {
+			writer.writeInstanceDataPoint(this.dictionary.getName(seriesId), this.values[index], collectedAtEpoch, instanceId);
+		}
+	}
+
+	private void checkIndex(final int index) {
+		if (index < 0 || index >= this.size) {
+			throw new IndexOutOfBoundsException("index " + index + ", size " + this.size);
+		}
+	}
+
+	private void grow(final int capacity) {
+		int[] grownSeriesIds = new int[capacity];
+		double[] grownValues = new double[capacity];
+		long[] grownCollectedAt = new long[capacity];
+		System.arraycopy(this.seriesIds, 0, grownSeriesIds, 0, this.size);
+		System.arraycopy(this.values, 0, grownValues, 0, this.size);
+		System.arraycopy(this.collectedAtMillis, 0, grownCollectedAt, 0, this.size);
+		this.seriesIds = grownSeriesIds;
+		this.values = grownValues;
+		this.collectedAtMillis = grownCollectedAt;
+	}
+}
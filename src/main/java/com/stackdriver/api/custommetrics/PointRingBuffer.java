@@ -0,0 +1,132 @@
+package com.stackdriver.api.custommetrics;
+
+/**
+ * Bounded FIFO of queued points kept in parallel primitive arrays, so queueing a point allocates nothing.
+ * <br/>
+ * Many threads may add points; one consumer drains them.  Uses the object monitor rather than a
+ * java.util.concurrent lock because a contended monitor doesn't allocate wait queue nodes, and only notifies
+ * when someone is actually waiting.
+ */
+final class PointRingBuffer {
+
+	private final int capacity;
+
+	private final int[] seriesIds;
+
+	private final double[] values;
+
+	private final long[] collectedAtMillis;
+
+	// index of the oldest point
+	private int head;
+
+	private int size;
+
+	private boolean consumerWaiting;
+
+	private int producersWaiting;
+
+	PointRingBuffer(final int capacity) {
+		this.capacity = capacity;
+		this.seriesIds = new int[capacity];
+		this.values = new double[capacity];
+		this.collectedAtMillis = new long[capacity];
+	}
+
+	/**
+	 * Add a point if there is room
+	 *
+	 * @return false if the buffer was full and the point was not added
+	 */
+	synchronized boolean offer(final int seriesId, final double value, final long collectedAt) {
+		if (this.size == this.capacity) {
+			return false;
+		}
+		this.insert(seriesId, value, collectedAt);
+		return true;
+	}
+
+	/**
+	 * Add a point, discarding the oldest one if the buffer is full
+	 *
+	 * @return true if a point had to be discarded
+	 */
+	synchronized boolean offerEvictingOldest(final int seriesId, final double value, final long collectedAt) {
+		boolean evicted = false;
+		if (this.size == this.capacity) {
+			this.head = this.head + 1 == this.capacity ? 0 : this.head + 1;
+			this.size--;
+			evicted = true;
+		}
+		this.insert(seriesId, value, collectedAt);
+		return evicted;
+	}
+
+	/**
+	 * Add a point, waiting for room if the buffer is full
+	 */
+	synchronized void put(final int seriesId, final double value, final long collectedAt) throws InterruptedException {
+		while (this.size == this.capacity) {
+			this.producersWaiting++;
+			try {
+				this.wait();
+			} finally {
+				this.producersWaiting--;
+			}
+		}
+		this.insert(seriesId, value, collectedAt);
+	}
+
+	private void insert(final int seriesId, final double value, final long collectedAt) {
+		int tail = this.head + this.size;
+		if (tail >= this.capacity) {
+			tail -= this.capacity;
+		}
+		this.seriesIds[tail] = seriesId;
+		this.values[tail] = value;
+		this.collectedAtMillis[tail] = collectedAt;
+		this.size++;
+		if (this.consumerWaiting) {
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Move up to max of the oldest points to the end of the given columns
+	 *
+	 * @return how many points were moved
+	 */
+	synchronized int drainTo(final PointColumns columns, final int max) {
+		int count = Math.min(this.size, max);
+		for (int i = 0; i < count; i++) {
+			columns.add(this.seriesIds[this.head], this.values[this.head], this.collectedAtMillis[this.head]);
+			this.head = this.head + 1 == this.capacity ? 0 : this.head + 1;
+		}
+		this.size -= count;
+		if (count > 0 && this.producersWaiting > 0) {
+			this.notifyAll();
+		}
+		return count;
+	}
+
+	/**
+	 * Wait until there is at least one point, or the timeout passes
+	 *
+	 * @return true if there are points to drain
+	 */
+	synchronized boolean awaitNotEmpty(final long timeoutMillis) throws InterruptedException {
+		if (this.size == 0 && timeoutMillis > 0) {
+			this.consumerWaiting = true;
+			try {
+				this.wait(timeoutMillis);
+			} finally {
+				this.consumerWaiting = false;
+			}
+		}
+		return this.size > 0;
+	}
+
+	synchronized int size() {
+		return this.size;
+	}
+}
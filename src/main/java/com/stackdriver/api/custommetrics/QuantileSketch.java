@@ -0,0 +1,205 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Estimates quantiles of a stream of observations in fixed memory, the way DDSketch does. <br/>
+ * Values are counted in logarithmically sized buckets, each one relativeAccuracy wide relative to the values in it,
+ * so any quantile comes back within relativeAccuracy of an observed value, whatever the distribution.  The buckets
+ * cover minValue to maxValue and are allocated up front: 1% accuracy from a microsecond to ten days, in milliseconds,
+ * is 1383 buckets, about 11KB.  Values at or below minValue, zero and negatives included, are counted as 0; values
+ * above maxValue as maxValue.
+ * <br/>
+ * Recording is a single atomic add, lock free and safe from any number of threads.  Sketches with the same
+ * parameters can be merged, so per-interval or per-host sketches add up to the sketch of all their observations.
+ */
+public class QuantileSketch {
+
+	private static final Logger LOGGER = Logger.getLogger(QuantileSketch.class.getName());
+
+	public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+
+	public static final double DEFAULT_MIN_VALUE = 1e-3;
+
+	public static final double DEFAULT_MAX_VALUE = 1e9;
+
+	private final double relativeAccuracy;
+
+	private final double minValue;
+
+	private final double maxValue;
+
+	// log of the bucket growth factor, (1 + accuracy) / (1 - accuracy)
+	private final double logGamma;
+
+	private final double gamma;
+
+	// bucket key of minValue, bucket 1 holds the values just above it
+	private final int minKey;
+
+	// bucket 0 holds the values at or below minValue
+	private final AtomicLongArray counts;
+
+	/**
+	 * Creates a sketch with 1% accuracy for values from 0.001 to a billion.
+	 */
+	public QuantileSketch() {
+		this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MIN_VALUE, DEFAULT_MAX_VALUE);
+	}
+
+	/**
+	 * Creates a sketch.
+	 *
+	 * @param relativeAccuracy
+	 *            largest relative error of an estimated quantile, between 0 and 1
+	 * @param minValue
+	 *            smallest value told apart from zero
+	 * @param maxValue
+	 *            largest value told apart from bigger ones
+	 */
+	public QuantileSketch(final double relativeAccuracy, final double minValue, final double maxValue) {
+		if (!(relativeAccuracy > 0 && relativeAccuracy < 1) || !(minValue > 0) || !(maxValue > minValue)) {
+			LOGGER.severe("invalid quantile sketch relativeAccuracy=" + relativeAccuracy + ", minValue=" + minValue
+					+ ", maxValue=" + maxValue);
+			throw new IllegalArgumentException("relativeAccuracy must be between 0 and 1, and 0 < minValue < maxValue");
+		}
+		this.relativeAccuracy = relativeAccuracy;
+		this.minValue = minValue;
+		this.maxValue = maxValue;
+		this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+		this.logGamma = Math.log(this.gamma);
+		this.minKey = this.key(minValue);
+		this.counts = new AtomicLongArray(this.key(maxValue) - this.minKey + 1);
+	}
+
+	private int key(final double value) {
+		return (int) Math.ceil(Math.log(value) / this.logGamma);
+	}
+
+	/**
+	 * Record one observation
+	 */
+	public void record(final double value) {
+		this.counts.getAndIncrement(this.indexOf(value));
+	}
+
+	private int indexOf(final double value) {
+		if (!(value > this.minValue)) {
+			return 0;
+		}
+		if (value >= this.maxValue) {
+			return this.counts.length() - 1;
+		}
+		int index = this.key(value) - this.minKey;
+		// rounding in the log can put a value right on a boundary one bucket off
+		return index < 1 ? 1 : Math.min(index, this.counts.length() - 1);
+	}
+
+	/**
+	 * @return the value every observation in the bucket is reported as, within relativeAccuracy of all of them
+	 */
+	private double valueOf(final int index) {
+		if (index == 0) {
+			return 0;
+		}
+		if (index == this.counts.length() - 1) {
+			return this.maxValue;
+		}
+		return 2 * Math.pow(this.gamma, index + this.minKey) / (this.gamma + 1);
+	}
+
+	/**
+	 * @return observations recorded, or merged in, so far
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			count += this.counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * Estimate a quantile of everything recorded so far.  Not a snapshot if observations are being recorded.
+	 *
+	 * @param quantile
+	 *            between 0 and 1, 0.99 for the 99th percentile
+	 * @return the estimate, or NaN if nothing was recorded
+	 */
+	public double getValueAtQuantile(final double quantile) {
+		if (quantile < 0 || quantile > 1) {
+			LOGGER.severe("invalid quantile " + quantile);
+			throw new IllegalArgumentException("quantile must be between 0 and 1");
+		}
+		long count = this.getCount();
+		if (count == 0) {
+			return Double.NaN;
+		}
+		double rank = quantile * (count - 1);
+		long seen = 0;
+		for (int i = 0; i < this.counts.length(); i++) {
+			seen += this.counts.get(i);
+			if (seen > rank) {
+				return this.valueOf(i);
+			}
+		}
+		// only when observations raced past the count taken above
+		return this.valueOf(this.counts.length() - 1);
+	}
+
+	/**
+	 * Add another sketch's observations to this one
+	 *
+	 * @param other
+	 *            a sketch created with the same parameters
+	 */
+	public void merge(final QuantileSketch other) {
+		if (other.relativeAccuracy != this.relativeAccuracy || other.minValue != this.minValue
+				|| other.maxValue != this.maxValue) {
+			LOGGER.severe("can't merge quantile sketches with different parameters");
+			throw new IllegalArgumentException("only sketches with the same accuracy and range can be merged");
+		}
+		for (int i = 0; i < this.counts.length(); i++) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				this.counts.getAndAdd(i, count);
+			}
+		}
+	}
+
+	/**
+	 * Move everything recorded so far into a new sketch, and start over empty.  Every observation ends up in
+	 * exactly one of the sketches returned.
+	 *
+	 * @return a sketch with the observations since the last reset
+	 */
+	public QuantileSketch getThenReset() {
+		QuantileSketch interval = new QuantileSketch(this.relativeAccuracy, this.minValue, this.maxValue);
+		for (int i = 0; i < this.counts.length(); i++) {
+			if (this.counts.get(i) != 0) {
+				interval.counts.set(i, this.counts.getAndSet(i, 0));
+			}
+		}
+		return interval;
+	}
+
+	public double getRelativeAccuracy() {
+		return this.relativeAccuracy;
+	}
+
+	public double getMinValue() {
+		return this.minValue;
+	}
+
+	public double getMaxValue() {
+		return this.maxValue;
+	}
+
+	/**
+	 * @return number of buckets, fixed for the life of the sketch
+	 */
+	public int getBucketCount() {
+		return this.counts.length();
+	}
+}
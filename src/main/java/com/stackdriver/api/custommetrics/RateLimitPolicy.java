@@ -0,0 +1,24 @@
+package com.stackdriver.api.custommetrics;
+
+/**
+ * What a {@link RateLimiter} does with the data points over its limits.
+ */
+public enum RateLimitPolicy {
+
+	/**
+	 * Keep the latest value of each series and send it once the limit allows, at most one point per series
+	 * every second.  A metric recorded in a tight loop then reports its last value instead of nothing.
+	 */
+	AGGREGATE,
+
+	/**
+	 * Send one in {@link RateLimiter#getSampleRate()} of the points over the points limit anyway and discard
+	 * the rest, so a runaway metric still shows up, at a fraction of its volume.
+	 */
+	SAMPLE,
+
+	/**
+	 * Discard every point over the limits.
+	 */
+	DROP
+}
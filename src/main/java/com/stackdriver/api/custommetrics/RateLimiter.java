@@ -0,0 +1,270 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Caps how fast a poster sends, in data points and in posts per second, so a bug recording a metric in a tight
+ * loop can't get the account throttled at the gateway. <br/>
+ * Each limit is a token bucket holding one second's worth of tokens: short bursts up to the limit go through,
+ * and a sustained rate above it is cut down to it.  Taking a token is a single compare and set, no lock.
+ * <br/>
+ * Points are checked when they are recorded, before anything is queued or serialized, and posts before their
+ * chunk of a message is serialized, so what the limiter turns away costs nothing downstream.  What happens to
+ * points over the limits is up to the {@link RateLimitPolicy}; a post over the posts limit takes the rest of its
+ * message with it, aggregated under {@link RateLimitPolicy#AGGREGATE} and discarded otherwise.
+ * <br/>
+ * A limiter belongs to one poster, see {@link CustomMetricsPoster#setRateLimiter(RateLimiter)}.
+ */
+public class RateLimiter {
+
+	private static final Logger LOGGER = Logger.getLogger(RateLimiter.class.getName());
+
+	public static final double UNLIMITED = 0;
+
+	public static final int DEFAULT_SAMPLE_RATE = 10;
+
+	private final double pointsPerSecond;
+
+	private final double requestsPerSecond;
+
+	private final RateLimitPolicy policy;
+
+	// null when the corresponding rate is unlimited
+	private final TokenBucket points;
+
+	private final TokenBucket requests;
+
+	private volatile int sampleRate = DEFAULT_SAMPLE_RATE;
+
+	private final AtomicLong excessPoints = new AtomicLong();
+
+	private final StripedLongAdder pointsAdmitted = new StripedLongAdder();
+
+	private final AtomicLong pointsSampled = new AtomicLong();
+
+	private final AtomicLong pointsAggregated = new AtomicLong();
+
+	private final AtomicLong pointsDropped = new AtomicLong();
+
+	private final AtomicLong requestsRejected = new AtomicLong();
+
+	// latest value of each series over the limit, by series ID in the poster's dictionary
+	private final SeriesAggregates aggregated = new SeriesAggregates();
+
+	/**
+	 * Limit points only, discarding the excess
+	 *
+	 * @param pointsPerSecond
+	 *            data points sent per second
+	 */
+	public RateLimiter(final double pointsPerSecond) {
+		this(pointsPerSecond, UNLIMITED, RateLimitPolicy.DROP);
+	}
+
+	/**
+	 * @param pointsPerSecond
+	 *            data points sent per second, or {@link #UNLIMITED}
+	 * @param requestsPerSecond
+	 *            posts to the gateway per second, or {@link #UNLIMITED}
+	 * @param policy
+	 *            what to do with points over the limits
+	 */
+	public RateLimiter(final double pointsPerSecond, final double requestsPerSecond, final RateLimitPolicy policy) {
+		if (pointsPerSecond < 0 || requestsPerSecond < 0 || Double.isNaN(pointsPerSecond)
+				|| Double.isNaN(requestsPerSecond)) {
+			LOGGER.severe("invalid rate limits pointsPerSecond=" + pointsPerSecond + ", requestsPerSecond="
+					+ requestsPerSecond);
+			throw new IllegalArgumentException("pointsPerSecond and requestsPerSecond must not be negative");
+		}
+		if (policy == null) {
+			LOGGER.severe("rate limit policy not passed, cannot proceed");
+			throw new IllegalArgumentException("policy is required for constructing a RateLimiter");
+		}
+		this.pointsPerSecond = pointsPerSecond;
+		this.requestsPerSecond = requestsPerSecond;
+		this.policy = policy;
+		this.points = pointsPerSecond == UNLIMITED ? null : new TokenBucket(pointsPerSecond);
+		this.requests = requestsPerSecond == UNLIMITED ? null : new TokenBucket(requestsPerSecond);
+	}
+
+	/**
+	 * Under {@link RateLimitPolicy#SAMPLE}, send one in N of the points over the limit
+	 *
+	 * @param oneInN
+	 *            1 to send every point over the limit, 0 to send none
+	 *
+	 * @return this object so it can be chained
+	 */
+	public RateLimiter setSampleRate(final int oneInN) {
+		if (oneInN < 0) {
+			LOGGER.severe("invalid sample rate " + oneInN);
+			throw new IllegalArgumentException("oneInN must not be negative");
+		}
+		this.sampleRate = oneInN;
+		return this;
+	}
+
+	public int getSampleRate() {
+		return this.sampleRate;
+	}
+
+	public double getPointsPerSecond() {
+		return this.pointsPerSecond;
+	}
+
+	public double getRequestsPerSecond() {
+		return this.requestsPerSecond;
+	}
+
+	public RateLimitPolicy getPolicy() {
+		return this.policy;
+	}
+
+	/**
+	 * @return points within the points limit
+	 */
+	public long getPointsAdmitted() {
+		return this.pointsAdmitted.sum();
+	}
+
+	/**
+	 * @return points over the points limit sent anyway under {@link RateLimitPolicy#SAMPLE}
+	 */
+	public long getPointsSampled() {
+		return this.pointsSampled.get();
+	}
+
+	/**
+	 * @return points over the limits folded into the latest value of their series
+	 */
+	public long getPointsAggregated() {
+		return this.pointsAggregated.get();
+	}
+
+	/**
+	 * @return points over the limits discarded
+	 */
+	public long getPointsDropped() {
+		return this.pointsDropped.get();
+	}
+
+	/**
+	 * @return posts not made because they were over the posts limit
+	 */
+	public long getRequestsRejected() {
+		return this.requestsRejected.get();
+	}
+
+	/**
+	 * @return series with an aggregated value waiting to be sent
+	 */
+	public int getAggregatedSeries() {
+		return this.aggregated.size();
+	}
+
+	/**
+	 * Check one point about to be recorded
+	 *
+	 * @return true if it is within the limit or sampled; under {@link RateLimitPolicy#AGGREGATE} the caller
+	 *         hands a point turned away to {@link #aggregate(int, double, long)}
+	 */
+	boolean admitPoint() {
+		return this.acquirePoints(1) == 1 || this.admitExcessPoint();
+	}
+
+	/**
+	 * Take tokens for points about to be recorded
+	 *
+	 * @return how many of them are within the limit, the first ones
+	 */
+	int acquirePoints(final int wanted) {
+		int taken = this.points == null ? wanted : this.points.acquire(wanted);
+		this.pointsAdmitted.add(taken);
+		return taken;
+	}
+
+	/**
+	 * Decide about a point over the points limit.  Under {@link RateLimitPolicy#AGGREGATE} the caller then hands
+	 * it to {@link #aggregate(int, double, long)}.
+	 *
+	 * @return true if the point is sent anyway, a sampled one
+	 */
+	boolean admitExcessPoint() {
+		if (this.policy == RateLimitPolicy.AGGREGATE) {
+			return false;
+		}
+		if (this.policy == RateLimitPolicy.SAMPLE) {
+			int rate = this.sampleRate;
+			if (rate > 0 && this.excessPoints.getAndIncrement() % rate == 0) {
+				this.pointsSampled.incrementAndGet();
+				return true;
+			}
+		}
+		this.pointsDropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Take a token for one post
+	 *
+	 * @return true if it may be made
+	 */
+	boolean acquireRequest() {
+		if (this.requests == null || this.requests.acquire(1) == 1) {
+			return true;
+		}
+		this.requestsRejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Points of a message were turned away with its post, and aren't aggregated
+	 */
+	void pointsDropped(final int count) {
+		this.pointsDropped.addAndGet(count);
+	}
+
+	/**
+	 * Keep a point over the limits as the latest value of its series; a point collected before the one already
+	 * held is ignored
+	 */
+	void aggregate(final int seriesId, final double value, final long collectedAtMillis) {
+		this.pointsAggregated.incrementAndGet();
+		this.aggregated.hold(seriesId, value, collectedAtMillis);
+	}
+
+	/**
+	 * Hold again a value drained from here whose post was turned away; it was counted when first aggregated
+	 */
+	void reaggregate(final int seriesId, final double value, final long collectedAtMillis) {
+		this.aggregated.hold(seriesId, value, collectedAtMillis);
+	}
+
+	/**
+	 * Move aggregated values the points limit allows to the given columns
+	 *
+	 * @param columns
+	 *            backed by the dictionary the series IDs were interned in
+	 * @param max
+	 *            most points to move
+	 *
+	 * @return how many were moved
+	 */
+	int drainAggregated(final PointColumns columns, final int max) {
+		int wanted = Math.min(this.aggregated.size(), max);
+		if (wanted == 0) {
+			return 0;
+		}
+		return this.aggregated.drain(columns, this.points == null ? wanted : this.points.acquire(wanted));
+	}
+
+	/**
+	 * Move every aggregated value to the given columns, whatever the limits, when the poster is closed
+	 *
+	 * @return how many were moved
+	 */
+	int drainAllAggregated(final PointColumns columns) {
+		return this.aggregated.drain(columns, Integer.MAX_VALUE);
+	}
+}
@@ -0,0 +1,46 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps the messages one API key may have waiting on a shared {@link GatewaySender}'s retry thread, so a key that
+ * keeps failing can't take the room every other key needs for its retries.
+ */
+final class RetryBudget {
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private volatile int maxPending;
+
+	RetryBudget(final int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	/**
+	 * Take room for one more message waiting for a retry
+	 *
+	 * @return false if the key already has its maximum waiting
+	 */
+	boolean acquire() {
+		if (this.pending.incrementAndGet() > this.maxPending) {
+			this.pending.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A message taken with {@link #acquire()} is no longer waiting
+	 */
+	void release() {
+		this.pending.decrementAndGet();
+	}
+
+	void setMaxPending(final int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	int getPending() {
+		return this.pending.get();
+	}
+}
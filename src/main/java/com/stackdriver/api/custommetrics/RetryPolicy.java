@@ -0,0 +1,103 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * How often, and how far apart, failed posts to the gateway are retried. <br/>
+ * The delay before retry n is drawn at random between half and all of initialBackoffMillis * 2^(n-1), capped at
+ * maxBackoffMillis.  The randomness keeps posters that failed together during a gateway outage from all coming
+ * back at the same moment.
+ */
+public class RetryPolicy {
+
+	private static final Logger LOGGER = Logger.getLogger(RetryPolicy.class.getName());
+
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 500;
+
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+
+	/**
+	 * Give up on a message after the first failed post
+	 */
+	public static final RetryPolicy NO_RETRIES = new RetryPolicy(0, 0, 0);
+
+	// shared by every policy, only used on the failure path
+	private static final Random JITTER = new Random();
+
+	private final int maxRetries;
+
+	private final long initialBackoffMillis;
+
+	private final long maxBackoffMillis;
+
+	/**
+	 * Creates a policy with the default number of retries and backoff.
+	 */
+	public RetryPolicy() {
+		this(DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+	}
+
+	/**
+	 * Creates a policy.
+	 *
+	 * @param maxRetries
+	 *            how many times a message is retried after its first post failed
+	 * @param initialBackoffMillis
+	 *            base delay before the first retry, doubled for every retry after that
+	 * @param maxBackoffMillis
+	 *            longest delay between two retries
+	 */
+	public RetryPolicy(final int maxRetries, final long initialBackoffMillis, final long maxBackoffMillis) {
+		if (maxRetries < 0 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+			LOGGER.severe("invalid retry policy maxRetries=" + maxRetries + ", initialBackoffMillis=" + initialBackoffMillis
+					+ ", maxBackoffMillis=" + maxBackoffMillis);
+			throw new IllegalArgumentException("retries and backoffs must not be negative and maxBackoffMillis must be at least initialBackoffMillis");
+		}
+		this.maxRetries = maxRetries;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Whether a gateway response is worth retrying: throttling and server errors are, anything else the gateway
+	 * answered with, a bad request or a bad API key say, will fail the same way again.
+	 *
+	 * @param responseCode
+	 *            HTTP status returned by the gateway
+	 * @return true for 429 and 5xx
+	 */
+	public static boolean isRetryable(final int responseCode) {
+		return responseCode == 429 || responseCode >= 500;
+	}
+
+	/**
+	 * Pick the delay before a retry
+	 *
+	 * @param retry
+	 *            which retry this is, starting at 1
+	 * @return delay in milliseconds
+	 */
+	public long backoffMillis(final int retry) {
+		long ceiling = this.initialBackoffMillis << Math.min(Math.max(retry - 1, 0), 30);
+		if (ceiling > this.maxBackoffMillis || ceiling < this.initialBackoffMillis) {
+			ceiling = this.maxBackoffMillis;
+		}
+		long half = ceiling / 2;
+		return half + (long) (JITTER.nextDouble() * (ceiling - half));
+	}
+
+	public int getMaxRetries() {
+		return this.maxRetries;
+	}
+
+	public long getInitialBackoffMillis() {
+		return this.initialBackoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return this.maxBackoffMillis;
+	}
+}
@@ -0,0 +1,37 @@
+package com.stackdriver.api.custommetrics;
+
+/**
+ * What became of a message handed to {@link CustomMetricsPoster#sendMetricsAsync(CustomMetricsMessage)}.
+ */
+public enum SendResult {
+
+	/**
+	 * The gateway accepted the message
+	 */
+	SENT,
+
+	/**
+	 * The gateway refused the message for good, a bad request or a bad API key say; it is not retried
+	 */
+	REJECTED,
+
+	/**
+	 * The post failed, or the circuit breaker is open, and the message is waiting to be retried in the background
+	 */
+	QUEUED_FOR_RETRY,
+
+	/**
+	 * The message could not be posted and was written to the spill queue for replay
+	 */
+	SPILLED,
+
+	/**
+	 * The message could not be posted and is lost
+	 */
+	DROPPED,
+
+	/**
+	 * The poster is in local mode, the message was logged
+	 */
+	LOGGED
+}
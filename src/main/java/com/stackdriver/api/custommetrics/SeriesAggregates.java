@@ -0,0 +1,96 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Arrays;
+
+/**
+ * The latest value of each series over a rate limit, kept in primitive arrays indexed by series ID so holding a
+ * point costs a few array writes and no objects. <br/>
+ * Series holding a value are also queued in the order they got it, so draining costs the number of values held
+ * rather than the number of series ever seen, and a drain cut short by the limits resumes with the oldest.  The
+ * arrays are only replaced when a series ID outgrows them.
+ * <br/>
+ * Every method takes this object's lock, held for a handful of array accesses.
+ */
+final class SeriesAggregates {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// all indexed by series ID
+	private boolean[] held = new boolean[INITIAL_CAPACITY];
+
+	private double[] values = new double[INITIAL_CAPACITY];
+
+	private long[] collectedAtMillis = new long[INITIAL_CAPACITY];
+
+	// IDs of the series holding a value, oldest first, in a ring as long as the arrays above
+	private int[] queue = new int[INITIAL_CAPACITY];
+
+	private int head;
+
+	private int size;
+
+	/**
+	 * Keep a value as the latest of its series; one collected before the value already held is ignored
+	 */
+	synchronized void hold(final int seriesId, final double value, final long collectedAtMillis) {
+		if (seriesId >= this.held.length) {
+			this.grow(seriesId + 1);
+		}
+		if (this.held[seriesId]) {
+			if (this.collectedAtMillis[seriesId] > collectedAtMillis) {
+				return;
+			}
+		} else {
+			this.held[seriesId] = true;
+			int tail = this.head + this.size;
+			this.queue[tail < this.queue.length ? tail : tail - this.queue.length] = seriesId;
+			this.size++;
+		}
+		this.values[seriesId] = value;
+		this.collectedAtMillis[seriesId] = collectedAtMillis;
+	}
+
+	/**
+	 * Move the oldest values held to the given columns
+	 *
+	 * @param max
+	 *            most values to move
+	 * @return how many were moved
+	 */
+	synchronized int drain(final PointColumns columns, final int max) {
+		int drained = 0;
+		while (drained < max && this.size > 0) {
+			int seriesId = this.queue[this.head];
+			if (++this.head == this.queue.length) {
+				this.head = 0;
+			}
+			this.size--;
+			this.held[seriesId] = false;
+			columns.add(seriesId, this.values[seriesId], this.collectedAtMillis[seriesId]);
+			drained++;
+		}
+		return drained;
+	}
+
+	/**
+	 * @return series holding a value
+	 */
+	synchronized int size() {
+		return this.size;
+	}
+
+	private void grow(final int minCapacity) {
+		int capacity = Math.max(minCapacity, this.held.length * 2);
+		this.held = Arrays.copyOf(this.held, capacity);
+		this.values = Arrays.copyOf(this.values, capacity);
+		this.collectedAtMillis = Arrays.copyOf(this.collectedAtMillis, capacity);
+		// unwrap the ring so it starts at 0 in the bigger array
+		int[] unwrapped = new int[capacity];
+		for (int i = 0; i < this.size; i++) {
+			int index = this.head + i;
+			unwrapped[i] = this.queue[index < this.queue.length ? index : index - this.queue.length];
+		}
+		this.queue = unwrapped;
+		this.head = 0;
+	}
+}
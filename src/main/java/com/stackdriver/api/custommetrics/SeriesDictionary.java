@@ -0,0 +1,222 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns metric series, a name plus optional instance ID, as small int IDs so queued points can be kept as
+ * primitives and only turned back into names when a message is built. <br/>
+ * Looking up a series that is already interned does not allocate, with or without an instance.
+ * <br/>
+ * Instances come and go, so their series can be retired, see {@link #retireInstance(String)}: the lookup entries
+ * are dropped and the instance interns a new ID if it ever reports again.  A retired ID keeps resolving to its
+ * name and instance while points queued under it may still be around, and is reused for a new series once
+ * {@link #reclaimRetired()} has been called twice since it was retired.  Whoever queues points calls that
+ * whenever nothing it queued before is left, see {@link CustomMetricsPoster#reclaimRetiredSeries()}, so a
+ * fleet whose instances come and go keeps as many slots as it has live series.
+ */
+public class SeriesDictionary {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	// series without an instance, keyed by name alone so the lookup needs no key object
+	private final ConcurrentMap<String, Integer> plainSeries = new ConcurrentHashMap<String, Integer>();
+
+	// series with an instance, by name and then instance ID, so the lookup needs no key object either
+	private final ConcurrentMap<String, ConcurrentMap<String, Integer>> instanceSeries = new ConcurrentHashMap<String, ConcurrentMap<String, Integer>>();
+
+	// indexed by ID; replaced with a bigger copy when full, always before the new ID is published in a map
+	private volatile SeriesKey[] keys = new SeriesKey[INITIAL_CAPACITY];
+
+	// IDs handed out so far, free ones included
+	private int size;
+
+	// retired since the last call to reclaimRetired
+	private IdList retired = new IdList();
+
+	// retired before the last call to reclaimRetired, free on the next one
+	private IdList reclaimable = new IdList();
+
+	// reused before the dictionary grows
+	private final IdList free = new IdList();
+
+	/**
+	 * Get the ID for a series, assigning a new one on first use
+	 *
+	 * @param name
+	 *            metric name
+	 * @param instanceId
+	 *            instance the series is bound to, or null for none
+	 * @return the series ID
+	 */
+	public int intern(final String name, final String instanceId) {
+		if (name == null) {
+			throw new IllegalArgumentException("name is required to intern a metric series");
+		}
+		Integer id = this.lookup(name, instanceId);
+		return id != null ? id.intValue() : this.add(name, instanceId);
+	}
+
+	private Integer lookup(final String name, final String instanceId) {
+		if (instanceId == null) {
+			return this.plainSeries.get(name);
+		}
+		ConcurrentMap<String, Integer> byInstance = this.instanceSeries.get(name);
+		return byInstance == null ? null : byInstance.get(instanceId);
+	}
+
+	private synchronized int add(final String name, final String instanceId) {
+		Integer existing = this.lookup(name, instanceId);
+		if (existing != null) {
+			return existing.intValue();
+		}
+		SeriesKey[] current = this.keys;
+		int id;
+		if (this.free.size > 0) {
+			id = this.free.remove();
+		} else {
+			id = this.size++;
+			if (id == current.length) {
+				SeriesKey[] grown = new SeriesKey[current.length * 2];
+				System.arraycopy(current, 0, grown, 0, current.length);
+				current = grown;
+			}
+		}
+		current[id] = new SeriesKey(name, instanceId);
+		this.keys = current;
+		if (instanceId == null) {
+			this.plainSeries.put(name, Integer.valueOf(id));
+		} else {
+			ConcurrentMap<String, Integer> byInstance = this.instanceSeries.get(name);
+			if (byInstance == null) {
+				byInstance = new ConcurrentHashMap<String, Integer>();
+				this.instanceSeries.put(name, byInstance);
+			}
+			byInstance.put(instanceId, Integer.valueOf(id));
+		}
+		return id;
+	}
+
+	/**
+	 * Forget every series of an instance that is gone, a terminated host say.  IDs already handed out keep
+	 * resolving until they are reclaimed, see the class comment.
+	 *
+	 * @param instanceId
+	 *            the retired instance
+	 * @return the number of series retired
+	 */
+	public synchronized int retireInstance(final String instanceId) {
+		if (instanceId == null) {
+			throw new IllegalArgumentException("instanceId is required to retire an instance");
+		}
+		int retiredCount = 0;
+		SeriesKey[] current = this.keys;
+		Iterator<ConcurrentMap<String, Integer>> names = this.instanceSeries.values().iterator();
+		while (names.hasNext()) {
+			ConcurrentMap<String, Integer> byInstance = names.next();
+			Integer id = byInstance.remove(instanceId);
+			if (id != null) {
+				retiredCount++;
+				this.retired.add(id.intValue());
+				// a copy resolves the same, and tells a handle still holding the original that its ID is gone
+				SeriesKey key = current[id.intValue()];
+				current[id.intValue()] = new SeriesKey(key.getName(), key.getInstanceId());
+				// new instances are only added under this lock, so an empty map stays empty
+				if (byInstance.isEmpty()) {
+					names.remove();
+				}
+			}
+		}
+		// publishes the copies
+		this.keys = current;
+		return retiredCount;
+	}
+
+	/**
+	 * Mark a point where nothing queued before the previous call still refers to a series ID: IDs retired before
+	 * the previous call become free for new series, and those retired since wait for the next call.
+	 *
+	 * @return the number of IDs freed
+	 */
+	synchronized int reclaimRetired() {
+		int freed = this.reclaimable.size;
+		for (int i = 0; i < freed; i++) {
+			this.free.add(this.reclaimable.ids[i]);
+		}
+		IdList emptied = this.reclaimable;
+		emptied.size = 0;
+		this.reclaimable = this.retired;
+		this.retired = emptied;
+		return freed;
+	}
+
+	/**
+	 * @return true if the given key, got from {@link #getKey(int)}, is still what the ID stands for, false once
+	 *         the series is retired
+	 */
+	boolean isCurrent(final int id, final SeriesKey key) {
+		return this.keys[id] == key;
+	}
+
+	SeriesKey getKey(final int id) {
+		return this.keys[id];
+	}
+
+	public String getName(final int id) {
+		return this.keys[id].getName();
+	}
+
+	/**
+	 * @return the instance ID of a series, or null if it is not tied to an instance
+	 */
+	public String getInstanceId(final int id) {
+		return this.keys[id].getInstanceId();
+	}
+
+	/**
+	 * @return the number of IDs in use, retired ones not reclaimed yet included
+	 */
+	public synchronized int size() {
+		return this.size - this.free.size;
+	}
+
+	/**
+	 * Materialize a queued point as a data point object, an InstanceDataPoint if the series has an instance
+	 *
+	 * @param id
+	 *            series ID
+	 * @param value
+	 *            point value
+	 * @param collectedAtMillis
+	 *            when the point was collected, in epoch milliseconds
+	 * @return the data point
+	 */
+	DataPoint newDataPoint(final int id, final double value, final long collectedAtMillis) {
+		SeriesKey key = this.keys[id];
+		if (key.getInstanceId() == null) {
+			return new DataPoint(key.getName(), value, new Date(collectedAtMillis));
+		}
+		return new InstanceDataPoint(key.getName(), value, new Date(collectedAtMillis), key.getInstanceId());
+	}
+
+	private static final class IdList {
+
+		int[] ids = new int[8];
+
+		int size;
+
+		void add(final int id) {
+			if (this.size == this.ids.length) {
+				this.ids = Arrays.copyOf(this.ids, this.size * 2);
+			}
+			this.ids[this.size++] = id;
+		}
+
+		int remove() {
+			return this.ids[--this.size];
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.stackdriver.api.custommetrics;
+
+/**
+ * Identifies one metric series: a metric name, optionally bound to an instance.
+ */
+final class SeriesKey {
+
+	private final String name;
+
+	// null when the series is not tied to an instance
+	private final String instanceId;
+
+	private final int hash;
+
+	SeriesKey(final String name, final String instanceId) {
+		this.name = name;
+		this.instanceId = instanceId;
+		this.hash = 31 * name.hashCode() + (instanceId == null ? 0 : instanceId.hashCode());
+	}
+
+	String getName() {
+		return this.name;
+	}
+
+	String getInstanceId() {
+		return this.instanceId;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hash;
+	}
+
+	@Override
+	public boolean equals(final Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof SeriesKey)) {
+			return false;
+		}
+		SeriesKey key = (SeriesKey) other;
+		return this.hash == key.hash && this.name.equals(key.name)
+				&& (this.instanceId == null ? key.instanceId == null : this.instanceId.equals(key.instanceId));
+	}
+
+	@Override
+	public String toString() {
+		return this.instanceId == null ? this.name : this.name + "@" + this.instanceId;
+	}
+}
@@ -0,0 +1,134 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Common plumbing for the striped accumulators, along the lines of java.util.concurrent.atomic.Striped64 which is
+ * not available on the Java versions this library targets. <br/>
+ * Updates go to a single base value until two threads collide on it.  From then on every thread updates its own
+ * stripe, picked by a per-thread probe, and a thread that still collides moves to another stripe instead of
+ * spinning.  Stripes are spaced a cache line pair apart so neighbouring stripes never share a line.
+ */
+abstract class Striped64 {
+
+	// longs between two stripes, 128 bytes, which also defeats adjacent line prefetching
+	private static final int PADDING_SHIFT = 4;
+
+	private static final int MAX_STRIPES = 64;
+
+	// power of two, at least the number of CPUs
+	static final int STRIPES = stripesFor(Runtime.getRuntime().availableProcessors());
+
+	private static final ThreadLocal<int[]> PROBES = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			// spread sequential thread IDs over the stripes, and never start at zero which xorshift can't leave
+			long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+			int probe = (int) (id ^ (id >>> 32));
+			return new int[] { probe == 0 ? 1 : probe };
+		}
+	};
+
+	final AtomicLong base;
+
+	private final long identity;
+
+	private volatile AtomicLongArray cells;
+
+	/**
+	 * @param identity
+	 *            raw value every stripe starts from and is reset to
+	 */
+	Striped64(final long identity) {
+		this.identity = identity;
+		this.base = new AtomicLong(identity);
+	}
+
+	/**
+	 * @return the stripes, or null while the base value has never been contended
+	 */
+	final AtomicLongArray cells() {
+		return this.cells;
+	}
+
+	/**
+	 * Switch to striped updates after a collision on the base value.  Happens once per accumulator.
+	 *
+	 * @return the stripes
+	 */
+	final AtomicLongArray inflate() {
+		synchronized (this) {
+			if (this.cells == null) {
+				AtomicLongArray created = new AtomicLongArray(STRIPES << PADDING_SHIFT);
+				if (this.identity != 0) {
+					for (int i = 0; i < STRIPES; i++) {
+						created.set(i << PADDING_SHIFT, this.identity);
+					}
+				}
+				this.cells = created;
+			}
+			return this.cells;
+		}
+	}
+
+	/**
+	 * @return the calling thread's stripe index into the cells array
+	 */
+	static int slot() {
+		return (PROBES.get()[0] & (STRIPES - 1)) << PADDING_SHIFT;
+	}
+
+	/**
+	 * Move the calling thread to another stripe after it collided on its current one
+	 *
+	 * @return the calling thread's new stripe index into the cells array
+	 */
+	static int moveSlot() {
+		int[] probe = PROBES.get();
+		int next = probe[0];
+		next ^= next << 13;
+		next ^= next >>> 17;
+		next ^= next << 5;
+		probe[0] = next;
+		return (next & (STRIPES - 1)) << PADDING_SHIFT;
+	}
+
+	/**
+	 * Read every stripe and the base without resetting them
+	 *
+	 * @return the raw values, base first
+	 */
+	final long[] read() {
+		return this.collect(false);
+	}
+
+	/**
+	 * Atomically take every stripe's value and put the identity back, so each update lands in exactly one
+	 * snapshot
+	 *
+	 * @return the raw values taken, base first
+	 */
+	final long[] readAndReset() {
+		return this.collect(true);
+	}
+
+	private long[] collect(final boolean reset) {
+		AtomicLongArray current = this.cells;
+		long[] values = new long[current == null ? 1 : STRIPES + 1];
+		values[0] = reset ? this.base.getAndSet(this.identity) : this.base.get();
+		for (int i = 1; i < values.length; i++) {
+			int index = (i - 1) << PADDING_SHIFT;
+			values[i] = reset ? current.getAndSet(index, this.identity) : current.get(index);
+		}
+		return values;
+	}
+
+	static int stripesFor(final int cpus) {
+		int stripes = 1;
+		while (stripes < cpus && stripes < MAX_STRIPES) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+}
@@ -0,0 +1,100 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates doubles from many threads at once without contending: a running sum, minimum or maximum, like
+ * java.util.concurrent.atomic.DoubleAdder and DoubleAccumulator. <br/>
+ * Values are kept as raw long bits in the stripes.  A thread whose compare-and-set loses a race moves to another
+ * stripe rather than retrying on the same one, and a minimum or maximum that would not change is not written at all.
+ */
+public class StripedDoubleAccumulator extends Striped64 {
+
+	/**
+	 * How values are combined
+	 */
+	public enum Operation {
+		SUM(0.0), MIN(Double.POSITIVE_INFINITY), MAX(Double.NEGATIVE_INFINITY);
+
+		private final double identity;
+
+		private Operation(final double identity) {
+			this.identity = identity;
+		}
+
+		/**
+		 * @return the value an empty accumulator reports, zero for a sum and an infinity for min or max
+		 */
+		public double getIdentity() {
+			return this.identity;
+		}
+
+		double combine(final double current, final double value) {
+			switch (this) {
+			case MIN:
+				return value < current ? value : current;
+			case MAX:
+				return value > current ? value : current;
+			default:
+				return current + value;
+			}
+		}
+	}
+
+	private final Operation operation;
+
+	public StripedDoubleAccumulator(final Operation operation) {
+		super(Double.doubleToRawLongBits(operation.getIdentity()));
+		this.operation = operation;
+	}
+
+	public void accumulate(final double value) {
+		AtomicLongArray stripes = this.cells();
+		if (stripes == null) {
+			long current = this.base.get();
+			long next = Double.doubleToRawLongBits(this.operation.combine(Double.longBitsToDouble(current), value));
+			if (next == current || this.base.compareAndSet(current, next)) {
+				return;
+			}
+			stripes = this.inflate();
+		}
+		int slot = slot();
+		while (true) {
+			long current = stripes.get(slot);
+			long next = Double.doubleToRawLongBits(this.operation.combine(Double.longBitsToDouble(current), value));
+			if (next == current || stripes.compareAndSet(slot, current, next)) {
+				return;
+			}
+			slot = moveSlot();
+		}
+	}
+
+	/**
+	 * @return the combined value so far, or the identity if nothing was accumulated
+	 */
+	public double get() {
+		return this.combineAll(this.read());
+	}
+
+	/**
+	 * Take the combined value and reset to the identity.  Every value is accumulated into exactly one of the
+	 * results returned.
+	 *
+	 * @return the combined value since the last reset, or the identity if nothing was accumulated
+	 */
+	public double getThenReset() {
+		return this.combineAll(this.readAndReset());
+	}
+
+	public Operation getOperation() {
+		return this.operation;
+	}
+
+	private double combineAll(final long[] values) {
+		double result = this.operation.getIdentity();
+		for (long value : values) {
+			result = this.operation.combine(result, Double.longBitsToDouble(value));
+		}
+		return result;
+	}
+}
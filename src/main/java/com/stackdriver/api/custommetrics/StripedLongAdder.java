@@ -0,0 +1,54 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A long sum that many threads can add to at once without contending, like java.util.concurrent.atomic.LongAdder.
+ * Once striped, an add is a single atomic add on the thread's own stripe, with no retry loop.
+ */
+public class StripedLongAdder extends Striped64 {
+
+	public StripedLongAdder() {
+		super(0L);
+	}
+
+	public void increment() {
+		this.add(1L);
+	}
+
+	public void add(final long delta) {
+		AtomicLongArray stripes = this.cells();
+		if (stripes == null) {
+			long current = this.base.get();
+			if (this.base.compareAndSet(current, current + delta)) {
+				return;
+			}
+			stripes = this.inflate();
+		}
+		stripes.getAndAdd(slot(), delta);
+	}
+
+	/**
+	 * @return the current total; not a snapshot if adds are in progress
+	 */
+	public long sum() {
+		return total(this.read());
+	}
+
+	/**
+	 * Take the total and reset to zero.  Every add is counted in exactly one of the totals returned.
+	 *
+	 * @return the total since the last reset
+	 */
+	public long sumThenReset() {
+		return total(this.readAndReset());
+	}
+
+	private static long total(final long[] values) {
+		long sum = 0;
+		for (long value : values) {
+			sum += value;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,116 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Date;
+
+import com.stackdriver.api.custommetrics.StripedDoubleAccumulator.Operation;
+
+/**
+ * Summarizes a distribution of observations, typically latencies.  Reports a small set of points per interval,
+ * named after the timer with a suffix: count, sum, min, max and avg of the observations in that interval, and the
+ * 50th, 90th, 99th and 99.9th percentiles from a {@link QuantileSketch}, within 1% of an observed value.
+ * Nothing is reported for an interval with no observations.  Memory is fixed, however many observations there are.
+ * <br/>
+ * Recording is lock free and striped, so any number of threads can record into the same timer without contending.
+ * Every field is snapshotted and reset atomically, so no observation is lost or reported twice, and an observation
+ * that is counted in an interval is always reflected in that interval's sum, min and max.
+ */
+public class Timer extends Metric {
+
+	public static final String COUNT_SUFFIX = ".count";
+
+	public static final String SUM_SUFFIX = ".sum";
+
+	public static final String MIN_SUFFIX = ".min";
+
+	public static final String MAX_SUFFIX = ".max";
+
+	public static final String AVG_SUFFIX = ".avg";
+
+	public static final String P50_SUFFIX = ".p50";
+
+	public static final String P90_SUFFIX = ".p90";
+
+	public static final String P99_SUFFIX = ".p99";
+
+	public static final String P999_SUFFIX = ".p999";
+
+	private final StripedLongAdder count = new StripedLongAdder();
+
+	private final StripedDoubleAccumulator sum = new StripedDoubleAccumulator(Operation.SUM);
+
+	private final StripedDoubleAccumulator min = new StripedDoubleAccumulator(Operation.MIN);
+
+	private final StripedDoubleAccumulator max = new StripedDoubleAccumulator(Operation.MAX);
+
+	private final QuantileSketch sketch = new QuantileSketch();
+
+	Timer(final String name, final String instanceId) {
+		super(name, instanceId);
+	}
+
+	/**
+	 * Record one observation
+	 *
+	 * @param value
+	 *            the observed value, in whatever unit the metric name implies
+	 */
+	public void record(final double value) {
+		// the count goes last, and is reset first in report, so a counted observation is always fully visible
+		this.min.accumulate(value);
+		this.max.accumulate(value);
+		this.sum.accumulate(value);
+		this.sketch.record(value);
+		this.count.increment();
+	}
+
+	/**
+	 * @return number of observations so far in the current interval
+	 */
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	@Override
+	void report(final CustomMetricsMessage message, final Date collectedAt) {
+		long intervalCount = this.count.sumThenReset();
+		double intervalSum = this.sum.getThenReset();
+		double intervalMin = this.min.getThenReset();
+		double intervalMax = this.max.getThenReset();
+		QuantileSketch intervalSketch = this.sketch.getThenReset();
+		if (intervalCount == 0) {
+			// only observations racing with this report can be here, put them back for the next interval
+			this.restore(intervalSum, intervalMin, intervalMax);
+			this.sketch.merge(intervalSketch);
+			return;
+		}
+		this.addPoint(message, COUNT_SUFFIX, intervalCount, collectedAt);
+		this.addPoint(message, SUM_SUFFIX, intervalSum, collectedAt);
+		this.addPoint(message, MIN_SUFFIX, intervalMin, collectedAt);
+		this.addPoint(message, MAX_SUFFIX, intervalMax, collectedAt);
+		this.addPoint(message, AVG_SUFFIX, intervalSum / intervalCount, collectedAt);
+		this.addPoint(message, P50_SUFFIX, percentile(intervalSketch, 0.5, intervalMin, intervalMax), collectedAt);
+		this.addPoint(message, P90_SUFFIX, percentile(intervalSketch, 0.9, intervalMin, intervalMax), collectedAt);
+		this.addPoint(message, P99_SUFFIX, percentile(intervalSketch, 0.99, intervalMin, intervalMax), collectedAt);
+		this.addPoint(message, P999_SUFFIX, percentile(intervalSketch, 0.999, intervalMin, intervalMax), collectedAt);
+	}
+
+	/**
+	 * The sketch's estimate, kept within the exact min and max so a percentile never falls outside what was seen
+	 */
+	private static double percentile(final QuantileSketch sketch, final double quantile, final double min, final double max) {
+		double estimate = sketch.getValueAtQuantile(quantile);
+		if (Double.isNaN(estimate)) {
+			// the sketch lost a race with the count, only possible for observations recorded during the report
+			return max;
+		}
+		return Math.max(min, Math.min(max, estimate));
+	}
+
+	private void restore(final double intervalSum, final double intervalMin, final double intervalMax) {
+		if (intervalSum != 0) {
+			this.sum.accumulate(intervalSum);
+		}
+		this.min.accumulate(intervalMin);
+		this.max.accumulate(intervalMax);
+	}
+}
@@ -0,0 +1,49 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket refilled at a steady rate and holding at most one second of it. <br/>
+ * Instead of a token count and a refill timestamp, which would have to change together, the whole state is the
+ * time at which the bucket will be full again; taking tokens pushes that time forward, so acquiring is a single
+ * compare and set and never blocks.
+ */
+final class TokenBucket {
+
+	private final long nanosPerToken;
+
+	private final long capacityNanos;
+
+	private final AtomicLong fullAtNanos;
+
+	TokenBucket(final double tokensPerSecond) {
+		this.nanosPerToken = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / tokensPerSecond));
+		this.capacityNanos = this.nanosPerToken * Math.max(1, (long) Math.ceil(tokensPerSecond));
+		this.fullAtNanos = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Take up to the given number of tokens
+	 *
+	 * @return how many were taken, from 0 to wanted
+	 */
+	int acquire(final int wanted) {
+		return this.acquire(wanted, System.nanoTime());
+	}
+
+	int acquire(final int wanted, final long nowNanos) {
+		while (true) {
+			long fullAt = this.fullAtNanos.get();
+			long debt = Math.max(0, fullAt - nowNanos);
+			long available = (this.capacityNanos - debt) / this.nanosPerToken;
+			int taken = (int) Math.min(wanted, available);
+			if (taken <= 0) {
+				return 0;
+			}
+			if (this.fullAtNanos.compareAndSet(fullAt, nowNanos + debt + taken * this.nanosPerToken)) {
+				return taken;
+			}
+		}
+	}
+}
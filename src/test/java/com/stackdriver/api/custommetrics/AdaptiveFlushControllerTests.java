@@ -0,0 +1,106 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class AdaptiveFlushControllerTests {
+
+	private static void posted(final ClientStats stats, final int responseCode, final long latencyMillis) {
+		stats.postCompleted(100, responseCode, TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+	}
+
+	@Test
+	public void testGrowsBatchesUnderBacklog() {
+		ClientStats stats = new ClientStats(null);
+		AdaptiveFlushController controller = new AdaptiveFlushController(100, 1000, 100, 1000, 500);
+		controller.baseline(stats);
+		Assert.assertEquals(500, controller.getBatchPoints());
+		Assert.assertEquals(1000, controller.getFlushIntervalMillis());
+
+		for (int i = 0; i < 20; i++) {
+			posted(stats, 201, 20);
+			controller.batchSent(stats, 5000, controller.getBatchPoints());
+		}
+		// additive steps, stopped at the ceiling and floor
+		Assert.assertEquals(1000, controller.getBatchPoints());
+		Assert.assertEquals(100, controller.getFlushIntervalMillis());
+		Assert.assertEquals(0, controller.getBackoffs());
+		Assert.assertEquals(20.0, controller.getLastLatencyMillis(), 1);
+	}
+
+	@Test
+	public void testBacksOffSlowOrFailingGateway() {
+		ClientStats stats = new ClientStats(null);
+		AdaptiveFlushController controller = new AdaptiveFlushController(100, 4000, 100, 10000, 500);
+		controller.baseline(stats);
+
+		posted(stats, 201, 800);
+		controller.batchSent(stats, 0, 500);
+		Assert.assertEquals(1000, controller.getBatchPoints());
+		Assert.assertEquals(2000, controller.getFlushIntervalMillis());
+
+		posted(stats, 429, 10);
+		controller.batchSent(stats, 0, 500);
+		stats.connectFailed();
+		controller.batchSent(stats, 0, 500);
+		Assert.assertEquals(4000, controller.getBatchPoints());
+		Assert.assertEquals(8000, controller.getFlushIntervalMillis());
+
+		posted(stats, 503, 10);
+		controller.batchSent(stats, 0, 500);
+		Assert.assertEquals(4000, controller.getBatchPoints());
+		Assert.assertEquals(10000, controller.getFlushIntervalMillis());
+		Assert.assertEquals(4, controller.getBackoffs());
+
+		// a healthy post with nothing queued is no reason to back off again
+		posted(stats, 201, 10);
+		controller.batchSent(stats, 0, 4000);
+		Assert.assertEquals(4, controller.getBackoffs());
+	}
+
+	@Test
+	public void testIdlePosterPostsLessOften() {
+		ClientStats stats = new ClientStats(null);
+		// posts made before batching are not held against it
+		posted(stats, 503, 5000);
+		AdaptiveFlushController controller = new AdaptiveFlushController();
+		controller.baseline(stats);
+
+		for (int i = 0; i < 50; i++) {
+			posted(stats, 201, 20);
+			controller.batchSent(stats, 0, 3);
+		}
+		Assert.assertEquals(AdaptiveFlushController.DEFAULT_MIN_BATCH_POINTS, controller.getBatchPoints());
+		Assert.assertEquals(AdaptiveFlushController.DEFAULT_MAX_FLUSH_MILLIS, controller.getFlushIntervalMillis());
+		Assert.assertEquals(0, controller.getBackoffs());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testRejectsInvertedLimits() {
+		new AdaptiveFlushController(100, 50, 100, 1000, 500);
+	}
+
+	@Test
+	public void testBatcherFollowsController() throws InterruptedException {
+		RecordingPoster poster = new RecordingPoster();
+		AdaptiveFlushController controller = new AdaptiveFlushController(10, 200, 10, 50, 500);
+		poster.enableAdaptiveBatching(100000, controller, OverflowPolicy.BLOCK);
+		Assert.assertSame(controller, poster.getBatcher().getFlushController());
+
+		MetricsBatcher batcher = poster.getBatcher();
+		for (int i = 0; i < 20000; i++) {
+			poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, i);
+		}
+		Assert.assertTrue(poster.disableBatching(5000));
+		Assert.assertEquals(20000, poster.pointCount());
+		Assert.assertEquals(controller.getBatchPoints(), batcher.getMaxBatchPoints());
+		Assert.assertEquals(controller.getFlushIntervalMillis(), batcher.getMaxBatchAgeMillis());
+		// never more than the ceiling, whatever the controller went through
+		for (CustomMetricsMessage message : poster.messages) {
+			Assert.assertTrue(message.getDataPoints().size() <= 200);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class AsyncSendTests {
+
+	/**
+	 * Transport that takes its time answering and remembers how many posts it saw at once
+	 */
+	static class SlowTransport implements GatewayTransport {
+
+		final long latencyMillis;
+
+		final AtomicInteger inFlight = new AtomicInteger();
+
+		final AtomicInteger maxInFlight = new AtomicInteger();
+
+		final AtomicInteger posts = new AtomicInteger();
+
+		SlowTransport(final long latencyMillis) {
+			this.latencyMillis = latencyMillis;
+		}
+
+		public int post(final String apiKey, final byte[] body, final int offset, final int length) throws IOException {
+			int now = this.inFlight.incrementAndGet();
+			int max;
+			while ((max = this.maxInFlight.get()) < now && !this.maxInFlight.compareAndSet(max, now)) {
+				// retry until the max is at least what we saw
+			}
+			try {
+				Thread.sleep(this.latencyMillis);
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			} finally {
+				this.inFlight.decrementAndGet();
+			}
+			this.posts.incrementAndGet();
+			return 201;
+		}
+	}
+
+	private static CustomMetricsMessage message(final double value) {
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		message.addDataPoint(new DataPoint(CustomMetricsTests.TEST_METRIC_NAME, value, new Date()));
+		return message;
+	}
+
+	@Test
+	public void testSeveralPostsInFlight() throws Exception {
+		SlowTransport transport = new SlowTransport(200);
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY).setTransport(transport).setMaxInFlight(4);
+
+		long start = System.currentTimeMillis();
+		List<Future<SendResult>> results = new ArrayList<Future<SendResult>>();
+		for (int i = 0; i < 4; i++) {
+			results.addAll(poster.sendMetricsAsync(message(i)));
+		}
+		// the first batch doesn't wait on the network at all
+		Assert.assertTrue(System.currentTimeMillis() - start < 150);
+		for (int i = 4; i < 12; i++) {
+			results.addAll(poster.sendMetricsAsync(message(i)));
+		}
+		for (Future<SendResult> result : results) {
+			Assert.assertEquals(SendResult.SENT, result.get());
+		}
+		long elapsed = System.currentTimeMillis() - start;
+
+		Assert.assertEquals(12, transport.posts.get());
+		Assert.assertEquals(4, transport.maxInFlight.get());
+		// three rounds of four, not twelve posts one after the other
+		Assert.assertTrue("took " + elapsed + "ms", elapsed < 12 * 200 / 2);
+	}
+
+	@Test
+	public void testBatcherKeepsPostsInFlight() throws Exception {
+		SlowTransport transport = new SlowTransport(100);
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY).setTransport(transport).setMaxInFlight(3);
+		poster.enableBatching(10000, 10, 60000, OverflowPolicy.BLOCK);
+		for (int i = 0; i < 90; i++) {
+			poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, i);
+		}
+		Assert.assertTrue(poster.disableBatching(5000));
+		Assert.assertEquals(9, transport.posts.get());
+		Assert.assertTrue(transport.maxInFlight.get() > 1);
+	}
+
+	@Test
+	public void testCloseAbandonsPostsInFlight() throws Exception {
+		File directory = File.createTempFile("stackdriver-spill", "");
+		directory.delete();
+		SlowTransport transport = new SlowTransport(500) {
+			@Override
+			public int post(final String apiKey, final byte[] body, final int offset, final int length) throws IOException {
+				super.post(apiKey, body, offset, length);
+				throw new IOException("connection reset");
+			}
+		};
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY).setTransport(transport)
+				.setRetryPolicy(RetryPolicy.NO_RETRIES).enableSpilling(directory);
+		Future<SendResult> result = poster.sendMetricsAsync(message(1)).get(0);
+		Assert.assertFalse(poster.close(50));
+		// the spill queue is closed under the post, which fails after the deadline
+		Assert.assertEquals(SendResult.DROPPED, result.get());
+		Assert.assertEquals(0, poster.getSender().getSpilledMessages());
+		Assert.assertEquals(1, poster.getSender().getFailedMessages());
+
+		DiskSpillQueue reopened = new DiskSpillQueue(directory);
+		Assert.assertEquals(0, reopened.size());
+		reopened.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testLocalModeCompletesRightAway() throws Exception {
+		RecordingPoster poster = new RecordingPoster();
+		Future<SendResult> result = poster.sendMetricsAsync(message(1.0)).get(0);
+		Assert.assertTrue(result.isDone());
+		Assert.assertEquals(SendResult.LOGGED, result.get());
+		Assert.assertEquals(1, poster.messages.size());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testEmptyMessageRejectedUpFront() {
+		new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY).setTransport(new SlowTransport(0)).sendMetricsAsync(new CustomMetricsMessage());
+	}
+
+	@Test
+	public void testLargeMessagesAreSplit() throws Exception {
+		SlowTransport transport = new SlowTransport(50);
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY).setTransport(transport)
+				.setMessageLimits(100, 1 << 20);
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		for (int i = 0; i < 1000; i++) {
+			message.addDataPoint(new DataPoint(CustomMetricsTests.TEST_METRIC_NAME, i, new Date()));
+		}
+		List<Future<SendResult>> results = poster.sendMetricsAsync(message);
+		Assert.assertEquals(10, results.size());
+		for (Future<SendResult> result : results) {
+			Assert.assertEquals(SendResult.SENT, result.get());
+		}
+		Assert.assertTrue(transport.maxInFlight.get() > 1);
+
+		poster.sendMetrics(message);
+		Assert.assertEquals(20, transport.posts.get());
+	}
+}
@@ -0,0 +1,174 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ClientStatsTests {
+
+	private HttpServer server;
+
+	private String endpointUrl;
+
+	// status codes to answer with, in order; 201 once they run out
+	private final Queue<Integer> scriptedResponses = new ConcurrentLinkedQueue<Integer>();
+
+	@BeforeClass
+	public void startServer() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/v1/custom", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				while (in.read() != -1) {
+					// drain
+				}
+				Integer scripted = scriptedResponses.poll();
+				exchange.sendResponseHeaders(scripted == null ? 201 : scripted, -1);
+				exchange.close();
+			}
+		});
+		this.server.start();
+		this.endpointUrl = "http://127.0.0.1:" + this.server.getAddress().getPort() + "/v1/custom";
+	}
+
+	@AfterClass
+	public void stopServer() {
+		this.server.stop(0);
+	}
+
+	@BeforeMethod
+	public void resetServer() {
+		this.scriptedResponses.clear();
+	}
+
+	@Test
+	public void testPostsAndResponsesAreCounted() {
+		this.scriptedResponses.add(400);
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY, this.endpointUrl);
+		for (int i = 0; i < 3; i++) {
+			poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, i);
+		}
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		for (int i = 0; i < 5; i++) {
+			message.addDataPoint(new DataPoint(CustomMetricsTests.TEST_METRIC_NAME, i, new Date()));
+		}
+		poster.setMessageLimits(2, 1024).sendMetrics(message);
+
+		ClientStats stats = poster.getStats();
+		Assert.assertEquals(3, stats.getPointsRecorded());
+		Assert.assertEquals(8, stats.getPointsPosted());
+		Assert.assertEquals(6, stats.getMessagesPosted());
+		Assert.assertEquals(6, stats.getPosts());
+		Assert.assertEquals(5, stats.getMessagesSent());
+		Assert.assertEquals(1, stats.getMessagesFailed());
+		Assert.assertEquals(5, stats.getResponses2xx());
+		Assert.assertEquals(1, stats.getResponses4xx());
+		Assert.assertEquals(Long.valueOf(1), stats.getResponseCodeCounts().get(400));
+		Assert.assertEquals(0, stats.getConnectErrors());
+		Assert.assertTrue(stats.getBytesPosted() > 0);
+		Assert.assertEquals(stats.getBytesPosted(), stats.getBytesOnWire());
+
+		long bucketed = 0;
+		for (long count : stats.getPostLatencyBucketCounts()) {
+			bucketed += count;
+		}
+		Assert.assertEquals(6, bucketed);
+		Assert.assertEquals(stats.getPostLatencyBucketBoundsMillis().length + 1, stats.getPostLatencyBucketCounts().length);
+	}
+
+	@Test
+	public void testCompressedBytesOnWire() {
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY, this.endpointUrl);
+		poster.enableCompression(0);
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		for (int i = 0; i < 200; i++) {
+			message.addDataPoint(new DataPoint(CustomMetricsTests.TEST_METRIC_NAME, i, new Date()));
+		}
+		poster.sendMetrics(message);
+
+		ClientStats stats = poster.getStats();
+		Assert.assertEquals(1, stats.getMessagesSent());
+		Assert.assertTrue(stats.getBytesOnWire() > 0);
+		Assert.assertTrue(stats.getBytesOnWire() * 2 < stats.getBytesPosted());
+	}
+
+	@Test
+	public void testPercentilesFromBuckets() {
+		long[] buckets = new long[14];
+		// 90 posts under 1ms, 9 between 50 and 100ms, 1 slower than 10s
+		buckets[0] = 90;
+		buckets[6] = 9;
+		buckets[13] = 1;
+		Assert.assertEquals(1, ClientStats.percentileMillis(buckets, 0.5, 12000));
+		Assert.assertEquals(100, ClientStats.percentileMillis(buckets, 0.99, 12000));
+		Assert.assertEquals(12000, ClientStats.percentileMillis(buckets, 1.0, 12000));
+		Assert.assertEquals(0, ClientStats.percentileMillis(new long[14], 0.99, 0));
+	}
+
+	@Test
+	public void testStatsMBean() throws Exception {
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY, this.endpointUrl);
+		poster.registerStatsMBean("test-poster");
+		ObjectName name = poster.getStatsMBeanName();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 1.0);
+			Assert.assertEquals(Long.valueOf(1), server.getAttribute(name, "PointsRecorded"));
+			Assert.assertEquals(Long.valueOf(1), server.getAttribute(name, "Responses2xx"));
+			Assert.assertEquals(Integer.valueOf(0), server.getAttribute(name, "QueueDepth"));
+		} finally {
+			poster.unregisterStatsMBean();
+		}
+		Assert.assertFalse(server.isRegistered(name));
+		Assert.assertNull(poster.getStatsMBeanName());
+	}
+
+	@Test
+	public void testSelfMetricsReportIntervalCounts() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableSelfMetrics(60000);
+		poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 1.0);
+		poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 2.0);
+		poster.disableSelfMetrics();
+
+		Map<String, Double> reported = new HashMap<String, Double>();
+		for (DataPoint point : poster.points()) {
+			reported.put(point.getName(), point.getValue());
+		}
+		Assert.assertEquals(Double.valueOf(2.0), reported.get("stackdriver.client.points_recorded"));
+		Assert.assertEquals(Double.valueOf(0.0), reported.get("stackdriver.client.points_dropped"));
+		Assert.assertEquals(Double.valueOf(0.0), reported.get("stackdriver.client.queue_depth"));
+		Assert.assertTrue(reported.containsKey("stackdriver.client.post_latency_p99_ms"));
+	}
+
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void testSelfMetricsEnabledTwice() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableSelfMetrics(60000);
+		try {
+			poster.enableSelfMetrics(60000);
+		} finally {
+			poster.disableSelfMetrics();
+		}
+	}
+}
@@ -1,6 +1,9 @@
 package com.stackdriver.api.custommetrics;
 
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import junit.framework.Assert;
 
@@ -29,6 +32,26 @@ public class CustomMetricsTests {
 		new CustomMetricsPoster().sendMetricDataPoint(TEST_METRIC_NAME, 0.0);
 	}
 	
+	@Test(expectedExceptions = IllegalStateException.class)
+	public void testLocalPosterCannotPost() {
+		CustomMetricsPoster poster = new CustomMetricsPoster();
+		try {
+			poster.setLocalMode(false);
+		} finally {
+			Assert.assertTrue(poster.isLocalMode());
+		}
+	}
+
+	@Test
+	public void testCollectedNowIsToTheSecond() {
+		RecordingPoster poster = new RecordingPoster();
+		long before = System.currentTimeMillis();
+		poster.sendMetricDataPoint(TEST_METRIC_NAME, 0.0);
+		long collectedAt = poster.points().get(0).getCollectedAt().getTime();
+		Assert.assertEquals(0, collectedAt % 1000);
+		Assert.assertTrue(collectedAt > before - 2000 && collectedAt <= System.currentTimeMillis());
+	}
+	
 	@Test
 	public void testAddDataPoint() {
 		long pointTime = System.currentTimeMillis();
@@ -65,4 +88,121 @@ public class CustomMetricsTests {
 		System.out.println(json);
 	}
 	
+	@Test
+	public void testBulkInstancePointsInOneMessage() {
+		RecordingPoster poster = new RecordingPoster();
+		String[] instanceIds = new String[300];
+		double[] values = new double[300];
+		for (int i = 0; i < instanceIds.length; i++) {
+			instanceIds[i] = "i-" + i;
+			values[i] = i * 0.5;
+		}
+		Date collectedAt = new Date(1400000000000L);
+		poster.sendInstanceMetricDataPoints(TEST_METRIC_NAME, instanceIds, values, collectedAt);
+		Assert.assertEquals(1, poster.messages.size());
+		List<DataPoint> points = poster.points();
+		Assert.assertEquals(300, points.size());
+		InstanceDataPoint last = (InstanceDataPoint) points.get(299);
+		Assert.assertEquals("i-299", last.getInstanceId());
+		Assert.assertEquals(149.5, last.getValue());
+		Assert.assertEquals(1400000000L, last.getCollectedAtEpoch());
+		Assert.assertEquals(300, poster.getStats().getPointsRecorded());
+
+		Map<String, Double> byInstance = new LinkedHashMap<String, Double>();
+		byInstance.put("i-a", 1.0);
+		byInstance.put("i-b", 2.0);
+		poster.sendInstanceMetricDataPoints(TEST_METRIC_NAME, byInstance);
+		Assert.assertEquals(2, poster.messages.size());
+		Assert.assertEquals(2, poster.messages.get(1).getPointCount());
+		Assert.assertEquals("i-b", ((InstanceDataPoint) poster.messages.get(1).getDataPoints().get(1)).getInstanceId());
+	}
+
+	@Test
+	public void testBulkInstancePointsAreBatched() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableBatching(1000, 500, 60000, OverflowPolicy.DROP_NEWEST);
+		poster.sendInstanceMetricDataPoints(TEST_METRIC_NAME, new String[] { "i-1", "i-2", "i-3" }, new double[] { 1, 2, 3 });
+		// the sender thread may already have taken them off the queue
+		Assert.assertEquals(0, poster.getBatcher().getDroppedPoints());
+		Assert.assertTrue(poster.disableBatching(5000));
+		Assert.assertEquals(1, poster.messages.size());
+		Assert.assertEquals(3, poster.pointCount());
+	}
+
+	@Test
+	public void testCloseSendsWhatIsHeld() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableBatching(1000, 500, 60000, OverflowPolicy.DROP_NEWEST);
+		RateLimiter limiter = new RateLimiter(10, RateLimiter.UNLIMITED, RateLimitPolicy.AGGREGATE);
+		poster.setRateLimiter(limiter);
+		for (int i = 0; i < 100; i++) {
+			poster.sendInstanceMetricDataPoint(TEST_METRIC_NAME, i, "i-" + (i % 2));
+		}
+		long admitted = limiter.getPointsAdmitted();
+		Assert.assertTrue(poster.close(5000));
+		// the queued points and the latest value of each series held back by the limiter
+		Assert.assertEquals(admitted + 2, poster.pointCount());
+		Assert.assertNull(poster.getBatcher());
+		Assert.assertNull(poster.getRateLimiter());
+
+		poster.sendMetricDataPoint(TEST_METRIC_NAME, 1.0);
+		Assert.assertEquals(admitted + 2, poster.pointCount());
+		Assert.assertEquals(1, poster.getStats().getPointsDropped());
+		Assert.assertTrue(poster.isClosed());
+		Assert.assertTrue(poster.close(5000));
+	}
+
+	@Test
+	public void testCloseFlushesRegistries() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableSelfMetrics(3600000);
+		MetricsRegistry registry = new MetricsRegistry(poster, 3600000);
+		registry.counter(TEST_METRIC_NAME + ".requests").increment(3);
+		Assert.assertTrue(poster.close(5000));
+
+		boolean requests = false;
+		boolean stats = false;
+		for (DataPoint point : poster.points()) {
+			requests |= point.getName().equals(TEST_METRIC_NAME + ".requests") && point.getValue() == 3.0;
+			stats |= point.getName().startsWith(ClientStatsMetric.DEFAULT_NAME_PREFIX);
+		}
+		Assert.assertTrue(requests);
+		Assert.assertTrue(stats);
+		// the registry was closed with the poster
+		int sent = poster.pointCount();
+		registry.close();
+		Assert.assertEquals(sent, poster.pointCount());
+	}
+
+	@Test
+	public void testSendMetricsAfterCloseIsDropped() {
+		CustomMetricsPoster poster = new CustomMetricsPoster();
+		poster.close(5000);
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		message.addDataPoint(new DataPoint(TEST_METRIC_NAME, 1.0, new Date()));
+		message.addDataPoint(new DataPoint(TEST_METRIC_NAME, 2.0, new Date()));
+		poster.sendMetrics(message);
+		poster.sendMetricsAsync(message);
+		Assert.assertEquals(4, poster.getStats().getPointsDropped());
+	}
+
+	@Test
+	public void testShutdownHookEnabledOnce() {
+		CustomMetricsPoster poster = new CustomMetricsPoster().enableShutdownHook(1000);
+		try {
+			poster.enableShutdownHook();
+			Assert.fail("a second shutdown hook was registered");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		poster.disableShutdownHook();
+		poster.enableShutdownHook();
+		poster.close();
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testBulkInstancePointsNeedOneValuePerInstance() {
+		new RecordingPoster().sendInstanceMetricDataPoints(TEST_METRIC_NAME, new String[] { "i-1", "i-2" }, new double[] { 1 });
+	}
+
 }
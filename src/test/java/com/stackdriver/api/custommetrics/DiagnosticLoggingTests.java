@@ -0,0 +1,163 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class DiagnosticLoggingTests {
+
+	/**
+	 * Keeps the messages logged to the loggers it is attached to
+	 */
+	static class RecordingHandler extends Handler {
+
+		final List<String> messages = new ArrayList<String>();
+
+		@Override
+		public synchronized void publish(final LogRecord record) {
+			this.messages.add(record.getMessage());
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		synchronized int count(final String prefix) {
+			int count = 0;
+			for (String message : this.messages) {
+				if (message.startsWith(prefix)) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	@AfterMethod
+	public void resetLimits() {
+		DiagnosticLogging.reset();
+	}
+
+	@Test
+	public void testThrottleCountsSuppressedMessages() throws InterruptedException {
+		// a window far longer than the loop, however slow the machine
+		DiagnosticLogging.setErrorRateLimit(3, 60000);
+		Logger logger = Logger.getLogger(DiagnosticLoggingTests.class.getName());
+		LogThrottle throttle = new LogThrottle();
+		int logged = 0;
+		for (int i = 0; i < 10; i++) {
+			if (throttle.acquire(logger, Level.SEVERE) >= 0) {
+				logged++;
+			}
+		}
+		Assert.assertEquals(3, logged);
+		// then one that is over as soon as the clock moves on
+		DiagnosticLogging.setErrorRateLimit(3, 1);
+		long windowOver = System.currentTimeMillis() + 1;
+		while (System.currentTimeMillis() < windowOver) {
+			Thread.sleep(1);
+		}
+		Assert.assertEquals(7, throttle.acquire(logger, Level.SEVERE));
+		Assert.assertEquals(" (7 similar messages suppressed)", LogThrottle.suppressedNote(7));
+		Assert.assertEquals("", LogThrottle.suppressedNote(0));
+		// nothing is taken while the level is off
+		Assert.assertEquals(-1, throttle.acquire(logger, Level.FINEST));
+	}
+
+	@Test
+	public void testOutageDoesNotFloodTheLog() {
+		DiagnosticLogging.setErrorRateLimit(2, 60000);
+		Logger logger = Logger.getLogger(GatewaySender.class.getName());
+		RecordingHandler handler = new RecordingHandler();
+		logger.addHandler(handler);
+		try {
+			GatewaySender sender = new GatewaySender(new GatewayTransport() {
+				public int post(final String apiKey, final byte[] body, final int offset, final int length) throws IOException {
+					throw new IOException("connection refused");
+				}
+			}, HttpGatewayTransportTests.TEST_API_KEY);
+			sender.setRetryPolicy(RetryPolicy.NO_RETRIES);
+			sender.setCircuitBreaker(new CircuitBreaker(1000, 1000));
+			byte[] body = new byte[10];
+			for (int i = 0; i < 100; i++) {
+				sender.send(body, 0, body.length);
+			}
+			Assert.assertEquals(100, sender.getFailedMessages());
+			Assert.assertTrue(handler.count("Error connecting") <= 2);
+			Assert.assertTrue(handler.count("Giving up") <= 2);
+		} finally {
+			logger.removeHandler(handler);
+		}
+	}
+
+	@Test
+	public void testOversizedSpillsDoNotFloodTheLog() throws IOException {
+		DiagnosticLogging.setErrorRateLimit(2, 60000);
+		Logger logger = Logger.getLogger(DiskSpillQueue.class.getName());
+		RecordingHandler handler = new RecordingHandler();
+		logger.addHandler(handler);
+		File directory = File.createTempFile("stackdriver-spill", "");
+		directory.delete();
+		try {
+			DiskSpillQueue spill = new DiskSpillQueue(directory, 1024, 4096);
+			byte[] body = new byte[2048];
+			for (int i = 0; i < 100; i++) {
+				Assert.assertFalse(spill.append(body, 0, body.length));
+			}
+			spill.close();
+			Assert.assertEquals(2, handler.count("cannot spill a message"));
+		} finally {
+			logger.removeHandler(handler);
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void testPayloadsAreSampled() {
+		DiagnosticLogging.setPayloadSampleRate(10);
+		Logger logger = Logger.getLogger(CustomMetricsPoster.class.getName());
+		RecordingHandler handler = new RecordingHandler();
+		logger.addHandler(handler);
+		try {
+			CustomMetricsPoster poster = new CustomMetricsPoster();
+			for (int i = 0; i < 100; i++) {
+				CustomMetricsMessage message = new CustomMetricsMessage();
+				message.addDataPoint(new DataPoint(CustomMetricsTests.TEST_METRIC_NAME, i, new Date()));
+				poster.sendMetrics(message);
+			}
+			Assert.assertEquals(10, handler.count("sendMetrics called in local mode"));
+
+			DiagnosticLogging.setPayloadSampleRate(0);
+			handler.messages.clear();
+			CustomMetricsMessage message = new CustomMetricsMessage();
+			message.addDataPoint(new DataPoint(CustomMetricsTests.TEST_METRIC_NAME, 1.0, new Date()));
+			poster.sendMetrics(message);
+			Assert.assertEquals(0, handler.messages.size());
+		} finally {
+			logger.removeHandler(handler);
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testRejectsNegativeSampleRate() {
+		DiagnosticLogging.setPayloadSampleRate(-1);
+	}
+}
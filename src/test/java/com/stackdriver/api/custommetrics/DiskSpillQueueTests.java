@@ -0,0 +1,160 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DiskSpillQueueTests {
+
+	private static final int SEGMENT_BYTES = 1024;
+
+	private File directory;
+
+	@BeforeMethod
+	public void createDirectory() throws IOException {
+		this.directory = File.createTempFile("stackdriver-spill", "");
+		this.directory.delete();
+		this.directory.mkdirs();
+	}
+
+	@AfterMethod
+	public void deleteDirectory() {
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		this.directory.delete();
+	}
+
+	private static byte[] message(final int i) throws IOException {
+		return ("{\"timestamp\":" + i + ",\"proto_version\":1,\"data\":[]}").getBytes("UTF-8");
+	}
+
+	private static String take(final DiskSpillQueue queue) throws IOException {
+		byte[] body = queue.peek();
+		queue.remove();
+		return body == null ? null : new String(body, "UTF-8");
+	}
+
+	private File[] segmentFiles() {
+		File[] files = this.directory.listFiles();
+		Arrays.sort(files);
+		return files;
+	}
+
+	@Test
+	public void testFifoAcrossSegments() throws IOException {
+		DiskSpillQueue queue = new DiskSpillQueue(this.directory, SEGMENT_BYTES, 1024 * 1024);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertTrue(queue.append(message(i), 0, message(i).length));
+		}
+		Assert.assertEquals(100, queue.size());
+		Assert.assertTrue(this.segmentFiles().length > 1);
+		for (int i = 0; i < 100; i++) {
+			Assert.assertEquals(new String(message(i), "UTF-8"), take(queue));
+		}
+		Assert.assertNull(queue.peek());
+		Assert.assertEquals(0, queue.size());
+		// fully replayed segments are deleted, only the one being written to is left
+		Assert.assertEquals(1, this.segmentFiles().length);
+		queue.close();
+	}
+
+	@Test
+	public void testAppendAfterCloseIsRefused() throws IOException {
+		DiskSpillQueue queue = new DiskSpillQueue(this.directory, SEGMENT_BYTES, 4 * SEGMENT_BYTES);
+		Assert.assertTrue(queue.append(message(0), 0, message(0).length));
+		queue.close();
+		Assert.assertFalse(queue.append(message(1), 0, message(1).length));
+		Assert.assertEquals(0, queue.size());
+		Assert.assertEquals(1, this.segmentFiles().length);
+
+		DiskSpillQueue reopened = new DiskSpillQueue(this.directory, SEGMENT_BYTES, 4 * SEGMENT_BYTES);
+		Assert.assertEquals(1, reopened.size());
+		Assert.assertEquals(new String(message(0), "UTF-8"), take(reopened));
+		reopened.close();
+	}
+
+	@Test
+	public void testAppendFromBufferOffset() throws IOException {
+		DiskSpillQueue queue = new DiskSpillQueue(this.directory, SEGMENT_BYTES, 1024 * 1024);
+		byte[] buffer = "xxxxhelloyyyy".getBytes("UTF-8");
+		Assert.assertTrue(queue.append(buffer, 4, 5));
+		Assert.assertFalse(queue.append(new byte[SEGMENT_BYTES], 0, SEGMENT_BYTES));
+		Assert.assertEquals("hello", take(queue));
+		queue.close();
+	}
+
+	@Test
+	public void testOldestSegmentsAreEvicted() throws IOException {
+		DiskSpillQueue queue = new DiskSpillQueue(this.directory, SEGMENT_BYTES, 3 * SEGMENT_BYTES);
+		for (int i = 0; i < 200; i++) {
+			queue.append(message(i), 0, message(i).length);
+		}
+		Assert.assertEquals(3, this.segmentFiles().length);
+		Assert.assertTrue(queue.getDiskBytes() <= 3 * SEGMENT_BYTES);
+		Assert.assertEquals(200, queue.size() + queue.getEvictedMessages());
+		// what is left is the newest messages, still in order
+		int first = (int) queue.getEvictedMessages();
+		for (int i = first; i < 200; i++) {
+			Assert.assertEquals(new String(message(i), "UTF-8"), take(queue));
+		}
+		queue.close();
+	}
+
+	@Test
+	public void testRecoversUnsentMessages() throws IOException {
+		DiskSpillQueue queue = new DiskSpillQueue(this.directory, SEGMENT_BYTES, 1024 * 1024);
+		for (int i = 0; i < 50; i++) {
+			queue.append(message(i), 0, message(i).length);
+		}
+		for (int i = 0; i < 30; i++) {
+			take(queue);
+		}
+		queue.close();
+
+		DiskSpillQueue reopened = new DiskSpillQueue(this.directory, SEGMENT_BYTES, 1024 * 1024);
+		Assert.assertEquals(20, reopened.size());
+		Assert.assertEquals(new String(message(30), "UTF-8"), take(reopened));
+		reopened.append(message(50), 0, message(50).length);
+		for (int i = 31; i <= 50; i++) {
+			Assert.assertEquals(new String(message(i), "UTF-8"), take(reopened));
+		}
+		reopened.close();
+	}
+
+	@Test
+	public void testRecoveryStopsAtTornRecord() throws IOException {
+		DiskSpillQueue queue = new DiskSpillQueue(this.directory, SEGMENT_BYTES, 1024 * 1024);
+		for (int i = 0; i < 3; i++) {
+			queue.append(message(i), 0, message(i).length);
+		}
+		queue.close();
+
+		// flip a byte in the payload of the third record, as if the crash hit halfway through writing it
+		int recordBytes = 8 + message(0).length;
+		RandomAccessFile file = new RandomAccessFile(this.segmentFiles()[0], "rw");
+		file.seek(2 * recordBytes + 8 + 3);
+		file.write('#');
+		file.close();
+
+		DiskSpillQueue reopened = new DiskSpillQueue(this.directory, SEGMENT_BYTES, 1024 * 1024);
+		Assert.assertEquals(2, reopened.size());
+		reopened.append(message(9), 0, message(9).length);
+		Assert.assertEquals(new String(message(0), "UTF-8"), take(reopened));
+		Assert.assertEquals(new String(message(1), "UTF-8"), take(reopened));
+		Assert.assertEquals(new String(message(9), "UTF-8"), take(reopened));
+		reopened.close();
+
+		Assert.assertEquals(0, new DiskSpillQueue(this.directory, SEGMENT_BYTES, 1024 * 1024).size());
+	}
+}
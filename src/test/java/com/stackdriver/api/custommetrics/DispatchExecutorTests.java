@@ -0,0 +1,79 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class DispatchExecutorTests {
+
+	private static CustomMetricsMessage message(final double value) {
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		message.addDataPoint(new DataPoint(CustomMetricsTests.TEST_METRIC_NAME, value, new Date()));
+		return message;
+	}
+
+	@Test
+	public void testRunsOnCallerWithoutExecutor() throws Exception {
+		RecordingPoster poster = new RecordingPoster();
+		Future<Void> done = poster.submitMetrics(message(1.0));
+		Assert.assertTrue(done.isDone());
+		Assert.assertEquals(1, poster.messages.size());
+	}
+
+	@Test
+	public void testPostsAreOffloaded() throws Exception {
+		AsyncSendTests.SlowTransport transport = new AsyncSendTests.SlowTransport(200);
+		ExecutorService executor = DispatchExecutors.newDispatchThreadPool(32);
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY).setTransport(transport)
+				.setDispatchExecutor(executor);
+
+		long start = System.currentTimeMillis();
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int i = 0; i < 20; i++) {
+			results.add(poster.submitMetrics(message(i)));
+		}
+		// nothing waited on the gateway on this thread
+		Assert.assertTrue(System.currentTimeMillis() - start < 200);
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		Assert.assertEquals(20, transport.posts.get());
+		Assert.assertTrue(transport.maxInFlight.get() > 1);
+		Assert.assertEquals(20, poster.getStats().getMessagesSent());
+		executor.shutdown();
+	}
+
+	@Test
+	public void testRejectedSubmitRunsOnCaller() throws Exception {
+		RecordingPoster poster = new RecordingPoster();
+		ExecutorService executor = DispatchExecutors.newDispatchThreadPool(1);
+		executor.shutdown();
+		poster.setDispatchExecutor(executor);
+		Assert.assertTrue(poster.submitMetrics(message(1.0)).isDone());
+		Assert.assertEquals(1, poster.messages.size());
+	}
+
+	@Test
+	public void testVirtualThreadExecutorFallsBack() throws Exception {
+		ExecutorService executor = DispatchExecutors.newVirtualThreadPerTaskExecutor();
+		// the build runs on a JVM without virtual threads, newer ones get the real thing
+		Assert.assertTrue(DispatchExecutors.isVirtualThreadsAvailable() || executor instanceof ThreadPoolExecutor);
+		RecordingPoster poster = new RecordingPoster();
+		poster.setDispatchExecutor(executor);
+		poster.submitMetrics(message(1.0)).get();
+		Assert.assertEquals(1, poster.messages.size());
+		executor.shutdown();
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testEmptyMessageFailsOnCaller() {
+		new RecordingPoster().setDispatchExecutor(DispatchExecutors.newDispatchThreadPool(1)).submitMetrics(new CustomMetricsMessage());
+	}
+}
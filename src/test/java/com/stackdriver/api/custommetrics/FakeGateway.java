@@ -0,0 +1,554 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for the Stackdriver custom metrics gateway, bound to localhost, for testing posters offline. <br/>
+ * It checks the API key header, decodes gzip bodies, parses the JSON payload and counts every data point it
+ * accepts.  Requests can be slowed down, and answered with a 429, a 503 or a dropped connection, either at random
+ * or in a scripted order.
+ */
+class FakeGateway {
+
+	public static final String PATH = "/v1/custom";
+
+	// no status line at all, as if the connection went away mid request
+	private static final int RESET_STATUS = -1;
+
+	public enum Fault {
+		NONE,
+		/**
+		 * 429, the gateway is throttling the API key
+		 */
+		THROTTLE,
+		/**
+		 * 503, the gateway is overloaded or down
+		 */
+		SERVER_ERROR,
+		/**
+		 * the connection is closed without an answer, the client sees an IOException
+		 */
+		RESET
+	}
+
+	private final String apiKey;
+
+	private final HttpServer server;
+
+	private final ExecutorService handlers;
+
+	private final Random random = new Random();
+
+	// faults to inject, in order, before the random ones
+	private final Queue<Fault> scriptedFaults = new ConcurrentLinkedQueue<Fault>();
+
+	private volatile long minLatencyMillis;
+
+	private volatile long maxLatencyMillis;
+
+	private volatile double throttleRate;
+
+	private volatile double serverErrorRate;
+
+	private volatile double resetRate;
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong acceptedMessages = new AtomicLong();
+
+	private final AtomicLong acceptedPoints = new AtomicLong();
+
+	private final AtomicLong gzippedMessages = new AtomicLong();
+
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	private final AtomicLong resets = new AtomicLong();
+
+	private final ConcurrentMap<Integer, AtomicLong> responses = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	private final ConcurrentMap<String, AtomicLong> pointsByName = new ConcurrentHashMap<String, AtomicLong>();
+
+	// client side ports seen, one per connection the client opened
+	private final Set<Integer> connections = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+
+	/**
+	 * Starts a gateway on a free localhost port.
+	 *
+	 * @param apiKey
+	 *            the only API key accepted, others get a 403
+	 */
+	FakeGateway(final String apiKey) throws IOException {
+		this.apiKey = apiKey;
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		// one thread per request, so injected latency doesn't hold up other connections
+		this.handlers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				Thread thread = new Thread(runnable, "fake-gateway");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.server.setExecutor(this.handlers);
+		this.server.createContext(PATH, new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				FakeGateway.this.handle(exchange);
+			}
+		});
+		this.server.start();
+	}
+
+	/**
+	 * @return where a poster should post to
+	 */
+	String getEndpointUrl() {
+		return "http://127.0.0.1:" + this.server.getAddress().getPort() + PATH;
+	}
+
+	void stop() {
+		this.server.stop(0);
+		this.handlers.shutdownNow();
+	}
+
+	/**
+	 * Wait a random time in the given range before answering each request
+	 */
+	FakeGateway setLatency(final long minMillis, final long maxMillis) {
+		this.minLatencyMillis = minMillis;
+		this.maxLatencyMillis = maxMillis;
+		return this;
+	}
+
+	/**
+	 * Answer this share of requests, each between 0 and 1, with a fault instead of accepting them
+	 */
+	FakeGateway setFaultRates(final double throttleRate, final double serverErrorRate, final double resetRate) {
+		this.throttleRate = throttleRate;
+		this.serverErrorRate = serverErrorRate;
+		this.resetRate = resetRate;
+		return this;
+	}
+
+	/**
+	 * Answer the next requests with these faults, in order, before going back to the random ones
+	 */
+	FakeGateway script(final Fault... faults) {
+		for (Fault fault : faults) {
+			this.scriptedFaults.add(fault);
+		}
+		return this;
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		this.requests.incrementAndGet();
+		this.connections.add(exchange.getRemoteAddress().getPort());
+		int now = this.inFlight.incrementAndGet();
+		int max;
+		while ((max = this.maxInFlight.get()) < now && !this.maxInFlight.compareAndSet(max, now)) {
+			// retry until the max is at least what we saw
+		}
+		int status = RESET_STATUS;
+		try {
+			status = this.process(exchange);
+		} finally {
+			// no longer in flight once the client can tell it was answered, it may send the next one right away
+			this.inFlight.decrementAndGet();
+			if (status == RESET_STATUS) {
+				this.resets.incrementAndGet();
+			} else {
+				increment(this.responses, status);
+				exchange.sendResponseHeaders(status, -1);
+			}
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return the status to answer with, or RESET_STATUS to close the connection without an answer
+	 */
+	private int process(final HttpExchange exchange) throws IOException {
+		byte[] body = readBody(exchange.getRequestBody());
+		this.bytesReceived.addAndGet(body.length);
+		this.sleep();
+
+		Fault fault = this.nextFault();
+		if (fault == Fault.RESET) {
+			return RESET_STATUS;
+		} else if (fault == Fault.THROTTLE) {
+			return 429;
+		} else if (fault == Fault.SERVER_ERROR) {
+			return 503;
+		}
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			return 405;
+		}
+		if (!this.apiKey.equals(exchange.getRequestHeaders().getFirst("x-stackdriver-apikey"))) {
+			return 403;
+		}
+		if ("gzip".equals(exchange.getRequestHeaders().getFirst("content-encoding"))) {
+			this.gzippedMessages.incrementAndGet();
+			body = readBody(new GZIPInputStream(new ByteArrayInputStream(body)));
+		}
+		List<Map<String, Object>> points;
+		try {
+			points = parseMessage(new String(body, "UTF-8"));
+		} catch (IllegalArgumentException e) {
+			return 400;
+		}
+		for (Map<String, Object> point : points) {
+			increment(this.pointsByName, (String) point.get("name"));
+		}
+		this.acceptedPoints.addAndGet(points.size());
+		this.acceptedMessages.incrementAndGet();
+		return 201;
+	}
+
+	private Fault nextFault() {
+		Fault scripted = this.scriptedFaults.poll();
+		if (scripted != null) {
+			return scripted;
+		}
+		double roll = this.random.nextDouble();
+		if (roll < this.throttleRate) {
+			return Fault.THROTTLE;
+		}
+		roll -= this.throttleRate;
+		if (roll < this.serverErrorRate) {
+			return Fault.SERVER_ERROR;
+		}
+		roll -= this.serverErrorRate;
+		return roll < this.resetRate ? Fault.RESET : Fault.NONE;
+	}
+
+	private void sleep() {
+		long min = this.minLatencyMillis;
+		long max = this.maxLatencyMillis;
+		if (max <= 0) {
+			return;
+		}
+		long millis = max > min ? min + (long) (this.random.nextDouble() * (max - min)) : min;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static byte[] readBody(final InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			body.write(buffer, 0, read);
+		}
+		return body.toByteArray();
+	}
+
+	private static <K> void increment(final ConcurrentMap<K, AtomicLong> counts, final K key) {
+		AtomicLong count = counts.get(key);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = counts.putIfAbsent(key, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Check a message the way the gateway does and return its data points
+	 *
+	 * @throws IllegalArgumentException
+	 *             if it is not a valid gateway message
+	 */
+	@SuppressWarnings("unchecked")
+	static List<Map<String, Object>> parseMessage(final String json) {
+		Object parsed = new JsonParser(json).parseDocument();
+		if (!(parsed instanceof Map)) {
+			throw new IllegalArgumentException("message is not a JSON object");
+		}
+		Map<String, Object> message = (Map<String, Object>) parsed;
+		if (!(message.get("timestamp") instanceof Double) || !Double.valueOf(1).equals(message.get("proto_version"))) {
+			throw new IllegalArgumentException("message needs a timestamp and proto_version 1");
+		}
+		if (!(message.get("data") instanceof List)) {
+			throw new IllegalArgumentException("message needs a data array");
+		}
+		List<Map<String, Object>> points = new ArrayList<Map<String, Object>>();
+		for (Object item : (List<Object>) message.get("data")) {
+			if (!(item instanceof Map)) {
+				throw new IllegalArgumentException("data point is not a JSON object");
+			}
+			Map<String, Object> point = (Map<String, Object>) item;
+			if (!(point.get("name") instanceof String) || !(point.get("value") instanceof Double)
+					|| !(point.get("collected_at") instanceof Double)) {
+				throw new IllegalArgumentException("data point needs a name, a value and collected_at");
+			}
+			if (point.containsKey("instance") && !(point.get("instance") instanceof String)) {
+				throw new IllegalArgumentException("instance must be a string");
+			}
+			points.add(point);
+		}
+		return points;
+	}
+
+	long getRequests() {
+		return this.requests.get();
+	}
+
+	long getAcceptedMessages() {
+		return this.acceptedMessages.get();
+	}
+
+	long getAcceptedPoints() {
+		return this.acceptedPoints.get();
+	}
+
+	long getAcceptedPoints(final String metricName) {
+		AtomicLong count = this.pointsByName.get(metricName);
+		return count == null ? 0 : count.get();
+	}
+
+	long getGzippedMessages() {
+		return this.gzippedMessages.get();
+	}
+
+	long getBytesReceived() {
+		return this.bytesReceived.get();
+	}
+
+	long getResets() {
+		return this.resets.get();
+	}
+
+	long getResponses(final int status) {
+		AtomicLong count = this.responses.get(status);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @return connections the clients opened, keep-alive reuse keeps this low
+	 */
+	int getConnections() {
+		return this.connections.size();
+	}
+
+	/**
+	 * @return most requests being handled at the same time
+	 */
+	int getMaxInFlight() {
+		return this.maxInFlight.get();
+	}
+
+	/**
+	 * Just enough JSON for gateway messages: objects, arrays, strings, numbers, true, false and null.  Numbers
+	 * come back as Double.
+	 */
+	private static class JsonParser {
+
+		private final String json;
+
+		private int position;
+
+		JsonParser(final String json) {
+			this.json = json;
+		}
+
+		Object parseDocument() {
+			Object value = this.parseValue();
+			this.skipWhitespace();
+			if (this.position != this.json.length()) {
+				throw this.error("trailing characters");
+			}
+			return value;
+		}
+
+		private Object parseValue() {
+			this.skipWhitespace();
+			if (this.position >= this.json.length()) {
+				throw this.error("unexpected end");
+			}
+			char c = this.json.charAt(this.position);
+			if (c == '{') {
+				return this.parseObject();
+			} else if (c == '[') {
+				return this.parseArray();
+			} else if (c == '"') {
+				return this.parseString();
+			} else if (this.json.startsWith("true", this.position)) {
+				this.position += 4;
+				return Boolean.TRUE;
+			} else if (this.json.startsWith("false", this.position)) {
+				this.position += 5;
+				return Boolean.FALSE;
+			} else if (this.json.startsWith("null", this.position)) {
+				this.position += 4;
+				return null;
+			}
+			return this.parseNumber();
+		}
+
+		private Map<String, Object> parseObject() {
+			Map<String, Object> object = new LinkedHashMap<String, Object>();
+			this.position++;
+			this.skipWhitespace();
+			if (this.peek() == '}') {
+				this.position++;
+				return object;
+			}
+			while (true) {
+				this.skipWhitespace();
+				if (this.peek() != '"') {
+					throw this.error("expected a key");
+				}
+				String key = this.parseString();
+				this.skipWhitespace();
+				this.expect(':');
+				object.put(key, this.parseValue());
+				this.skipWhitespace();
+				if (this.peek() == ',') {
+					this.position++;
+				} else {
+					this.expect('}');
+					return object;
+				}
+			}
+		}
+
+		private List<Object> parseArray() {
+			List<Object> array = new ArrayList<Object>();
+			this.position++;
+			this.skipWhitespace();
+			if (this.peek() == ']') {
+				this.position++;
+				return array;
+			}
+			while (true) {
+				array.add(this.parseValue());
+				this.skipWhitespace();
+				if (this.peek() == ',') {
+					this.position++;
+				} else {
+					this.expect(']');
+					return array;
+				}
+			}
+		}
+
+		private String parseString() {
+			StringBuilder value = new StringBuilder();
+			this.position++;
+			while (true) {
+				char c = this.next();
+				if (c == '"') {
+					return value.toString();
+				} else if (c < 0x20) {
+					throw this.error("unescaped control character");
+				} else if (c != '\\') {
+					value.append(c);
+					continue;
+				}
+				char escaped = this.next();
+				switch (escaped) {
+				case '"':
+				case '\\':
+				case '/':
+					value.append(escaped);
+					break;
+				case 'b':
+					value.append('\b');
+					break;
+				case 'f':
+					value.append('\f');
+					break;
+				case 'n':
+					value.append('\n');
+					break;
+				case 'r':
+					value.append('\r');
+					break;
+				case 't':
+					value.append('\t');
+					break;
+				case 'u':
+					if (this.position + 4 > this.json.length()) {
+						throw this.error("short unicode escape");
+					}
+					value.append((char) Integer.parseInt(this.json.substring(this.position, this.position + 4), 16));
+					this.position += 4;
+					break;
+				default:
+					throw this.error("bad escape");
+				}
+			}
+		}
+
+		private Double parseNumber() {
+			int start = this.position;
+			while (this.position < this.json.length() && "+-0123456789.eE".indexOf(this.json.charAt(this.position)) >= 0) {
+				this.position++;
+			}
+			try {
+				return Double.valueOf(this.json.substring(start, this.position));
+			} catch (NumberFormatException e) {
+				throw this.error("bad number");
+			}
+		}
+
+		private void skipWhitespace() {
+			while (this.position < this.json.length() && Character.isWhitespace(this.json.charAt(this.position))) {
+				this.position++;
+			}
+		}
+
+		private char peek() {
+			return this.position < this.json.length() ? this.json.charAt(this.position) : 0;
+		}
+
+		private char next() {
+			if (this.position >= this.json.length()) {
+				throw this.error("unexpected end");
+			}
+			return this.json.charAt(this.position++);
+		}
+
+		private void expect(final char c) {
+			if (this.next() != c) {
+				throw this.error("expected " + c);
+			}
+		}
+
+		private IllegalArgumentException error(final String problem) {
+			return new IllegalArgumentException(problem + " at " + this.position);
+		}
+	}
+}
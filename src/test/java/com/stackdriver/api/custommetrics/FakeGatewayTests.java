@@ -0,0 +1,146 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FakeGatewayTests {
+
+	private FakeGateway gateway;
+
+	@BeforeMethod
+	public void startGateway() throws IOException {
+		this.gateway = new FakeGateway(HttpGatewayTransportTests.TEST_API_KEY);
+	}
+
+	@AfterMethod
+	public void stopGateway() {
+		this.gateway.stop();
+	}
+
+	private CustomMetricsPoster newPoster() {
+		return new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY, this.gateway.getEndpointUrl())
+				.setRetryPolicy(new RetryPolicy(5, 10, 20));
+	}
+
+	private static void awaitPosted(final CustomMetricsPoster poster, final long messages) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		ClientStats stats = poster.getStats();
+		while (stats.getMessagesSent() + stats.getMessagesFailed() < messages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testParsesMessages() {
+		List<Map<String, Object>> points = FakeGateway.parseMessage("{\"timestamp\":1,\"proto_version\":1,\"data\":["
+				+ "{\"name\":\"a\\\"b\",\"value\":1.500000,\"collected_at\":2},"
+				+ "{\"name\":\"c\",\"value\":-3,\"collected_at\":2,\"instance\":\"i-1\"}]}");
+		Assert.assertEquals(2, points.size());
+		Assert.assertEquals("a\"b", points.get(0).get("name"));
+		Assert.assertEquals(Double.valueOf(1.5), points.get(0).get("value"));
+		Assert.assertEquals("i-1", points.get(1).get("instance"));
+
+		String[] invalid = { "", "{", "[]", "{\"timestamp\":1,\"proto_version\":2,\"data\":[]}",
+				"{\"timestamp\":1,\"proto_version\":1,\"data\":[{\"name\":\"a\",\"value\":1}]}",
+				"{\"timestamp\":1,\"proto_version\":1,\"data\":[]} x" };
+		for (String json : invalid) {
+			try {
+				FakeGateway.parseMessage(json);
+				Assert.fail("accepted " + json);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testAcceptsPostsFromPoster() {
+		CustomMetricsPoster poster = this.newPoster();
+		poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 1.0);
+		poster.sendInstanceMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 2.0, "i-1234");
+		Assert.assertEquals(2, this.gateway.getAcceptedPoints(CustomMetricsTests.TEST_METRIC_NAME));
+		Assert.assertEquals(2, this.gateway.getResponses(201));
+		Assert.assertEquals(2, poster.getStats().getMessagesSent());
+		// both posts went over the same kept-alive connection
+		Assert.assertEquals(1, this.gateway.getConnections());
+	}
+
+	@Test
+	public void testRejectsWrongApiKey() {
+		CustomMetricsPoster poster = new CustomMetricsPoster("SOME-OTHER-KEY", this.gateway.getEndpointUrl());
+		poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 1.0);
+		Assert.assertEquals(1, this.gateway.getResponses(403));
+		Assert.assertEquals(0, this.gateway.getAcceptedPoints());
+		Assert.assertEquals(1, poster.getStats().getMessagesFailed());
+	}
+
+	@Test
+	public void testBulkInstancePointsInOnePost() {
+		CustomMetricsPoster poster = this.newPoster();
+		String[] instanceIds = new String[500];
+		double[] values = new double[500];
+		for (int i = 0; i < instanceIds.length; i++) {
+			instanceIds[i] = "i-" + i;
+			values[i] = i;
+		}
+		poster.sendInstanceMetricDataPoints(CustomMetricsTests.TEST_METRIC_NAME, instanceIds, values);
+		Assert.assertEquals(1, this.gateway.getRequests());
+		Assert.assertEquals(500, this.gateway.getAcceptedPoints(CustomMetricsTests.TEST_METRIC_NAME));
+	}
+
+	@Test
+	public void testDecodesGzip() {
+		CustomMetricsPoster poster = this.newPoster().enableCompression(0);
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		for (int i = 0; i < 100; i++) {
+			message.addDataPoint(new DataPoint(CustomMetricsTests.TEST_METRIC_NAME, i, new Date()));
+		}
+		poster.sendMetrics(message);
+		Assert.assertEquals(1, this.gateway.getGzippedMessages());
+		Assert.assertEquals(100, this.gateway.getAcceptedPoints());
+	}
+
+	@Test
+	public void testInjectedFaultsAreRetried() throws InterruptedException {
+		this.gateway.script(FakeGateway.Fault.THROTTLE, FakeGateway.Fault.SERVER_ERROR, FakeGateway.Fault.RESET);
+		CustomMetricsPoster poster = this.newPoster();
+		poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 1.0);
+		awaitPosted(poster, 1);
+
+		Assert.assertEquals(1, this.gateway.getAcceptedPoints());
+		Assert.assertEquals(4, this.gateway.getRequests());
+		Assert.assertEquals(1, this.gateway.getResets());
+		ClientStats stats = poster.getStats();
+		Assert.assertEquals(3, stats.getRetriedPosts());
+		Assert.assertEquals(1, stats.getConnectErrors());
+		Assert.assertEquals(1, stats.getResponseCodeCounts().get(429).longValue());
+		Assert.assertEquals(1, stats.getResponseCodeCounts().get(503).longValue());
+	}
+
+	@Test
+	public void testBatchedLoadUnderFaults() throws InterruptedException {
+		this.gateway.setLatency(1, 5).setFaultRates(0.05, 0.05, 0.02);
+		CustomMetricsPoster poster = this.newPoster().enableBatching(100000, 500, 50, OverflowPolicy.BLOCK);
+		GatewayLoadDriver.Result result = new GatewayLoadDriver(poster, 4, 5000, 0).run(10000);
+
+		Assert.assertTrue(result.drained);
+		Assert.assertEquals(20000, result.pointsRecorded);
+		ClientStats stats = poster.getStats();
+		Assert.assertEquals(0, stats.getPointsDropped());
+		// with five retries apiece, every message eventually got through
+		Assert.assertEquals(0, stats.getMessagesFailed());
+		Assert.assertEquals(20000, this.gateway.getAcceptedPoints());
+		for (int t = 0; t < 4; t++) {
+			Assert.assertEquals(5000, this.gateway.getAcceptedPoints(GatewayLoadDriver.METRIC_NAME_PREFIX + t));
+		}
+		Assert.assertTrue(this.gateway.getMaxInFlight() <= HttpGatewayTransport.DEFAULT_MAX_CONNECTIONS);
+	}
+}
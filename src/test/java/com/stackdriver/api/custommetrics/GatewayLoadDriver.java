@@ -0,0 +1,170 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records points from several threads through a poster as fast as it takes them, or at a fixed rate, then waits
+ * for everything to be posted.  Pair it with a {@link FakeGateway} to see how batching, retries and connection
+ * pooling hold up under load and failures without a network. <br/>
+ * Run {@link #main(String[])} from the test classpath for a standalone run that prints a summary.
+ */
+class GatewayLoadDriver {
+
+	public static final String METRIC_NAME_PREFIX = "stackdriver.load.thread";
+
+	private final CustomMetricsPoster poster;
+
+	private final int threads;
+
+	private final int pointsPerThread;
+
+	// 0 for as fast as the poster takes them
+	private final int pointsPerSecondPerThread;
+
+	GatewayLoadDriver(final CustomMetricsPoster poster, final int threads, final int pointsPerThread,
+			final int pointsPerSecondPerThread) {
+		this.poster = poster;
+		this.threads = threads;
+		this.pointsPerThread = pointsPerThread;
+		this.pointsPerSecondPerThread = pointsPerSecondPerThread;
+	}
+
+	/**
+	 * What a run did
+	 */
+	static class Result {
+
+		long pointsRecorded;
+
+		long recordNanos;
+
+		boolean drained;
+
+		long drainNanos;
+
+		/**
+		 * @return points recorded per second, across all threads, not counting the drain
+		 */
+		double getRecordRate() {
+			return this.recordNanos == 0 ? 0 : this.pointsRecorded * 1e9 / this.recordNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d points recorded in %.1fms (%.0f/s), drained=%s in %.1fms", this.pointsRecorded,
+					this.recordNanos / 1e6, this.getRecordRate(), this.drained, this.drainNanos / 1e6);
+		}
+	}
+
+	/**
+	 * Record every thread's points, then stop batching and wait for retries and async posts to finish
+	 *
+	 * @param drainTimeoutMillis
+	 *            how long to wait for the poster to post what was recorded
+	 */
+	Result run(final long drainTimeoutMillis) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(this.threads);
+		List<Thread> workers = new ArrayList<Thread>(this.threads);
+		for (int t = 0; t < this.threads; t++) {
+			final MetricHandle handle = this.poster.getMetricHandle(METRIC_NAME_PREFIX + t);
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						record(handle);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load-driver-" + t);
+			worker.setDaemon(true);
+			workers.add(worker);
+			worker.start();
+		}
+
+		Result result = new Result();
+		long startNanos = System.nanoTime();
+		start.countDown();
+		done.await();
+		result.recordNanos = System.nanoTime() - startNanos;
+		result.pointsRecorded = (long) this.threads * this.pointsPerThread;
+
+		long drainStart = System.nanoTime();
+		long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+		boolean drained = this.poster.disableBatching(drainTimeoutMillis);
+		// every message handed to the sender ends up sent, failed or spilled, retries included
+		ClientStats stats = this.poster.getStats();
+		while (!settled(stats) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		result.drained = drained && settled(stats);
+		result.drainNanos = System.nanoTime() - drainStart;
+		return result;
+	}
+
+	private static boolean settled(final ClientStats stats) {
+		return stats.getMessagesSent() + stats.getMessagesFailed() + stats.getMessagesSpilled() >= stats.getMessagesPosted();
+	}
+
+	private void record(final MetricHandle handle) throws InterruptedException {
+		long intervalNanos = this.pointsPerSecondPerThread > 0 ? TimeUnit.SECONDS.toNanos(1) / this.pointsPerSecondPerThread : 0;
+		long next = System.nanoTime();
+		for (int i = 0; i < this.pointsPerThread; i++) {
+			if (intervalNanos > 0) {
+				next += intervalNanos;
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+			}
+			handle.record(i);
+		}
+	}
+
+	/**
+	 * Standalone run against a fake gateway.
+	 *
+	 * @param args
+	 *            threads, points per thread, gateway latency in ms, and the share of requests answered with a 429, a
+	 *            503 and a dropped connection; all optional
+	 */
+	public static void main(final String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int points = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 20;
+		double throttleRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.02;
+		double serverErrorRate = args.length > 4 ? Double.parseDouble(args[4]) : 0.02;
+		double resetRate = args.length > 5 ? Double.parseDouble(args[5]) : 0.01;
+
+		String apiKey = "LOAD-DRIVER-KEY";
+		FakeGateway gateway = new FakeGateway(apiKey);
+		gateway.setLatency(latencyMillis / 2, latencyMillis * 3 / 2).setFaultRates(throttleRate, serverErrorRate, resetRate);
+		try {
+			// recording threads wait for room in the queue instead of dropping, so every point is posted
+			CustomMetricsPoster poster = new CustomMetricsPoster(apiKey, gateway.getEndpointUrl())
+					.enableBatching(MetricsBatcher.DEFAULT_QUEUE_CAPACITY, MetricsBatcher.DEFAULT_MAX_BATCH_POINTS,
+							MetricsBatcher.DEFAULT_MAX_BATCH_AGE_MILLIS, OverflowPolicy.BLOCK)
+					.setRetryPolicy(new RetryPolicy(5, 50, 1000));
+			Result result = new GatewayLoadDriver(poster, threads, points, 0).run(60000);
+
+			ClientStats stats = poster.getStats();
+			System.out.println(result);
+			System.out.println(String.format(
+					"gateway: %d requests, %d messages and %d points accepted, %d connections, %d at most in flight",
+					gateway.getRequests(), gateway.getAcceptedMessages(), gateway.getAcceptedPoints(),
+					gateway.getConnections(), gateway.getMaxInFlight()));
+			System.out.println(String.format(
+					"client: %d dropped, %d failed, %d retried, %d connect errors, p99 post %dms",
+					stats.getPointsDropped(), stats.getMessagesFailed(), stats.getRetriedPosts(),
+					stats.getConnectErrors(), stats.getPostLatencyPercentileMillis(0.99)));
+		} finally {
+			gateway.stop();
+		}
+	}
+}
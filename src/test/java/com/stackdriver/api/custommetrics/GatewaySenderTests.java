@@ -0,0 +1,326 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class GatewaySenderTests {
+
+	private static final String BODY = "{\"timestamp\":1,\"proto_version\":1,\"data\":[]}";
+
+	private HttpServer server;
+
+	private URL endpointUrl;
+
+	// status codes to answer with, in order; 201 once they run out
+	private final Queue<Integer> scriptedResponses = new ConcurrentLinkedQueue<Integer>();
+
+	private final AtomicInteger requests = new AtomicInteger();
+
+	private volatile String lastBody;
+
+	@BeforeClass
+	public void startServer() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/v1/custom", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				InputStream in = exchange.getRequestBody();
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				int b;
+				while ((b = in.read()) != -1) {
+					body.write(b);
+				}
+				lastBody = body.toString("UTF-8");
+				Integer scripted = scriptedResponses.poll();
+				exchange.sendResponseHeaders(scripted == null ? 201 : scripted, -1);
+				exchange.close();
+			}
+		});
+		this.server.start();
+		this.endpointUrl = new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/v1/custom");
+	}
+
+	@AfterClass
+	public void stopServer() {
+		this.server.stop(0);
+	}
+
+	@BeforeMethod
+	public void resetServer() {
+		this.scriptedResponses.clear();
+		this.requests.set(0);
+		this.lastBody = null;
+	}
+
+	private GatewaySender newSender(final URL url, final RetryPolicy policy) {
+		GatewaySender sender = new GatewaySender(new HttpGatewayTransport(url, null, 1000), HttpGatewayTransportTests.TEST_API_KEY);
+		sender.setRetryPolicy(policy);
+		return sender;
+	}
+
+	private static SendResult send(final GatewaySender sender) throws IOException {
+		byte[] body = BODY.getBytes("UTF-8");
+		SendResult result = sender.send(body, 0, body.length);
+		// the sender must have copied what it keeps for retries
+		body[0] = '#';
+		return result;
+	}
+
+	/**
+	 * Wait for the breaker's open period to be over
+	 */
+	private static void awaitOpenPeriod(final CircuitBreaker breaker) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (breaker.getRemainingOpenMillis() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+	}
+
+	private static void awaitFinished(final GatewaySender sender, final long expectedDone) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (sender.getSentMessages() + sender.getFailedMessages() < expectedDone && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testRetryableFailuresAreRetriedInBackground() throws Exception {
+		this.scriptedResponses.add(503);
+		this.scriptedResponses.add(429);
+		GatewaySender sender = this.newSender(this.endpointUrl, new RetryPolicy(3, 10, 50));
+		send(sender);
+		Assert.assertEquals(0, sender.getSentMessages());
+		awaitFinished(sender, 1);
+
+		Assert.assertEquals(1, sender.getSentMessages());
+		Assert.assertEquals(3, this.requests.get());
+		Assert.assertEquals(2, sender.getRetriedPosts());
+		Assert.assertEquals(BODY, this.lastBody);
+		Assert.assertEquals(0, sender.getPendingRetries());
+	}
+
+	@Test
+	public void testRetriesAreBounded() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			this.scriptedResponses.add(500);
+		}
+		GatewaySender sender = this.newSender(this.endpointUrl, new RetryPolicy(2, 10, 20));
+		send(sender);
+		awaitFinished(sender, 1);
+
+		Assert.assertEquals(1, sender.getFailedMessages());
+		Assert.assertEquals(3, this.requests.get());
+	}
+
+	@Test
+	public void testPermanentFailuresAreNotRetried() throws Exception {
+		this.scriptedResponses.add(400);
+		this.scriptedResponses.add(403);
+		GatewaySender sender = this.newSender(this.endpointUrl, new RetryPolicy(3, 10, 50));
+		Assert.assertEquals(SendResult.REJECTED, send(sender));
+		Assert.assertEquals(SendResult.REJECTED, send(sender));
+
+		// nothing was handed to the retry thread, so nothing can be retried later
+		Assert.assertEquals(0, sender.getPendingRetries());
+		Assert.assertEquals(2, sender.getFailedMessages());
+		Assert.assertEquals(2, this.requests.get());
+		Assert.assertEquals(0, sender.getRetriedPosts());
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, sender.getCircuitBreaker().getState());
+	}
+
+	@Test
+	public void testOpenCircuitShortCircuitsSends() throws Exception {
+		ServerSocket unused = new ServerSocket(0);
+		URL deadUrl = new URL("http://127.0.0.1:" + unused.getLocalPort() + "/v1/custom");
+		unused.close();
+
+		GatewaySender sender = this.newSender(deadUrl, RetryPolicy.NO_RETRIES);
+		sender.setCircuitBreaker(new CircuitBreaker(2, 60000));
+		for (int i = 0; i < 5; i++) {
+			send(sender);
+		}
+		Assert.assertEquals(CircuitBreaker.State.OPEN, sender.getCircuitBreaker().getState());
+		Assert.assertEquals(3, sender.getShortCircuitedPosts());
+		Assert.assertEquals(5, sender.getFailedMessages());
+	}
+
+	@Test
+	public void testQueuedRetryWaitsOutOpenCircuit() throws Exception {
+		this.scriptedResponses.add(503);
+		GatewaySender sender = this.newSender(this.endpointUrl, new RetryPolicy(5, 10, 20));
+		sender.setCircuitBreaker(new CircuitBreaker(1, 100));
+		send(sender);
+		Assert.assertEquals(CircuitBreaker.State.OPEN, sender.getCircuitBreaker().getState());
+		send(sender);
+		Assert.assertEquals(1, this.requests.get());
+		awaitFinished(sender, 2);
+
+		Assert.assertEquals(2, sender.getSentMessages());
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, sender.getCircuitBreaker().getState());
+	}
+
+	@Test
+	public void testCloseSpillsPendingRetries() throws Exception {
+		File directory = File.createTempFile("stackdriver-spill", "");
+		directory.delete();
+		this.scriptedResponses.add(503);
+		GatewaySender sender = this.newSender(this.endpointUrl, new RetryPolicy(3, 60000, 60000));
+		DiskSpillQueue spill = new DiskSpillQueue(directory);
+		sender.setSpillQueue(spill);
+		send(sender);
+		Assert.assertEquals(1, sender.getPendingRetries());
+
+		Assert.assertEquals(1, sender.close());
+		Assert.assertEquals(0, sender.getPendingRetries());
+		// nothing is posted once closed, it goes straight to disk
+		send(sender);
+		Assert.assertEquals(1, this.requests.get());
+		Assert.assertEquals(2, spill.size());
+		Assert.assertEquals(2, sender.getSpilledMessages());
+		spill.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testExhaustedMessagesAreSpilledAndReplayed() throws Exception {
+		File directory = File.createTempFile("stackdriver-spill", "");
+		directory.delete();
+		this.scriptedResponses.add(503);
+		this.scriptedResponses.add(503);
+		GatewaySender sender = this.newSender(this.endpointUrl, RetryPolicy.NO_RETRIES);
+		DiskSpillQueue spill = new DiskSpillQueue(directory);
+		sender.setSpillQueue(spill);
+		send(sender);
+		send(sender);
+		Assert.assertEquals(2, sender.getSpilledMessages());
+		Assert.assertEquals(2, spill.size());
+		Assert.assertEquals(0, sender.getFailedMessages());
+
+		// the next successful post brings the spilled ones along
+		send(sender);
+		long deadline = System.currentTimeMillis() + 5000;
+		while (spill.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, spill.size());
+		Assert.assertEquals(2, sender.getReplayedMessages());
+		Assert.assertEquals(5, this.requests.get());
+		Assert.assertEquals(BODY, this.lastBody);
+		spill.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testBreakerLetsOneTrialThrough() throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(2, 50);
+		breaker.recordFailure();
+		Assert.assertTrue(breaker.allowRequest());
+		breaker.recordFailure();
+		Assert.assertFalse(breaker.allowRequest());
+		awaitOpenPeriod(breaker);
+		Assert.assertTrue(breaker.allowRequest());
+		Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		Assert.assertFalse(breaker.allowRequest());
+
+		// a failed trial opens it straight away again
+		breaker.recordFailure();
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		awaitOpenPeriod(breaker);
+		Assert.assertTrue(breaker.allowRequest());
+		breaker.recordSuccess();
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		Assert.assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void testThrowingPostDoesNotTripBreaker() throws Exception {
+		final AtomicInteger posts = new AtomicInteger();
+		GatewaySender sender = new GatewaySender(new GatewayTransport() {
+			public int post(final String apiKey, final byte[] body, final int offset, final int length) {
+				posts.incrementAndGet();
+				throw new IllegalArgumentException("illegal header value");
+			}
+		}, HttpGatewayTransportTests.TEST_API_KEY);
+		sender.setRetryPolicy(RetryPolicy.NO_RETRIES);
+		CircuitBreaker breaker = new CircuitBreaker(1, 1);
+		sender.setCircuitBreaker(breaker);
+
+		Assert.assertEquals(SendResult.DROPPED, send(sender));
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		breaker.recordFailure();
+		// a half open trial that throws gives its place back, the next post is the trial
+		awaitOpenPeriod(breaker);
+		Assert.assertEquals(SendResult.DROPPED, send(sender));
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		Assert.assertEquals(0, breaker.getRemainingOpenMillis());
+		send(sender);
+		Assert.assertEquals(3, posts.get());
+		Assert.assertEquals(0, sender.getShortCircuitedPosts());
+	}
+
+	@Test
+	public void testOpenBreakerDoesNotUseUpRetries() throws Exception {
+		this.scriptedResponses.add(503);
+		GatewaySender sender = this.newSender(this.endpointUrl, new RetryPolicy(1, 10, 20));
+		sender.setCircuitBreaker(new CircuitBreaker(1, 300));
+		Assert.assertEquals(SendResult.QUEUED_FOR_RETRY, send(sender));
+		// the only retry comes up while the breaker is open, and waits for it
+		awaitFinished(sender, 1);
+
+		Assert.assertEquals(1, sender.getSentMessages());
+		Assert.assertEquals(0, sender.getFailedMessages());
+		Assert.assertEquals(2, this.requests.get());
+		Assert.assertTrue(sender.getShortCircuitedPosts() > 0);
+	}
+
+	@Test
+	public void testBackoffGrowsWithJitter() {
+		RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+		for (int i = 0; i < 1000; i++) {
+			long first = policy.backoffMillis(1);
+			Assert.assertTrue(first >= 50 && first <= 100);
+			long third = policy.backoffMillis(3);
+			Assert.assertTrue(third >= 200 && third <= 400);
+			long capped = policy.backoffMillis(40);
+			Assert.assertTrue(capped >= 500 && capped <= 1000);
+		}
+		Assert.assertTrue(RetryPolicy.isRetryable(429));
+		Assert.assertTrue(RetryPolicy.isRetryable(502));
+		Assert.assertFalse(RetryPolicy.isRetryable(400));
+		Assert.assertFalse(RetryPolicy.isRetryable(403));
+	}
+
+	@Test
+	public void testPosterUsesSender() {
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY, this.endpointUrl.toString());
+		poster.setRetryPolicy(new RetryPolicy(1, 10, 10));
+		poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 1.0);
+		Assert.assertEquals(1, poster.getSender().getSentMessages());
+		Assert.assertEquals(1, poster.getRetryPolicy().getMaxRetries());
+	}
+}
@@ -0,0 +1,136 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpGatewayTransportTests {
+
+	public static final String TEST_API_KEY = "LOCALTESTAPIKEY-UNUSED";
+
+	private HttpServer server;
+
+	private URL endpointUrl;
+
+	private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+	private volatile String lastEncoding;
+
+	private volatile String lastBody;
+
+	@BeforeClass
+	public void startServer() throws IOException {
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		this.server.createContext("/v1/custom", new HttpHandler() {
+			public void handle(final HttpExchange exchange) throws IOException {
+				clientPorts.add(exchange.getRemoteAddress().getPort());
+				lastEncoding = exchange.getRequestHeaders().getFirst("content-encoding");
+				InputStream in = exchange.getRequestBody();
+				if ("gzip".equals(lastEncoding)) {
+					in = new GZIPInputStream(in);
+				}
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				int b;
+				while ((b = in.read()) != -1) {
+					body.write(b);
+				}
+				lastBody = body.toString("UTF-8");
+				boolean valid = TEST_API_KEY.equals(exchange.getRequestHeaders().getFirst("x-stackdriver-apikey"));
+				byte[] response = (valid ? "Published" : "Invalid apikey\nsecond line").getBytes("UTF-8");
+				exchange.sendResponseHeaders(valid ? 201 : 403, response.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(response);
+				out.close();
+			}
+		});
+		this.server.start();
+		this.endpointUrl = new URL("http://127.0.0.1:" + this.server.getAddress().getPort() + "/v1/custom");
+	}
+
+	@AfterClass
+	public void stopServer() {
+		this.server.stop(0);
+	}
+
+	@Test
+	public void testConnectionIsReused() throws IOException {
+		this.clientPorts.clear();
+		HttpGatewayTransport transport = new HttpGatewayTransport(this.endpointUrl, null, 3000);
+		byte[] body = "{\"timestamp\":1,\"proto_version\":1,\"data\":[]}".getBytes("UTF-8");
+		for (int i = 0; i < 10; i++) {
+			Assert.assertEquals(201, transport.post(TEST_API_KEY, body, 0, body.length));
+		}
+		Assert.assertEquals(1, this.clientPorts.size());
+	}
+
+	@Test
+	public void testConnectionIsReusedAfterErrorResponse() throws IOException {
+		this.clientPorts.clear();
+		HttpGatewayTransport transport = new HttpGatewayTransport(this.endpointUrl, null, 3000);
+		byte[] body = "{}".getBytes("UTF-8");
+		Assert.assertEquals(403, transport.post("WRONG", body, 0, body.length));
+		Assert.assertEquals(403, transport.post("WRONG", body, 0, body.length));
+		Assert.assertEquals(201, transport.post(TEST_API_KEY, body, 0, body.length));
+		Assert.assertEquals(1, this.clientPorts.size());
+	}
+
+	@Test
+	public void testPosterUsesTransport() {
+		this.clientPorts.clear();
+		CustomMetricsPoster poster = new CustomMetricsPoster(TEST_API_KEY, this.endpointUrl.toString());
+		poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 1.0).sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 2.0);
+		Assert.assertEquals(1, this.clientPorts.size());
+	}
+
+	@Test
+	public void testLargeBodiesAreGzipped() throws IOException {
+		HttpGatewayTransport transport = new HttpGatewayTransport(this.endpointUrl, null, 3000);
+		transport.enableCompression(HttpGatewayTransport.DEFAULT_COMPRESSION_THRESHOLD_BYTES);
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		for (int i = 0; i < 200; i++) {
+			message.addDataPoint(new InstanceDataPoint(CustomMetricsTests.TEST_METRIC_NAME, i, new Date(), "i-" + (i % 10)));
+		}
+		byte[] body = message.toJson().getBytes("UTF-8");
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(201, transport.post(TEST_API_KEY, body, 0, body.length));
+			Assert.assertEquals("gzip", this.lastEncoding);
+			Assert.assertEquals(message.toJson(), this.lastBody);
+		}
+	}
+
+	@Test
+	public void testSmallBodiesAreSentAsIs() throws IOException {
+		HttpGatewayTransport transport = new HttpGatewayTransport(this.endpointUrl, null, 3000);
+		transport.enableCompression(HttpGatewayTransport.DEFAULT_COMPRESSION_THRESHOLD_BYTES);
+		byte[] body = "{\"timestamp\":1,\"proto_version\":1,\"data\":[]}".getBytes("UTF-8");
+		Assert.assertEquals(201, transport.post(TEST_API_KEY, body, 0, body.length));
+		Assert.assertNull(this.lastEncoding);
+		Assert.assertEquals(new String(body, "UTF-8"), this.lastBody);
+
+		// incompressible bodies over the threshold go out uncompressed too
+		body = new byte[4096];
+		new Random(42).nextBytes(body);
+		transport.enableCompression(0);
+		Assert.assertEquals(201, transport.post(TEST_API_KEY, body, 0, body.length));
+		Assert.assertNull(this.lastEncoding);
+	}
+}
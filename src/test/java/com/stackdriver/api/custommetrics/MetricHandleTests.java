@@ -0,0 +1,199 @@
+package com.stackdriver.api.custommetrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class MetricHandleTests {
+
+	public static final String TEST_METRIC_NAME = "stackdriver.test.javaclient";
+
+	public static final String TEST_INSTANCE_ID = "i-12ab34cd";
+
+	@Test
+	public void testHandlesRecordThroughBatcher() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableBatching(100, 100, 60000, OverflowPolicy.DROP_NEWEST);
+		MetricHandle plain = poster.getMetricHandle(TEST_METRIC_NAME);
+		MetricHandle instance = poster.getMetricHandle(TEST_METRIC_NAME, TEST_INSTANCE_ID);
+		plain.record(1.0, 1400000000000L);
+		instance.record(2.0, 1400000001000L);
+		poster.sendMetricDataPoint(TEST_METRIC_NAME, 3.0);
+		Assert.assertTrue(poster.disableBatching(5000));
+
+		List<DataPoint> points = poster.points();
+		Assert.assertEquals(3, points.size());
+		Assert.assertEquals(TEST_METRIC_NAME, points.get(0).getName());
+		Assert.assertFalse(points.get(0) instanceof InstanceDataPoint);
+		Assert.assertEquals(1400000000L, points.get(0).getCollectedAtEpoch());
+		Assert.assertEquals(TEST_INSTANCE_ID, ((InstanceDataPoint) points.get(1)).getInstanceId());
+		Assert.assertEquals(2.0, points.get(1).getValue());
+		Assert.assertEquals(3.0, points.get(2).getValue());
+	}
+
+	@Test
+	public void testHandleWithoutBatchingSendsRightAway() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.getMetricHandle(TEST_METRIC_NAME, TEST_INSTANCE_ID).record(5.0);
+		Assert.assertEquals(1, poster.messages.size());
+		Assert.assertEquals(TEST_INSTANCE_ID, ((InstanceDataPoint) poster.points().get(0)).getInstanceId());
+	}
+
+	@Test
+	public void testSameSeriesSameId() {
+		SeriesDictionary dictionary = new SeriesDictionary();
+		int plain = dictionary.intern(TEST_METRIC_NAME, null);
+		int instance = dictionary.intern(TEST_METRIC_NAME, TEST_INSTANCE_ID);
+		Assert.assertTrue(plain != instance);
+		Assert.assertEquals(plain, dictionary.intern(new String(TEST_METRIC_NAME), null));
+		Assert.assertEquals(instance, dictionary.intern(TEST_METRIC_NAME, new String(TEST_INSTANCE_ID)));
+		for (int i = 0; i < 1000; i++) {
+			dictionary.intern(TEST_METRIC_NAME + i, null);
+		}
+		Assert.assertEquals(1002, dictionary.size());
+		Assert.assertEquals(TEST_INSTANCE_ID, dictionary.getInstanceId(instance));
+		Assert.assertEquals(TEST_METRIC_NAME + 999, dictionary.getName(1001));
+	}
+
+	@Test
+	public void testRetiredInstanceIsInternedAnew() {
+		SeriesDictionary dictionary = new SeriesDictionary();
+		int first = dictionary.intern(TEST_METRIC_NAME, TEST_INSTANCE_ID);
+		dictionary.intern(TEST_METRIC_NAME + ".other", TEST_INSTANCE_ID);
+		int kept = dictionary.intern(TEST_METRIC_NAME, "i-5678");
+		Assert.assertEquals(2, dictionary.retireInstance(TEST_INSTANCE_ID));
+		Assert.assertEquals(0, dictionary.retireInstance(TEST_INSTANCE_ID));
+
+		// the retired ID still resolves for points queued under it
+		Assert.assertEquals(TEST_INSTANCE_ID, dictionary.getInstanceId(first));
+		Assert.assertEquals(kept, dictionary.intern(TEST_METRIC_NAME, "i-5678"));
+		int second = dictionary.intern(TEST_METRIC_NAME, TEST_INSTANCE_ID);
+		Assert.assertTrue(second != first);
+		Assert.assertEquals(TEST_INSTANCE_ID, dictionary.getInstanceId(second));
+	}
+
+	@Test
+	public void testRetiredIdsAreReusedAfterTwoReclaims() {
+		SeriesDictionary dictionary = new SeriesDictionary();
+		for (int i = 0; i < 10; i++) {
+			dictionary.intern(TEST_METRIC_NAME, "i-" + i);
+		}
+		int retired = dictionary.intern(TEST_METRIC_NAME, TEST_INSTANCE_ID);
+		Assert.assertEquals(1, dictionary.retireInstance(TEST_INSTANCE_ID));
+		Assert.assertEquals(0, dictionary.reclaimRetired());
+		// points queued before the first reclaim may still be around
+		Assert.assertEquals(11, dictionary.intern(TEST_METRIC_NAME, "i-new"));
+		Assert.assertEquals(TEST_INSTANCE_ID, dictionary.getInstanceId(retired));
+		Assert.assertEquals(1, dictionary.reclaimRetired());
+		Assert.assertEquals(retired, dictionary.intern(TEST_METRIC_NAME, "i-newer"));
+		Assert.assertEquals("i-newer", dictionary.getInstanceId(retired));
+		Assert.assertEquals(12, dictionary.size());
+	}
+
+	@Test
+	public void testInstanceChurnDoesNotGrowDictionary() {
+		RecordingPoster poster = new RecordingPoster();
+		for (int round = 0; round < 100; round++) {
+			String instanceId = "i-" + round;
+			poster.sendInstanceMetricDataPoint(TEST_METRIC_NAME, round, instanceId);
+			poster.getMetricHandle(TEST_METRIC_NAME + ".handle", instanceId).record(round);
+			poster.retireInstance(instanceId);
+		}
+		Assert.assertEquals(200, poster.pointCount());
+		Assert.assertTrue(poster.getSeriesDictionary().size() <= 4);
+	}
+
+	@Test
+	public void testHandleOfRetiredInstanceKeepsItsSeries() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableBatching(100, 100, 60000, OverflowPolicy.DROP_NEWEST);
+		MetricHandle handle = poster.getMetricHandle(TEST_METRIC_NAME, TEST_INSTANCE_ID);
+		poster.retireInstance(TEST_INSTANCE_ID);
+		SeriesDictionary dictionary = poster.getSeriesDictionary();
+		dictionary.reclaimRetired();
+		dictionary.reclaimRetired();
+		// takes the retired ID
+		poster.getMetricHandle(TEST_METRIC_NAME, "i-5678").record(1.0);
+		handle.record(2.0);
+		Assert.assertTrue(poster.disableBatching(5000));
+
+		List<DataPoint> points = poster.points();
+		Assert.assertEquals(2, points.size());
+		Assert.assertEquals("i-5678", ((InstanceDataPoint) points.get(0)).getInstanceId());
+		Assert.assertEquals(TEST_INSTANCE_ID, ((InstanceDataPoint) points.get(1)).getInstanceId());
+		Assert.assertEquals(2.0, points.get(1).getValue());
+	}
+
+	@Test
+	public void testUnbatchedBulkSendLeavesDictionaryAlone() {
+		RecordingPoster poster = new RecordingPoster();
+		String[] instanceIds = new String[100];
+		double[] values = new double[instanceIds.length];
+		for (int i = 0; i < instanceIds.length; i++) {
+			instanceIds[i] = "i-" + i;
+			values[i] = i;
+		}
+		poster.sendInstanceMetricDataPoints(TEST_METRIC_NAME, instanceIds, values, new Date());
+		Assert.assertEquals(100, poster.pointCount());
+		Assert.assertEquals("i-99", ((InstanceDataPoint) poster.points().get(99)).getInstanceId());
+		Assert.assertEquals(0, poster.getSeriesDictionary().size());
+	}
+
+	@Test
+	public void testInstanceLookupDoesNotAllocate() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long threadId = Thread.currentThread().getId();
+
+		SeriesDictionary dictionary = new SeriesDictionary();
+		String[] instanceIds = new String[1000];
+		for (int i = 0; i < instanceIds.length; i++) {
+			instanceIds[i] = "i-" + i;
+			dictionary.intern(TEST_METRIC_NAME, instanceIds[i]);
+		}
+		long before = allocations.getThreadAllocatedBytes(threadId);
+		int sum = 0;
+		for (int round = 0; round < 100; round++) {
+			for (String instanceId : instanceIds) {
+				sum += dictionary.intern(TEST_METRIC_NAME, instanceId);
+			}
+		}
+		long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+		Assert.assertEquals(100 * 999 * 1000 / 2, sum);
+		// well under one byte per lookup, allowing for the measurement itself
+		Assert.assertTrue("allocated " + allocated + " bytes", allocated < 10000);
+	}
+
+	@Test
+	public void testRecordingDoesNotAllocate() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long threadId = Thread.currentThread().getId();
+
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableBatching(1000, 1000, 60000, OverflowPolicy.DROP_OLDEST);
+		MetricHandle handle = poster.getMetricHandle(TEST_METRIC_NAME, TEST_INSTANCE_ID);
+		for (int i = 0; i < 10000; i++) {
+			handle.record(i);
+		}
+		long before = allocations.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 100000; i++) {
+			handle.record(i);
+		}
+		long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+		poster.disableBatching(5000);
+		// well under one byte per recorded point, allowing for the measurement itself
+		Assert.assertTrue("allocated " + allocated + " bytes", allocated < 10000);
+	}
+}
@@ -0,0 +1,163 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class MetricsBatcherTests {
+
+	public static final String TEST_METRIC_NAME = "stackdriver.test.javaclient";
+
+	@Test
+	public void testPointsAreCoalesced() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableBatching(200, 50, 60000, OverflowPolicy.DROP_NEWEST);
+		for (int i = 0; i < 120; i++) {
+			poster.sendMetricDataPoint(TEST_METRIC_NAME, i);
+		}
+		Assert.assertTrue(poster.disableBatching(5000));
+		Assert.assertEquals(120, poster.pointCount());
+		Assert.assertTrue(poster.messages.size() >= 3);
+		for (CustomMetricsMessage message : poster.messages) {
+			Assert.assertTrue(message.getDataPoints().size() <= 50);
+		}
+	}
+
+	@Test
+	public void testCoalescingKeepsLatestSample() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableCoalescing().enableBatching(1000, 500, 60000, OverflowPolicy.DROP_NEWEST);
+		Date collectedAt = new Date(1400000000000L);
+		for (int i = 0; i < 100; i++) {
+			poster.sendMetricDataPoint(TEST_METRIC_NAME, i, collectedAt);
+			poster.sendInstanceMetricDataPoint(TEST_METRIC_NAME, -i, collectedAt, "i-1234");
+		}
+		Assert.assertTrue(poster.disableBatching(5000));
+		Assert.assertEquals(2, poster.pointCount());
+		Assert.assertEquals(99.0, poster.points().get(0).getValue());
+		Assert.assertEquals(-99.0, poster.points().get(1).getValue());
+		Assert.assertEquals(198, poster.getStats().getPointsCoalesced());
+	}
+
+	@Test
+	public void testTimeBucketsShareOneTimestamp() {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableTimeBucketing(10000).enableCoalescing().enableBatching(1000, 500, 60000, OverflowPolicy.DROP_NEWEST);
+		MetricHandle handle = poster.getMetricHandle(TEST_METRIC_NAME);
+		// two ten second buckets, one sample a second in each
+		long start = 1400000000000L;
+		for (int i = 0; i < 20; i++) {
+			handle.record(i, start + i * 1000);
+		}
+		Assert.assertTrue(poster.disableBatching(5000));
+		Assert.assertEquals(2, poster.pointCount());
+		Assert.assertEquals(start, poster.points().get(0).getCollectedAt().getTime());
+		Assert.assertEquals(9.0, poster.points().get(0).getValue());
+		Assert.assertEquals(start + 10000, poster.points().get(1).getCollectedAt().getTime());
+		Assert.assertEquals(19.0, poster.points().get(1).getValue());
+		Assert.assertEquals(18, poster.getStats().getPointsCoalesced());
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testTimeBucketsAreWholeSeconds() {
+		new RecordingPoster().enableTimeBucketing(1500);
+	}
+
+	@Test
+	public void testBatchSentWhenAgeReached() throws InterruptedException {
+		RecordingPoster poster = new RecordingPoster();
+		poster.enableBatching(100, 50, 50, OverflowPolicy.DROP_NEWEST);
+		poster.sendInstanceMetricDataPoint(TEST_METRIC_NAME, 1.0, "i-1234");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (poster.pointCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, poster.pointCount());
+		poster.disableBatching(1000);
+	}
+
+	@Test
+	public void testOverflowPolicies() throws InterruptedException {
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		CustomMetricsPoster blockedPoster = new CustomMetricsPoster() {
+			@Override
+			public void sendMetrics(final CustomMetricsMessage message) {
+				sending.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+
+		MetricsBatcher newest = new MetricsBatcher(blockedPoster, 2, 1, 1000, OverflowPolicy.DROP_NEWEST);
+		newest.offer(new DataPoint(TEST_METRIC_NAME, 0.0, new Date()));
+		Assert.assertTrue(sending.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(newest.offer(new DataPoint(TEST_METRIC_NAME, 1.0, new Date())));
+		Assert.assertTrue(newest.offer(new DataPoint(TEST_METRIC_NAME, 2.0, new Date())));
+		Assert.assertFalse(newest.offer(new DataPoint(TEST_METRIC_NAME, 3.0, new Date())));
+		Assert.assertEquals(1, newest.getDroppedPoints());
+
+		MetricsBatcher oldest = new MetricsBatcher(blockedPoster, 2, 1, 1000, OverflowPolicy.DROP_OLDEST);
+		oldest.offer(new DataPoint(TEST_METRIC_NAME, 0.0, new Date()));
+		while (oldest.getQueueDepth() > 0) {
+			Thread.sleep(5);
+		}
+		Assert.assertTrue(oldest.offer(new DataPoint(TEST_METRIC_NAME, 1.0, new Date())));
+		Assert.assertTrue(oldest.offer(new DataPoint(TEST_METRIC_NAME, 2.0, new Date())));
+		Assert.assertTrue(oldest.offer(new DataPoint(TEST_METRIC_NAME, 3.0, new Date())));
+		Assert.assertEquals(1, oldest.getDroppedPoints());
+		Assert.assertEquals(2, oldest.getQueueDepth());
+		// the poster's stats count the drops of every batcher it had
+		Assert.assertEquals(2, blockedPoster.getStats().getPointsDropped());
+
+		release.countDown();
+		Assert.assertTrue(newest.close(5000));
+		Assert.assertTrue(oldest.close(5000));
+	}
+
+	@Test
+	public void testPointsOfferedWhileClosingAreSentOrCounted() throws InterruptedException {
+		final RecordingPoster poster = new RecordingPoster();
+		final MetricsBatcher batcher = new MetricsBatcher(poster, 16, 8, 10, OverflowPolicy.BLOCK);
+		final int seriesId = poster.getSeriesDictionary().intern(TEST_METRIC_NAME, null);
+		final AtomicInteger queued = new AtomicInteger();
+		Thread[] producers = new Thread[4];
+		for (int t = 0; t < producers.length; t++) {
+			producers[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 5000; i++) {
+						if (batcher.offer(seriesId, i, 1400000000000L)) {
+							queued.incrementAndGet();
+						}
+					}
+				}
+			});
+			producers[t].start();
+		}
+		Assert.assertTrue(batcher.close(10000));
+		for (Thread producer : producers) {
+			producer.join();
+		}
+
+		Assert.assertEquals(queued.get(), poster.pointCount());
+		Assert.assertEquals(20000, poster.pointCount() + batcher.getDroppedPoints());
+	}
+
+		@Test
+	public void testOfferAfterClose() {
+		RecordingPoster poster = new RecordingPoster();
+		MetricsBatcher batcher = new MetricsBatcher(poster);
+		batcher.close(5000);
+		Assert.assertFalse(batcher.offer(new DataPoint(TEST_METRIC_NAME, 0.0, new Date())));
+		Assert.assertEquals(1, batcher.getDroppedPoints());
+		Assert.assertEquals(1, poster.getStats().getPointsDropped());
+	}
+}
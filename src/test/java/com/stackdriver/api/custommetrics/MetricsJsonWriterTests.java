@@ -0,0 +1,183 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Date;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class MetricsJsonWriterTests {
+
+	public static final String TEST_METRIC_NAME = "stackdriver.test.javaclient";
+
+	/**
+	 * The String.format based serialization the writer replaced
+	 */
+	private static String legacyJson(final String name, final double value, final long collectedAt) {
+		return String.format("{\"name\":\"%s\",\"value\":%f,\"collected_at\":%d}", name, value, collectedAt);
+	}
+
+	private static String legacyInstanceJson(final String name, final double value, final long collectedAt, final String instanceId) {
+		return String.format("{\"name\":\"%s\",\"value\":%f,\"collected_at\":%d, \"instance\": \"%s\"}", name, value, collectedAt, instanceId);
+	}
+
+	private static String writeDouble(final double value) {
+		MetricsJsonWriter writer = new MetricsJsonWriter(16);
+		writer.writeDouble(value);
+		return writer.toString();
+	}
+
+	@Test
+	public void testDoublesMatchFormat() {
+		double[] values = { 0.0, -0.0, 1.0, -1.0, 0.1, 0.5, 100.0, 2.0000005, 0.0000005, 0.00000049999999, -0.0000005,
+				-0.000000001, 0.1234565, 1.2345675, 99.9999995, 9999999.9999995, 1e7, 12345678.123456789, 1e15, 1e300,
+				Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (double value : values) {
+			Assert.assertEquals(String.format("%f", value), writeDouble(value));
+		}
+
+		Random random = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			double scale = Math.pow(10, random.nextInt(20) - 10);
+			double value = (random.nextDouble() - 0.5) * scale;
+			Assert.assertEquals(String.format("%f", value), writeDouble(value));
+			// values on a six decimal rounding tie
+			double tie = (random.nextInt(100000000) + 0.5) / 1e6;
+			Assert.assertEquals(String.format("%f", tie), writeDouble(tie));
+		}
+	}
+
+	@Test
+	public void testLongs() {
+		long[] values = { 0, 1, -1, 9, 10, 1400000000, -1400000000, Long.MAX_VALUE, Long.MIN_VALUE, 999999999999999999L };
+		for (long value : values) {
+			MetricsJsonWriter writer = new MetricsJsonWriter(1);
+			writer.writeLong(value);
+			Assert.assertEquals(Long.toString(value), writer.toString());
+		}
+	}
+
+	@Test
+	public void testPointsMatchLegacyFormat() {
+		Date collectedAt = new Date(1400000000123L);
+		DataPoint point = new DataPoint(TEST_METRIC_NAME, 12.5, collectedAt);
+		Assert.assertEquals(legacyJson(TEST_METRIC_NAME, 12.5, 1400000000), point.toJson());
+
+		DataPoint instancePoint = new InstanceDataPoint(TEST_METRIC_NAME, -3.25, collectedAt, "i-12ab34cd");
+		Assert.assertEquals(legacyInstanceJson(TEST_METRIC_NAME, -3.25, 1400000000, "i-12ab34cd"), instancePoint.toJson());
+
+		DataPoint nullInstancePoint = new InstanceDataPoint(TEST_METRIC_NAME, 1.0, collectedAt, null);
+		Assert.assertEquals(legacyInstanceJson(TEST_METRIC_NAME, 1.0, 1400000000, null), nullInstancePoint.toJson());
+	}
+
+	@Test
+	public void testMessageMatchesLegacyFormat() {
+		Date collectedAt = new Date(1400000000123L);
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		message.addDataPoint(new DataPoint(TEST_METRIC_NAME, 1.0, collectedAt));
+		message.addDataPoint(new InstanceDataPoint(TEST_METRIC_NAME, 2.0, collectedAt, "i-1"));
+		String expected = String.format("{\"timestamp\":%d,\"proto_version\":%d,\"data\":[%s,%s]}", message.getTimestamp(),
+				message.getProtocolVersion(), legacyJson(TEST_METRIC_NAME, 1.0, 1400000000),
+				legacyInstanceJson(TEST_METRIC_NAME, 2.0, 1400000000, "i-1"));
+		Assert.assertEquals(expected, message.toJson());
+	}
+
+	@Test
+	public void testToJsonOverridesAreSent() {
+		Date collectedAt = new Date(1400000000123L);
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		message.addDataPoint(new InstanceDataPoint(TEST_METRIC_NAME, 1.0, collectedAt, "i-1") {
+			@Override
+			public String toJson() {
+				return super.toJson().replace("\"instance\"", "\"host\"");
+			}
+		});
+		message.addDataPoint(new DataPoint(TEST_METRIC_NAME, 2.0, collectedAt));
+		String expected = String.format("{\"timestamp\":%d,\"proto_version\":%d,\"data\":[%s,%s]}", message.getTimestamp(),
+				message.getProtocolVersion(), legacyInstanceJson(TEST_METRIC_NAME, 1.0, 1400000000, "i-1").replace("instance", "host"),
+				legacyJson(TEST_METRIC_NAME, 2.0, 1400000000));
+		Assert.assertEquals(expected, message.toJson());
+
+		CustomMetricsMessage wrapped = new CustomMetricsMessage() {
+			@Override
+			public String toJson() {
+				return "{\"wrapped\":" + super.toJson() + "}";
+			}
+		};
+		wrapped.addDataPoint(new DataPoint(TEST_METRIC_NAME, 1.0, collectedAt));
+		wrapped.addDataPoint(new DataPoint(TEST_METRIC_NAME, 2.0, collectedAt));
+		MetricsJsonWriter writer = new MetricsJsonWriter(16);
+		// written whole whatever the limits, as the override can't be split
+		Assert.assertEquals(2, writer.writeMessage(wrapped, 0, 1, 10));
+		Assert.assertEquals(wrapped.toJson(), writer.toString());
+		Assert.assertTrue(writer.toString().startsWith("{\"wrapped\":{\"timestamp\""));
+	}
+
+	@Test
+	public void testStringsAreEscapedAndEncoded() throws Exception {
+		MetricsJsonWriter writer = new MetricsJsonWriter(1);
+		writer.writeString("a\"b\\c\nd\u0001\u00e9\u20ac\ud83d\ude00");
+		Assert.assertEquals("\"a\\\"b\\\\c\\nd\\u0001\u00e9\u20ac\ud83d\ude00\"", writer.toString());
+		Assert.assertEquals(writer.toString(), new String(writer.getBuffer(), 0, writer.size(), "UTF-8"));
+	}
+
+	@Test
+	public void testResetReusesBuffer() {
+		MetricsJsonWriter writer = new MetricsJsonWriter();
+		writer.writeString(TEST_METRIC_NAME);
+		byte[] buffer = writer.getBuffer();
+		writer.reset();
+		Assert.assertEquals(0, writer.size());
+		writer.writeLong(7);
+		Assert.assertSame(buffer, writer.getBuffer());
+		Assert.assertEquals("7", writer.toString());
+	}
+
+	/**
+	 * Split a message with the given limits and check the chunks put together hold exactly the original points
+	 */
+	private static int checkChunks(final CustomMetricsMessage message, final int maxPoints, final int maxBytes) {
+		String full = message.toJson();
+		String prefix = full.substring(0, full.indexOf('[') + 1);
+		StringBuilder data = new StringBuilder();
+		MetricsJsonWriter writer = new MetricsJsonWriter();
+		int chunks = 0;
+		int next = 0;
+		while (next < message.getPointCount()) {
+			writer.reset();
+			int from = next;
+			next = writer.writeMessage(message, next, maxPoints, maxBytes);
+			Assert.assertTrue(next > from);
+			Assert.assertTrue(next - from <= maxPoints);
+			Assert.assertTrue(writer.size() <= maxBytes || next - from == 1);
+			String chunk = writer.toString();
+			Assert.assertTrue(chunk.startsWith(prefix) && chunk.endsWith("]}"));
+			if (data.length() > 0) {
+				data.append(',');
+			}
+			data.append(chunk, prefix.length(), chunk.length() - 2);
+			chunks++;
+		}
+		Assert.assertEquals(full, prefix + data + "]}");
+		return chunks;
+	}
+
+	@Test
+	public void testMessageSplitting() {
+		CustomMetricsMessage objects = new CustomMetricsMessage();
+		PointColumns columns = new PointColumns();
+		for (int i = 0; i < 100; i++) {
+			objects.addDataPoint(new InstanceDataPoint(TEST_METRIC_NAME, i, new Date(1400000000000L + i), "i-" + i));
+			columns.add(TEST_METRIC_NAME, "i-" + i, i, 1400000000000L + i);
+		}
+		CustomMetricsMessage columnar = new CustomMetricsMessage(columns);
+		for (CustomMetricsMessage message : new CustomMetricsMessage[] { objects, columnar }) {
+			Assert.assertEquals(1, checkChunks(message, 1000, 1 << 20));
+			Assert.assertEquals(4, checkChunks(message, 30, 1 << 20));
+			Assert.assertTrue(checkChunks(message, 1000, 1000) > 8);
+			// smaller than any one point, every point goes out on its own
+			Assert.assertEquals(100, checkChunks(message, 1000, 10));
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class MetricsRegistryTests {
+
+	public static final String TEST_METRIC_NAME = "stackdriver.test.javaclient";
+
+	private static Map<String, Double> valuesByName(final List<DataPoint> points) {
+		Map<String, Double> values = new HashMap<String, Double>();
+		for (DataPoint point : points) {
+			String key = point instanceof InstanceDataPoint ? point.getName() + "@" + ((InstanceDataPoint) point).getInstanceId() : point.getName();
+			values.put(key, point.getValue());
+		}
+		return values;
+	}
+
+	@Test
+	public void testAggregatesIntoOnePointPerSeries() {
+		RecordingPoster poster = new RecordingPoster();
+		MetricsRegistry registry = new MetricsRegistry(poster, 3600000);
+		for (int i = 0; i < 1000; i++) {
+			registry.counter(TEST_METRIC_NAME + ".requests").increment();
+			registry.counter(TEST_METRIC_NAME + ".requests", "i-1").increment(2);
+			registry.gauge(TEST_METRIC_NAME + ".depth").set(i);
+		}
+		registry.report();
+
+		Assert.assertEquals(1, poster.messages.size());
+		Map<String, Double> values = valuesByName(poster.points());
+		Assert.assertEquals(3, values.size());
+		Assert.assertEquals(1000.0, values.get(TEST_METRIC_NAME + ".requests"));
+		Assert.assertEquals(2000.0, values.get(TEST_METRIC_NAME + ".requests@i-1"));
+		Assert.assertEquals(999.0, values.get(TEST_METRIC_NAME + ".depth"));
+		registry.close();
+	}
+
+	@Test
+	public void testTimerSummary() {
+		RecordingPoster poster = new RecordingPoster();
+		MetricsRegistry registry = new MetricsRegistry(poster, 3600000);
+		Timer timer = registry.timer(TEST_METRIC_NAME + ".latency");
+		for (int i = 1; i <= 4; i++) {
+			timer.record(i * 10);
+		}
+		registry.report();
+
+		Map<String, Double> values = valuesByName(poster.points());
+		String name = TEST_METRIC_NAME + ".latency";
+		Assert.assertEquals(4.0, values.get(name + Timer.COUNT_SUFFIX));
+		Assert.assertEquals(100.0, values.get(name + Timer.SUM_SUFFIX));
+		Assert.assertEquals(10.0, values.get(name + Timer.MIN_SUFFIX));
+		Assert.assertEquals(40.0, values.get(name + Timer.MAX_SUFFIX));
+		Assert.assertEquals(25.0, values.get(name + Timer.AVG_SUFFIX));
+		// percentiles are within 1% of an observed value; with 4 observations, everything past p66 is the third one
+		Assert.assertEquals(20.0, values.get(name + Timer.P50_SUFFIX), 0.2);
+		Assert.assertEquals(30.0, values.get(name + Timer.P90_SUFFIX), 0.3);
+		Assert.assertEquals(30.0, values.get(name + Timer.P999_SUFFIX), 0.3);
+		registry.close();
+	}
+
+	@Test
+	public void testIdleIntervalSendsNothing() {
+		RecordingPoster poster = new RecordingPoster();
+		MetricsRegistry registry = new MetricsRegistry(poster, 3600000);
+		registry.counter(TEST_METRIC_NAME).increment();
+		registry.report();
+		registry.report();
+		Assert.assertEquals(1, poster.messages.size());
+		registry.close();
+		Assert.assertEquals(1, poster.messages.size());
+	}
+
+	@Test
+	public void testGaugeSetWhileReportingIsReportedOnce() throws InterruptedException {
+		RecordingPoster poster = new RecordingPoster();
+		MetricsRegistry registry = new MetricsRegistry(poster, 3600000);
+		final Gauge gauge = registry.gauge(TEST_METRIC_NAME + ".depth");
+		final int sets = 200000;
+		Thread setter = new Thread(new Runnable() {
+			public void run() {
+				for (int i = 1; i <= sets; i++) {
+					gauge.set(i);
+				}
+			}
+		});
+		setter.start();
+		while (setter.isAlive()) {
+			registry.report();
+		}
+		registry.report();
+
+		// every report has a value set since the one before, the last one set among them
+		double previous = 0;
+		for (DataPoint point : poster.points()) {
+			Assert.assertTrue(point.getValue() > previous);
+			previous = point.getValue();
+		}
+		Assert.assertEquals((double) sets, previous);
+		Assert.assertEquals((double) sets, gauge.getValue());
+		int reported = poster.pointCount();
+		registry.report();
+		Assert.assertEquals(reported, poster.pointCount());
+		registry.close();
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testTypeConflict() {
+		MetricsRegistry registry = new MetricsRegistry(new RecordingPoster(), 3600000);
+		registry.counter(TEST_METRIC_NAME);
+		registry.timer(TEST_METRIC_NAME);
+	}
+}
@@ -0,0 +1,294 @@
+package com.stackdriver.api.custommetrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class MultiTenantMetricsPosterTests {
+
+	/**
+	 * Counts accepted points per API key, answering with whatever status is set for a key
+	 */
+	static class KeyedTransport implements GatewayTransport {
+
+		final ConcurrentMap<String, AtomicInteger> points = new ConcurrentHashMap<String, AtomicInteger>();
+
+		final ConcurrentMap<String, Integer> statuses = new ConcurrentHashMap<String, Integer>();
+
+		// keys in the order their posts arrived
+		final List<String> postOrder = Collections.synchronizedList(new ArrayList<String>());
+
+		final long latencyMillis;
+
+		KeyedTransport(final long latencyMillis) {
+			this.latencyMillis = latencyMillis;
+		}
+
+		public int post(final String apiKey, final byte[] body, final int offset, final int length) throws IOException {
+			try {
+				Thread.sleep(this.latencyMillis);
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+			this.postOrder.add(apiKey);
+			Integer status = this.statuses.get(apiKey);
+			if (status != null) {
+				return status;
+			}
+			int count = FakeGateway.parseMessage(new String(body, offset, length, "UTF-8")).size();
+			AtomicInteger total = this.points.get(apiKey);
+			if (total == null) {
+				AtomicInteger created = new AtomicInteger();
+				total = this.points.putIfAbsent(apiKey, created);
+				if (total == null) {
+					total = created;
+				}
+			}
+			total.addAndGet(count);
+			return 201;
+		}
+
+		int points(final String apiKey) {
+			AtomicInteger total = this.points.get(apiKey);
+			return total == null ? 0 : total.get();
+		}
+	}
+
+	@Test
+	public void testPointsPostedUnderTheirOwnKey() {
+		KeyedTransport transport = new KeyedTransport(0);
+		MultiTenantMetricsPoster poster = new MultiTenantMetricsPoster(transport, 1000, 100, 50, OverflowPolicy.BLOCK);
+		for (int i = 0; i < 300; i++) {
+			poster.record("KEY-" + (i % 3), CustomMetricsTests.TEST_METRIC_NAME, i);
+		}
+		poster.record("KEY-0", CustomMetricsTests.TEST_METRIC_NAME, 1.0, "i-1234", System.currentTimeMillis());
+		Assert.assertEquals(3, poster.getTenantCount());
+		Assert.assertTrue(poster.close(5000));
+
+		Assert.assertEquals(101, transport.points("KEY-0"));
+		Assert.assertEquals(100, transport.points("KEY-1"));
+		Assert.assertEquals(100, transport.points("KEY-2"));
+		Assert.assertEquals(301, poster.getStats().getPointsPosted());
+		Assert.assertEquals(poster.getStats().getMessagesPosted(), poster.getMessagesSent());
+	}
+
+	@Test
+	public void testBusyKeyDoesNotStarveOthers() throws InterruptedException {
+		KeyedTransport transport = new KeyedTransport(20);
+		MultiTenantMetricsPoster poster = new MultiTenantMetricsPoster(transport, 10000, 100, 50, OverflowPolicy.BLOCK);
+		for (int i = 0; i < 5000; i++) {
+			poster.record("BUSY", CustomMetricsTests.TEST_METRIC_NAME, i);
+		}
+		poster.record("QUIET", CustomMetricsTests.TEST_METRIC_NAME, 1.0);
+		Assert.assertTrue(poster.close(10000));
+
+		Assert.assertEquals(5000, transport.points("BUSY"));
+		Assert.assertEquals(1, transport.points("QUIET"));
+		// fifty posts for the busy key, the quiet one was served within the first few turns
+		Assert.assertTrue(transport.postOrder.indexOf("QUIET") < 10);
+	}
+
+	@Test
+	public void testKeyWaitsForAFreeIoThreadWithoutBlockingTheDispatcher() throws InterruptedException {
+		final CountDownLatch slowPosts = new CountDownLatch(HttpGatewayTransport.DEFAULT_MAX_CONNECTIONS);
+		final CountDownLatch release = new CountDownLatch(1);
+		KeyedTransport transport = new KeyedTransport(0) {
+			@Override
+			public int post(final String apiKey, final byte[] body, final int offset, final int length) throws IOException {
+				if (apiKey.startsWith("SLOW")) {
+					slowPosts.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IOException("interrupted");
+					}
+				}
+				return super.post(apiKey, body, offset, length);
+			}
+		};
+		MultiTenantMetricsPoster poster = new MultiTenantMetricsPoster(transport, 1000, 100, 10, OverflowPolicy.BLOCK);
+		try {
+			for (int i = 0; i < HttpGatewayTransport.DEFAULT_MAX_CONNECTIONS; i++) {
+				poster.record("SLOW-" + i, CustomMetricsTests.TEST_METRIC_NAME, i);
+			}
+			Assert.assertTrue(slowPosts.await(5, TimeUnit.SECONDS));
+			// every I/O thread is taken: the key's point stays queued, well past its batch age, rather than going
+			// into a batch the dispatcher waits to post
+			poster.record("FAST", CustomMetricsTests.TEST_METRIC_NAME, 0);
+			long until = System.currentTimeMillis() + 100;
+			while (System.currentTimeMillis() < until) {
+				Assert.assertEquals(1, poster.getTenantQueueDepth("FAST"));
+				Thread.sleep(5);
+			}
+			for (int i = 1; i < 10; i++) {
+				poster.record("FAST", CustomMetricsTests.TEST_METRIC_NAME, i);
+			}
+		} finally {
+			release.countDown();
+		}
+		Assert.assertTrue(poster.close(5000));
+
+		Assert.assertEquals(10, transport.points("FAST"));
+		Assert.assertEquals(1, Collections.frequency(transport.postOrder, "FAST"));
+	}
+
+	@Test
+	public void testThrottledKeyKeepsItsOwnCircuit() throws InterruptedException {
+		KeyedTransport transport = new KeyedTransport(0);
+		transport.statuses.put("THROTTLED", 429);
+		MultiTenantMetricsPoster poster = new MultiTenantMetricsPoster(transport, 1000, 1, 10, OverflowPolicy.BLOCK)
+				.setRetryPolicy(RetryPolicy.NO_RETRIES);
+		for (int i = 0; i < 20; i++) {
+			poster.record("THROTTLED", CustomMetricsTests.TEST_METRIC_NAME, i);
+			poster.record("HEALTHY", CustomMetricsTests.TEST_METRIC_NAME, i);
+		}
+		Assert.assertTrue(poster.close(5000));
+
+		Assert.assertEquals(20, transport.points("HEALTHY"));
+		Assert.assertEquals(0, transport.points("THROTTLED"));
+		Assert.assertEquals(20, poster.getMessagesFailed());
+		// the breaker opened after a few 429s, so most throttled posts never went out
+		Assert.assertTrue(Collections.frequency(transport.postOrder, "THROTTLED") < 20);
+	}
+
+	@Test
+	public void testFailingKeyDoesNotCrowdOutOtherRetries() throws InterruptedException {
+		final ConcurrentMap<String, Boolean> healthyBodies = new ConcurrentHashMap<String, Boolean>();
+		KeyedTransport transport = new KeyedTransport(0) {
+			@Override
+			public int post(final String apiKey, final byte[] body, final int offset, final int length) throws IOException {
+				// the first post of each healthy message fails, its retry goes through
+				if (apiKey.equals("HEALTHY")
+						&& healthyBodies.putIfAbsent(new String(body, offset, length, "UTF-8"), Boolean.TRUE) == null) {
+					return 503;
+				}
+				return super.post(apiKey, body, offset, length);
+			}
+		};
+		transport.statuses.put("THROTTLED", 429);
+		MultiTenantMetricsPoster poster = new MultiTenantMetricsPoster(transport, 1000, 1, 10, OverflowPolicy.BLOCK)
+				.setRetryPolicy(new RetryPolicy(1, 200, 200)).setMaxPendingRetriesPerTenant(5);
+		for (int i = 0; i < 20; i++) {
+			poster.record("THROTTLED", CustomMetricsTests.TEST_METRIC_NAME, i);
+		}
+		// fewer failures in a row than it takes to open the key's breaker
+		for (int i = 0; i < 3; i++) {
+			poster.record("HEALTHY", CustomMetricsTests.TEST_METRIC_NAME, i);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (transport.points("HEALTHY") < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		// the throttled key filled its own five slots and lost the rest, the healthy one still had its own
+		Assert.assertEquals(3, transport.points("HEALTHY"));
+		Assert.assertEquals(0, transport.points("THROTTLED"));
+		Assert.assertTrue(poster.getMessagesFailed() >= 15);
+		poster.close(5000);
+	}
+
+		@Test
+	public void testCloseDropsWhatWaitsForARetry() {
+		KeyedTransport transport = new KeyedTransport(0);
+		transport.statuses.put("DOWN", 503);
+		MultiTenantMetricsPoster poster = new MultiTenantMetricsPoster(transport, 1000, 100, 10, OverflowPolicy.BLOCK)
+				.setRetryPolicy(new RetryPolicy(3, 60000, 60000));
+		poster.record("DOWN", CustomMetricsTests.TEST_METRIC_NAME, 1.0);
+		poster.record("UP", CustomMetricsTests.TEST_METRIC_NAME, 1.0);
+
+		Assert.assertFalse(poster.close(5000));
+		Assert.assertEquals(1, transport.points("UP"));
+		Assert.assertEquals(1, Collections.frequency(transport.postOrder, "DOWN"));
+		Assert.assertEquals(1, poster.getMessagesFailed());
+	}
+
+		@Test
+	public void testPerKeyQueueLimit() {
+		KeyedTransport transport = new KeyedTransport(0);
+		MultiTenantMetricsPoster poster = new MultiTenantMetricsPoster(transport, 10, 1000, 60000,
+				OverflowPolicy.DROP_NEWEST);
+		for (int i = 0; i < 15; i++) {
+			poster.record("SMALL", CustomMetricsTests.TEST_METRIC_NAME, i);
+		}
+		Assert.assertEquals(10, poster.getTenantQueueDepth("SMALL"));
+		Assert.assertEquals(5, poster.getTenantDroppedPoints("SMALL"));
+		Assert.assertEquals(0, poster.getTenantDroppedPoints("UNKNOWN"));
+
+		// a removed key's queue is still sent
+		Assert.assertTrue(poster.removeTenant("SMALL"));
+		Assert.assertFalse(poster.removeTenant("SMALL"));
+		Assert.assertEquals(0, poster.getTenantCount());
+		Assert.assertTrue(poster.close(5000));
+		Assert.assertEquals(10, transport.points("SMALL"));
+	}
+
+	@Test
+	public void testRecordAfterClose() {
+		MultiTenantMetricsPoster poster = new MultiTenantMetricsPoster(new KeyedTransport(0));
+		poster.close(1000);
+		Assert.assertFalse(poster.record("KEY", CustomMetricsTests.TEST_METRIC_NAME, 1.0));
+		Assert.assertEquals(1, poster.getStats().getPointsDropped());
+		Assert.assertEquals(0, poster.getTenantCount());
+	}
+
+	@Test
+	public void testPointsRecordedWhileClosingAreSentOrCounted() throws InterruptedException {
+		final KeyedTransport transport = new KeyedTransport(0);
+		final MultiTenantMetricsPoster poster = new MultiTenantMetricsPoster(transport, 100000, 100, 10,
+				OverflowPolicy.BLOCK);
+		final AtomicInteger queued = new AtomicInteger();
+		Thread[] recorders = new Thread[4];
+		for (int t = 0; t < recorders.length; t++) {
+			final String apiKey = "KEY-" + t;
+			recorders[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						if (poster.record(apiKey, CustomMetricsTests.TEST_METRIC_NAME, i)) {
+							queued.incrementAndGet();
+						}
+					}
+				}
+			});
+			recorders[t].start();
+		}
+		Assert.assertTrue(poster.close(10000));
+		for (Thread recorder : recorders) {
+			recorder.join();
+		}
+
+		int posted = 0;
+		for (int t = 0; t < recorders.length; t++) {
+			posted += transport.points("KEY-" + t);
+		}
+		Assert.assertEquals(queued.get(), posted);
+		Assert.assertEquals(40000, posted + poster.getStats().getPointsDropped());
+	}
+
+	@Test
+	public void testSharesOneConnectionAcrossKeys() throws IOException {
+		FakeGateway gateway = new FakeGateway(HttpGatewayTransportTests.TEST_API_KEY);
+		try {
+			MultiTenantMetricsPoster poster = new MultiTenantMetricsPoster(gateway.getEndpointUrl());
+			for (int i = 0; i < 100; i++) {
+				poster.record(i % 2 == 0 ? HttpGatewayTransportTests.TEST_API_KEY : "SOME-OTHER-KEY",
+						CustomMetricsTests.TEST_METRIC_NAME, i);
+			}
+			Assert.assertTrue(poster.close(5000));
+			Assert.assertEquals(50, gateway.getAcceptedPoints());
+			Assert.assertEquals(1, gateway.getResponses(403));
+			Assert.assertTrue(gateway.getConnections() <= HttpGatewayTransport.DEFAULT_MAX_CONNECTIONS);
+		} finally {
+			gateway.stop();
+		}
+	}
+}
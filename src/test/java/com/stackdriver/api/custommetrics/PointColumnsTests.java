@@ -0,0 +1,107 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Date;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class PointColumnsTests {
+
+	public static final String TEST_METRIC_NAME = "stackdriver.test.javaclient";
+
+	public static final String TEST_INSTANCE_ID = "i-12ab34cd";
+
+	@Test
+	public void testColumnarJsonMatchesObjects() {
+		CustomMetricsMessage objects = new CustomMetricsMessage();
+		PointColumns columns = new PointColumns(new SeriesDictionary(), 1);
+		CustomMetricsMessage columnar = new CustomMetricsMessage(columns);
+		for (int i = 0; i < 10000; i++) {
+			long collectedAt = 1400000000000L + i * 10;
+			String instanceId = i % 3 == 0 ? TEST_INSTANCE_ID + (i % 7) : null;
+			if (instanceId == null) {
+				objects.addDataPoint(new DataPoint(TEST_METRIC_NAME + (i % 5), i * 0.25, new Date(collectedAt)));
+			} else {
+				objects.addDataPoint(new InstanceDataPoint(TEST_METRIC_NAME + (i % 5), i * 0.25, new Date(collectedAt), instanceId));
+			}
+			columns.add(TEST_METRIC_NAME + (i % 5), instanceId, i * 0.25, collectedAt);
+		}
+		Assert.assertEquals(10000, columnar.getPointCount());
+		Assert.assertTrue(columns.getDictionary().size() <= 5 + 5 * 7);
+		Assert.assertEquals(objects.toJson().replace("\"timestamp\":" + objects.getTimestamp(), ""),
+				columnar.toJson().replace("\"timestamp\":" + columnar.getTimestamp(), ""));
+	}
+
+	@Test
+	public void testDataPointsView() {
+		PointColumns columns = new PointColumns();
+		CustomMetricsMessage message = new CustomMetricsMessage(columns);
+		columns.add(TEST_METRIC_NAME, null, 1.5, 1400000000999L);
+		message.addDataPoint(new InstanceDataPoint(TEST_METRIC_NAME, 2.5, new Date(1400000001000L), TEST_INSTANCE_ID));
+
+		Assert.assertEquals(2, message.getDataPoints().size());
+		DataPoint first = message.getDataPoints().get(0);
+		Assert.assertEquals(TEST_METRIC_NAME, first.getName());
+		Assert.assertEquals(1.5, first.getValue());
+		Assert.assertEquals(1400000000L, first.getCollectedAtEpoch());
+		InstanceDataPoint second = (InstanceDataPoint) message.getDataPoints().get(1);
+		Assert.assertEquals(TEST_INSTANCE_ID, second.getInstanceId());
+		Assert.assertEquals(1400000001L, columns.getCollectedAtEpoch(1));
+	}
+
+	@Test(expectedExceptions = UnsupportedOperationException.class)
+	public void testViewIsReadOnly() {
+		new CustomMetricsMessage(new PointColumns()).getDataPoints().add(new DataPoint(TEST_METRIC_NAME, 0.0, new Date()));
+	}
+
+	@Test
+	public void testCoalesceKeepsLatestPerSeriesAndSecond() {
+		PointColumns columns = new PointColumns(new SeriesDictionary(), 1);
+		columns.add(TEST_METRIC_NAME, null, 1.0, 1400000000100L);
+		columns.add(TEST_METRIC_NAME, TEST_INSTANCE_ID, 2.0, 1400000000200L);
+		columns.add(TEST_METRIC_NAME, null, 3.0, 1400000000900L);
+		// next second, a separate point on the wire
+		columns.add(TEST_METRIC_NAME, null, 4.0, 1400000001000L);
+		// older than what is already kept for the second
+		columns.add(TEST_METRIC_NAME, null, 5.0, 1400000000500L);
+		columns.add(TEST_METRIC_NAME, TEST_INSTANCE_ID, 6.0, 1400000000200L);
+
+		PointCoalescer coalescer = new PointCoalescer(2);
+		Assert.assertEquals(3, coalescer.coalesce(columns));
+		Assert.assertEquals(3, columns.size());
+		Assert.assertEquals(3.0, columns.getValue(0));
+		Assert.assertEquals(1400000000900L, columns.getCollectedAtMillis(0));
+		Assert.assertEquals(TEST_INSTANCE_ID, columns.getDictionary().getInstanceId(columns.getSeriesId(1)));
+		Assert.assertEquals(6.0, columns.getValue(1));
+		Assert.assertEquals(4.0, columns.getValue(2));
+
+		// the table starts empty for the next batch
+		columns.clear();
+		columns.add(TEST_METRIC_NAME, null, 7.0, 1400000000100L);
+		Assert.assertEquals(0, coalescer.coalesce(columns));
+		Assert.assertEquals(7.0, columns.getValue(0));
+	}
+
+	@Test
+	public void testCoalesceLargeBatch() {
+		PointColumns columns = new PointColumns(new SeriesDictionary(), 1);
+		for (int i = 0; i < 100000; i++) {
+			// 1000 series sampled every 10ms for a second
+			columns.add(TEST_METRIC_NAME + (i % 1000), null, i, 1400000000000L + (i / 1000) * 10);
+		}
+		PointCoalescer coalescer = new PointCoalescer(16);
+		Assert.assertEquals(99000, coalescer.coalesce(columns));
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertEquals(TEST_METRIC_NAME + i, columns.getDictionary().getName(columns.getSeriesId(i)));
+			Assert.assertEquals(99000.0 + i, columns.getValue(i));
+		}
+	}
+
+	@Test(expectedExceptions = IndexOutOfBoundsException.class)
+	public void testIndexChecked() {
+		PointColumns columns = new PointColumns();
+		columns.add(TEST_METRIC_NAME, null, 1.0, 0L);
+		columns.getValue(1);
+	}
+}
@@ -0,0 +1,108 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class QuantileSketchTests {
+
+	private static final double[] QUANTILES = { 0, 0.1, 0.5, 0.9, 0.99, 0.999, 1 };
+
+	private static void assertWithinAccuracy(final double[] sorted, final QuantileSketch sketch) {
+		for (double quantile : QUANTILES) {
+			double exact = sorted[(int) Math.floor(quantile * (sorted.length - 1))];
+			double estimate = sketch.getValueAtQuantile(quantile);
+			Assert.assertTrue("q" + quantile + " exact " + exact + " estimate " + estimate,
+					Math.abs(estimate - exact) <= exact * sketch.getRelativeAccuracy() + sketch.getMinValue());
+		}
+	}
+
+	@Test
+	public void testQuantilesWithinRelativeAccuracy() {
+		Random random = new Random(42);
+		QuantileSketch sketch = new QuantileSketch();
+		double[] values = new double[100000];
+		for (int i = 0; i < values.length; i++) {
+			// long tailed, like latencies: mostly a few ms, some in the seconds
+			values[i] = Math.exp(random.nextGaussian() * 2 + 1);
+			sketch.record(values[i]);
+		}
+		Arrays.sort(values);
+		Assert.assertEquals(values.length, sketch.getCount());
+		assertWithinAccuracy(values, sketch);
+	}
+
+	@Test
+	public void testValuesOutsideTheRange() {
+		QuantileSketch sketch = new QuantileSketch(0.01, 1, 1000);
+		sketch.record(-5);
+		sketch.record(0);
+		sketch.record(0.5);
+		sketch.record(1e6);
+		Assert.assertEquals(4, sketch.getCount());
+		Assert.assertEquals(0.0, sketch.getValueAtQuantile(0));
+		Assert.assertEquals(0.0, sketch.getValueAtQuantile(0.5));
+		Assert.assertEquals(1000.0, sketch.getValueAtQuantile(1));
+		Assert.assertTrue(Double.isNaN(new QuantileSketch().getValueAtQuantile(0.5)));
+	}
+
+	@Test
+	public void testMemoryIsFixed() {
+		QuantileSketch sketch = new QuantileSketch();
+		int buckets = sketch.getBucketCount();
+		Assert.assertTrue(buckets < 1400);
+		for (int i = 0; i < 1000000; i++) {
+			sketch.record(i * 0.37);
+		}
+		Assert.assertEquals(buckets, sketch.getBucketCount());
+	}
+
+	@Test
+	public void testMergeAndReset() {
+		Random random = new Random(7);
+		QuantileSketch first = new QuantileSketch();
+		QuantileSketch second = new QuantileSketch();
+		double[] values = new double[20000];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextDouble() * 500;
+			(i % 2 == 0 ? first : second).record(values[i]);
+		}
+		first.merge(second);
+		Arrays.sort(values);
+		Assert.assertEquals(values.length, first.getCount());
+		assertWithinAccuracy(values, first);
+
+		QuantileSketch interval = first.getThenReset();
+		Assert.assertEquals(0, first.getCount());
+		Assert.assertEquals(values.length, interval.getCount());
+		assertWithinAccuracy(values, interval);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testMergeNeedsSameParameters() {
+		new QuantileSketch().merge(new QuantileSketch(0.02, QuantileSketch.DEFAULT_MIN_VALUE, QuantileSketch.DEFAULT_MAX_VALUE));
+	}
+
+	@Test
+	public void testConcurrentRecording() throws InterruptedException {
+		final QuantileSketch sketch = new QuantileSketch();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 100000; i++) {
+						sketch.record(i % 100);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(400000, sketch.getCount());
+	}
+}
@@ -0,0 +1,216 @@
+package com.stackdriver.api.custommetrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+public class RateLimiterTests {
+
+	@Test
+	public void testBucketRefillsAtItsRate() {
+		TokenBucket bucket = new TokenBucket(10);
+		long now = System.nanoTime();
+		// a second's worth to start with
+		Assert.assertEquals(10, bucket.acquire(20, now));
+		Assert.assertEquals(0, bucket.acquire(1, now));
+		Assert.assertEquals(3, bucket.acquire(5, now + TimeUnit.MILLISECONDS.toNanos(300)));
+		// never more than a second's worth, however long it was idle
+		Assert.assertEquals(10, bucket.acquire(20, now + TimeUnit.SECONDS.toNanos(60)));
+	}
+
+	@Test
+	public void testDropsPointsOverTheLimit() {
+		RecordingPoster poster = new RecordingPoster();
+		RateLimiter limiter = new RateLimiter(100);
+		poster.setRateLimiter(limiter);
+		for (int i = 0; i < 1000; i++) {
+			poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, i);
+		}
+		Assert.assertTrue(poster.pointCount() >= 100 && poster.pointCount() < 200);
+		Assert.assertEquals(poster.pointCount(), limiter.getPointsAdmitted());
+		Assert.assertEquals(1000 - poster.pointCount(), limiter.getPointsDropped());
+		Assert.assertEquals(limiter.getPointsDropped(), poster.getStats().getPointsRateLimited());
+		Assert.assertEquals(1000, poster.getStats().getPointsRecorded());
+	}
+
+	@Test
+	public void testSamplesPointsOverTheLimit() {
+		RecordingPoster poster = new RecordingPoster();
+		RateLimiter limiter = new RateLimiter(10, RateLimiter.UNLIMITED, RateLimitPolicy.SAMPLE).setSampleRate(10);
+		poster.setRateLimiter(limiter);
+		MetricHandle handle = poster.getMetricHandle(CustomMetricsTests.TEST_METRIC_NAME);
+		for (int i = 0; i < 1010; i++) {
+			handle.record(i);
+		}
+		long excess = 1010 - limiter.getPointsAdmitted();
+		Assert.assertEquals((excess + 9) / 10, limiter.getPointsSampled());
+		Assert.assertEquals(excess - limiter.getPointsSampled(), limiter.getPointsDropped());
+		Assert.assertEquals(limiter.getPointsAdmitted() + limiter.getPointsSampled(), poster.pointCount());
+	}
+
+	@Test
+	public void testAggregatesDrainOldestFirst() {
+		SeriesAggregates aggregates = new SeriesAggregates();
+		for (int id = 0; id < 50; id++) {
+			aggregates.hold(id, id, 1000);
+		}
+		PointColumns columns = new PointColumns();
+		Assert.assertEquals(40, aggregates.drain(columns, 40));
+		// wraps around the end of the queue, then grows past the initial arrays
+		for (int id = 50; id < 64; id++) {
+			aggregates.hold(id, id, 1000);
+		}
+		for (int id = 0; id < 10; id++) {
+			aggregates.hold(id, id, 1000);
+		}
+		for (int id = 500; id >= 64; id--) {
+			aggregates.hold(id, id, 1000);
+		}
+		// an older value doesn't replace the latest, a newer one does and keeps its place
+		aggregates.hold(45, -1, 999);
+		aggregates.hold(46, -1, 1001);
+		Assert.assertEquals(471, aggregates.size());
+
+		columns = new PointColumns();
+		Assert.assertEquals(471, aggregates.drain(columns, Integer.MAX_VALUE));
+		Assert.assertEquals(40, columns.getSeriesId(0));
+		Assert.assertEquals(45.0, columns.getValue(5));
+		Assert.assertEquals(-1.0, columns.getValue(6));
+		Assert.assertEquals(0, columns.getSeriesId(24));
+		Assert.assertEquals(500, columns.getSeriesId(34));
+		Assert.assertEquals(64, columns.getSeriesId(470));
+		Assert.assertEquals(0, aggregates.size());
+	}
+
+	@Test
+	public void testAggregatingDoesNotAllocate() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long threadId = Thread.currentThread().getId();
+
+		RateLimiter limiter = new RateLimiter(1, RateLimiter.UNLIMITED, RateLimitPolicy.AGGREGATE);
+		for (int id = 0; id < 1000; id++) {
+			limiter.aggregate(id, id, 1000);
+		}
+		long before = allocations.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 100000; i++) {
+			limiter.aggregate(i % 1000, i, 1000 + i);
+		}
+		long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+		Assert.assertEquals(1000, limiter.getAggregatedSeries());
+		// well under one byte per point, allowing for the measurement itself
+		Assert.assertTrue("allocated " + allocated + " bytes", allocated < 10000);
+	}
+
+	@Test
+	public void testAggregatesToTheLatestValuePerSeries() throws InterruptedException {
+		RecordingPoster poster = new RecordingPoster();
+		RateLimiter limiter = new RateLimiter(10, RateLimiter.UNLIMITED, RateLimitPolicy.AGGREGATE);
+		poster.setRateLimiter(limiter);
+		try {
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < 100; i++) {
+				poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, i, new Date(now + i));
+				poster.sendInstanceMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, -i, new Date(now + i), "i-1234");
+			}
+			Assert.assertEquals(190, limiter.getPointsAggregated());
+			Assert.assertEquals(2, limiter.getAggregatedSeries());
+			Assert.assertEquals(0, poster.getStats().getPointsRateLimited());
+
+			int sent = poster.pointCount();
+			// the points limit refills at 10 a second, flush until both values have been let through
+			long deadline = System.currentTimeMillis() + 5000;
+			while (limiter.getAggregatedSeries() > 0 && System.currentTimeMillis() < deadline) {
+				poster.flushAggregated(limiter);
+				Thread.sleep(10);
+			}
+			List<DataPoint> points = poster.points().subList(sent, poster.pointCount());
+			Assert.assertEquals(2, points.size());
+			for (DataPoint point : points) {
+				double expected = point instanceof InstanceDataPoint ? -99.0 : 99.0;
+				Assert.assertEquals(Double.valueOf(expected), Double.valueOf(point.getValue()));
+			}
+			Assert.assertEquals(0, limiter.getAggregatedSeries());
+		} finally {
+			poster.setRateLimiter(null);
+		}
+	}
+
+	@Test
+	public void testPostsOverTheLimitAreNotSerialized() {
+		AsyncSendTests.SlowTransport transport = new AsyncSendTests.SlowTransport(0);
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY)
+				.setTransport(transport).setMessageLimits(1, CustomMetricsPoster.DEFAULT_MAX_MESSAGE_BYTES);
+		RateLimiter limiter = new RateLimiter(RateLimiter.UNLIMITED, 2, RateLimitPolicy.DROP);
+		poster.setRateLimiter(limiter);
+		CustomMetricsMessage message = new CustomMetricsMessage();
+		for (int i = 0; i < 10; i++) {
+			message.addDataPoint(new DataPoint(CustomMetricsTests.TEST_METRIC_NAME, i, new Date()));
+		}
+		poster.sendMetrics(message);
+
+		Assert.assertEquals(2, transport.posts.get());
+		Assert.assertEquals(2, poster.getStats().getMessagesPosted());
+		Assert.assertEquals(1, limiter.getRequestsRejected());
+		Assert.assertEquals(8, poster.getStats().getPointsRateLimited());
+	}
+
+	@Test
+	public void testPostsOverTheLimitAreAggregated() throws Exception {
+		AsyncSendTests.SlowTransport transport = new AsyncSendTests.SlowTransport(0);
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY)
+				.setTransport(transport).setMessageLimits(1, CustomMetricsPoster.DEFAULT_MAX_MESSAGE_BYTES);
+		RateLimiter limiter = new RateLimiter(RateLimiter.UNLIMITED, 1, RateLimitPolicy.AGGREGATE);
+		poster.setRateLimiter(limiter);
+		try {
+			CustomMetricsMessage message = new CustomMetricsMessage();
+			for (int i = 0; i < 10; i++) {
+				message.addDataPoint(new InstanceDataPoint(CustomMetricsTests.TEST_METRIC_NAME, i, new Date(), "i-" + (i % 3)));
+			}
+			Assert.assertEquals(1, poster.sendMetricsAsync(message).size());
+			Assert.assertTrue(poster.awaitAsyncSends(5000));
+			Assert.assertEquals(1, transport.posts.get());
+			Assert.assertEquals(3, limiter.getAggregatedSeries());
+			Assert.assertEquals(9, limiter.getPointsAggregated());
+		} finally {
+			poster.setRateLimiter(null);
+		}
+	}
+
+	@Test
+	public void testFlushWaitsForThePostsLimit() {
+		AsyncSendTests.SlowTransport transport = new AsyncSendTests.SlowTransport(0);
+		CustomMetricsPoster poster = new CustomMetricsPoster(HttpGatewayTransportTests.TEST_API_KEY).setTransport(transport);
+		// a single post every 10 seconds
+		RateLimiter limiter = new RateLimiter(RateLimiter.UNLIMITED, 0.1, RateLimitPolicy.AGGREGATE);
+		poster.setRateLimiter(limiter);
+		try {
+			poster.sendMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 1.0);
+			poster.sendInstanceMetricDataPoint(CustomMetricsTests.TEST_METRIC_NAME, 2.0, "i-1234");
+			Assert.assertEquals(1, transport.posts.get());
+			Assert.assertEquals(1, limiter.getPointsAggregated());
+
+			// no post allowed, the value stays where it is and isn't counted again
+			poster.flushAggregated(limiter);
+			Assert.assertEquals(1, transport.posts.get());
+			Assert.assertEquals(1, limiter.getAggregatedSeries());
+			Assert.assertEquals(1, limiter.getPointsAggregated());
+		} finally {
+			poster.setRateLimiter(null);
+		}
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testRejectsNegativeRate() {
+		new RateLimiter(-1);
+	}
+}
@@ -0,0 +1,36 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local mode poster that keeps the messages it is asked to send, for tests
+ */
+class RecordingPoster extends CustomMetricsPoster {
+
+	final List<CustomMetricsMessage> messages = new ArrayList<CustomMetricsMessage>();
+
+	@Override
+	public synchronized void sendMetrics(final CustomMetricsMessage message) {
+		this.messages.add(message);
+	}
+
+	synchronized int pointCount() {
+		int count = 0;
+		for (CustomMetricsMessage message : this.messages) {
+			count += message.getDataPoints().size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return every point sent so far, in order
+	 */
+	synchronized List<DataPoint> points() {
+		List<DataPoint> points = new ArrayList<DataPoint>();
+		for (CustomMetricsMessage message : this.messages) {
+			points.addAll(message.getDataPoints());
+		}
+		return points;
+	}
+}
@@ -0,0 +1,130 @@
+package com.stackdriver.api.custommetrics;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.Assert;
+
+import org.testng.annotations.Test;
+
+import com.stackdriver.api.custommetrics.StripedDoubleAccumulator.Operation;
+
+public class StripedAccumulatorTests {
+
+	private static final int THREADS = 8;
+
+	private static final int UPDATES_PER_THREAD = 200000;
+
+	/**
+	 * Run the same task on several threads at once and wait for all of them
+	 */
+	private static void runConcurrently(final Runnable task) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					task.run();
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	@Test
+	public void testConcurrentAddsWithResets() throws InterruptedException {
+		final StripedLongAdder adder = new StripedLongAdder();
+		final long[] taken = new long[1];
+		Thread resetter = new Thread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 1000; i++) {
+					taken[0] += adder.sumThenReset();
+				}
+			}
+		});
+		resetter.start();
+		runConcurrently(new Runnable() {
+			public void run() {
+				for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+					adder.increment();
+				}
+			}
+		});
+		resetter.join();
+		Assert.assertEquals((long) THREADS * UPDATES_PER_THREAD, taken[0] + adder.sumThenReset());
+		Assert.assertEquals(0, adder.sum());
+	}
+
+	@Test
+	public void testConcurrentDoubleSum() throws InterruptedException {
+		final StripedDoubleAccumulator sum = new StripedDoubleAccumulator(Operation.SUM);
+		runConcurrently(new Runnable() {
+			public void run() {
+				for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+					sum.accumulate(0.5);
+				}
+			}
+		});
+		Assert.assertEquals(THREADS * UPDATES_PER_THREAD * 0.5, sum.getThenReset());
+		Assert.assertEquals(0.0, sum.get());
+	}
+
+	@Test
+	public void testConcurrentMinMax() throws InterruptedException {
+		final StripedDoubleAccumulator min = new StripedDoubleAccumulator(Operation.MIN);
+		final StripedDoubleAccumulator max = new StripedDoubleAccumulator(Operation.MAX);
+		Assert.assertEquals(Double.POSITIVE_INFINITY, min.get());
+		runConcurrently(new Runnable() {
+			public void run() {
+				for (int i = 0; i < UPDATES_PER_THREAD; i++) {
+					min.accumulate(i);
+					max.accumulate(-i);
+				}
+			}
+		});
+		Assert.assertEquals(0.0, min.getThenReset());
+		Assert.assertEquals(0.0, max.get());
+		Assert.assertEquals(Double.POSITIVE_INFINITY, min.get());
+	}
+
+	@Test
+	public void testTimerUnderContention() throws InterruptedException {
+		RecordingPoster poster = new RecordingPoster();
+		MetricsRegistry registry = new MetricsRegistry(poster, 3600000);
+		final Timer timer = registry.timer(MetricsRegistryTests.TEST_METRIC_NAME);
+		runConcurrently(new Runnable() {
+			public void run() {
+				for (int i = 1; i <= 1000; i++) {
+					timer.record(i);
+				}
+			}
+		});
+		registry.report();
+		for (DataPoint point : poster.points()) {
+			if (point.getName().endsWith(Timer.COUNT_SUFFIX)) {
+				Assert.assertEquals(THREADS * 1000.0, point.getValue());
+			} else if (point.getName().endsWith(Timer.MAX_SUFFIX)) {
+				Assert.assertEquals(1000.0, point.getValue());
+			} else if (point.getName().endsWith(Timer.AVG_SUFFIX)) {
+				Assert.assertEquals(500.5, point.getValue());
+			}
+		}
+		registry.close();
+	}
+
+	@Test
+	public void testStripeCount() {
+		Assert.assertEquals(1, Striped64.stripesFor(1));
+		Assert.assertEquals(8, Striped64.stripesFor(6));
+		Assert.assertEquals(64, Striped64.stripesFor(64));
+		Assert.assertEquals(64, Striped64.stripesFor(1000));
+	}
+}